@@ -0,0 +1,19 @@
+#!/bin/sh
+# Starts the art program from the jar built by "mvn package". When "mvn -P cds package" has
+# made a class data sharing archive, the JVM maps the classes from it instead of loading and
+# verifying them one by one, which gets the first frame up sooner.
+#
+# Usage: artprogram.sh [--size WIDTHxHEIGHT | --last] [--startup-time] [other ExampleDriver flags]
+
+dir=$(dirname "$0")
+jar="$dir/target/artprogram-1.0-SNAPSHOT-shaded.jar"
+archive="$dir/target/artprogram.jsa"
+
+if [ ! -f "$jar" ]; then
+    echo "No $jar, build it with: mvn package" >&2
+    exit 1
+fi
+if [ -f "$archive" ]; then
+    exec java -XX:SharedArchiveFile="$archive" -jar "$jar" "$@"
+fi
+exec java -jar "$jar" "$@"
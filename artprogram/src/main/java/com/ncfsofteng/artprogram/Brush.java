@@ -0,0 +1,33 @@
+package com.ncfsofteng.artprogram;
+
+/**
+ * Brush.java
+ * A brush that paints by stamping dabs along the path of the mouse. A brush only describes
+ * one dab as an alpha mask; the window tints it, caches it in a StampCache and blits it at
+ * every dab, so a brush costs the same per dab however its mask was made.
+ *
+ * Brushes other than the built-in ones are plugins: a jar holding a public class with a
+ * public no-argument constructor that implements this interface, listed in
+ * META-INF/services/com.ncfsofteng.artprogram.Brush. Plugins are found on the classpath
+ * and in the brushes folder, see Brushes.
+ */
+public interface Brush {
+    /**
+     * Returns the name shown in the brush type prompt
+     */
+    String name();
+
+    /**
+     * Returns the distance between dabs as a fraction of the brush size, such as 0.25
+     */
+    float spacing();
+
+    /**
+     * Draws the alpha mask of one dab. The mask must depend only on the arguments, since it
+     * is drawn once and reused for every dab of that size and hardness.
+     * @param size width and height of the mask in pixels
+     * @param hardness 0 for a soft edge to 1 for a hard one
+     * @param alpha receives size * size coverage values from 0 to 255, row by row
+     */
+    void dab(int size, float hardness, int[] alpha);
+}
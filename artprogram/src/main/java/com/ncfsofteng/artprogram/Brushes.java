@@ -0,0 +1,148 @@
+package com.ncfsofteng.artprogram;
+
+/**
+ * Brushes.java
+ * The stamp brushes a window can paint with: the built-in Round and Chalk brushes, then every
+ * Brush plugin found by a ServiceLoader on the classpath and in the jars of the brushes folder.
+ * The folder is named by the artprogram.brushes system property, or is "brushes" in the
+ * working directory. Brushes are looked up once, the first time they are needed.
+ */
+
+import java.io.File;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+
+class Brushes {
+    private static List<Brush> all;
+
+    private Brushes() {
+    }
+
+    /**
+     * Returns every stamp brush, built-in ones first
+     */
+    public static synchronized List<Brush> all() {
+        if (all == null) {
+            List<Brush> brushes = new ArrayList<>();
+            brushes.add(new Round());
+            brushes.add(new Chalk());
+            load(brushes, pluginLoader());
+            all = Collections.unmodifiableList(brushes);
+        }
+        return all;
+    }
+
+    /*
+     * Adds the plugins a class loader can see, skipping any that fail to load
+     */
+    private static void load(List<Brush> brushes, ClassLoader loader) {
+        Iterator<Brush> plugins = ServiceLoader.load(Brush.class, loader).iterator();
+        while (true) {
+            try {
+                if (!plugins.hasNext()) {
+                    break;
+                }
+                Brush brush = plugins.next();
+                brushes.add(brush);
+                System.out.println("Brushes: loaded " + brush.name() + " from " + brush.getClass().getName());
+            }
+            catch (ServiceConfigurationError e) {
+                System.err.println("Brushes: skipping a plugin: " + e.getMessage());
+            }
+        }
+    }
+
+    /*
+     * Class loader over the jars of the brushes folder, or the loader of this class if there are none
+     */
+    private static ClassLoader pluginLoader() {
+        ClassLoader parent = Brush.class.getClassLoader();
+        File folder = new File(System.getProperty("artprogram.brushes", "brushes"));
+        File[] jars = folder.listFiles();
+        if (jars == null) {
+            return parent;
+        }
+        List<URL> urls = new ArrayList<>();
+        for (File jar : jars) {
+            if (jar.getName().endsWith(".jar")) {
+                try {
+                    urls.add(jar.toURI().toURL());
+                }
+                catch (MalformedURLException e) {
+                    System.err.println("Brushes: skipping " + jar + ": " + e.getMessage());
+                }
+            }
+        }
+        return urls.isEmpty() ? parent : new URLClassLoader(urls.toArray(new URL[urls.size()]), parent);
+    }
+
+    /**
+     * A round dab, solid in the middle and fading out over the outer part of its radius.
+     * A hardness of 1 fades over the last pixel only.
+     */
+    static class Round implements Brush {
+        @Override
+        public String name() {
+            return "Round";
+        }
+
+        @Override
+        public float spacing() {
+            return 0.15f;
+        }
+
+        @Override
+        public void dab(int size, float hardness, int[] alpha) {
+            float r = size / 2f;
+            // Coverage falls from 1 at the solid radius to 0 at the edge
+            float solid = Math.min(r * hardness, r - 1);
+            for (int y = 0; y < size; y++) {
+                for (int x = 0; x < size; x++) {
+                    float dx = x + 0.5f - r;
+                    float dy = y + 0.5f - r;
+                    float d = (float) Math.sqrt(dx * dx + dy * dy);
+                    float t = d <= solid ? 1 : Math.max(0, (r - d) / (r - solid));
+                    alpha[y * size + x] = Math.round(255 * t * t * (3 - 2 * t));
+                }
+            }
+        }
+    }
+
+    /**
+     * A round dab with grain, as chalk leaves on rough paper. Softer dabs let more paper show.
+     */
+    static class Chalk implements Brush {
+        private final Round round = new Round();
+
+        @Override
+        public String name() {
+            return "Chalk";
+        }
+
+        @Override
+        public float spacing() {
+            return 0.3f;
+        }
+
+        @Override
+        public void dab(int size, float hardness, int[] alpha) {
+            round.dab(size, hardness, alpha);
+            // The same grain for every dab of a size, so the mask can be cached
+            Random grain = new Random(size);
+            float paper = 0.75f - 0.5f * hardness;
+            for (int i = 0; i < size * size; i++) {
+                if (grain.nextFloat() < paper) {
+                    alpha[i] = alpha[i] * grain.nextInt(64) / 255;
+                }
+            }
+        }
+    }
+}
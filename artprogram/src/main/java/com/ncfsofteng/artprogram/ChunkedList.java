@@ -0,0 +1,391 @@
+package com.ncfsofteng.artprogram;
+
+/**
+ * ChunkedList.java
+ * A list stored as fixed size chunks of elements behind a directory of chunks, which hands
+ * out read-only snapshots in constant time. Taking a snapshot copies nothing. It only marks
+ * the directory and every chunk as shared, and the writer copies a chunk (or the directory)
+ * the first time it changes it afterwards. Snapshots therefore never see a later change
+ * and can be read from any thread while the owner keeps editing without locks. Everything
+ * but snapshot reading must happen on the owner's thread.
+ *
+ * Chunks are stamped with the epoch they were copied in. Epochs come from one counter
+ * shared by all lists, so an element stamped with epoch() can also tell whether a snapshot
+ * of its list was taken after it was created, see isShared().
+ *
+ * An Observer may be told about every element that enters or leaves the list, to keep
+ * running totals without walking it, and an Indexer where in the list that happens, to keep
+ * something built by position in step without building it again.
+ */
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
+import java.util.concurrent.atomic.AtomicInteger;
+
+class ChunkedList<E> extends AbstractList<E> implements RandomAccess {
+    private static final int SHIFT = 6;
+    private static final int CHUNK = 1 << SHIFT;
+    private static final int MASK = CHUNK - 1;
+    private static final AtomicInteger EPOCHS = new AtomicInteger();
+
+    private Object[][] chunks = new Object[4][];
+    // Epoch each chunk was created or copied in, only ever read by the owner
+    private int[] stamps = new int[4];
+    private boolean directoryShared = false;
+    private int size = 0;
+    // Epoch of the last snapshot, chunks stamped before it may be seen by a snapshot
+    private int snapshotEpoch = 0;
+    private Observer<? super E> observer = null;
+    private Indexer indexer = null;
+
+    /**
+     * Told about elements as they are added to or removed from a list
+     */
+    interface Observer<E> {
+        void added(E element);
+
+        void removed(E element);
+    }
+
+    /**
+     * Told where elements are added, replaced and removed, after the list has changed
+     */
+    interface Indexer {
+        /**
+         * An element was put at an index, moving the ones from there on up by one
+         */
+        void inserted(int index);
+
+        /**
+         * The element at an index was replaced with set()
+         */
+        void replaced(int index);
+
+        /**
+         * The elements at the indices set were removed, moving the ones after them down
+         */
+        void removed(BitSet indices);
+    }
+
+    /**
+     * Sets the observer told about every later change to the list, or null for none
+     */
+    public void observe(Observer<? super E> observer) {
+        this.observer = observer;
+    }
+
+    /**
+     * Sets the indexer told where every later change to the list is, or null for none
+     */
+    public void index(Indexer indexer) {
+        this.indexer = indexer;
+    }
+
+    /**
+     * Returns the current epoch, for stamping an element that is about to be added
+     */
+    public static int epoch() {
+        return EPOCHS.get();
+    }
+
+    /**
+     * Returns true if a snapshot taken since an element was stamped may hold that element,
+     * in which case the element must be copied instead of changed.
+     * @param stamp epoch() at the time the element was created
+     */
+    public boolean isShared(int stamp) {
+        return stamp < snapshotEpoch;
+    }
+
+    /**
+     * Returns a view of the list as it is now, which later changes to the list do not affect.
+     */
+    public Snapshot<E> snapshot() {
+        directoryShared = true;
+        snapshotEpoch = EPOCHS.incrementAndGet();
+        return new Snapshot<>(chunks, size);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public E get(int index) {
+        if (index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+        return (E) chunks[index >>> SHIFT][index & MASK];
+    }
+
+    @Override
+    public E set(int index, E element) {
+        if (index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+        E old = put(index, element);
+        if (observer != null && old != element) {
+            observer.removed(old);
+            observer.added(element);
+        }
+        if (indexer != null && old != element) {
+            indexer.replaced(index);
+        }
+        return old;
+    }
+
+    @Override
+    public boolean add(E element) {
+        append(element);
+        if (observer != null) {
+            observer.added(element);
+        }
+        if (indexer != null) {
+            indexer.inserted(size - 1);
+        }
+        return true;
+    }
+
+    @Override
+    public void add(int index, E element) {
+        if (index == size) {
+            add(element);
+            return;
+        }
+        if (index < 0 || index > size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+        append(get(size - 1));
+        for (int i = size - 2; i > index; i--) {
+            put(i, get(i - 1));
+        }
+        put(index, element);
+        if (observer != null) {
+            observer.added(element);
+        }
+        if (indexer != null) {
+            indexer.inserted(index);
+        }
+    }
+
+    @Override
+    public E remove(int index) {
+        E old = get(index);
+        removeRange(index, index + 1);
+        return old;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns a number that changes whenever elements are added or removed, but not when one is
+     * replaced with set(), so anything built from the list can tell whether it is still in step
+     */
+    public int modifications() {
+        return modCount;
+    }
+
+    @Override
+    public void clear() {
+        if (observer != null) {
+            for (int i = 0; i < size; i++) {
+                observer.removed(get(i));
+            }
+        }
+        int n = size;
+        // Snapshots keep the old chunks, so the list can simply start over
+        chunks = new Object[4][];
+        stamps = new int[4];
+        directoryShared = false;
+        size = 0;
+        modCount++;
+        if (indexer != null && n > 0) {
+            BitSet all = new BitSet(n);
+            all.set(0, n);
+            indexer.removed(all);
+        }
+    }
+
+    /**
+     * Removes [from, to) by shifting the elements after it down, used by subList(from, to).clear()
+     */
+    @Override
+    protected void removeRange(int from, int to) {
+        if (to > from) {
+            BitSet indices = new BitSet(to);
+            indices.set(from, to);
+            removeAll(indices);
+        }
+    }
+
+    /**
+     * Removes the elements at the indices set in one pass, shifting the ones kept down over
+     * them, which is quicker than removing them one at a time when they are spread out
+     * @param indices indices to remove, none of them size() or more
+     */
+    public void removeAll(BitSet indices) {
+        int first = indices.nextSetBit(0);
+        if (first < 0) {
+            return;
+        }
+        if (indices.length() > size) {
+            throw new IndexOutOfBoundsException("Index: " + (indices.length() - 1) + ", Size: " + size);
+        }
+        if (observer != null) {
+            for (int i = first; i >= 0; i = indices.nextSetBit(i + 1)) {
+                observer.removed(get(i));
+            }
+        }
+        int kept = first;
+        for (int i = indices.nextClearBit(first); i < size; i = indices.nextClearBit(i + 1)) {
+            put(kept++, get(i));
+        }
+        for (int i = kept; i < size; i++) {
+            put(i, null);
+        }
+        size = kept;
+        // Drop the chunks that are now empty
+        int used = (size + MASK) >>> SHIFT;
+        ownDirectory();
+        for (int c = used; c < chunks.length && chunks[c] != null; c++) {
+            chunks[c] = null;
+        }
+        modCount++;
+        if (indexer != null) {
+            indexer.removed(indices);
+        }
+    }
+
+    @Override
+    public Iterator<E> iterator() {
+        return new Cursor<>(chunks, size, this);
+    }
+
+    /*
+     * Stores an element without telling the observer, returning the one it replaced
+     */
+    @SuppressWarnings("unchecked")
+    private E put(int index, E element) {
+        Object[] chunk = writable(index >>> SHIFT);
+        E old = (E) chunk[index & MASK];
+        chunk[index & MASK] = element;
+        return old;
+    }
+
+    /*
+     * Adds an element at the end without telling the observer
+     */
+    private void append(E element) {
+        int c = size >>> SHIFT;
+        if ((size & MASK) == 0) {
+            // Start a new chunk
+            ownDirectory();
+            if (c == chunks.length) {
+                chunks = Arrays.copyOf(chunks, c * 2);
+                stamps = Arrays.copyOf(stamps, c * 2);
+            }
+            chunks[c] = new Object[CHUNK];
+            stamps[c] = EPOCHS.get();
+        }
+        writable(c)[size & MASK] = element;
+        size++;
+        modCount++;
+    }
+
+    /*
+     * Copies the directory if a snapshot shares it
+     */
+    private void ownDirectory() {
+        if (directoryShared) {
+            chunks = chunks.clone();
+            directoryShared = false;
+        }
+    }
+
+    /*
+     * Returns a chunk that may be written, copying it first if a snapshot may hold it
+     */
+    private Object[] writable(int c) {
+        if (stamps[c] < snapshotEpoch) {
+            ownDirectory();
+            chunks[c] = chunks[c].clone();
+            stamps[c] = snapshotEpoch;
+        }
+        return chunks[c];
+    }
+
+    /**
+     * An unchanging view of a ChunkedList, safe to read from any thread
+     */
+    static final class Snapshot<E> implements Iterable<E> {
+        private final Object[][] chunks;
+        private final int size;
+
+        private Snapshot(Object[][] chunks, int size) {
+            this.chunks = chunks;
+            this.size = size;
+        }
+
+        @SuppressWarnings("unchecked")
+        public E get(int index) {
+            if (index >= size) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+            }
+            return (E) chunks[index >>> SHIFT][index & MASK];
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public Iterator<E> iterator() {
+            return new Cursor<>(chunks, size, null);
+        }
+    }
+
+    /*
+     * Iterates chunk by chunk. Over a live list it fails fast on changes like other lists do.
+     */
+    private static final class Cursor<E> implements Iterator<E> {
+        private final Object[][] chunks;
+        private final int size;
+        private final ChunkedList<E> list;
+        private final int expectedModCount;
+        private int index = 0;
+
+        Cursor(Object[][] chunks, int size, ChunkedList<E> list) {
+            this.chunks = chunks;
+            this.size = size;
+            this.list = list;
+            this.expectedModCount = list == null ? 0 : list.modCount;
+        }
+
+        public boolean hasNext() {
+            return index < size;
+        }
+
+        @SuppressWarnings("unchecked")
+        public E next() {
+            if (list != null && list.modCount != expectedModCount) {
+                throw new ConcurrentModificationException();
+            }
+            if (index >= size) {
+                throw new NoSuchElementException();
+            }
+            // A live list may have copied the chunk since the cursor started
+            Object[][] data = list != null ? list.chunks : chunks;
+            E e = (E) data[index >>> SHIFT][index & MASK];
+            index++;
+            return e;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
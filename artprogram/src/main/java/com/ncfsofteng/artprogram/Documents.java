@@ -0,0 +1,64 @@
+package com.ncfsofteng.artprogram;
+
+/**
+ * Documents.java
+ * The drawings open in the program. Each document is a DrawingWindow and its MenuWindow with
+ * a scene of its own, and the New button opens another one in the same JVM, so it starts
+ * without a second heap, JIT warm-up or Processing runtime. Documents share the images
+ * decoded by ImageCache, the stamps of the brushes, and the background thread and compute
+ * pool of WorkerPools, so a document costs about what is drawn in it. The program ends when
+ * the last document is closed.
+ */
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+class Documents {
+    private static final List<DrawingWindow> open = new ArrayList<>();
+    private static int numbered = 0; // documents opened so far, closed ones included
+
+    private Documents() {
+    }
+
+    /**
+     * Opens a new document with a menu of its own. Its title and the files it saves are
+     * numbered, so they don't clash with those of other documents.
+     * @param width width of the canvas
+     * @param height height of the canvas
+     * @return the window of the document
+     */
+    public static synchronized DrawingWindow open(int width, int height) {
+        int number = numbered + 1;
+        Map<String, Double> parameters = new LinkedHashMap<String, Double>();
+        ExampleDriver.addButtons(parameters);
+        DrawingWindow window = new DrawingWindow(width, height, "Drawing Window " + number, parameters, 500, 500);
+        window.saveAs("out-" + number);
+        window.createWindow();
+        return window;
+    }
+
+    /**
+     * Returns how many documents are open
+     */
+    public static synchronized int count() {
+        return open.size();
+    }
+
+    /*
+     * Called by a DrawingWindow as its window is created
+     */
+    static synchronized void opened(DrawingWindow window) {
+        open.add(window);
+        numbered++;
+    }
+
+    /*
+     * Called by a DrawingWindow as it is closed, returns true if it was the last one open
+     */
+    static synchronized boolean closed(DrawingWindow window) {
+        open.remove(window);
+        return open.isEmpty();
+    }
+}
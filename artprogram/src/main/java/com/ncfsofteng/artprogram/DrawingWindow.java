@@ -19,25 +19,49 @@ package com.ncfsofteng.artprogram;
 
 
 
+import processing.awt.PGraphicsJava2D;
+import processing.core.PApplet;
+import processing.core.PGraphics;
 import processing.core.PImage;
+import processing.event.MouseEvent;
 
-import javax.imageio.ImageIO;
 import javax.swing.*;
 import java.awt.*;
 import java.awt.datatransfer.DataFlavor;
 import java.awt.datatransfer.Transferable;
 import java.awt.datatransfer.UnsupportedFlavorException;
 import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
 
 public class DrawingWindow extends ProcessingWindow {
     private Map<String, Double> parameters;
     private MenuWindow menu;
     private static final String DEFAULT_TITLE = "Drawing Window";
+    private static final int FLATTEN_SKIPS = 64; // shapes a flatten goes past before it gives up on a layer
 
     // BEGIN DEVON'S STUFF
     // Miscellaneous things
@@ -46,26 +70,76 @@ public class DrawingWindow extends ProcessingWindow {
     private String save_file = "out";
     private boolean clipboard = false;
     private boolean clear = false;
+    private TimeLapse timelapse = null; // recording in progress, if any
+    private final InputQueue input = new InputQueue(4096); // mouse events waiting for the next frame
+    private final InputQueue.Event event = new InputQueue.Event(); // event being applied
+    // Shared by every document, and made on first use so startup doesn't load them
+    private static PngEncoder png = null; // keeps its buffers between saves, only used by the background thread
+    private static StampCache stamps = null; // dabs of stamp brushes by size, hardness and color
+    private InputRecorder recorder = null; // log of this session's input, if recording
+    private InputRecorder.Playback playback = null; // log being replayed instead of live input, if any
+    private volatile String loaded_image = null; // path picked by the file chooser, added at the start of the next frame
+    private final MemoryGovernor governor = new MemoryGovernor(MemoryGovernor.defaultBudget(), 30); // flattens old shapes once they take too much memory
+    private PGraphics blend_scratch; // buffer a Blender draws shapes with blend modes on first
+    private PGraphics flatten_scratch; // buffer the memory governor draws the raster of a layer on
+    private final SceneStats stats = new SceneStats(); // counts of what every layer holds, kept up to date by the layers
+    // Image shapes on every layer holding each PImage and the bytes counted for it, so shared pixels are counted once
+    private final IdentityHashMap<PImage, long[]> image_holders = new IdentityHashMap<>();
+    private Share share = null; // session the drawing is shared with, if any
+    private boolean closed = false; // true once the document is closed, see close()
+    private boolean startup_report = false; // print the time to the first frame, see reportStartup()
+    private boolean startup_exit = false; // close the document once that is printed
 
     // Canvas settings
     private final int BG_COLOR = color(255, 255, 255);
 
-    // Objects on canvas
-    private ArrayList<Shape> shapes = new ArrayList<>();
-    private ArrayList<Line> lines = new ArrayList<>();
-    private ArrayList<Shape> group = new ArrayList<>();
+    // Layers from bottom to top, and the layer being edited
+    private ArrayList<Layer> layers = new ArrayList<>();
+    private Layer layer = new Layer("Layer 1");
+
+    // Objects on canvas, these are the lists of the layer being edited
+    private ChunkedList<Shape> shapes = layer.shapes;
+    private ChunkedList<Line> lines = layer.lines;
+    private SelectionSet group = new SelectionSet(); // ids of grouped shapes
+    private int next_shape_id = 0;
+    private BitSet erased = new BitSet(); // ids of shapes to remove at the start of the next frame
+    private HashMap<Integer, List<Stroke>> erased_pieces = new HashMap<>(); // what is left of erased strokes, by id
+    private final int[] hit_bounds = new int[4]; // bounding box of the shape being stored in the hit-test columns
 
     private int line_x0 = 0;
     private int line_y0 = 0;
     private int line_x1 = 0;
     private int line_y1 = 0;
 
+    // Paint bucket point waiting for the next frame to be rendered, -1 if none
+    private int fill_x = -1;
+    private int fill_y = -1;
+
+    // Group selection settings
+    private int select_op = SelectionSet.UNION; // set operation chosen by the modifier keys
+    private boolean select_replace = true; // plain clicks replace the group instead of adding to it
+    private boolean selecting = false; // true while a rubber band or lasso is being dragged
+    private boolean lasso = false;
+    private int[] lasso_x = new int[64];
+    private int[] lasso_y = new int[64];
+    private int lasso_n = 0;
+
     // Brush settings
     private int brush_size = 15; // Size in pixels
-    private int color = 0; // 0-10: RED/GREEN/BLUE/WHITE/GREY/BLACK/YELLOW/CYAN/MAGENTA/ORANGE/BROWN
+    private int eraser_size = 10; // Radius of the eraser in pixels
+    private int fill_tolerance = 16; // Largest color difference per channel the paint bucket fills over
+    private int brush_blend = Compositor.NORMAL; // Blend mode given to new shapes
+    private int color = 0; // Palette index, 0-10: RED/GREEN/BLUE/WHITE/GREY/BLACK/YELLOW/CYAN/MAGENTA/ORANGE/BROWN
+    private Palette palette = new Palette();
     private int brush_shape = 2; // 0-5: PIXEL/ELLIPSE/CIRCLE/RECTANGLE/SQUARE/LINE
-    private int brush_type = 3; // 0-3: SprayPaint/Thin/Thick/Custom
-    private int mode = 0; // 0-5: BRUSH/SHAPE/MANIPULATE/GROUP/DUPLICATE/MAGICWAND
+    private int brush_type = 3; // 0-3: SprayPaint/Thin/Thick/Custom, 4 and up: stamp brushes, see Brushes
+    private float brush_hardness = 0.5f; // Hardness of stamp brushes, 0 soft to 1 hard
+    private int mode = 0; // 0-6: BRUSH/SHAPE/MANIPULATE/GROUP/DUPLICATE/MAGICWAND/FILL
+    private float stroke_tolerance = 1.5f; // Distance in pixels a simplified brush stroke may stray from the mouse
+    private boolean stroke_smoothing = false; // Turn finished brush strokes into curves
+    private StrokeSimplifier stroke_points = null; // Samples of the brush stroke being drawn, if any
+    private int stroke_id = -1; // id of the brush stroke being drawn
+    private int dabs_id = -1; // id of the stamp brush stroke being drawn, -1 if none
     // END DEVON'S STUFF
 
     /**
@@ -83,6 +157,7 @@ public class DrawingWindow extends ProcessingWindow {
     public DrawingWindow(int width, int height, String title, Map<String, Double> parameters, int menuWidth, int menuHeight) {
         super(width, height, title);
         this.parameters = parameters;
+        layers.add(layer);
         createMenu(menuWidth, menuHeight);
     }
 
@@ -116,6 +191,7 @@ public class DrawingWindow extends ProcessingWindow {
      */
     @Override
     public void createWindow() {
+        Documents.opened(this);
         super.createWindow();
         menu.createWindow();
     }
@@ -127,6 +203,50 @@ public class DrawingWindow extends ProcessingWindow {
      */
     private void createMenu(int menuWidth, int menuHeight) {
         menu = new MenuWindow(menuWidth, menuHeight, "Menu for " + title, parameters);
+        // Closing the menu closes its document
+        menu.onClose(new Runnable() {
+            public void run() {
+                close();
+            }
+        });
+    }
+
+    /**
+     * Closes the document, its drawing window and its menu. The program ends once the last
+     * document open is closed.
+     */
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        if (Documents.closed(this)) {
+            WorkerPools.finish();
+            super.exitActual();
+            return;
+        }
+        exit();
+        menu.exit();
+        closeWindow();
+        menu.closeWindow();
+    }
+
+    /**
+     * Closes the document instead of ending the program when the window is closed, see close()
+     */
+    @Override
+    public void exitActual() {
+        close();
+    }
+
+    /**
+     * Sets the name Save, the clipboard, time-lapses and stats write their files under
+     * @param name path of the files without their extension, "out" by default
+     */
+    public void saveAs(String name) {
+        save_file = name;
     }
 
 
@@ -140,10 +260,15 @@ public class DrawingWindow extends ProcessingWindow {
     public void setup() {
         //Begin Damien's Stuff
         //Sets the canvas and allows it to be dynamically resized on the desktop for more drawing space.
-        surface.setResizable(true);
+        //There is no surface when drawing off-screen for a replay.
+        if (surface != null) {
+            surface.setResizable(true);
+        }
         //End Damien's stuff
         // BEGIN DEVON'S STUFF
-        frameRate(300);
+        if (surface != null) {
+            frameRate(300);
+        }
         background(BG_COLOR);
         ellipseMode(CENTER);
         rectMode(CORNER);
@@ -156,6 +281,31 @@ public class DrawingWindow extends ProcessingWindow {
      * whatever the user desires.
      */
     public void draw() {
+        // Take this frame's input from the log being replayed, or log it while recording
+        if (playback != null) {
+            try {
+                playback.feed(this);
+            }
+            catch (IOException e) {
+                System.err.println("Replay stopped: " + e.getMessage());
+                playback = null;
+            }
+        }
+        else if (recorder != null) {
+            recorder.frame(millis(), mouseX, mouseY);
+        }
+        // Apply the mouse input that arrived since the last frame
+        applyInput();
+        // Add the image picked with Load, now that the file chooser has closed
+        String loaded = loaded_image;
+        if (loaded != null) {
+            loaded_image = null;
+            if (recorder != null) {
+                recorder.image(loaded);
+            }
+            shapes.add(new Image(loaded, width / 2, height / 2));
+        }
+
         //Begin Damien's Stuff
         //Below are the parameter float settings for each paint setting.
         //They work by checking the parameters whenever a button is pressed,
@@ -180,89 +330,189 @@ public class DrawingWindow extends ProcessingWindow {
         float brushResize = parameters.get("Brush Size").floatValue();
         float save = parameters.get("Save").floatValue();
         float brushType = parameters.get("Brush Type").floatValue();
+        float smoothing = parameters.get("Smoothing").floatValue();
         float brushMode = parameters.get("Brush Mode").floatValue();
         float load = parameters.get("Load").floatValue();
         float clipboard = parameters.get("Clipboard").floatValue();
         float clear = parameters.get("Clear").floatValue();
         float magic = parameters.get("Magic Wand").floatValue();
+        float paletteEdit = parameters.get("Palette").floatValue();
+        float layerEdit = parameters.get("Layers").floatValue();
+        float blendEdit = parameters.get("Blend Mode").floatValue();
+        float filter = parameters.get("Filter").floatValue();
+        float timeLapse = parameters.get("Time Lapse").floatValue();
+        float memory = parameters.get("Memory").floatValue();
+        float statsView = parameters.get("Stats").floatValue();
+        float newDocument = parameters.get("New").floatValue();
         //Clears the canvas of all objects.
         if(clear == 1.0){
             this.clear = true;
-            parameters.put("Clear", 0.0);
+            consume("Clear");
+        }
+        //Picks, changes or adds colors in the palette.
+        if(paletteEdit == 1.0){
+            consume("Palette");
+            editPalette();
+        }
+        //Adds, selects, hides, locks and reorders layers.
+        if(layerEdit == 1.0){
+            consume("Layers");
+            editLayers();
+        }
+        //Sets the blend mode of new shapes or of the layer being edited.
+        if(blendEdit == 1.0){
+            consume("Blend Mode");
+            editBlendMode();
+        }
+        //Blurs, sharpens or adjusts the colors of the group, or of the whole canvas if nothing is grouped.
+        if(filter == 1.0){
+            consume("Filter");
+            chooseFilter();
+        }
+        //Starts or stops recording a time-lapse of the canvas.
+        if(timeLapse == 1.0){
+            consume("Time Lapse");
+            toggleTimeLapse();
+        }
+        //Shows how much memory the drawing takes and sets the budget for it.
+        if(memory == 1.0){
+            consume("Memory");
+            editMemory();
+        }
+        //Shows what the drawing is made of and how fast it grows, and saves that as JSON.
+        if(statsView == 1.0){
+            consume("Stats");
+            showStats();
+        }
+        //Opens another drawing the size of this one, in the same program.
+        if(newDocument == 1.0){
+            consume("New");
+            if (playback == null) {
+                Documents.open(width, height);
+            }
         }
         //Does Magic :D...In reality, it's just an eraser.
         if(magic == 1.0){
-            parameters.put("Magic Wand", 0.0);
+            consume("Magic Wand");
             mode = 5;
         }
         //Sets the current place object as a circle.
         if(circle == 1.0){
-            parameters.put("Circle", 0.0);
+            consume("Circle");
             this.brush_shape = 2;
         }
         //Sets the current place object as a Square.
         if(square == 1.0){
-            parameters.put("Square", 0.0);
+            consume("Square");
             this.brush_shape = 4;
         }
         //Sets the current place object as a Rectangle.
         if(rectangle == 1.0){
-            parameters.put("Rectangle", 0.0);
+            consume("Rectangle");
             this.brush_shape = 3;
         }
         //Sets the current place object as a Ellipse.
         if(ellipse == 1.0){
-            parameters.put("Ellipse", 0.0);
+            consume("Ellipse");
             this.brush_shape = 1;
         }
         //Sets the current place object as a Pixel.
         if(pixel == 1.0){
-            parameters.put("Pixel", 0.0);
+            consume("Pixel");
             this.brush_shape = 0;
         }
         //Sets the current place object as a Line.
         if(line == 1.0){
-            parameters.put("Line", 0.0);
+            consume("Line");
             this.brush_shape = 5;
         }
         //Allows the user to save the current canvas as 3 different images of varying types.
         if(save == 1.0){
-            parameters.put("Save", 0.0);
+            consume("Save");
             this.save = true;
         }
         //Pulls up a file explorer and allows one to load an image into the canvas.
         if(load == 1.0){
-            parameters.put("Load", 0.0);
-            selectInput("Select an image:", "localImage");
+            consume("Load");
+            if (playback == null) {
+                selectInput("Select an image:", "localImage");
+            }
         }
         //Allows the user to change the brush size via an input for pixels.
+        //While erasing this sets the radius of the eraser, and while filling the color tolerance.
         if(brushResize == 1.0){
-            parameters.put("Brush Size", 0.0);
-            String input = JOptionPane.showInputDialog("Please enter the amount of pixels you want your brush size to be!");
-            try {
-                brush_size = Integer.parseInt(input);
+            consume("Brush Size");
+            if (mode == 6) {
+                String input = prompt("Please enter how different (0-255) a color can be and still get filled!");
+                try {
+                    fill_tolerance = constrain(Integer.parseInt(input), 0, 255);
+                }
+                catch (NumberFormatException e) {
+                    fill_tolerance = 16;
+                }
             }
-            catch (NumberFormatException e) {
-                // Canvas launches with default sizes if given bad input
-                brush_size = 5;
+            else if (mode == 5) {
+                String input = prompt("Please enter the radius in pixels you want your eraser to be!");
+                try {
+                    eraser_size = Math.max(0, Integer.parseInt(input));
+                }
+                catch (NumberFormatException e) {
+                    eraser_size = 10;
+                }
+            }
+            else {
+                String input = prompt("Please enter the amount of pixels you want your brush size to be!");
+                try {
+                    brush_size = Integer.parseInt(input);
+                }
+                catch (NumberFormatException e) {
+                    // Canvas launches with default sizes if given bad input
+                    brush_size = 5;
+                }
             }
         }
         //ALlows the user to change their brush type to Spray paint or other styles.
         if(brushType == 1.0){
-            parameters.put("Brush Type", 0.0);
-            String input = JOptionPane.showInputDialog("Please select a brush type by entering the number corresponding to the desired brush type.!\n 0: Spray Paint\n 1: Thin Brush\n 2: Thick Brush\n 3: Custom Brush\n");
+            consume("Brush Type");
+            StringBuilder types = new StringBuilder(" 0: Spray Paint\n 1: Thin Brush\n 2: Thick Brush\n 3: Custom Brush\n");
+            for (int i = 0; i < Brushes.all().size(); i++) {
+                types.append(" ").append(i + 4).append(": ").append(Brushes.all().get(i).name()).append(" (stamp)\n");
+            }
+            String input = prompt("Please select a brush type by entering the number corresponding to the desired brush type.!\n" + types
+                    + "Stamp brushes may be followed by a hardness from 0 (soft) to 1 (hard), such as \"4 0.8\".\n");
+            // A cancelled prompt gives null, which falls back like bad input
+            String[] values = (input == null ? "" : input.trim()).split("\\s+");
             try {
-                brush_type = Integer.parseInt(input);
+                brush_type = Integer.parseInt(values[0]);
+                if (values.length > 1) {
+                    brush_hardness = constrain(Float.parseFloat(values[1]), 0, 1);
+                }
             }
             catch (NumberFormatException e) {
                 // Canvas launches with default sizes if given bad input
                 brush_type = 0;
             }
         }
+        //Sets how much brush strokes are simplified and whether they are smoothed into curves.
+        if(smoothing == 1.0){
+            consume("Smoothing");
+            String input = prompt("Enter how far in pixels a brush stroke may stray from the mouse when it is simplified,\n"
+                    + "and 1 to smooth strokes into curves or 0 not to, e.g. \"1 1\". Larger distances store fewer points.\n");
+            if (input != null) {
+                try {
+                    String[] values = input.trim().split("\\s+");
+                    stroke_tolerance = Math.max(0, Float.parseFloat(values[0]));
+                    stroke_smoothing = values.length > 1 && values[1].equals("1");
+                }
+                catch (NumberFormatException e) {
+                    stroke_tolerance = 1.5f;
+                }
+            }
+        }
         //ALlows the user to change their brush mode to other modes like placing shapes or manipulating objects within the canvas.
         if(brushMode == 1.0){
-            parameters.put("Brush Mode", 0.0);
-            String input = JOptionPane.showInputDialog("Please select a brush mode by entering the number corresponding to the desired brush type.!\n 0: Brush\n 1: Shape\n 2: Manipulate\n 3: Group\n 4: Duplicate");
+            consume("Brush Mode");
+            String input = prompt("Please select a brush mode by entering the number corresponding to the desired brush type.!\n 0: Brush\n 1: Shape\n 2: Manipulate\n 3: Group (drag for rubber band, right drag for lasso,\n     shift adds, ctrl toggles, alt removes)\n 4: Duplicate\n 5: Eraser\n 6: Fill");
             try {
                 mode = Integer.parseInt(input);
             }
@@ -273,51 +523,51 @@ public class DrawingWindow extends ProcessingWindow {
         //Settings for all the red buttons.
         if(red == 1.0){
             this.color = 0;
-            parameters.put("Red", 0.0);
+            consume("Red");
         }
         if(green == 1.0){
             this.color = 1;
-            parameters.put("Green", 0.0);
+            consume("Green");
         }
         if(blue == 1.0){
             this.color = 2;
-            parameters.put("Blue", 0.0);
+            consume("Blue");
         }
         if(white == 1.0){
             this.color = 3;
-            parameters.put("White", 0.0);
+            consume("White");
         }
         if(grey == 1.0){
             this.color = 4;
-            parameters.put("Grey", 0.0);
+            consume("Grey");
         }
         if(black == 1.0){
             this.color = 5;
-            parameters.put("Black", 0.0);
+            consume("Black");
         }
         if(yellow == 1.0){
             this.color = 6;
-            parameters.put("Yellow", 0.0);
+            consume("Yellow");
         }
         if(cyan == 1.0){
             this.color = 7;
-            parameters.put("Cyan", 0.0);
+            consume("Cyan");
         }
         if(orange == 1.0){
             this.color = 9;
-            parameters.put("Orange", 0.0);
+            consume("Orange");
         }
         if(magenta == 1.0){
             this.color = 8;
-            parameters.put("Magenta", 0.0);
+            consume("Magenta");
         }
         if(brown == 1.0){
             this.color = 10;
-            parameters.put("Brown", 0.0);
+            consume("Brown");
         }
         //copies canvas to clipboard.
         if(clipboard == 1.0){
-            parameters.put("Clipboard", 0.0);
+            consume("Clipboard");
             this.clipboard = true;
         }
 
@@ -325,47 +575,92 @@ public class DrawingWindow extends ProcessingWindow {
         // Clears the canvas.
         if (this.clear)
         {
-            // Remove all objects from canvas
-            shapes.clear();
+            // Remove all objects from every layer, and from every other window sharing the drawing
+            if (share != null)
+            {
+                share.cleared();
+            }
+            for (Layer l : layers)
+            {
+                l.clear();
+            }
+            if (share != null)
+            {
+                share.quiet = false;
+            }
             group.clear();
-            lines.clear();
+            erased.clear();
+            erased_pieces.clear();
+            selecting = false;
+            stroke_points = null;
+            dabs_id = -1;
             this.clear = false;
         }
 
-        // Begin recording if save flag triggered
-        if (this.save)
+        // Remove everything the eraser touched since the last frame in one pass
+        if (!erased.isEmpty())
+        {
+            removeShapes(erased, erased_pieces);
+            erased.clear();
+            erased_pieces.clear();
+        }
+
+        // Apply what the other users of a shared drawing did
+        if (share != null)
+        {
+            share.receive();
+        }
+
+        // Sample the size of the drawing for its growth rate
+        stats.tick(millis());
+
+        // Flatten the oldest shapes into rasters once the drawing outgrows its memory budget
+        if (governor.due())
         {
-            beginRecord(PDF, save_file + ".pdf");
+            governMemory();
         }
 
         // Redraw background so objects can move
         background(BG_COLOR);
+        compositeLayers();
 
-        // Draw tracked shapes (includes images)
-        for (Shape shape : shapes)
+        // Hand the canvas to the time-lapse before the selection is drawn over it
+        if (timelapse != null && timelapse.due())
         {
-            shape.draw();
+            loadPixels();
+            timelapse.capture(pixels, g.width, g.height);
         }
 
-        // Draw group with a border around shapes
-        for (Shape shape : group)
+        // Draw the rubber band or lasso being dragged in group mode
+        if (selecting)
         {
-            stroke(setColor(4));
-            shape.draw();
-            noStroke();
+            drawSelectionRegion();
         }
 
-        // Draw tracked lines
-        for (Line l : lines)
+        // Fill the region under the paint bucket now that the canvas is rendered
+        if (fill_x >= 0)
         {
-            l.draw();
+            fillRegion(fill_x, fill_y);
+            fill_x = -1;
+            fill_y = -1;
         }
 
-        // Save pdf, png, and jpg
+        // Save pdf, svg, png, and jpg. Everything but the jpg is written on the background
+        // thread from a snapshot of the scene, so drawing can go on while it is saved.
+        // The png gets a small preview, so a folder of drawings can be browsed quickly.
         if (this.save)
         {
-            endRecord();
-            save(save_file + ".png");
+            final SceneSnapshot scene = snapshot();
+            loadPixels();
+            final int[] canvas = pixels.clone();
+            final String path = save_file;
+            WorkerPools.background().execute(new Runnable() {
+                public void run() {
+                    savePdf(scene, path + ".pdf");
+                    saveSvg(scene, path + ".svg");
+                    savePng(canvas, scene.width, scene.height, true, path + ".png");
+                }
+            });
             save(save_file + ".jpg");
             this.save = false;
         }
@@ -373,654 +668,2465 @@ public class DrawingWindow extends ProcessingWindow {
         // Copy current canvas to clipboard
         if (this.clipboard)
         {
-            // Create temp image from canvas
-            save("temp.png");
-            BufferedImage image = null;
+            // Copy the canvas pixels straight into an image
+            loadPixels();
+            BufferedImage image = new BufferedImage(g.width, g.height, BufferedImage.TYPE_INT_RGB);
+            image.setRGB(0, 0, g.width, g.height, pixels, 0, g.width);
 
-            // Load temp image
-            File file = new File("temp.png");
+            // Copy image into clipboard, or save it if there is no clipboard to copy to
             try {
-                image = ImageIO.read(file);
+                ImageSelection imageSelection = new ImageSelection(image);
+                Toolkit.getDefaultToolkit().getSystemClipboard().setContents(imageSelection, null);
+            }
+            catch (IllegalStateException | HeadlessException e) {
+                final int[] canvas = pixels.clone();
+                final int w = g.width;
+                final int h = g.height;
+                final String path = save_file + "-clipboard.png";
+                WorkerPools.background().execute(new Runnable() {
+                    public void run() {
+                        savePng(canvas, w, h, false, path);
+                    }
+                });
             }
-            catch (IOException e) {}
-
-            // Copy temp image into clipboard
-            ImageSelection imageSelection = new ImageSelection(image);
-            Toolkit.getDefaultToolkit().getSystemClipboard().setContents(imageSelection, null);
 
             this.clipboard = false;
-            
-            // Delete temp file
-            file.delete();
+        }
+
+        // Send the changes of this frame to the other users of a shared drawing
+        if (share != null)
+        {
+            share.flush();
         }
 
         // Draw some info
         fill(setColor(5));
         text("Mouse Position: (" + mouseX + ", " + mouseY + ")", 10, 10);
+
+        // Report how long startup took, now that the first frame is drawn
+        if (startup_report)
+        {
+            startup_report = false;
+            // Timed before the management classes load, so they don't count
+            long now = System.currentTimeMillis();
+            long ms = now - ManagementFactory.getRuntimeMXBean().getStartTime();
+            System.out.println("Startup: first frame drawn " + ms + " ms after the JVM started");
+            if (startup_exit)
+            {
+                exit();
+            }
+        }
         // END DEVON'S STUFF
     }
 
     /**
-     * Duplicate an object that the mouse is over.
+     * Blends the cached layer bitmaps onto the canvas with the compositing kernel. The layer
+     * being edited is drawn live instead when it is opaque and it and its shapes use the
+     * normal blend mode, since a shape's blend mode only blends it with its own layer.
      */
-    public void duplicate()
+    private void compositeLayers()
     {
-        // Duplicate shape to the center of the window
-        ArrayList<Shape> temp_shapes = new ArrayList<>();
-        for (Shape shape : shapes)
+        int n = g.width * g.height;
+        boolean loaded = false; // true while pixels[] holds the canvas
+        for (Layer l : layers)
         {
-            // Check if mouse is over current shape in loop
-            if (shape.mouseOver(pmouseX, pmouseY))
-            {
-                // Determine what to do based on what type of shape it is.
-                switch (shape.type) {
-                    case "Pixel": // PIXEL
-                        temp_shapes.add(new Pixel(width / 2, height / 2, shape.c));
-                        break;
-                    case "Ellipse": // ELLIPSE/CIRCLE
-                        temp_shapes.add(new Ellipse(width / 2, height / 2, shape.w, shape.h, degrees(shape.a), shape.c));
-                        break;
-                    case "Rectangle": // RECTANGLE/SQUARE
-                        temp_shapes.add(new Rectangle(width / 2, height / 2, shape.w, shape.h, degrees(shape.a), shape.c));
-                        break;
-                    default:
-                        break;
+            if (!l.visible)
+            {
+                continue;
+            }
+            if (l == layer && l.opacity == 1 && l.blend == Compositor.NORMAL && l.blended == 0)
+            {
+                // Draw the edited layer straight onto the canvas between the layers around it
+                if (loaded)
+                {
+                    updatePixels();
+                    loaded = false;
                 }
+                drawActiveLayer(g);
+                continue;
+            }
+            PImage bitmap;
+            if (l == layer)
+            {
+                bitmap = layer.canvas();
+                layer.cache.beginDraw();
+                layer.cache.clear();
+                layer.cache.noStroke();
+                drawActiveLayer(layer.cache);
+                layer.cache.endDraw();
+                // The bitmap now holds the group border, so it is rebuilt once the layer is left
+                layer.dirty = true;
+            }
+            else
+            {
+                bitmap = l.bitmap();
+            }
+            if (!loaded)
+            {
+                loadPixels();
+                loaded = true;
             }
+            bitmap.loadPixels();
+            Compositor.composite(pixels, 0, bitmap.pixels, 0, min(n, bitmap.pixels.length), l.blend, round(l.opacity * 255));
         }
-        // Add shapes to main shape pool
-        shapes.addAll(temp_shapes);
-        // Clear out temp shapes
-        temp_shapes.clear();
+        // The background is opaque, so the premultiplied result is also valid straight ARGB
+        if (loaded)
+        {
+            updatePixels();
+        }
+    }
 
-        // Duplicate all grouped objects to the center of the window
-        boolean duplicate_group = false;
-        int dx = 0; // x offset
-        int dy = 0; // y offset
-        for (Shape shape : group)
+    /**
+     * Draws the layer being edited straight from its shapes, with a border around the group.
+     * @param pg graphics to draw on
+     */
+    private void drawActiveLayer(PGraphics pg)
+    {
+        // Draw the shapes flattened out of the layer under the rest
+        if (layer.base != null)
+        {
+            layer.base.draw(pg);
+        }
+
+        // Draw tracked shapes (includes images)
+        Blender blender = new Blender(pg, 0, 0);
+        for (Shape shape : shapes)
         {
-            if (shape.mouseOver(pmouseX, pmouseY))
+            if (!group.contains(shape.id))
             {
-                duplicate_group = true;
-                // Set x and y offsets to move selected object to center of screen
-                dx = (width / 2) - shape.x;
-                dy = (height / 2 ) - shape.y;
+                blender.draw(shape);
             }
         }
 
-        // Duplicate the group at the center of the canvas
-        if (duplicate_group)
-        {
-            // Duplicate shapes into a temp group
-            ArrayList<Shape> temp_group = new ArrayList<>();
-            for (Shape shape : group)
-            {
-                // Determine what to do based on what type of shape it is.
-                switch (shape.type) {
-                    case "Pixel": // PIXEL
-                        temp_group.add(new Pixel(shape.x + dx, shape.y + dy, shape.c));
-                        break;
-                    case "Ellipse": // ELLIPSE/CIRCLE
-                        temp_group.add(new Ellipse(shape.x + dx, shape.y + dy, shape.w, shape.h, degrees(shape.a), shape.c));
-                        break;
-                    case "Rectangle": // RECTANGLE/SQUARE
-                        temp_group.add(new Rectangle(shape.x + dx, shape.y + dy, shape.w, shape.h, degrees(shape.a), shape.c));
-                        break;
-                    default:
-                        break;
+        // Draw group on top with a border around shapes
+        if (!group.isEmpty())
+        {
+            pg.stroke(setColor(4));
+            for (Shape shape : shapes)
+            {
+                if (group.contains(shape.id))
+                {
+                    blender.draw(shape);
                 }
             }
+        }
+        blender.finish();
+        pg.noStroke();
 
-            // Move everything out of the old group into main shape pool
-            shapes.addAll(group);
-            group.clear();
-
-            // Move temp group contents to main group
-            group.addAll(temp_group);
-            temp_group.clear();
+        // Draw tracked lines
+        for (Line l : lines)
+        {
+            l.draw(pg);
         }
     }
 
     /**
-     * When left mouse button is initially pressed down
-     * do these things.
+     * Lets the user pick the blend mode of new shapes or of the layer being edited.
      */
-    public void mouseClicked()
+    private void editBlendMode()
     {
-        // If we are in manipulate mode we change the color of a shape that is clicked
-        if (mode == 2) // MANIPULATE MODE
+        StringBuilder message = new StringBuilder("Enter a blend mode for new shapes, or \"layer <mode>\" for the layer being edited:\n");
+        for (int i = 0; i < Compositor.NAMES.length; i++)
         {
-            for (Shape shape : shapes)
-            {
-                if (shape.mouseOver(pmouseX, pmouseY))
-
-                    shape.c = setColor(color);
-            }
+            message.append(" ").append(i).append(": ").append(Compositor.NAMES[i]).append("\n");
         }
-        // If we are in duplicate mode we duplicate the shape/group that has been clicked
-        if (mode == 4) // DUPLICATE MODE
+        String input = prompt(message.toString());
+        if (input == null)
         {
-            duplicate();
+            return;
+        }
+        try
+        {
+            String[] values = input.trim().toLowerCase().split("\\s+");
+            if (values[0].equals("layer"))
+            {
+                layer.blend = constrain(Integer.parseInt(values[1]), 0, Compositor.NAMES.length - 1);
+            }
+            else
+            {
+                brush_blend = constrain(Integer.parseInt(values[0]), 0, Compositor.NAMES.length - 1);
+            }
         }
+        catch (NumberFormatException | IndexOutOfBoundsException e) {}
     }
 
     /**
-     * When left mouse is pressed down and then released
-     * do these things.
+     * Saves every visible layer of a snapshot to a vector PDF.
+     * @param scene snapshot to save
+     * @param path file to write
      */
-    public void mousePressed()
+    private void savePdf(SceneSnapshot scene, String path)
     {
-        // If we are in brush mode we lay the first shape to be drawn before mouseDragged()
-        if (mode == 0) // BRUSH MODE (drawing)
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(path), 1 << 16))
         {
-            // Determine what shapes to lay down
-            switch (brush_type)
-            {
-                case 0: // SPRAYPAINT
-                    // Randomly fill the area brush_size with colored pixels
-                    // to give a spraypaint effect
-                    for (int i = 0; i < brush_size / 2; i++)
-                    {
-                        // Choose random angle in circle for a pixel
-                        float a = random.nextFloat() * PI * 2;
-                        // Choose random distance from center of circle (0 to brush_size)
-                        float r = sqrt(random.nextFloat()) * brush_size;
-                        // Calculate the x and y values for the pixel vased on angle and radius
-                        // Mouse position is center of circle
-                        float x = mouseX + r * cos(a);
-                        float y = mouseY + r * sin(a);
-                        // Draw pixel with selected color
-                        shapes.add(new Pixel((int)x, (int)y, setColor(color)));
-                    }
-                    break;
-                case 1: // THIN BRUSH
-                    shapes.add(new Ellipse(mouseX, mouseY, 5, 5, 0f, setColor(color)));
-                    break;
-                case 2: // THICK BRUSH
-                    shapes.add(new Ellipse(mouseX, mouseY, 30, 30, 0f, setColor(color)));
-                    break;
-                case 3: // CUSTOM BRUSH
-                    shapes.add(new Ellipse(mouseX, mouseY, brush_size, brush_size, 0f, setColor(color)));
-                    break;
-                default:
-                    break;
-            }
+            exportVector(scene, new PdfExporter(out, scene.width, scene.height));
         }
-        // If we are in shape mode we lay down a single shape
-        if (mode == 1) // SHAPE MODE
+        catch (IOException e)
         {
-            // Determines what shape to use
-            // In future versions height and width of shape will be user defined.
-            switch (brush_shape)
-            {
-                case 0: // PIXEL
-                    shapes.add(new Pixel(mouseX, mouseY, setColor(color)));
-                    break;
-                case 1: // ELLIPSE
-                    shapes.add(new Ellipse(mouseX, mouseY, 30, 50, 0.0f, setColor(color)));
-                    break;
-                case 2: // CIRCLE
-                    shapes.add(new Ellipse(mouseX, mouseY, 30, 30, 0.0f, setColor(color)));
-                    break;
-                case 3: // RECTANGLE
-                    shapes.add(new Rectangle(mouseX, mouseY, 40, 60, 0.0f, setColor(color)));
-                    break;
-                case 4: // SQUARE
-                    shapes.add(new Rectangle(mouseX, mouseY, 40, 40, 0.0f, setColor(color)));
-                    break;
-                case 5: // LINE
-                    // Get first point for line
-                    line_x0 = mouseX;
-                    line_y0 = mouseY;
-                    break;
-                default:
-                    break;
-            }
+            System.err.println("Could not save " + path + ": " + e.getMessage());
         }
-        // If in group mode move selected objects into a group
-        else if (mode == 3) // GROUP MODE
+    }
+
+    private static synchronized PngEncoder pngEncoder()
+    {
+        if (png == null)
         {
-            // Add selected shapes to group
-            int init_group_size = group.size();
-            for (Shape shape : shapes)
-            {
-                if (shape.mouseOver(pmouseX, pmouseY))
-                {
-                    group.add(shape);
-                }
+            png = new PngEncoder(Deflater.BEST_SPEED);
+        }
+        return png;
+    }
 
-            }
-            int final_group_size = group.size();
+    private static synchronized StampCache stamps()
+    {
+        if (stamps == null)
+        {
+            stamps = new StampCache(16 << 20);
+        }
+        return stamps;
+    }
 
-            // Remove selected shapes from normal shape pool
-            shapes.removeAll(group);
+    /**
+     * Saves a copy of the canvas to a PNG, encoded on every core. Only called on the background thread.
+     * @param canvas pixels of the canvas
+     * @param w width of the canvas
+     * @param h height of the canvas
+     * @param preview true to put a small preview of the canvas in the file, see Previews
+     * @param path file to write
+     */
+    private void savePng(int[] canvas, int w, int h, boolean preview, String path)
+    {
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(path), 1 << 16))
+        {
+            byte[] small = preview ? Previews.encode(canvas, w, h, Previews.SIZE, pngEncoder()) : null;
+            pngEncoder().encode(canvas, w, h, false, out, Previews.CHUNK, small);
+        }
+        catch (IOException e)
+        {
+            System.err.println("Could not save " + path + ": " + e.getMessage());
+        }
+    }
 
-            // If no new shape is added on a click then clear group
-            if (final_group_size - init_group_size == 0)
-            {
-                // Add shapes in group back to main shape pool
-                shapes.addAll(group);
+    /**
+     * Saves every visible layer of a snapshot to an SVG file with the images embedded in it.
+     * @param scene snapshot to save
+     * @param path file to write
+     */
+    private void saveSvg(SceneSnapshot scene, String path)
+    {
+        try (FileChannel out = FileChannel.open(Paths.get(path), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE))
+        {
+            exportVector(scene, new SvgExporter(out, scene.width, scene.height, null));
+        }
+        catch (IOException e)
+        {
+            System.err.println("Could not save " + path + ": " + e.getMessage());
+        }
+    }
 
-                // Clear group
-                group.clear();
+    /**
+     * Describes the background and every visible layer of a snapshot to a vector exporter, then finishes it.
+     * Safe to call from any thread.
+     * @param scene snapshot to export
+     * @param sink exporter to write with
+     */
+    private void exportVector(SceneSnapshot scene, VectorSink sink) throws IOException
+    {
+        sink.layer(1, Compositor.NORMAL);
+        sink.fill(BG_COLOR);
+        sink.rect(0, 0, scene.width, scene.height);
+        for (LayerSnapshot l : scene.layers)
+        {
+            if (l.visible)
+            {
+                l.export(sink, scene.colors);
             }
         }
+        sink.finish();
     }
 
     /**
-     * When left mouse is released do these things.
+     * Takes a snapshot of every layer and of the palette, which later edits do not change.
+     * Taking it copies nothing but the palette and the layer settings.
      */
-    public void mouseReleased()
+    private SceneSnapshot snapshot()
     {
-        // If the current brush mode is SHAPE and current shape is LINE
-        if (mode == 1 && brush_shape == 5)
+        ArrayList<LayerSnapshot> views = new ArrayList<>(layers.size());
+        for (Layer l : layers)
         {
-            // Get second point for line and create the line
-            line_x1 = mouseX;
-            line_y1 = mouseY;
-
-            // Add line to line collection to be drawn on the canvas
-            lines.add(new Line(line_x0, line_y0, line_x1, line_y1, setColor(color)));
+            views.add(new LayerSnapshot(l));
+        }
+        return new SceneSnapshot(g.width, g.height, new Palette(palette), views);
+    }
 
-            // Reset first and second point just in case. 
-            line_x0 = 0;
-            line_y0 = 0;
-            line_x1 = 0;
-            line_y1 = 0;
+    /**
+     * Returns the shape at an index of the layer being edited, ready to be changed. A shape that
+     * a snapshot may still hold is first replaced with a copy that has the same id.
+     * @param i index of the shape
+     * @return the shape to change
+     */
+    private Shape editShape(int i)
+    {
+        Shape shape = shapes.get(i);
+        if (shapes.isShared(shape.stamp))
+        {
+            shape = shape.copy();
+            shapes.set(i, shape);
+        }
+        if (share != null)
+        {
+            share.edited(layer, shape);
         }
+        return shape;
     }
 
     /**
-     * When left mouse is pressed and then dragged
-     * do these things.
+     * Marks every layer bitmap as out of date, e.g. after a palette color changes.
      */
-    public void mouseDragged()
+    private void invalidateLayers()
     {
-        // If we are in brush mode lay down circles everywhere the mouse has moved
-        if (mode == 0)
+        for (Layer l : layers)
         {
-            // Determine which brush to use.
-            switch (brush_type)
+            l.dirty = true;
+        }
+    }
+
+    /**
+     * Makes a layer the one being edited.
+     * @param next layer to edit
+     */
+    private void selectLayer(Layer next)
+    {
+        // The layer we leave was drawn live, so its bitmap has to be rebuilt
+        layer.dirty = true;
+        layer = next;
+        shapes = layer.shapes;
+        lines = layer.lines;
+        group.clear();
+        erased.clear();
+        erased_pieces.clear();
+        selecting = false;
+    }
+
+    /**
+     * Lets the user add, select, delete, hide, lock, fade and reorder layers.
+     */
+    private void editLayers()
+    {
+        StringBuilder message = new StringBuilder("Layers, top first (* is the layer being edited):\n");
+        for (int i = layers.size() - 1; i >= 0; i--)
+        {
+            Layer l = layers.get(i);
+            message.append(l == layer ? " * " : "   ").append(i).append(": ").append(l.name)
+                    .append(l.visible ? "" : " [hidden]").append(l.locked ? " [locked]" : "")
+                    .append(" ").append(round(l.opacity * 100)).append("% ").append(Compositor.NAMES[l.blend]).append("\n");
+        }
+        message.append("\nEnter one of:\n <n>: edit layer n\n new\n delete <n>\n hide <n> / show <n>\n");
+        message.append(" lock <n> / unlock <n>\n opacity <n> <0-100>\n up <n> / down <n>\n");
+        String input = prompt(message.toString());
+        if (input == null)
+        {
+            return;
+        }
+        try
+        {
+            String[] values = input.trim().toLowerCase().split("\\s+");
+            if (values[0].equals("new"))
             {
-                case 0: // SPRAYPAINT
-                    // Randomly fill the area brush_size with colored pixels
-                    // to give a spraypaint effect
-                    for (int i = 0; i < brush_size / 2; i++)
+                Layer l = new Layer("Layer " + (layers.size() + 1));
+                // New layers go right above the layer being edited
+                layers.add(layers.indexOf(layer) + 1, l);
+                selectLayer(l);
+                return;
+            }
+            if (values.length == 1)
+            {
+                selectLayer(layers.get(Integer.parseInt(values[0])));
+                return;
+            }
+            int n = Integer.parseInt(values[1]);
+            Layer l = layers.get(n);
+            switch (values[0])
+            {
+                case "delete":
+                    if (layers.size() > 1)
                     {
-                        // Choose random angle in circle for a pixel
-                        float a = random.nextFloat() * PI * 2;
-                        // Choose random distance from center of circle (0 to brush_size)
-                        float r = sqrt(random.nextFloat()) * brush_size;
-                        // Calculate the x and y values for the pixel vased on angle and radius
-                        // Mouse position is center of circle
-                        float x = mouseX + r * cos(a);
-                        float y = mouseY + r * sin(a);
-                        // Draw pixel with selected color
-                        shapes.add(new Pixel((int)x, (int)y, setColor(color)));
+                        layers.remove(n);
+                        l.clear();
+                        if (l == layer)
+                        {
+                            selectLayer(layers.get(max(0, n - 1)));
+                        }
                     }
                     break;
-                case 1: // THIN BRUSH
-                    shapes.add(new Ellipse(mouseX, mouseY, 5, 5, 0f, setColor(color)));
+                case "hide":
+                    l.visible = false;
                     break;
-                case 2: // THICK BRUSH
-                    shapes.add(new Ellipse(mouseX, mouseY, 30, 30, 0f, setColor(color)));
+                case "show":
+                    l.visible = true;
                     break;
-                case 3: // CUSTOM BRUSH
-                    shapes.add(new Ellipse(mouseX, mouseY, brush_size, brush_size, 0f, setColor(color)));
+                case "lock":
+                    l.locked = true;
+                    break;
+                case "unlock":
+                    l.locked = false;
+                    break;
+                case "opacity":
+                    l.opacity = constrain(Integer.parseInt(values[2]), 0, 100) / 100f;
+                    break;
+                case "up":
+                    if (n < layers.size() - 1)
+                    {
+                        layers.set(n, layers.get(n + 1));
+                        layers.set(n + 1, l);
+                    }
+                    break;
+                case "down":
+                    if (n > 0)
+                    {
+                        layers.set(n, layers.get(n - 1));
+                        layers.set(n - 1, l);
+                    }
                     break;
                 default:
                     break;
             }
         }
-        // If in manipulate mode move a shape/group dragged by the mouse
-        else if (mode == 2) // MANIPULATE MODE
-        {
-            // Move shapes if mouse is over them and dragging
-            for (Shape shape : shapes)
-            {
-                if (shape.mouseOver(pmouseX, pmouseY))
-                {
-                    shape.move(mouseX - pmouseX, mouseY - pmouseY);
-                }
-            }
-
-            // Check if a shape in the group is being moved
-            boolean moved = false;
-            for (Shape shape : group)
-            {
-                if (shape.mouseOver(pmouseX, pmouseY))
-                {
-                    moved = true;
-                    break;
-                }
-            }
-            
-            // If any shape in the group is being moved, move them all
-            if (moved)
-            {
-                for (Shape shape : group)
-                {
-                    shape.move(mouseX - pmouseX, mouseY - pmouseY);
-                }
-            }
+        catch (NumberFormatException | IndexOutOfBoundsException e) {}
+    }
 
-            
+    /**
+     * Asks the user for a filter and applies it.
+     */
+    private void chooseFilter()
+    {
+        StringBuilder message = new StringBuilder("Enter a filter and an amount as \"filter amount\".\n");
+        message.append("The filter is applied to the group, or to the whole canvas if nothing is grouped.\n");
+        for (int i = 0; i < ImageFilters.NAMES.length; i++)
+        {
+            message.append(" ").append(i).append(": ").append(ImageFilters.NAMES[i])
+                    .append(" (").append(ImageFilters.AMOUNTS[i]).append(")\n");
         }
-        // If in magic wand mode delete any objects the mouse drags over
-        else if (mode == 5) // MAGICWAND MODE
+        String input = prompt(message.toString());
+        if (input == null)
         {
-            // If over a regular shape just remove that shape
-            Shape shape_to_remove = null;
-            for (Shape shape : shapes)
+            return;
+        }
+        try
+        {
+            String[] values = input.trim().split("\\s+");
+            int filter = constrain(Integer.parseInt(values[0]), 0, ImageFilters.NAMES.length - 1);
+            float amount = values.length > 1 ? Float.parseFloat(values[1]) : 0;
+            if (group.isEmpty())
             {
-                if (shape.mouseOver(pmouseX, pmouseY))
-                {
-                    shape_to_remove = shape;
-                }
+                filterCanvas(filter, amount);
             }
-            shapes.remove(shape_to_remove);
-
-            // If over a grouped shape remove the whole group
-            boolean clear_group = false;
-            for (Shape shape : group)
+            else
             {
-                if (shape.mouseOver(pmouseX, pmouseY))
-                {
-                    clear_group = true;
-                    break;
-                }
+                filterGroup(filter, amount);
             }
+        }
+        catch (NumberFormatException e) {}
+    }
 
-            // Clear whole group
-            if (clear_group)
+    /**
+     * Stops the time-lapse being recorded, or asks how to record one and starts it.
+     * Frames go to save_file + "-timelapse" as a folder of PNGs or as a GIF.
+     */
+    private void toggleTimeLapse()
+    {
+        if (timelapse != null)
+        {
+            timelapse.stop();
+            if (playback == null)
             {
-                group.clear();
+                JOptionPane.showMessageDialog(null, "Time-lapse stopped. Frames dropped while the encoder was busy: "
+                        + timelapse.dropped());
             }
+            timelapse = null;
+            return;
+        }
+        String input = prompt("Enter the number of frames between captures and the format as \"frames format\".\n"
+                + "The format is png for a folder of images or gif for an animation, e.g. \"30 gif\".\n");
+        if (input == null)
+        {
+            return;
+        }
+        try
+        {
+            String[] values = input.trim().split("\\s+");
+            int interval = Integer.parseInt(values[0]);
+            boolean gif = values.length > 1 && values[1].equalsIgnoreCase("gif");
+            File output = new File(save_file + "-timelapse" + (gif ? ".gif" : ""));
+            timelapse = new TimeLapse(output, gif ? TimeLapse.GIF : TimeLapse.PNG, interval);
         }
+        catch (NumberFormatException e) {}
     }
 
     /**
-     * Takes in an image and adds to list of things to draw on the canvas 
-     * @param image image to be drawn
+     * Shows what the memory governor has done and lets the user change its budget.
      */
-    public void localImage(File image)
+    private void editMemory()
     {
-        // If the image isn't empty
-        if (image != null)
+        String input = prompt(governor.report() + "\nEnter a new budget in megabytes, or cancel to keep this one.\n");
+        if (input == null)
+        {
+            return;
+        }
+        try
         {
-            // Process the image into a Processing PImage and add it to draw list
-            shapes.add(new Image(image.getAbsolutePath(), width / 2, height / 2));
+            governor.setBudget(Long.parseLong(input.trim()) << 20);
+            governMemory();
         }
+        catch (NumberFormatException e) {}
     }
 
     /**
-     * Convert color index to Processing rgb color integer
-     * @param color index of color to be converted
-     * @return Processing rgb color integer
+     * Shows the counts and sizes of everything in the drawing, and saves them as JSON if asked.
      */
-    private int setColor(int color)
+    private void showStats()
     {
-        int c;
-
-        // Convert index to Processing rgb color integer
-        switch (color) {
-            case 0: // RED
-                c = color(255, 0, 0);
-                break;
-            case 1: // GREEN
-                c = color(0, 255, 0);
-                break;
-            case 2: // BLUE
-                c = color(0, 0, 255);
-                break;
-            case 3: // WHITE
-                c = color(255, 255, 255);
-                break;
-            case 4: // GREY
-                c = color(128, 128, 128);
-                break;
-            case 5: // BLACK
-                c = color(0, 0, 0);
-                break;
-            case 6: // YELLOW
-                c = color(255, 255, 0);
-                break;
-            case 7: // CYAN
-                c = color(0, 255, 255);
-                break;
-            case 8: // MAGENTA
-                c = color(255, 0, 255);
-                break;
-            case 9: // ORANGE
-                c = color(255, 165, 0);
-                break;
-            case 10: // BROWN
-                c = color(165, 42, 42);
-                break;
-            default: // BLACK
-                c = color(0, 0, 0);
-                break;
+        String input = prompt(stats.report(layers.size(), group.size(), group.bytes())
+                + "\nEnter a file to save these numbers to as JSON, leave it empty for " + save_file + "-stats.json, or cancel.\n");
+        if (input == null)
+        {
+            return;
         }
-
-        return c;
+        final String path = input.trim().isEmpty() ? save_file + "-stats.json" : input.trim();
+        final String json = statsJson();
+        WorkerPools.background().execute(new Runnable() {
+            public void run() {
+                try
+                {
+                    Files.write(Paths.get(path), json.getBytes(StandardCharsets.UTF_8));
+                }
+                catch (IOException e)
+                {
+                    System.err.println("Could not save " + path + ": " + e.getMessage());
+                }
+            }
+        });
     }
 
     /**
-     * Inner class representing a shape on the canvas
+     * Returns the counts and approximate sizes of the objects of every type in the drawing, the
+     * group and the flattened rasters, and how fast the drawing is growing, as a JSON object.
+     * Kept up to date as the drawing changes, so this is cheap to call however big it is.
      */
-    abstract private class Shape
+    public String statsJson()
     {
-        protected int x;
-        protected int y;
-        protected int w;
-        protected int h;
-        protected float a;
-        protected int c;
-
-        protected String type;
+        return stats.toJson(layers.size(), group.size(), group.bytes());
+    }
 
-        /**
-         * Geometric description of the shape.
-         * @param x Center x value
-         * @param y Center y value
-         * @param w Width of shape
-         * @param h Height of shape
-         * @param a Angle of the shape in degrees
-         * @param c Color of the shape
-         */
-        private Shape(int x, int y, int w, int h, float a, int c)
+    /**
+     * If the shapes of every layer take more than the budget, flattens the oldest shapes of
+     * the largest layers into their rasters until enough is freed.
+     */
+    private void governMemory()
+    {
+        long excess = governor.excess(stats.bytes() + stats.rasterBytes());
+        if (excess == 0)
         {
-            this.x = x;
-            this.y = y;
-            this.w = w;
-            this.h = h;
-            this.a = radians(a);
-            this.c = c;
+            return;
+        }
+        ArrayList<Layer> largest = new ArrayList<>(layers);
+        Collections.sort(largest, new Comparator<Layer>() {
+            public int compare(Layer a, Layer b) {
+                return Long.compare(b.bytes, a.bytes);
+            }
+        });
+        for (Layer l : largest)
+        {
+            if (excess <= 0)
+            {
+                break;
+            }
+            excess -= flattenOldest(l, excess);
         }
-
-        /**
-         * Draws the button to the output window
-         */
-        abstract public void draw();
-
-        /**
-         * Returns true if the mouse is over the button on the MenuWindow
-         * @param x x coordinate of mouse
-         * @param y y coordinate of mouse
-         * @return mouse over status
-         */
-        abstract public boolean mouseOver(int x, int y);
-        
-        /**
-         * Moves shape by given offset
-         * @param dx change in x
-         * @param dy change in y
-         */
-        abstract public void move(int dx, int dy);
     }
 
     /**
-     * Inner class representing a pixel on the canvas
+     * Draws the oldest shapes of a layer into its raster and removes them. Shapes that are
+     * grouped or still being drawn stay editable, and so does every later shape overlapping
+     * one that stays, as the raster is drawn under all of them. Flattened shapes keep the
+     * colors they had, even if the palette changes later. Lines are left alone, since they
+     * are drawn over every shape of the layer anyway.
+     * @param l layer to flatten
+     * @param bytes approximate bytes to free
+     * @return approximate bytes freed, less what the raster grew by
      */
-    private class Pixel extends Shape
+    private long flattenOldest(Layer l, long bytes)
     {
-
-        public Pixel(int x, int y, int c)
+        BitSet flat = new BitSet();
+        ArrayList<int[]> kept = new ArrayList<>(); // bounds of the shapes that stay
+        long freed = 0;
+        for (int i = 0; i < l.shapes.size() && freed < bytes && kept.size() < FLATTEN_SKIPS; i++)
         {
-            super(x, y, 1, 1, 0, c);
-            type = "Pixel";
+            Shape shape = l.shapes.get(i);
+            int[] box = new int[4];
+            shape.bounds(shape.x, shape.y, box);
+            boolean pinned = group.contains(shape.id) || (shape.id == stroke_id && stroke_points != null) || shape.id == dabs_id;
+            if (pinned || overlaps(box, kept))
+            {
+                kept.add(box);
+                continue;
+            }
+            flat.set(i);
+            freed += shape.footprint();
         }
-
-        @Override
-        public void draw()
+        if (flat.isEmpty())
         {
-            stroke(this.c);
-            point(this.x, this.y);
-            noStroke();
+            return 0;
         }
 
-        @Override
-        public boolean mouseOver(int x, int y)
+        if (flatten_scratch == null || flatten_scratch.width != g.width || flatten_scratch.height != g.height)
         {
-            return x == this.x && x == this.y;
+            flatten_scratch = createGraphics(g.width, g.height);
         }
-
-        @Override
-        public void move(int dx, int dy)
+        PGraphics pg = flatten_scratch;
+        pg.beginDraw();
+        pg.clear();
+        pg.noStroke();
+        if (l.base != null)
         {
-            this.x += dx;
-            this.y += dy;
+            l.base.draw(pg);
         }
-    }
-
-    /**
-     * Inner class representing an ellipse on the canvas
-     */
-    private class Ellipse extends Shape
-    {
-        public Ellipse(int x, int y, int w, int h, float a, int c)
+        Blender blender = new Blender(pg, 0, 0);
+        for (int i = flat.nextSetBit(0); i >= 0; i = flat.nextSetBit(i + 1))
         {
-            super(x, y, w, h, a, c);
-            type = "Ellipse";
+            blender.draw(l.shapes.get(i));
         }
-
-        @Override
-        public void draw()
+        blender.finish();
+        pg.endDraw();
+        pg.loadPixels();
+        long before = l.base != null ? l.base.bytes() : 0;
+        l.setBase(TileRaster.of(pg.pixels, pg.width, pg.height));
+        long grown = l.base.bytes() - before;
+        // Other users keep their copies of the shapes, since only this window ran out of room
+        if (share != null)
         {
-            ellipseMode(CENTER);
-            fill(c);
-            translate(x, y);
-            rotate(a);
-            ellipse(0, 0, this.w, this.h);
-            rotate(-a);
-            translate(-x, -y);
+            share.quiet = true;
         }
-
-        @Override
-        public boolean mouseOver(int x, int y)
+        l.shapes.removeAll(flat);
+        if (share != null)
         {
-            float f = cos(a) * (x - this.x) + sin(a) * (y - this.y);
-            float g = sin(a) * (x - this.x) - cos(a) * (y - this.y);
-            float rx = (float)w / 2;
-            float ry = (float)h / 2;
-
-            //return pow((float) (pmouseX - this.x) / ((float)this.w / 2), 2) + pow((float) (pmouseY - this.y) / ((float)this.h / 2), 2) <= 1;
-            return pow(f / rx, 2) + pow(g / ry, 2) <= 1.0f;
+            share.quiet = false;
         }
+        l.dirty = true;
+        governor.flattened(l.name, flat.cardinality(), freed, grown, l.base);
+        return freed - grown;
+    }
 
-        @Override
-        public void move(int dx, int dy)
+    /*
+     * Returns true if a bounding box overlaps any of a list of them
+     */
+    private static boolean overlaps(int[] box, List<int[]> boxes)
+    {
+        for (int[] other : boxes)
         {
-            this.x += dx;
-            this.y += dy;
+            if (box[0] < other[2] && other[0] < box[2] && box[1] < other[3] && other[1] < box[3])
+            {
+                return true;
+            }
         }
+        return false;
     }
 
     /**
-     * Inner class representing a rectangle on the canvas
+     * Blends every visible layer into a single opaque image the size of the canvas.
+     * @return ARGB pixels of the canvas
      */
-    private class Rectangle extends Shape
+    private int[] flatten()
     {
-        public Rectangle(int x, int y, int w, int h, float a, int c)
-        {
-            super(x, y, w, h, a, c);
-            type = "Rectangle";
-        }
-
-        @Override
-        public void draw()
+        int n = g.width * g.height;
+        int[] canvas = new int[n];
+        Arrays.fill(canvas, BG_COLOR);
+        // The layer being edited is drawn live, so its bitmap may be out of date
+        layer.dirty = true;
+        for (Layer l : layers)
         {
-            rectMode(CENTER);
-            fill(c);
-            translate(x, y);
-            rotate(a);
-            rect(0, 0, this.w, this.h);
-            rotate(-a);
-            translate(-x, -y);
+            if (l.visible)
+            {
+                PImage bitmap = l.bitmap();
+                bitmap.loadPixels();
+                Compositor.composite(canvas, 0, bitmap.pixels, 0, min(n, bitmap.pixels.length), l.blend, round(l.opacity * 255));
+            }
         }
+        return canvas;
+    }
 
-        @Override
-        public boolean mouseOver(int x, int y)
-        {
-            float rx = (float)w / 2;
-            float ry = (float)h / 2;
-            return (x > this.x - rx) && (x < this.x + rx) && (y > this.y - ry) && (y < this.y + ry);
-        }
+    /**
+     * Filters the flattened canvas. The result goes on a new layer on top and
+     * the layers it was made from are hidden, so the filter can be undone by
+     * deleting that layer.
+     */
+    private void filterCanvas(int filter, float amount)
+    {
+        int[] canvas = flatten();
+        ImageFilters.apply(filter, canvas, g.width, g.height, amount);
+        PImage image = createImage(g.width, g.height, ARGB);
+        image.loadPixels();
+        System.arraycopy(canvas, 0, image.pixels, 0, canvas.length);
+        image.updatePixels();
 
-        @Override
-        public void move(int dx, int dy)
+        for (Layer l : layers)
         {
-            this.x += dx;
-            this.y += dy;
+            l.visible = false;
         }
+        Layer filtered = new Layer(ImageFilters.NAMES[filter]);
+        layers.add(filtered);
+        selectLayer(filtered);
+        shapes.add(new Image(image, 0, 0));
     }
 
     /**
-     * Inner class representing an image on the canvas
+     * Filters the group. Images are filtered in place and every other grouped
+     * shape is drawn into one image which replaces them.
      */
-    private class Image extends Shape
+    private void filterGroup(int filter, float amount)
     {
-        PImage image;
-
-        public Image(String path, int x, int y)
+        ArrayList<Shape> others = new ArrayList<>();
+        for (int i = 0; i < shapes.size(); i++)
         {
-            super(x, y, 0, 0, 0, 0);
-            image = loadImage(path);
-            this.w = image.width;
-            this.h = image.height;
-            type = "Image";
+            Shape shape = shapes.get(i);
+            if (group.contains(shape.id))
+            {
+                if (shape instanceof Image)
+                {
+                    Image image = (Image) editShape(i);
+                    image.filter(filter, amount);
+                    layer.recount(image);
+                }
+                else
+                {
+                    others.add(shape);
+                }
+            }
         }
-
-        public Image(String path, String extension, int x, int y)
+        if (others.isEmpty())
         {
-            super(x, y, 0, 0, 0, 0);
-            image = loadImage(path, extension);
-            this.w = image.width;
-            this.h = image.height;
-            this.type = "Image";
+            return;
         }
 
-        @Override
-        public void draw()
+        // Bounding box of the shapes, with room for a blur to spread
+        int margin = filter <= ImageFilters.SHARPEN ? ceil(abs(amount)) + 2 : 0;
+        int[] box = {Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MIN_VALUE, Integer.MIN_VALUE};
+        int[] bounds = new int[4];
+        BitSet ids = new BitSet();
+        for (Shape shape : others)
         {
-            image(this.image, this.x, this.y);
+            shape.bounds(shape.x, shape.y, bounds);
+            box[0] = min(box[0], bounds[0]);
+            box[1] = min(box[1], bounds[1]);
+            box[2] = max(box[2], bounds[2]);
+            box[3] = max(box[3], bounds[3]);
+            ids.set(shape.id);
         }
-
-        @Override
-        public boolean mouseOver(int x, int y)
+        int x0 = max(0, box[0] - margin);
+        int y0 = max(0, box[1] - margin);
+        int x1 = min(g.width, box[2] + margin);
+        int y1 = min(g.height, box[3] + margin);
+        if (x1 <= x0 || y1 <= y0)
         {
-            return (x > this.x) && (x < this.x + this.w) && (y > this.y) && (y < this.y + this.h);
+            return;
         }
 
-        @Override
-        public void move(int dx, int dy)
+        // Draw the shapes into their own image and filter it
+        PGraphics pg = createGraphics(x1 - x0, y1 - y0);
+        pg.beginDraw();
+        pg.clear();
+        pg.noStroke();
+        pg.translate(-x0, -y0);
+        Blender blender = new Blender(pg, x0, y0);
+        for (Shape shape : others)
         {
-            this.x += dx;
-            this.y += dy;
+            blender.draw(shape);
         }
+        blender.finish();
+        pg.endDraw();
+        pg.loadPixels();
+        PImage image = createImage(pg.width, pg.height, ARGB);
+        image.loadPixels();
+        System.arraycopy(pg.pixels, 0, image.pixels, 0, image.pixels.length);
+        ImageFilters.apply(filter, image.pixels, image.width, image.height, amount);
+        image.updatePixels();
 
-        public void resize(int w, int h)
-        {
+        // Replace the shapes with the image
+        removeShapes(ids, Collections.<Integer, List<Stroke>>emptyMap());
+        Image filtered = new Image(image, x0, y0);
+        shapes.add(filtered);
+        group.add(filtered.id);
+    }
+
+    /**
+     * Duplicate an object that the mouse is over.
+     * Copies are instances that share the geometry (or image) of the original and only
+     * store their own position and color, so tiling a shape thousands of times stays cheap.
+     */
+    public void duplicate()
+    {
+        // Duplicate shape to the center of the window
+        ArrayList<Shape> temp_shapes = new ArrayList<>();
+        int hits = shapesAt(pmouseX, pmouseY);
+        int[] found = layer.columns.found();
+        Shape anchor = null; // grouped shape the mouse is over
+        for (int k = 0; k < hits; k++)
+        {
+            Shape shape = shapes.get(found[k]);
+            if (group.contains(shape.id))
+            {
+                anchor = shape;
+            }
+            else
+            {
+                // Instance the shape instead of rebuilding its geometry
+                temp_shapes.add(shape.instance(width / 2, height / 2));
+            }
+        }
+        // Add shapes to main shape pool
+        shapes.addAll(temp_shapes);
+        // Clear out temp shapes
+        temp_shapes.clear();
+
+        // Duplicate all grouped objects to the center of the window
+        if (group.isEmpty())
+        {
+            return;
+        }
+        ArrayList<Shape> members = new ArrayList<>();
+        for (Shape shape : shapes)
+        {
+            if (group.contains(shape.id))
+            {
+                members.add(shape);
+            }
+        }
+
+        // Duplicate the group at the center of the canvas
+        if (anchor != null)
+        {
+            Shape copy;
+            if (members.size() == 1)
+            {
+                // A single shape (or a previously duplicated group) is instanced directly
+                copy = anchor.instance(width / 2, height / 2);
+            }
+            else
+            {
+                // Freeze the layout of the group once and instance it as a whole
+                Compound compound = new Compound(members, anchor.x, anchor.y);
+                copy = compound.instance(width / 2, height / 2);
+            }
+
+            // The copy becomes the new group, the old group stays in the main shape pool
+            shapes.add(copy);
+            group.clear();
+            group.add(copy.id);
+        }
+    }
+
+    /**
+     * When left mouse button is initially pressed down
+     * do these things.
+     */
+    private void clicked()
+    {
+        // Locked layers can't be edited
+        if (layer.locked)
+        {
+            return;
+        }
+
+        // If we are in manipulate mode we change the color of a shape that is clicked
+        if (mode == 2) // MANIPULATE MODE
+        {
+            int hits = shapesAt(pmouseX, pmouseY);
+            int[] found = layer.columns.found();
+            for (int k = 0; k < hits; k++)
+            {
+                int i = found[k];
+                if (!group.contains(shapes.get(i).id))
+
+                    editShape(i).c = (byte) color;
+            }
+        }
+        // If we are in duplicate mode we duplicate the shape/group that has been clicked
+        if (mode == 4) // DUPLICATE MODE
+        {
+            duplicate();
+        }
+    }
+
+    /**
+     * When left mouse is pressed down and then released
+     * do these things.
+     */
+    private void pressed()
+    {
+        // Locked layers can't be edited
+        if (layer.locked)
+        {
+            return;
+        }
+
+        // If we are in brush mode we lay the first shape to be drawn before dragged()
+        if (mode == 0) // BRUSH MODE (drawing)
+        {
+            // Determine what shapes to lay down
+            switch (brush_type)
+            {
+                case 0: // SPRAYPAINT
+                    spray();
+                    break;
+                case 1: // THIN BRUSH
+                    startStroke(5);
+                    break;
+                case 2: // THICK BRUSH
+                    startStroke(30);
+                    break;
+                case 3: // CUSTOM BRUSH
+                    startStroke(brush_size);
+                    break;
+                default: // STAMP BRUSHES
+                    startDabs();
+                    break;
+            }
+        }
+        // If we are in eraser mode erase under the mouse right away
+        if (mode == 5) // MAGICWAND MODE
+        {
+            erase(mouseX, mouseY, mouseX, mouseY);
+        }
+        // If we are in fill mode fill the clicked region once the frame is drawn
+        if (mode == 6) // FILL MODE
+        {
+            fill_x = mouseX;
+            fill_y = mouseY;
+        }
+        // If we are in shape mode we lay down a single shape
+        if (mode == 1) // SHAPE MODE
+        {
+            // Determines what shape to use
+            // In future versions height and width of shape will be user defined.
+            switch (brush_shape)
+            {
+                case 0: // PIXEL
+                    shapes.add(new Pixel(mouseX, mouseY, color));
+                    break;
+                case 1: // ELLIPSE
+                    shapes.add(new Ellipse(mouseX, mouseY, 30, 50, 0.0f, color));
+                    break;
+                case 2: // CIRCLE
+                    shapes.add(new Ellipse(mouseX, mouseY, 30, 30, 0.0f, color));
+                    break;
+                case 3: // RECTANGLE
+                    shapes.add(new Rectangle(mouseX, mouseY, 40, 60, 0.0f, color));
+                    break;
+                case 4: // SQUARE
+                    shapes.add(new Rectangle(mouseX, mouseY, 40, 40, 0.0f, color));
+                    break;
+                case 5: // LINE
+                    // Get first point for line
+                    line_x0 = mouseX;
+                    line_y0 = mouseY;
+                    break;
+                default:
+                    break;
+            }
+        }
+        // If in group mode move selected objects into a group
+        else if (mode == 3) // GROUP MODE
+        {
+            // Find shapes under the mouse
+            BitSet hits = new BitSet();
+            int n = shapesAt(pmouseX, pmouseY);
+            int[] found = layer.columns.found();
+            for (int k = 0; k < n; k++)
+            {
+                hits.set(shapes.get(found[k]).id);
+            }
+
+            if (hits.isEmpty())
+            {
+                // A plain click on empty canvas clears the group
+                if (select_replace)
+                {
+                    group.clear();
+                }
+
+                // Start a rubber band, or a lasso with the right mouse button
+                selecting = true;
+                lasso = mouseButton == RIGHT;
+                lasso_n = 0;
+                addLassoPoint(mouseX, mouseY);
+            }
+            else if (select_replace)
+            {
+                // If no new shape is added on a click then clear group
+                if (!group.union(hits))
+                {
+                    group.clear();
+                }
+            }
+            else
+            {
+                group.apply(select_op, hits);
+            }
+        }
+    }
+
+    /**
+     * Remembers which modifier keys are held so group mode can
+     * pick the set operation, then handles the press as usual.
+     * @param modifiers InputQueue modifier key bits
+     */
+    private void pressed(int modifiers)
+    {
+        select_replace = false;
+        if ((modifiers & InputQueue.ALT) != 0)
+        {
+            select_op = SelectionSet.SUBTRACT;
+        }
+        else if ((modifiers & InputQueue.CONTROL) != 0)
+        {
+            select_op = SelectionSet.TOGGLE;
+        }
+        else if ((modifiers & InputQueue.SHIFT) != 0)
+        {
+            select_op = SelectionSet.UNION;
+        }
+        else
+        {
+            select_op = SelectionSet.UNION;
+            select_replace = true;
+        }
+        pressed();
+    }
+
+    /**
+     * When left mouse is released do these things.
+     */
+    private void released()
+    {
+        // Locked layers can't be edited
+        if (layer.locked)
+        {
+            return;
+        }
+
+        // Simplify the brush stroke now that it is finished
+        if (stroke_points != null)
+        {
+            finishStroke();
+        }
+        dabs_id = -1;
+
+        // If the current brush mode is SHAPE and current shape is LINE
+        if (mode == 1 && brush_shape == 5)
+        {
+            // Get second point for line and create the line
+            line_x1 = mouseX;
+            line_y1 = mouseY;
+
+            // Add line to line collection to be drawn on the canvas
+            lines.add(new Line(line_x0, line_y0, line_x1, line_y1, color));
+
+            // Reset first and second point just in case. 
+            line_x0 = 0;
+            line_y0 = 0;
+            line_x1 = 0;
+            line_y1 = 0;
+        }
+
+        // Finish a rubber band or lasso selection
+        if (mode == 3 && selecting)
+        {
+            addLassoPoint(mouseX, mouseY);
+            group.apply(select_op, selectRegion());
+            selecting = false;
+            lasso_n = 0;
+        }
+    }
+
+    /**
+     * Returns the ids of every shape whose position lies inside the
+     * current rubber band or lasso.
+     * @return ids of the shapes in the region
+     */
+    private BitSet selectRegion()
+    {
+        BitSet ids = new BitSet();
+        int x0 = min(lasso_x[0], lasso_x[lasso_n - 1]);
+        int x1 = max(lasso_x[0], lasso_x[lasso_n - 1]);
+        int y0 = min(lasso_y[0], lasso_y[lasso_n - 1]);
+        int y1 = max(lasso_y[0], lasso_y[lasso_n - 1]);
+        for (Shape shape : shapes)
+        {
+            boolean inside;
+            if (lasso)
+            {
+                inside = lasso_n > 2 && SelectionSet.insidePolygon(lasso_x, lasso_y, lasso_n, shape.x, shape.y);
+            }
+            else
+            {
+                inside = shape.x >= x0 && shape.x <= x1 && shape.y >= y0 && shape.y <= y1;
+            }
+            if (inside)
+            {
+                ids.set(shape.id);
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Adds a point to the lasso path. The first and latest points
+     * are also the corners of the rubber band.
+     */
+    private void addLassoPoint(int x, int y)
+    {
+        if (!lasso && lasso_n == 2)
+        {
+            // A rubber band only needs its start and current corner
+            lasso_n = 1;
+        }
+        if (lasso_n == lasso_x.length)
+        {
+            lasso_x = Arrays.copyOf(lasso_x, lasso_n * 2);
+            lasso_y = Arrays.copyOf(lasso_y, lasso_n * 2);
+        }
+        lasso_x[lasso_n] = x;
+        lasso_y[lasso_n] = y;
+        lasso_n++;
+    }
+
+    /**
+     * Draws the outline of the rubber band or lasso being dragged.
+     */
+    private void drawSelectionRegion()
+    {
+        noFill();
+        stroke(setColor(4));
+        if (lasso)
+        {
+            beginShape();
+            for (int i = 0; i < lasso_n; i++)
+            {
+                vertex(lasso_x[i], lasso_y[i]);
+            }
+            endShape();
+        }
+        else
+        {
+            rectMode(CORNERS);
+            rect(lasso_x[0], lasso_y[0], lasso_x[lasso_n - 1], lasso_y[lasso_n - 1]);
+        }
+        noStroke();
+    }
+
+    /**
+     * When left mouse is pressed and then dragged
+     * do these things.
+     */
+    private void dragged()
+    {
+        // Locked layers can't be edited
+        if (layer.locked)
+        {
+            return;
+        }
+
+        // If we are in brush mode lay down paint everywhere the mouse has moved
+        if (mode == 0)
+        {
+            // Determine which brush to use.
+            switch (brush_type)
+            {
+                case 0: // SPRAYPAINT
+                    spray();
+                    break;
+                case 1: // THIN BRUSH
+                case 2: // THICK BRUSH
+                case 3: // CUSTOM BRUSH
+                    extendStroke();
+                    break;
+                default: // STAMP BRUSHES
+                    extendDabs();
+                    break;
+            }
+        }
+        // If in manipulate mode move a shape/group dragged by the mouse
+        else if (mode == 2) // MANIPULATE MODE
+        {
+            // Move shapes if mouse is over them and dragging
+            // and check if a shape in the group is being moved
+            boolean moved = false;
+            int hits = shapesAt(pmouseX, pmouseY);
+            int[] found = layer.columns.found();
+            for (int k = 0; k < hits; k++)
+            {
+                int i = found[k];
+                if (group.contains(shapes.get(i).id))
+                {
+                    moved = true;
+                }
+                else
+                {
+                    editShape(i).move(mouseX - pmouseX, mouseY - pmouseY);
+                    layer.reindex(i);
+                }
+            }
+            
+            // If any shape in the group is being moved, move them all
+            if (moved)
+            {
+                for (int i = 0; i < shapes.size(); i++)
+                {
+                    if (group.contains(shapes.get(i).id))
+                    {
+                        editShape(i).move(mouseX - pmouseX, mouseY - pmouseY);
+                        layer.reindex(i);
+                    }
+                }
+            }
+
+            
+        }
+        // Extend the rubber band or lasso being dragged in group mode
+        else if (mode == 3 && selecting)
+        {
+            addLassoPoint(mouseX, mouseY);
+        }
+        // If in magic wand mode delete any objects the mouse drags over
+        else if (mode == 5) // MAGICWAND MODE
+        {
+            erase(pmouseX, pmouseY, mouseX, mouseY);
+        }
+    }
+
+    /*
+     * Mouse callbacks only queue the event. The scene is changed when draw() applies the
+     * queued events, all at once at the start of the frame.
+     */
+    @Override
+    public void mousePressed(MouseEvent event)
+    {
+        queueInput(InputQueue.PRESSED, event);
+    }
+
+    @Override
+    public void mouseReleased(MouseEvent event)
+    {
+        queueInput(InputQueue.RELEASED, event);
+    }
+
+    @Override
+    public void mouseClicked(MouseEvent event)
+    {
+        queueInput(InputQueue.CLICKED, event);
+    }
+
+    @Override
+    public void mouseDragged(MouseEvent event)
+    {
+        queueInput(InputQueue.DRAGGED, event);
+    }
+
+    private void queueInput(int type, MouseEvent event)
+    {
+        int modifiers = (event.isShiftDown() ? InputQueue.SHIFT : 0)
+                | (event.isControlDown() ? InputQueue.CONTROL : 0)
+                | (event.isAltDown() ? InputQueue.ALT : 0);
+        input.push(type, mouseX, mouseY, pmouseX, pmouseY, mouseButton, modifiers, millis());
+    }
+
+    /**
+     * Applies every queued mouse event in order. While manipulating, a run of drags is merged
+     * into one move from where the first drag started to where the last one ended, so the
+     * shapes under the mouse are only looked for once per frame however fast events arrive.
+     * The mouse fields are set to each event's values while it is handled.
+     */
+    private void applyInput()
+    {
+        int saved_x = mouseX;
+        int saved_y = mouseY;
+        int saved_px = pmouseX;
+        int saved_py = pmouseY;
+        int saved_button = mouseButton;
+        while (input.poll(event))
+        {
+            if (recorder != null)
+            {
+                recorder.input(event);
+            }
+            if (event.type == InputQueue.DRAGGED && mode == 2)
+            {
+                int px = event.px;
+                int py = event.py;
+                while (input.peekType() == InputQueue.DRAGGED)
+                {
+                    input.poll(event);
+                    if (recorder != null)
+                    {
+                        recorder.input(event);
+                    }
+                }
+                event.px = px;
+                event.py = py;
+            }
+            mouseX = event.x;
+            mouseY = event.y;
+            pmouseX = event.px;
+            pmouseY = event.py;
+            mouseButton = event.button;
+            switch (event.type)
+            {
+                case InputQueue.PRESSED:
+                    pressed(event.modifiers);
+                    break;
+                case InputQueue.RELEASED:
+                    released();
+                    break;
+                case InputQueue.CLICKED:
+                    clicked();
+                    break;
+                default:
+                    dragged();
+                    break;
+            }
+        }
+        mouseX = saved_x;
+        mouseY = saved_y;
+        pmouseX = saved_px;
+        pmouseY = saved_py;
+        mouseButton = saved_button;
+    }
+
+    /**
+     * Randomly fills the area brush_size around the mouse with colored pixels
+     * to give a spraypaint effect
+     */
+    private void spray()
+    {
+        for (int i = 0; i < brush_size / 2; i++)
+        {
+            // Choose random angle in circle for a pixel
+            float a = random.nextFloat() * PI * 2;
+            // Choose random distance from center of circle (0 to brush_size)
+            float r = sqrt(random.nextFloat()) * brush_size;
+            // Calculate the x and y values for the pixel vased on angle and radius
+            // Mouse position is center of circle
+            float x = mouseX + r * cos(a);
+            float y = mouseY + r * sin(a);
+            // Draw pixel with selected color
+            shapes.add(new Pixel((int)x, (int)y, color));
+        }
+    }
+
+    /**
+     * Starts a stroke of the selected stamp brush at the mouse
+     */
+    private void startDabs()
+    {
+        int i = brush_type - 4;
+        if (i < Brushes.all().size())
+        {
+            Dabs dabs = new Dabs(Brushes.all().get(i), max(1, brush_size), brush_hardness, mouseX, mouseY, color);
+            dabs_id = dabs.id;
+            shapes.add(dabs);
+        }
+    }
+
+    /**
+     * Places dabs of the stamp brush stroke being drawn up to the mouse
+     */
+    private void extendDabs()
+    {
+        if (dabs_id < 0)
+        {
+            return;
+        }
+        for (int i = shapes.size() - 1; i >= 0; i--)
+        {
+            if (shapes.get(i).id == dabs_id)
+            {
+                Dabs dabs = (Dabs) editShape(i);
+                if (dabs.extend(mouseX, mouseY))
+                {
+                    layer.recount(dabs);
+                    layer.reindex(i);
+                }
+                return;
+            }
+        }
+        dabs_id = -1;
+    }
+
+    /**
+     * Starts a brush stroke at the mouse
+     * @param width width of the stroke in pixels
+     */
+    private void startStroke(int width)
+    {
+        stroke_points = new StrokeSimplifier(stroke_tolerance, mouseX, mouseY);
+        Stroke stroke = new Stroke(stroke_points.points(), stroke_points.count(), false, width, color);
+        stroke_id = stroke.id;
+        shapes.add(stroke);
+    }
+
+    /**
+     * Adds the mouse position to the brush stroke being drawn
+     */
+    private void extendStroke()
+    {
+        int i = strokeIndex();
+        if (i >= 0 && stroke_points.add(mouseX, mouseY))
+        {
+            Stroke stroke = (Stroke) editShape(i);
+            stroke.set(stroke_points.points(), stroke_points.count(), false);
+            layer.recount(stroke);
+            layer.reindex(i);
+        }
+    }
+
+    /**
+     * Replaces the samples of the brush stroke being drawn with the simplified stroke
+     */
+    private void finishStroke()
+    {
+        int i = strokeIndex();
+        if (i >= 0)
+        {
+            float[] points = stroke_points.finish();
+            boolean curves = stroke_smoothing && points.length >= 6;
+            if (curves)
+            {
+                points = StrokeSimplifier.smooth(points);
+            }
+            Stroke stroke = (Stroke) editShape(i);
+            stroke.set(points, points.length, curves);
+            layer.recount(stroke);
+            layer.reindex(i);
+        }
+        stroke_points = null;
+    }
+
+    /*
+     * Index of the brush stroke being drawn, usually the last shape, or -1 if it is gone
+     */
+    private int strokeIndex()
+    {
+        if (stroke_points == null)
+        {
+            return -1;
+        }
+        for (int i = shapes.size() - 1; i >= 0; i--)
+        {
+            if (shapes.get(i).id == stroke_id)
+            {
+                return i;
+            }
+        }
+        stroke_points = null;
+        return -1;
+    }
+
+    /**
+     * Finds the shapes of the layer being edited that a point is over, using the hit-test
+     * columns of the layer and testing shapes they only know the bounding box of one by one.
+     * @param px x value of the point
+     * @param py y value of the point
+     * @return number of shapes found, whose indices are at the start of layer.columns.found() in drawing order
+     */
+    private int shapesAt(int px, int py)
+    {
+        HitColumns columns = layer.hitColumns();
+        int n = columns.point(px, py);
+        int[] found = columns.found();
+        int hits = 0;
+        for (int k = 0; k < n; k++)
+        {
+            int i = found[k];
+            if (columns.kind(i) != HitColumns.BOUNDS || shapes.get(i).mouseOver(px, py))
+            {
+                found[hits++] = i;
+            }
+        }
+        return hits;
+    }
+
+    /**
+     * Marks every shape within eraser_size of the path from (x0, y0) to (x1, y1)
+     * for removal, except strokes, which only lose the part the eraser went over. Shapes
+     * are removed together at the start of the next frame.
+     * @param x0 x value the eraser moved from
+     * @param y0 y value the eraser moved from
+     * @param x1 x value the eraser moved to
+     * @param y1 y value the eraser moved to
+     */
+    private void erase(int x0, int y0, int x1, int y1)
+    {
+        HitColumns columns = layer.hitColumns();
+        int hits = columns.sweep(x0, y0, x1, y1, eraser_size);
+        int[] found = columns.found();
+        for (int k = 0; k < hits; k++)
+        {
+            Shape shape = shapes.get(found[k]);
+            if (shape instanceof Stroke)
+            {
+                cut((Stroke) shape, x0, y0, x1, y1);
+            }
+            // Shapes known only by their bounding box are tested one by one
+            else if (columns.kind(found[k]) != HitColumns.BOUNDS || erases(shape, x0, y0, x1, y1))
+            {
+                erased.set(shape.id);
+            }
+        }
+    }
+
+    /**
+     * Cuts the part of a stroke the eraser went over out of it, or out of what earlier moves
+     * of the eraser this frame left of it. The pieces replace the stroke at the start of the
+     * next frame, and are stacked where it was in every window sharing the drawing.
+     */
+    private void cut(Stroke stroke, int x0, int y0, int x1, int y1)
+    {
+        List<Stroke> pieces = erased_pieces.get(stroke.id);
+        if (pieces == null)
+        {
+            pieces = Collections.singletonList(stroke);
+        }
+        List<Stroke> left = new ArrayList<>();
+        boolean cut = false;
+        for (Stroke piece : pieces)
+        {
+            List<float[]> parts = piece.cut(x0, y0, x1, y1, eraser_size);
+            if (parts == null)
+            {
+                left.add(piece);
+                continue;
+            }
+            cut = true;
+            for (float[] part : parts)
+            {
+                Stroke s = new Stroke(part, part.length, piece.curves, piece.w, piece.paletteIndex());
+                s.blend = piece.blend;
+                if (share != null)
+                {
+                    share.madeFrom(s, stroke);
+                }
+                left.add(s);
+            }
+        }
+        if (cut)
+        {
+            erased.set(stroke.id);
+            erased_pieces.put(stroke.id, left);
+        }
+    }
+
+    /**
+     * Returns true if the eraser swept from (x0, y0) to (x1, y1) touches a shape, the same
+     * way HitColumns.sweep() decides for the shapes it knows the geometry of.
+     */
+    private boolean erases(Shape shape, int x0, int y0, int x1, int y1)
+    {
+        // Closest point on the swept path to the shape
+        float dx = x1 - x0;
+        float dy = y1 - y0;
+        float length2 = dx * dx + dy * dy;
+        float t = length2 == 0 ? 0 : constrain(((shape.x - x0) * dx + (shape.y - y0) * dy) / length2, 0, 1);
+        float qx = x0 + t * dx;
+        float qy = y0 + t * dy;
+        float ex = shape.x - qx;
+        float ey = shape.y - qy;
+        float d = sqrt(ex * ex + ey * ey);
+
+        // Erase if the shape's position is inside the eraser, the path crosses the shape,
+        // or the edge of the eraser closest to the shape is inside it
+        return d <= eraser_size
+                || shape.mouseOver(round(qx), round(qy))
+                || shape.mouseOver(round(qx + ex / d * eraser_size), round(qy + ey / d * eraser_size));
+    }
+
+    /**
+     * Removes every shape whose id is set in one pass over the shape list, putting the
+     * pieces left of a cut stroke where the stroke was.
+     * @param ids ids of shapes to remove
+     * @param pieces strokes to put in place of some of the removed shapes, by id
+     */
+    private void removeShapes(BitSet ids, Map<Integer, List<Stroke>> pieces)
+    {
+        BitSet gone = new BitSet();
+        int removed = 0;
+        // Where the pieces after the first of each cut stroke go, once the rest are removed
+        ArrayList<Integer> at = new ArrayList<>();
+        ArrayList<List<Stroke>> rest = new ArrayList<>();
+        for (int i = 0; i < shapes.size(); i++)
+        {
+            Shape shape = shapes.get(i);
+            if (!ids.get(shape.id))
+            {
+                continue;
+            }
+            List<Stroke> left = pieces.get(shape.id);
+            if (left != null && !left.isEmpty())
+            {
+                shapes.set(i, left.get(0));
+                at.add(i - removed + 1);
+                rest.add(left.subList(1, left.size()));
+            }
+            else
+            {
+                gone.set(i);
+                removed++;
+            }
+        }
+        shapes.removeAll(gone);
+        // From the back, so the places still to fill don't move
+        for (int k = at.size() - 1; k >= 0; k--)
+        {
+            shapes.addAll(at.get(k), rest.get(k));
+        }
+        group.subtract(ids);
+    }
+
+    /**
+     * Flood fills the rendered canvas from the given point and adds the
+     * filled region as a single shape.
+     * @param x x value of the seed
+     * @param y y value of the seed
+     */
+    private void fillRegion(int x, int y)
+    {
+        loadPixels();
+        int[] spans = FloodFill.fill(pixels, g.width, g.height, x, y, fill_tolerance);
+        if (spans.length > 0)
+        {
+            shapes.add(new Fill(spans, x, y, color));
+        }
+    }
+
+    /**
+     * Takes in an image and adds to list of things to draw on the canvas.
+     * This is called from the file chooser's thread, so the image is added by the next frame.
+     * @param image image to be drawn
+     */
+    public void localImage(File image)
+    {
+        // If the image isn't empty
+        if (image != null)
+        {
+            loaded_image = image.getAbsolutePath();
+        }
+    }
+
+    /**
+     * Asks the user for a line of text. While a log is replayed the recorded answer is
+     * given instead, and while recording the answer is logged.
+     * @param message question to show
+     * @return the answer, or null if the prompt was cancelled
+     */
+    private String prompt(String message)
+    {
+        String answer = playback != null ? playback.answer() : JOptionPane.showInputDialog(message);
+        if (recorder != null)
+        {
+            recorder.prompt(answer);
+        }
+        return answer;
+    }
+
+    /*
+     * Resets a menu button once its press is handled, logging the press while recording
+     */
+    private void consume(String button)
+    {
+        parameters.put(button, 0.0);
+        if (recorder != null)
+        {
+            recorder.menu(button);
+        }
+    }
+
+    /**
+     * Logs all input from the next frame on, until the window is closed.
+     * Must be called before the sketch starts so the log begins with a blank canvas.
+     * @param out stream to write the log to
+     */
+    public void record(OutputStream out) throws IOException
+    {
+        recorder = new InputRecorder(out, width, height);
+    }
+
+    /**
+     * Prints how long after the JVM started the first frame is drawn, to measure startup.
+     * Must be called before the sketch starts.
+     * @param exit true to close the document after the first frame, as a training run for a
+     * class data sharing archive does
+     */
+    public void reportStartup(boolean exit)
+    {
+        startup_report = true;
+        startup_exit = exit;
+    }
+
+    /**
+     * Shares the drawing with the other windows of a session. Everything drawn so far is sent
+     * to them, and from then on each frame sends what changed and applies what they changed.
+     * Shapes and fills, strokes and dabs of brushes are shared, including copies made with
+     * Duplicate of a shape or of a whole group. Images, and copies of groups holding an image,
+     * lines and layer settings stay in this window.
+     * @param client connection to the session
+     */
+    public void share(SessionClient client)
+    {
+        share = new Share(client);
+        for (int n = 0; n < layers.size(); n++)
+        {
+            for (Shape shape : layers.get(n).shapes)
+            {
+                share.put(shape, n);
+            }
+        }
+        share.flush();
+    }
+
+    /**
+     * Replays a log instead of taking live input, one recorded frame per frame.
+     * @param log log of a session recorded on a canvas the size of this one
+     */
+    public void replay(InputRecorder.Playback log)
+    {
+        playback = log;
+    }
+
+    /**
+     * Sets the sketch up to draw into an off-screen canvas instead of a window, so a log can be
+     * replayed without a display. Frames are then drawn by calling drawFrame().
+     */
+    public void startOffscreen()
+    {
+        PGraphicsJava2D canvas = new PGraphicsJava2D();
+        canvas.setParent(this);
+        canvas.setPrimary(false);
+        canvas.setSize(width, height);
+        g = canvas;
+        // PApplet keeps its own size fields, which the ones in ProcessingWindow hide
+        PApplet applet = this;
+        applet.width = applet.pixelWidth = width;
+        applet.height = applet.pixelHeight = height;
+        // Sets the folder files are loaded from, which runSketch() would have set
+        sketchPath();
+        g.beginDraw();
+        setup();
+        g.endDraw();
+    }
+
+    /**
+     * Draws one frame into the off-screen canvas, see startOffscreen()
+     */
+    public void drawFrame()
+    {
+        g.beginDraw();
+        draw();
+        g.endDraw();
+        frameCount++;
+    }
+
+    /**
+     * Returns a checksum of the pixels on the canvas, which two replays of the same log agree on
+     */
+    public long canvasHash()
+    {
+        loadPixels();
+        CRC32 crc = new CRC32();
+        byte[] row = new byte[g.width * 4];
+        for (int y = 0; y < g.height; y++)
+        {
+            for (int x = 0, i = y * g.width; x < g.width; x++, i++)
+            {
+                int p = pixels[i];
+                row[x * 4] = (byte) (p >>> 24);
+                row[x * 4 + 1] = (byte) (p >> 16);
+                row[x * 4 + 2] = (byte) (p >> 8);
+                row[x * 4 + 3] = (byte) p;
+            }
+            crc.update(row, 0, row.length);
+        }
+        return crc.getValue();
+    }
+
+    /*
+     * Called by InputRecorder.Playback with the contents of a recorded frame
+     */
+    void replayMouse(int x, int y)
+    {
+        mouseX = x;
+        mouseY = y;
+    }
+
+    void replayInput(InputQueue.Event e)
+    {
+        input.push(e.type, e.x, e.y, e.px, e.py, e.button, e.modifiers, e.time);
+    }
+
+    void replayMenu(String button)
+    {
+        parameters.put(button, 1.0);
+    }
+
+    void replayImage(String path)
+    {
+        loaded_image = path;
+    }
+
+    /**
+     * Finishes the input log, if recording
+     */
+    public void stopRecording()
+    {
+        if (recorder != null)
+        {
+            try
+            {
+                recorder.close();
+            }
+            catch (IOException e) {}
+            recorder = null;
+        }
+    }
+
+    /**
+     * Finishes the input log and any time-lapse, and leaves the session, when the sketch exits
+     */
+    @Override
+    public void dispose()
+    {
+        stopRecording();
+        if (timelapse != null)
+        {
+            timelapse.stop();
+            timelapse = null;
+        }
+        if (share != null)
+        {
+            share.client.close();
+            share = null;
+        }
+        super.dispose();
+    }
+
+    /**
+     * Convert color index to Processing rgb color integer
+     * @param color index of color to be converted
+     * @return Processing rgb color integer
+     */
+    private int setColor(int color)
+    {
+        // Colors are precomputed in the palette table
+        return palette.argb(color);
+    }
+
+    /**
+     * Lets the user pick, change or add a palette color. Changing an existing
+     * color recolors every shape and line drawn with it.
+     */
+    private void editPalette()
+    {
+        StringBuilder message = new StringBuilder("Enter a palette index to use it, or an index and a color as \"index r g b\" or \"index r g b alpha\".\n");
+        message.append("Changing a color recolors everything drawn with it. Indices past the end add a new color.\n");
+        for (int i = 0; i < palette.size(); i++)
+        {
+            int c = palette.argb(i);
+            message.append(" ").append(i).append(": ").append(palette.name(i)).append(" (")
+                    .append((c >> 16) & 0xFF).append(", ").append((c >> 8) & 0xFF).append(", ").append(c & 0xFF)
+                    .append(", ").append(c >>> 24).append(")\n");
+        }
+        String input = prompt(message.toString());
+        if (input == null)
+        {
+            return;
+        }
+        try
+        {
+            String[] values = input.trim().split("\\s+");
+            int index = Integer.parseInt(values[0]);
+            if (values.length >= 4)
+            {
+                // Cached layers hold the old color
+                invalidateLayers();
+                int alpha = values.length >= 5 ? constrain(Integer.parseInt(values[4]), 0, 255) : 255;
+                int c = Palette.argb(alpha, constrain(Integer.parseInt(values[1]), 0, 255),
+                        constrain(Integer.parseInt(values[2]), 0, 255),
+                        constrain(Integer.parseInt(values[3]), 0, 255));
+                String name = index < palette.size() ? palette.name(index) : "Custom " + palette.size();
+                index = palette.set(index, name, c);
+            }
+            if (index >= 0 && index < palette.size())
+            {
+                this.color = index;
+            }
+        }
+        catch (NumberFormatException e) {}
+    }
+
+    /**
+     * Inner class representing a shape on the canvas
+     */
+    abstract private class Shape implements Cloneable
+    {
+        protected int x;
+        protected int y;
+        protected int w;
+        protected int h;
+        protected float a;
+        protected float ca; // cos(a), worked out once for hit tests
+        protected float sa; // sin(a)
+        protected byte c; // Palette index, a byte so that it and blend fit in the padding before the next word
+        protected byte blend = (byte) brush_blend; // Compositor blend mode
+        protected int id = next_shape_id++; // unique id used by selections, kept by copies
+        protected int stamp = ChunkedList.epoch(); // snapshots taken after this may share the shape
+        protected int counted = 0; // buffer() when the shape was last counted by its layer
+
+        /**
+         * Geometric description of the shape.
+         * @param x Center x value
+         * @param y Center y value
+         * @param w Width of shape
+         * @param h Height of shape
+         * @param a Angle of the shape in degrees
+         * @param c Palette index of the color of the shape
+         */
+        private Shape(int x, int y, int w, int h, float a, int c)
+        {
+            this.x = x;
+            this.y = y;
+            this.w = w;
+            this.h = h;
+            this.a = radians(a);
+            this.ca = cos(this.a);
+            this.sa = sin(this.a);
+            this.c = (byte) c;
+        }
+
+        /**
+         * Returns the name of the kind of shape, as the stats report it
+         */
+        abstract public String type();
+
+        /**
+         * Returns the palette index of the shape's color
+         */
+        public int paletteIndex()
+        {
+            return c & 0xFF;
+        }
+
+        /**
+         * Draws the shape at its own position with its own color
+         * @param pg graphics to draw on
+         */
+        public void draw(PGraphics pg)
+        {
+            // Blend modes are applied by a Blender, which draws the shape onto a scratch buffer first
+            render(pg, this.x, this.y, paletteIndex());
+        }
+
+        /**
+         * Draws the geometry of the shape at the given position and color
+         * @param pg graphics to draw on
+         * @param x Center x value
+         * @param y Center y value
+         * @param c Palette index of the color of the shape
+         */
+        abstract public void render(PGraphics pg, int x, int y, int c);
+
+        /**
+         * Describes the shape at its own position with its own color to a vector exporter
+         * @param sink exporter to describe the shape to
+         * @param colors palette to look the color up in
+         */
+        public void export(VectorSink sink, Palette colors) throws IOException
+        {
+            sink.blend(blend);
+            export(sink, colors, this.x, this.y, paletteIndex());
+        }
+
+        /**
+         * Describes the geometry of the shape at the given position and color to a vector exporter
+         * @param sink exporter to describe the shape to
+         * @param colors palette to look the color up in
+         * @param x Center x value
+         * @param y Center y value
+         * @param c Palette index of the color of the shape
+         */
+        abstract public void export(VectorSink sink, Palette colors, int x, int y, int c) throws IOException;
+
+        /**
+         * Returns true if the mouse is over the shape
+         * @param x x coordinate of mouse
+         * @param y y coordinate of mouse
+         * @return mouse over status
+         */
+        public boolean mouseOver(int x, int y)
+        {
+            return hit(x, y, this.x, this.y);
+        }
+
+        /**
+         * Returns true if a point is inside the geometry of the shape placed at the given position
+         * @param px x coordinate of point
+         * @param py y coordinate of point
+         * @param x Center x value of the shape
+         * @param y Center y value of the shape
+         * @return hit status
+         */
+        abstract public boolean hit(int px, int py, int x, int y);
+
+        /**
+         * Stores the hit-test geometry of the shape placed at the given position. By default
+         * that is the bounding box, and mouseOver() decides for points inside it.
+         * @param columns columns to store the geometry in
+         * @param i index of the shape
+         * @param x Center x value
+         * @param y Center y value
+         */
+        public void columns(HitColumns columns, int i, int x, int y)
+        {
+            bounds(x, y, hit_bounds);
+            columns.set(i, HitColumns.BOUNDS, (hit_bounds[0] + hit_bounds[2]) / 2f, (hit_bounds[1] + hit_bounds[3]) / 2f,
+                    1, 0, (hit_bounds[2] - hit_bounds[0]) / 2f, (hit_bounds[3] - hit_bounds[1]) / 2f);
+        }
+
+        /**
+         * Moves shape by given offset
+         * @param dx change in x
+         * @param dy change in y
+         */
+        abstract public void move(int dx, int dy);
+
+        /**
+         * Creates a lightweight copy of the shape at the given position that shares its geometry.
+         * @param x Center x value of the copy
+         * @param y Center y value of the copy
+         * @return the copy
+         */
+        abstract public Shape instance(int x, int y);
+
+        /**
+         * Computes the bounding box of the shape's geometry placed at the given position.
+         * The default covers a rectangle of size w x h centered on the position at any angle.
+         * @param x Center x value
+         * @param y Center y value
+         * @param out receives {x0, y0, x1, y1}
+         */
+        public void bounds(int x, int y, int[] out)
+        {
+            int r = ceil(sqrt((float) w * w + (float) h * h) / 2) + 1;
+            out[0] = x - r;
+            out[1] = y - r;
+            out[2] = x + r;
+            out[3] = y + r;
+        }
+
+        /**
+         * Returns a copy of the shape with the same id, to be changed in place of a shape that
+         * a snapshot may hold. Geometry that is never edited is shared with the copy.
+         * @return the copy
+         */
+        public Shape copy()
+        {
+            try
+            {
+                Shape copy = (Shape) clone();
+                copy.stamp = ChunkedList.epoch();
+                return copy;
+            }
+            catch (CloneNotSupportedException e)
+            {
+                throw new AssertionError(e);
+            }
+        }
+
+        /**
+         * Returns the approximate number of bytes the shape takes, for the memory governor.
+         * Geometry shared with other shapes isn't counted.
+         */
+        public long footprint()
+        {
+            return MemoryGovernor.SHAPE + buffer();
+        }
+
+        /**
+         * Returns the approximate number of bytes of arrays the shape holds, such as pixels or points
+         */
+        public long buffer()
+        {
+            return 0;
+        }
+
+        /**
+         * Returns a shape whose geometry will never change, for use as a shared prototype.
+         * Geometry of pixels, ellipses and rectangles is never edited after construction.
+         * @return shape holding the geometry
+         */
+        public Shape geometry()
+        {
+            return this;
+        }
+    }
+
+    /**
+     * Inner class representing a pixel on the canvas
+     */
+    private class Pixel extends Shape
+    {
+
+        public Pixel(int x, int y, int c)
+        {
+            super(x, y, 1, 1, 0, c);
+        }
+
+        @Override
+        public String type()
+        {
+            return "Pixel";
+        }
+
+        @Override
+        public void render(PGraphics pg, int x, int y, int c)
+        {
+            pg.stroke(palette.argb(c));
+            pg.point(x, y);
+            pg.noStroke();
+        }
+
+        @Override
+        public void export(VectorSink sink, Palette colors, int x, int y, int c) throws IOException
+        {
+            sink.fill(colors.argb(c));
+            sink.dot(x, y);
+        }
+
+        @Override
+        public boolean hit(int px, int py, int x, int y)
+        {
+            return px == x && py == y;
+        }
+
+        @Override
+        public void columns(HitColumns columns, int i, int x, int y)
+        {
+            columns.set(i, HitColumns.BOX, x, y, 1, 0, 0.5f, 0.5f);
+        }
+
+        @Override
+        public void move(int dx, int dy)
+        {
+            this.x += dx;
+            this.y += dy;
+        }
+
+        @Override
+        public Shape instance(int x, int y)
+        {
+            return new Instance(this, x, y, paletteIndex());
+        }
+    }
+
+    /**
+     * Inner class representing an ellipse on the canvas
+     */
+    private class Ellipse extends Shape
+    {
+        public Ellipse(int x, int y, int w, int h, float a, int c)
+        {
+            super(x, y, w, h, a, c);
+        }
+
+        @Override
+        public String type()
+        {
+            return "Ellipse";
+        }
+
+        @Override
+        public void render(PGraphics pg, int x, int y, int c)
+        {
+            pg.ellipseMode(CENTER);
+            pg.fill(palette.argb(c));
+            pg.translate(x, y);
+            pg.rotate(a);
+            pg.ellipse(0, 0, this.w, this.h);
+            pg.rotate(-a);
+            pg.translate(-x, -y);
+        }
+
+        @Override
+        public void export(VectorSink sink, Palette colors, int x, int y, int c) throws IOException
+        {
+            sink.fill(colors.argb(c));
+            sink.ellipse(x, y, this.w, this.h, a);
+        }
+
+        @Override
+        public boolean hit(int px, int py, int x, int y)
+        {
+            float f = ca * (px - x) + sa * (py - y);
+            float g = sa * (px - x) - ca * (py - y);
+            float rx = (float)w / 2;
+            float ry = (float)h / 2;
+
+            //return pow((float) (pmouseX - this.x) / ((float)this.w / 2), 2) + pow((float) (pmouseY - this.y) / ((float)this.h / 2), 2) <= 1;
+            return (f * f) / (rx * rx) + (g * g) / (ry * ry) <= 1.0f;
+        }
+
+        @Override
+        public void columns(HitColumns columns, int i, int x, int y)
+        {
+            columns.set(i, HitColumns.ELLIPSE, x, y, ca, sa, w / 2f, h / 2f);
+        }
+
+        @Override
+        public void move(int dx, int dy)
+        {
+            this.x += dx;
+            this.y += dy;
+        }
+
+        @Override
+        public Shape instance(int x, int y)
+        {
+            return new Instance(this, x, y, paletteIndex());
+        }
+    }
+
+    /**
+     * Inner class representing a rectangle on the canvas
+     */
+    private class Rectangle extends Shape
+    {
+        public Rectangle(int x, int y, int w, int h, float a, int c)
+        {
+            super(x, y, w, h, a, c);
+        }
+
+        @Override
+        public String type()
+        {
+            return "Rectangle";
+        }
+
+        @Override
+        public void render(PGraphics pg, int x, int y, int c)
+        {
+            pg.rectMode(CENTER);
+            pg.fill(palette.argb(c));
+            pg.translate(x, y);
+            pg.rotate(a);
+            pg.rect(0, 0, this.w, this.h);
+            pg.rotate(-a);
+            pg.translate(-x, -y);
+        }
+
+        @Override
+        public void export(VectorSink sink, Palette colors, int x, int y, int c) throws IOException
+        {
+            sink.fill(colors.argb(c));
+            sink.rect(x, y, this.w, this.h, a);
+        }
+
+        @Override
+        public boolean hit(int px, int py, int x, int y)
+        {
+            // Turn the point into the frame of the rectangle
+            float u = ca * (px - x) + sa * (py - y);
+            float v = ca * (py - y) - sa * (px - x);
+            float rx = (float)w / 2;
+            float ry = (float)h / 2;
+            return (u > -rx) && (u < rx) && (v > -ry) && (v < ry);
+        }
+
+        @Override
+        public void columns(HitColumns columns, int i, int x, int y)
+        {
+            columns.set(i, HitColumns.BOX, x, y, ca, sa, w / 2f, h / 2f);
+        }
+
+        @Override
+        public void move(int dx, int dy)
+        {
+            this.x += dx;
+            this.y += dy;
+        }
+
+        @Override
+        public Shape instance(int x, int y)
+        {
+            return new Instance(this, x, y, paletteIndex());
+        }
+    }
+
+    /**
+     * Inner class representing an image on the canvas
+     */
+    private class Image extends Shape
+    {
+        PImage image;
+        // True if the PImage may be referenced by another Image, in which case it is copied before editing
+        boolean shared = false;
+        PImage held; // pixels counted for the image by its layer, see Layer.hold()
+
+        public Image(String path, int x, int y)
+        {
+            super(x, y, 0, 0, 0, 0);
+            // Decoded once for every document, so the pixels are copied before editing
+            image = ImageCache.shared().load(DrawingWindow.this, path, null);
+            shared = true;
+            this.w = image.width;
+            this.h = image.height;
+        }
+
+        @Override
+        public String type()
+        {
+            return "Image";
+        }
+
+        public Image(String path, String extension, int x, int y)
+        {
+            super(x, y, 0, 0, 0, 0);
+            image = ImageCache.shared().load(DrawingWindow.this, path, extension);
+            shared = true;
+            this.w = image.width;
+            this.h = image.height;
+        }
+
+        /**
+         * Image made from pixels already in memory, such as a filtered part of the canvas
+         * @param image pixels of the image
+         * @param x x position of the left edge
+         * @param y y position of the top edge
+         */
+        public Image(PImage image, int x, int y)
+        {
+            super(x, y, image.width, image.height, 0, 0);
+            this.image = image;
+        }
+
+        /**
+         * Copy of an image that shares the pixels of the source until one of them is edited
+         * @param source image to copy
+         * @param x x position of the copy
+         * @param y y position of the copy
+         */
+        public Image(Image source, int x, int y)
+        {
+            super(x, y, source.w, source.h, 0, 0);
+            image = source.image;
+            source.shared = true;
+            this.shared = true;
+        }
+
+        @Override
+        public void render(PGraphics pg, int x, int y, int c)
+        {
+            pg.image(this.image, x, y);
+        }
+
+        @Override
+        public void export(VectorSink sink, Palette colors, int x, int y, int c) throws IOException
+        {
+            sink.image(this.image, x, y);
+        }
+
+        @Override
+        public boolean hit(int px, int py, int x, int y)
+        {
+            return (px > x) && (px < x + this.w) && (py > y) && (py < y + this.h);
+        }
+
+        @Override
+        public void move(int dx, int dy)
+        {
+            this.x += dx;
+            this.y += dy;
+        }
+
+        @Override
+        public Shape instance(int x, int y)
+        {
+            return new Image(this, x, y);
+        }
+
+        @Override
+        public void bounds(int x, int y, int[] out)
+        {
+            out[0] = x;
+            out[1] = y;
+            out[2] = x + this.w;
+            out[3] = y + this.h;
+        }
+
+        /**
+         * Applies one of the ImageFilters to the pixels of the image
+         * @param filter filter to apply
+         * @param amount strength of the filter
+         */
+        public void filter(int filter, float amount)
+        {
+            // Copy on write so other copies of the image keep their pixels
+            if (shared)
+            {
+                this.image = this.image.copy();
+                shared = false;
+            }
+            this.image.loadPixels();
+            if (this.image.format != ARGB)
+            {
+                // Opaque images may leave the alpha byte empty
+                for (int i = 0; i < this.image.pixels.length; i++)
+                {
+                    this.image.pixels[i] |= 0xFF000000;
+                }
+            }
+            ImageFilters.apply(filter, this.image.pixels, this.image.width, this.image.height, amount);
+            this.image.updatePixels();
+        }
+
+        @Override
+        public Shape copy()
+        {
+            // Both copies now reference the pixels, so whichever is edited first copies them
+            Image copy = (Image) super.copy();
+            copy.shared = true;
+            this.shared = true;
+            return copy;
+        }
+
+        @Override
+        public long buffer()
+        {
+            // The pixels may be shared, so the layers count them once for each PImage, see Layer.hold()
+            return 0;
+        }
+
+        @Override
+        public Shape geometry()
+        {
+            // Resizing replaces this.image, so prototypes hold their own reference to the pixels
+            return new Image(this, x, y);
+        }
+
+        public void resize(int w, int h)
+        {
+            // Copy on write so other copies of the image keep their pixels
+            if (shared)
+            {
+                this.image = this.image.copy();
+                shared = false;
+            }
             this.image.resize(w, h);
             this.w = this.image.width;
             this.h = this.image.height;
@@ -1028,30 +3134,1762 @@ public class DrawingWindow extends ProcessingWindow {
     }
 
     /**
-     * Inner class representing a line on the canvas
+     * Inner class representing a region filled by the paint bucket, stored as
+     * run-length encoded spans relative to the point that was clicked.
+     */
+    private class Fill extends Shape
+    {
+        private final int[] spans; // {y, x0, x1} triples sorted by row, see FloodFill
+        private final int ox; // x value the spans were filled from
+        private final int oy; // y value the spans were filled from
+
+        public Fill(int[] spans, int x, int y, int c)
+        {
+            super(x, y, 0, 0, 0, c);
+            this.spans = spans;
+            this.ox = x;
+            this.oy = y;
+            // Width and height of the bounding box of the region
+            int x0 = Integer.MAX_VALUE;
+            int x1 = Integer.MIN_VALUE;
+            for (int i = 0; i < spans.length; i += 3)
+            {
+                x0 = Math.min(x0, spans[i + 1]);
+                x1 = Math.max(x1, spans[i + 2]);
+            }
+            this.w = x1 - x0 + 1;
+            this.h = spans[spans.length - 3] - spans[0] + 1;
+        }
+
+        @Override
+        public String type()
+        {
+            return "Fill";
+        }
+
+        @Override
+        public void render(PGraphics pg, int x, int y, int c)
+        {
+            int dx = x - ox;
+            int dy = y - oy;
+            pg.fill(palette.argb(c));
+            pg.rectMode(CORNER);
+            for (int i = 0; i < spans.length; i += 3)
+            {
+                pg.rect(spans[i + 1] + dx, spans[i] + dy, spans[i + 2] - spans[i + 1] + 1, 1);
+            }
+        }
+
+        @Override
+        public void export(VectorSink sink, Palette colors, int x, int y, int c) throws IOException
+        {
+            int dx = x - ox;
+            int dy = y - oy;
+            sink.fill(colors.argb(c));
+            for (int i = 0; i < spans.length; i += 3)
+            {
+                sink.rect(spans[i + 1] + dx, spans[i] + dy, spans[i + 2] - spans[i + 1] + 1, 1);
+            }
+        }
+
+        @Override
+        public boolean hit(int px, int py, int x, int y)
+        {
+            return FloodFill.covers(spans, px - (x - ox), py - (y - oy));
+        }
+
+        @Override
+        public long buffer()
+        {
+            return MemoryGovernor.array(spans.length, 4);
+        }
+
+        @Override
+        public void bounds(int x, int y, int[] out)
+        {
+            int x0 = Integer.MAX_VALUE;
+            for (int i = 0; i < spans.length; i += 3)
+            {
+                x0 = Math.min(x0, spans[i + 1]);
+            }
+            out[0] = x0 + x - ox;
+            out[1] = spans[0] + y - oy;
+            out[2] = out[0] + this.w;
+            out[3] = out[1] + this.h;
+        }
+
+        @Override
+        public void move(int dx, int dy)
+        {
+            this.x += dx;
+            this.y += dy;
+        }
+
+        @Override
+        public Shape instance(int x, int y)
+        {
+            return new Instance(this, x, y, paletteIndex());
+        }
+    }
+
+    /**
+     * Inner class representing a lightweight copy of another shape. An instance stores only its
+     * own position and color and renders the geometry of a shared prototype.
+     */
+    private class Instance extends Shape
+    {
+        private final Shape prototype;
+
+        public Instance(Shape prototype, int x, int y, int c)
+        {
+            super(x, y, prototype.w, prototype.h, 0, c);
+            this.a = prototype.a;
+            this.ca = prototype.ca;
+            this.sa = prototype.sa;
+            this.prototype = prototype;
+        }
+
+        @Override
+        public String type()
+        {
+            return "Instance";
+        }
+
+        @Override
+        public void render(PGraphics pg, int x, int y, int c)
+        {
+            prototype.render(pg, x, y, c);
+        }
+
+        @Override
+        public void export(VectorSink sink, Palette colors, int x, int y, int c) throws IOException
+        {
+            prototype.export(sink, colors, x, y, c);
+        }
+
+        @Override
+        public boolean hit(int px, int py, int x, int y)
+        {
+            return prototype.hit(px, py, x, y);
+        }
+
+        @Override
+        public void columns(HitColumns columns, int i, int x, int y)
+        {
+            prototype.columns(columns, i, x, y);
+        }
+
+        @Override
+        public void bounds(int x, int y, int[] out)
+        {
+            prototype.bounds(x, y, out);
+        }
+
+        @Override
+        public void move(int dx, int dy)
+        {
+            this.x += dx;
+            this.y += dy;
+        }
+
+        @Override
+        public Shape instance(int x, int y)
+        {
+            // Always point at the original prototype so chains of copies never nest
+            return new Instance(prototype, x, y, paletteIndex());
+        }
+
+        @Override
+        public Shape geometry()
+        {
+            return prototype;
+        }
+    }
+
+    /**
+     * Inner class representing the frozen layout of a group of shapes. A compound is never
+     * drawn on its own, it is the shared prototype of the instances made by duplicating a group.
+     * Members keep their geometry while their offsets and colors are captured here, so the
+     * original shapes can still be moved and recolored without affecting the copies.
+     */
+    private class Compound extends Shape
+    {
+        private final Shape[] members;
+        private final int[] dx;
+        private final int[] dy;
+        private final byte[] colors;
+
+        /**
+         * @param shapes shapes to freeze
+         * @param x x value the member offsets are relative to
+         * @param y y value the member offsets are relative to
+         */
+        public Compound(ArrayList<Shape> shapes, int x, int y)
+        {
+            super(x, y, 0, 0, 0, 0);
+            int n = shapes.size();
+            members = new Shape[n];
+            dx = new int[n];
+            dy = new int[n];
+            colors = new byte[n];
+            for (int i = 0; i < n; i++)
+            {
+                Shape shape = shapes.get(i);
+                members[i] = shape.geometry();
+                dx[i] = shape.x - x;
+                dy[i] = shape.y - y;
+                colors[i] = shape.c;
+            }
+        }
+
+        @Override
+        public String type()
+        {
+            return "Compound";
+        }
+
+        /**
+         * Draws every member, using the member's own color unless a color is given
+         * @param c palette index to draw every member with, or Palette.NONE to keep the member colors
+         */
+        @Override
+        public void render(PGraphics pg, int x, int y, int c)
+        {
+            for (int i = 0; i < members.length; i++)
+            {
+                members[i].render(pg, x + dx[i], y + dy[i], c == Palette.NONE ? colors[i] & 0xFF : c);
+            }
+        }
+
+        @Override
+        public void export(VectorSink sink, Palette colors, int x, int y, int c) throws IOException
+        {
+            for (int i = 0; i < members.length; i++)
+            {
+                members[i].export(sink, colors, x + dx[i], y + dy[i], c == Palette.NONE ? this.colors[i] & 0xFF : c);
+            }
+        }
+
+        @Override
+        public boolean hit(int px, int py, int x, int y)
+        {
+            for (int i = 0; i < members.length; i++)
+            {
+                if (members[i].hit(px, py, x + dx[i], y + dy[i]))
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public void bounds(int x, int y, int[] out)
+        {
+            int[] member = new int[4];
+            out[0] = Integer.MAX_VALUE;
+            out[1] = Integer.MAX_VALUE;
+            out[2] = Integer.MIN_VALUE;
+            out[3] = Integer.MIN_VALUE;
+            for (int i = 0; i < members.length; i++)
+            {
+                members[i].bounds(x + dx[i], y + dy[i], member);
+                out[0] = Math.min(out[0], member[0]);
+                out[1] = Math.min(out[1], member[1]);
+                out[2] = Math.max(out[2], member[2]);
+                out[3] = Math.max(out[3], member[3]);
+            }
+        }
+
+        @Override
+        public void move(int dx, int dy)
+        {
+            this.x += dx;
+            this.y += dy;
+        }
+
+        @Override
+        public Shape instance(int x, int y)
+        {
+            return new Instance(this, x, y, Palette.NONE);
+        }
+
+        @Override
+        public long buffer()
+        {
+            // The members are counted where they are on the canvas
+            return MemoryGovernor.array(members.length, 4) * 3 + MemoryGovernor.array(members.length, 1);
+        }
+    }
+
+    /**
+     * Inner class representing a brush stroke on the canvas, a polyline or curve of round
+     * joined segments of the width of the brush
+     */
+    private class Stroke extends Shape
+    {
+        // Points relative to (ox, oy): x, y pairs, or a first point and then two control
+        // points and an end point per cubic segment. Only the first count floats are used.
+        float[] points;
+        int count;
+        boolean curves;
+        final float ox;
+        final float oy;
+
+        /**
+         * @param points points of the stroke on the canvas, see set()
+         * @param count number of floats of points to use
+         * @param curves true if the points are cubic segments
+         * @param width width of the stroke in pixels
+         * @param c Palette index of the color of the stroke
+         */
+        public Stroke(float[] points, int count, boolean curves, int width, int c)
+        {
+            super(round(points[0]), round(points[1]), width, width, 0, c);
+            this.ox = points[0] - this.x;
+            this.oy = points[1] - this.y;
+            set(points, count, curves);
+        }
+
+        @Override
+        public String type()
+        {
+            return "Stroke";
+        }
+
+        /**
+         * Replaces the points of the stroke. They are kept, not copied, and must not change
+         * while the stroke uses them, though floats past count may be added.
+         * @param points points of the stroke where it was drawn
+         * @param count number of floats of points to use
+         * @param curves true if points after the first are cubic segments
+         */
+        public void set(float[] points, int count, boolean curves)
+        {
+            this.points = points;
+            this.count = count;
+            this.curves = curves;
+        }
+
+        @Override
+        public void render(PGraphics pg, int x, int y, int c)
+        {
+            float dx = x + ox - points[0];
+            float dy = y + oy - points[1];
+            pg.noFill();
+            pg.stroke(palette.argb(c));
+            pg.strokeWeight(w);
+            pg.strokeJoin(ROUND);
+            if (count == 2)
+            {
+                pg.point(points[0] + dx, points[1] + dy);
+            }
+            else
+            {
+                pg.beginShape();
+                pg.vertex(points[0] + dx, points[1] + dy);
+                for (int i = 2; i < count; i += curves ? 6 : 2)
+                {
+                    if (curves)
+                    {
+                        pg.bezierVertex(points[i] + dx, points[i + 1] + dy, points[i + 2] + dx, points[i + 3] + dy,
+                                points[i + 4] + dx, points[i + 5] + dy);
+                    }
+                    else
+                    {
+                        pg.vertex(points[i] + dx, points[i + 1] + dy);
+                    }
+                }
+                pg.endShape();
+            }
+            pg.strokeJoin(MITER);
+            pg.strokeWeight(1);
+            pg.noStroke();
+        }
+
+        @Override
+        public void export(VectorSink sink, Palette colors, int x, int y, int c) throws IOException
+        {
+            float dx = x + ox - points[0];
+            float dy = y + oy - points[1];
+            float[] moved = points;
+            if (dx != 0 || dy != 0)
+            {
+                moved = new float[count];
+                for (int i = 0; i < count; i += 2)
+                {
+                    moved[i] = points[i] + dx;
+                    moved[i + 1] = points[i + 1] + dy;
+                }
+            }
+            sink.stroke(moved, count, curves, w, colors.argb(c));
+        }
+
+        @Override
+        public boolean hit(int px, int py, int x, int y)
+        {
+            // Distance to the path, with curves sampled along their length
+            float qx = px - (x + ox - points[0]);
+            float qy = py - (y + oy - points[1]);
+            return StrokeGeometry.near(points, count, curves, qx, qy, w / 2f);
+        }
+
+        /**
+         * Cuts away the part of the stroke that an eraser moving from (x0, y0) to (x1, y1) covers
+         * @param radius radius of the eraser
+         * @return null if the eraser misses the stroke, else the points of the pieces left on the canvas
+         */
+        public List<float[]> cut(int x0, int y0, int x1, int y1, float radius)
+        {
+            // Where the stroke's points would be if it had not been moved
+            float dx = x + ox - points[0];
+            float dy = y + oy - points[1];
+            // The eraser takes whatever part of the stroke's width it touches
+            List<float[]> parts = StrokeGeometry.cut(points, count, curves, x0 - dx, y0 - dy, x1 - dx, y1 - dy,
+                    radius + w / 2f);
+            if (parts != null)
+            {
+                // On the grid shared points are sent on, so every window draws the same pieces
+                for (float[] part : parts)
+                {
+                    for (int i = 0; i < part.length; i += 2)
+                    {
+                        part[i] = SceneOp.snap(part[i] + dx);
+                        part[i + 1] = SceneOp.snap(part[i + 1] + dy);
+                    }
+                }
+            }
+            return parts;
+        }
+
+        @Override
+        public void bounds(int x, int y, int[] out)
+        {
+            // Control points bound the curves too
+            float x0 = Float.MAX_VALUE;
+            float y0 = Float.MAX_VALUE;
+            float x1 = -Float.MAX_VALUE;
+            float y1 = -Float.MAX_VALUE;
+            for (int i = 0; i < count; i += 2)
+            {
+                x0 = Math.min(x0, points[i]);
+                y0 = Math.min(y0, points[i + 1]);
+                x1 = Math.max(x1, points[i]);
+                y1 = Math.max(y1, points[i + 1]);
+            }
+            float dx = x + ox - points[0];
+            float dy = y + oy - points[1];
+            int r = ceil(w / 2f) + 1;
+            out[0] = floor(x0 + dx) - r;
+            out[1] = floor(y0 + dy) - r;
+            out[2] = ceil(x1 + dx) + r;
+            out[3] = ceil(y1 + dy) + r;
+        }
+
+        @Override
+        public long buffer()
+        {
+            return MemoryGovernor.array(points.length, 4);
+        }
+
+        @Override
+        public void move(int dx, int dy)
+        {
+            this.x += dx;
+            this.y += dy;
+        }
+
+        @Override
+        public Shape instance(int x, int y)
+        {
+            return new Instance(this, x, y, paletteIndex());
+        }
+    }
+
+    /**
+     * Inner class representing a stroke of a stamp brush, dabs of the brush's stamp placed at
+     * even spacing along the path of the mouse
+     */
+    private class Dabs extends Shape
+    {
+        final Brush brush;
+        final float hardness;
+        // Centers of the dabs where they were drawn, x, y pairs. Only the first count floats are
+        // used, so copies may share the array while the stroke grows past them.
+        float[] points = new float[32];
+        int count = 0;
+        final float ox; // offset of the first dab from (x, y)
+        final float oy;
+
+        /**
+         * @param brush brush whose stamp to place
+         * @param size size of the brush in pixels
+         * @param hardness hardness given to the brush
+         * @param x x value of the first dab
+         * @param y y value of the first dab
+         * @param c Palette index of the color of the dabs
+         */
+        public Dabs(Brush brush, int size, float hardness, float x, float y, int c)
+        {
+            super(round(x), round(y), size, size, 0, c);
+            this.brush = brush;
+            this.hardness = hardness;
+            this.ox = x - this.x;
+            this.oy = y - this.y;
+            add(x, y);
+        }
+
+        @Override
+        public String type()
+        {
+            return "Dabs";
+        }
+
+        /**
+         * Places dabs from the last one toward a point, as many as fit at the brush's spacing
+         * @return true if any dab was placed
+         */
+        public boolean extend(float x, float y)
+        {
+            float step = Math.max(1, brush.spacing() * w);
+            float lx = points[count - 2];
+            float ly = points[count - 1];
+            float d = dist(lx, ly, x, y);
+            int n = (int) (d / step);
+            for (int k = 1; k <= n; k++)
+            {
+                add(lx + (x - lx) * k * step / d, ly + (y - ly) * k * step / d);
+            }
+            return n > 0;
+        }
+
+        private void add(float x, float y)
+        {
+            if (count == points.length)
+            {
+                // A new array, since copies may still be reading the old one
+                points = Arrays.copyOf(points, points.length * 2);
+            }
+            points[count] = x;
+            points[count + 1] = y;
+            count += 2;
+        }
+
+        @Override
+        public void render(PGraphics pg, int x, int y, int c)
+        {
+            PImage stamp = stamps().get(brush, w, hardness, palette.argb(c));
+            float dx = x + ox - points[0] - w / 2f;
+            float dy = y + oy - points[1] - w / 2f;
+            for (int i = 0; i < count; i += 2)
+            {
+                pg.image(stamp, points[i] + dx, points[i + 1] + dy);
+            }
+        }
+
+        @Override
+        public void export(VectorSink sink, Palette colors, int x, int y, int c) throws IOException
+        {
+            // Vector formats get the dabs as one image over their bounding box
+            // Runs on the background thread, so the bounds can't go in hit_bounds
+            PImage stamp = stamps().get(brush, w, hardness, colors.argb(c));
+            int[] box = new int[4];
+            bounds(x, y, box);
+            int x0 = box[0];
+            int y0 = box[1];
+            PImage image = new PImage(box[2] - x0, box[3] - y0, ARGB);
+            float dx = x + ox - points[0] - w / 2f - x0;
+            float dy = y + oy - points[1] - w / 2f - y0;
+            for (int i = 0; i < count; i += 2)
+            {
+                StampCache.composite(image.pixels, image.width, image.height, stamp,
+                        round(points[i] + dx), round(points[i + 1] + dy));
+            }
+            image.updatePixels();
+            sink.image(image, x0, y0);
+        }
+
+        @Override
+        public boolean hit(int px, int py, int x, int y)
+        {
+            float qx = px - (x + ox - points[0]);
+            float qy = py - (y + oy - points[1]);
+            float r2 = w * w / 4f;
+            for (int i = 0; i < count; i += 2)
+            {
+                float ex = qx - points[i];
+                float ey = qy - points[i + 1];
+                if (ex * ex + ey * ey <= r2)
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public void bounds(int x, int y, int[] out)
+        {
+            float x0 = Float.MAX_VALUE;
+            float y0 = Float.MAX_VALUE;
+            float x1 = -Float.MAX_VALUE;
+            float y1 = -Float.MAX_VALUE;
+            for (int i = 0; i < count; i += 2)
+            {
+                x0 = Math.min(x0, points[i]);
+                y0 = Math.min(y0, points[i + 1]);
+                x1 = Math.max(x1, points[i]);
+                y1 = Math.max(y1, points[i + 1]);
+            }
+            float dx = x + ox - points[0];
+            float dy = y + oy - points[1];
+            int r = ceil(w / 2f) + 1;
+            out[0] = floor(x0 + dx) - r;
+            out[1] = floor(y0 + dy) - r;
+            out[2] = ceil(x1 + dx) + r;
+            out[3] = ceil(y1 + dy) + r;
+        }
+
+        @Override
+        public long buffer()
+        {
+            return MemoryGovernor.array(points.length, 4);
+        }
+
+        @Override
+        public void move(int dx, int dy)
+        {
+            this.x += dx;
+            this.y += dy;
+        }
+
+        @Override
+        public Shape instance(int x, int y)
+        {
+            return new Instance(this, x, y, paletteIndex());
+        }
+    }
+
+    /**
+     * Inner class representing a line on the canvas
+     */
+    private class Line
+    {
+        int x0;
+        int y0;
+        int x1;
+        int y1;
+        byte c; // Palette index
+
+        public Line(int x0, int y0, int x1, int y1, int c)
+        {
+            this.x0 = x0;
+            this.y0 = y0;
+            this.x1 = x1;
+            this.y1 = y1;
+            this.c = (byte) c;
+        }
+
+        public void draw(PGraphics pg)
+        {
+            pg.stroke(palette.argb(c));
+            pg.line(x0, y0, x1, y1);
+            pg.noStroke();
+        }
+
+        public void export(VectorSink sink, Palette colors) throws IOException
+        {
+            sink.line(x0, y0, x1, y1, colors.argb(c));
+        }
+    }
+
+    /*
+     * Adds a holder of some pixels, returns the bytes to count for them: their size for the
+     * first holder, else 0
+     */
+    private static long hold(IdentityHashMap<PImage, long[]> holders, PImage pixels, long size)
+    {
+        long[] held = holders.get(pixels);
+        if (held != null)
+        {
+            held[0]++;
+            return 0;
+        }
+        holders.put(pixels, new long[] {1, size});
+        return size;
+    }
+
+    /*
+     * Takes away a holder of some pixels, returns the bytes to stop counting for them: what
+     * hold() counted if it was the last holder, else 0
+     */
+    private static long release(IdentityHashMap<PImage, long[]> holders, PImage pixels)
+    {
+        long[] held = holders.get(pixels);
+        if (--held[0] > 0)
+        {
+            return 0;
+        }
+        holders.remove(pixels);
+        return held[1];
+    }
+
+    /**
+     * Inner class drawing shapes onto a buffer in order, blending those whose blend mode isn't
+     * normal with the Compositor. Each run of shapes with the same mode is drawn normally into
+     * a scratch buffer, which is then blended onto the buffer once, over the rows the run
+     * covers. Processing never draws with a blend mode itself, and the cost of a blend is
+     * per run rather than per primitive. Shapes of one run that overlap each other are drawn
+     * over each other normally, as a group of them would be.
+     */
+    private class Blender
+    {
+        private static final int MARGIN = 2; // pixels of antialiasing outside the bounds of a shape
+
+        private final PGraphics target;
+        private final int ox; // canvas position of the top left pixel of the target
+        private final int oy;
+        private int mode = Compositor.NORMAL;
+        private final int[] box = new int[4];
+        // Part of the target the run covers
+        private int x0;
+        private int y0;
+        private int x1;
+        private int y1;
+
+        /**
+         * @param target buffer to draw on, between its beginDraw() and endDraw()
+         * @param ox canvas x of its left edge, which its transform must move to 0
+         * @param oy canvas y of its top edge
+         */
+        public Blender(PGraphics target, int ox, int oy)
+        {
+            this.target = target;
+            this.ox = ox;
+            this.oy = oy;
+        }
+
+        /**
+         * Draws the next shape with the current stroke of the target
+         */
+        public void draw(Shape shape)
+        {
+            if (shape.blend != mode)
+            {
+                flush();
+                mode = shape.blend;
+                if (mode != Compositor.NORMAL)
+                {
+                    start();
+                }
+            }
+            if (mode == Compositor.NORMAL)
+            {
+                shape.draw(target);
+                return;
+            }
+            if (target.stroke)
+            {
+                blend_scratch.stroke(target.strokeColor);
+            }
+            else
+            {
+                blend_scratch.noStroke();
+            }
+            shape.draw(blend_scratch);
+            shape.bounds(shape.x, shape.y, box);
+            x0 = min(x0, box[0] - ox - MARGIN);
+            y0 = min(y0, box[1] - oy - MARGIN);
+            x1 = max(x1, box[2] - ox + MARGIN);
+            y1 = max(y1, box[3] - oy + MARGIN);
+        }
+
+        /**
+         * Blends the last run onto the target. Call once every shape is drawn.
+         */
+        public void finish()
+        {
+            flush();
+            mode = Compositor.NORMAL;
+        }
+
+        private void start()
+        {
+            if (blend_scratch == null || blend_scratch.width != target.width || blend_scratch.height != target.height)
+            {
+                blend_scratch = createGraphics(target.width, target.height);
+            }
+            blend_scratch.beginDraw();
+            blend_scratch.clear();
+            blend_scratch.noStroke();
+            blend_scratch.translate(-ox, -oy);
+            x0 = Integer.MAX_VALUE;
+            y0 = Integer.MAX_VALUE;
+            x1 = Integer.MIN_VALUE;
+            y1 = Integer.MIN_VALUE;
+        }
+
+        private void flush()
+        {
+            if (mode == Compositor.NORMAL)
+            {
+                return;
+            }
+            blend_scratch.endDraw();
+            int w = target.width;
+            int left = max(0, x0);
+            int right = min(w, x1);
+            int top = max(0, y0);
+            int bottom = min(target.height, y1);
+            if (right <= left || bottom <= top)
+            {
+                return;
+            }
+            blend_scratch.loadPixels();
+            target.loadPixels();
+            int[] src = blend_scratch.pixels;
+            int[] dst = target.pixels;
+            int len = right - left;
+            for (int y = top; y < bottom; y++)
+            {
+                int off = y * w + left;
+                Compositor.premultiply(dst, off, len);
+                Compositor.composite(dst, off, src, off, len, mode, 255);
+                Compositor.unpremultiply(dst, off, len);
+            }
+            target.updatePixels();
+        }
+    }
+
+    /**
+     * Inner class representing a layer of the canvas. Each layer keeps a bitmap of its
+     * contents that is only redrawn after the layer changes, so layers that aren't being
+     * edited cost one image draw per frame no matter how many shapes they hold.
+     */
+    private class Layer
+    {
+        String name;
+        boolean visible = true;
+        boolean locked = false;
+        float opacity = 1; // 0-1
+        int blend = Compositor.NORMAL;
+        ChunkedList<Shape> shapes = new ChunkedList<>();
+        ChunkedList<Line> lines = new ChunkedList<>();
+        TileRaster base; // oldest shapes flattened by the memory governor, drawn under the rest, if any
+        long bytes = 0; // approximate bytes taken by the shapes and lines, kept up to date as they change
+        int blended = 0; // shapes with a blend mode other than normal
+        IdentityHashMap<PImage, long[]> images = new IdentityHashMap<>(); // as image_holders, for the images of this layer
+        HitColumns columns = new HitColumns(); // hit-test geometry of the shapes
+        boolean indexed = false; // whether the columns are built, after which they follow every change to the shapes
+
+        // Cached bitmap of the layer and whether it is out of date
+        PGraphics cache;
+        boolean dirty = true;
+
+        public Layer(String name)
+        {
+            this.name = name;
+            shapes.observe(new ChunkedList.Observer<Shape>() {
+                public void added(Shape shape) {
+                    shape.counted = (int) shape.buffer();
+                    bytes += MemoryGovernor.SHAPE + shape.counted;
+                    stats.added(shape.type(), MemoryGovernor.SHAPE + shape.counted, shape.counted);
+                    if (shape instanceof Image) {
+                        hold((Image) shape);
+                    }
+                    if (shape.blend != Compositor.NORMAL) {
+                        blended++;
+                    }
+                    if (share != null) {
+                        share.added(Layer.this, shape);
+                    }
+                }
+
+                public void removed(Shape shape) {
+                    if (shape instanceof Image) {
+                        release((Image) shape);
+                    }
+                    if (shape.blend != Compositor.NORMAL) {
+                        blended--;
+                    }
+                    bytes -= MemoryGovernor.SHAPE + shape.counted;
+                    stats.removed(shape.type(), MemoryGovernor.SHAPE + shape.counted, shape.counted);
+                    if (share != null) {
+                        share.removed(Layer.this, shape);
+                    }
+                }
+            });
+            shapes.index(new ChunkedList.Indexer() {
+                public void inserted(int index) {
+                    if (indexed) {
+                        columns.insert(index);
+                        reindex(index);
+                    }
+                }
+
+                public void replaced(int index) {
+                    reindex(index);
+                }
+
+                public void removed(BitSet indices) {
+                    if (indexed) {
+                        columns.remove(indices);
+                    }
+                }
+            });
+            lines.observe(new ChunkedList.Observer<Line>() {
+                public void added(Line line) {
+                    bytes += MemoryGovernor.LINE;
+                    stats.added("Line", MemoryGovernor.LINE, 0);
+                }
+
+                public void removed(Line line) {
+                    bytes -= MemoryGovernor.LINE;
+                    stats.removed("Line", MemoryGovernor.LINE, 0);
+                }
+            });
+        }
+
+        /**
+         * Draws every shape and line of the layer
+         * @param pg graphics to draw on
+         */
+        public void render(PGraphics pg)
+        {
+            if (base != null)
+            {
+                base.draw(pg);
+            }
+            Blender blender = new Blender(pg, 0, 0);
+            for (Shape shape : shapes)
+            {
+                blender.draw(shape);
+            }
+            blender.finish();
+            for (Line l : lines)
+            {
+                l.draw(pg);
+            }
+        }
+
+        /**
+         * Counts the buffers of a shape of the layer again after they were replaced in place
+         * @param shape shape that changed
+         */
+        public void recount(Shape shape)
+        {
+            if (shape instanceof Image)
+            {
+                release((Image) shape);
+                hold((Image) shape);
+                return;
+            }
+            long buffer = shape.buffer();
+            bytes += buffer - shape.counted;
+            stats.resized(shape.type(), buffer - shape.counted);
+            shape.counted = (int) buffer;
+        }
+
+        /*
+         * Counts the pixels of an image shape, unless another image shape of the layer, or of
+         * any layer for the stats, already holds the same PImage. Copies of an image and images
+         * loaded from the same file share their pixels until one is edited.
+         */
+        private void hold(Image image)
+        {
+            image.held = image.image;
+            long size = MemoryGovernor.array(image.held.width * image.held.height, 4);
+            bytes += DrawingWindow.hold(images, image.held, size);
+            stats.resized(image.type(), DrawingWindow.hold(image_holders, image.held, size));
+        }
+
+        /*
+         * Takes back what hold() counted, once the last image shape holding the pixels is gone
+         */
+        private void release(Image image)
+        {
+            bytes -= DrawingWindow.release(images, image.held);
+            stats.resized(image.type(), -DrawingWindow.release(image_holders, image.held));
+            image.held = null;
+        }
+
+        /**
+         * Returns the hit-test geometry of the shapes, first building it if this is the first
+         * query. From then on shapes added, replaced or removed are stored or dropped as the
+         * list tells of them.
+         */
+        public HitColumns hitColumns()
+        {
+            if (!indexed)
+            {
+                columns.clear();
+                for (int i = 0; i < shapes.size(); i++)
+                {
+                    Shape shape = shapes.get(i);
+                    shape.columns(columns, i, shape.x, shape.y);
+                }
+                indexed = true;
+            }
+            return columns;
+        }
+
+        /**
+         * Updates the hit-test geometry of a shape after it moved or changed in place
+         * @param i index of the shape
+         */
+        public void reindex(int i)
+        {
+            if (indexed)
+            {
+                Shape shape = shapes.get(i);
+                shape.columns(columns, i, shape.x, shape.y);
+            }
+        }
+
+        /**
+         * Replaces the raster of flattened shapes
+         * @param raster new raster, or null for none
+         */
+        public void setBase(TileRaster raster)
+        {
+            stats.rasterChanged((raster == null ? 0 : raster.bytes()) - (base == null ? 0 : base.bytes()));
+            base = raster;
+        }
+
+        /**
+         * Removes every shape, line and flattened shape of the layer
+         */
+        public void clear()
+        {
+            shapes.clear();
+            lines.clear();
+            setBase(null);
+            dirty = true;
+        }
+
+        /**
+         * Returns the bitmap of the layer, sized to the canvas.
+         */
+        public PGraphics canvas()
+        {
+            if (cache == null || cache.width != g.width || cache.height != g.height)
+            {
+                cache = createGraphics(g.width, g.height);
+                dirty = true;
+            }
+            return cache;
+        }
+
+        /**
+         * Returns the bitmap of the layer, redrawing it first if the layer changed.
+         */
+        public PImage bitmap()
+        {
+            PGraphics pg = canvas();
+            if (dirty)
+            {
+                pg.beginDraw();
+                pg.clear();
+                pg.noStroke();
+                render(pg);
+                pg.endDraw();
+                dirty = false;
+            }
+            return pg;
+        }
+    }
+
+    /**
+     * Inner class representing a layer as it was when a snapshot was taken
+     */
+    private class LayerSnapshot
+    {
+        final boolean visible;
+        final float opacity;
+        final int blend;
+        final ChunkedList.Snapshot<Shape> shapes;
+        final ChunkedList.Snapshot<Line> lines;
+        final TileRaster base;
+
+        public LayerSnapshot(Layer l)
+        {
+            this.visible = l.visible;
+            this.opacity = l.opacity;
+            this.blend = l.blend;
+            this.base = l.base;
+            this.shapes = l.shapes.snapshot();
+            this.lines = l.lines.snapshot();
+        }
+
+        /**
+         * Describes every shape and line of the layer to a vector exporter
+         * @param sink exporter to describe the layer to
+         * @param colors palette to look colors up in
+         */
+        public void export(VectorSink sink, Palette colors) throws IOException
+        {
+            sink.layer(opacity, blend);
+            if (base != null)
+            {
+                base.export(sink);
+            }
+            for (Shape shape : shapes)
+            {
+                shape.export(sink, colors);
+            }
+            for (Line l : lines)
+            {
+                l.export(sink, colors);
+            }
+        }
+    }
+
+    /**
+     * Inner class representing every layer and the palette as they were when a snapshot was taken.
+     * Nothing in a snapshot changes afterwards, so it can be read from any thread.
      */
-    private class Line
+    private class SceneSnapshot
     {
-        int x0;
-        int y0;
-        int x1;
-        int y1;
-        int c;
+        final int width;
+        final int height;
+        final Palette colors;
+        final ArrayList<LayerSnapshot> layers;
 
-        public Line(int x0, int y0, int x1, int y1, int c)
+        public SceneSnapshot(int width, int height, Palette colors, ArrayList<LayerSnapshot> layers)
         {
-            this.x0 = x0;
-            this.y0 = y0;
-            this.x1 = x1;
-            this.y1 = y1;
-            this.c = c;
+            this.width = width;
+            this.height = height;
+            this.colors = colors;
+            this.layers = layers;
+        }
+    }
+
+    /**
+     * Inner class keeping a drawing in step with the other windows of a session, see SceneOp.
+     * The layers report every shape added, removed or edited during a frame, and at the end of
+     * the frame each changed shape is sent once: whole, or for the stroke being drawn only the
+     * points added since the last frame. Ops from other users are applied at the start of the
+     * next frame if they are newer than what the shape last saw.
+     */
+    private class Share
+    {
+        final SessionClient client;
+        final int user;
+        long counter = 0; // Lamport counter, past every clock made or seen
+        long cleared = 0; // clock of the last clear
+        boolean quiet = false; // true while changes aren't to be sent, such as those from other users
+
+        // Shapes changed during this frame by id, in the order they changed
+        final LinkedHashMap<Integer, Change> changes = new LinkedHashMap<>();
+        // Ids of the shapes made by other users, by key
+        final HashMap<Long, Integer> remote = new HashMap<>();
+        // Clocks of the removes of shapes, so older ops don't bring them back
+        final HashMap<Long, Long> removed = new HashMap<>();
+        // Floats of the points sent so far of the strokes being drawn, by id
+        final HashMap<Integer, Integer> appended = new HashMap<>();
+        // What the session knows of each shape shared so far, by id. Kept after a shape is
+        // removed, as undo may bring it back.
+        final HashMap<Integer, Shared> shared = new HashMap<>();
+        final ArrayList<SceneOp> batch = new ArrayList<>();
+
+        private final class Change
+        {
+            Layer layer;
+            Shape shape;
+            int net; // times added less times removed
+            boolean edited;
+        }
+
+        /*
+         * Session state of a shape, kept here rather than in Shape so the shapes of a drawing
+         * that isn't shared don't carry it
+         */
+        private final class Shared
+        {
+            long key = 0; // SceneOp key if another user made the shape, else 0
+            long clock = 0; // SceneOp clock of the last shared change to the shape
+            long born = 0; // SceneOp clock the shape was first shared with, which orders the shapes of a layer
+        }
+
+        public Share(SessionClient client)
+        {
+            this.client = client;
+            this.user = client.user();
+        }
+
+        public void added(Layer l, Shape shape)
+        {
+            if (!quiet)
+            {
+                Change change = change(l, shape);
+                change.shape = shape;
+                change.net++;
+            }
+        }
+
+        public void removed(Layer l, Shape shape)
+        {
+            if (!quiet)
+            {
+                change(l, shape).net--;
+            }
+        }
+
+        public void edited(Layer l, Shape shape)
+        {
+            if (!quiet)
+            {
+                Change change = change(l, shape);
+                change.shape = shape;
+                change.edited = true;
+            }
+        }
+
+        private Change change(Layer l, Shape shape)
+        {
+            Change change = changes.get(shape.id);
+            if (change == null)
+            {
+                change = new Change();
+                change.layer = l;
+                change.shape = shape;
+                changes.put(shape.id, change);
+            }
+            return change;
+        }
+
+        /**
+         * Sends a clear of every layer. The layers are cleared next, so their removes are not sent.
+         */
+        public void cleared()
+        {
+            SceneOp op = new SceneOp();
+            op.kind = SceneOp.CLEAR;
+            op.author = user;
+            op.clock = cleared = SceneOp.clock(++counter, user);
+            batch.add(op);
+            changes.clear();
+            appended.clear();
+            remote.clear();
+            removed.clear();
+            quiet = true;
+        }
+
+        /*
+         * Returns the session state of a shape, made the first time it is asked for
+         */
+        private Shared state(Shape shape)
+        {
+            Shared state = shared.get(shape.id);
+            if (state == null)
+            {
+                state = new Shared();
+                shared.put(shape.id, state);
+            }
+            return state;
+        }
+
+        /**
+         * Returns the key of a shape
+         */
+        private long key(Shape shape)
+        {
+            Shared state = shared.get(shape.id);
+            return state != null && state.key != 0 ? state.key : SceneOp.key(user, shape.id);
+        }
+
+        /*
+         * Returns the clock of the last shared change to a shape, 0 if it was never shared
+         */
+        private long clock(Shape shape)
+        {
+            Shared state = shared.get(shape.id);
+            return state == null ? 0 : state.clock;
+        }
+
+        /*
+         * Returns the clock a shape was first shared with, 0 if it was never shared
+         */
+        private long born(Shape shape)
+        {
+            Shared state = shared.get(shape.id);
+            return state == null ? 0 : state.born;
+        }
+
+        /**
+         * Stacks a shape made from another, such as a piece of an erased stroke, where that
+         * one is in every window once it is sent
+         */
+        public void madeFrom(Shape shape, Shape from)
+        {
+            long born = born(from);
+            if (born != 0)
+            {
+                state(shape).born = born;
+            }
+        }
+
+        /**
+         * Queues a shape to be sent whole
+         * @param shape shape to send
+         * @param n index of its layer
+         */
+        public void put(Shape shape, int n)
+        {
+            SceneOp op = new SceneOp();
+            if (describe(shape, op))
+            {
+                op.kind = SceneOp.PUT;
+                op.layer = n;
+                send(shape, op);
+            }
+        }
+
+        private void send(Shape shape, SceneOp op)
+        {
+            long key = key(shape);
+            Shared state = state(shape);
+            op.author = (int) (key >>> 32);
+            op.serial = (int) key;
+            if (state.clock == 0 && state.born != 0)
+            {
+                // Never sent, but made from a shape that was, so it goes where that shape was
+                op.born = state.born;
+            }
+            op.clock = state.clock = SceneOp.clock(++counter, user);
+            if (state.born == 0)
+            {
+                state.born = op.clock;
+            }
+            batch.add(op);
+        }
+
+        /**
+         * Sends the changes of this frame
+         */
+        public void flush()
+        {
+            if (!client.connected())
+            {
+                System.err.println("Session: disconnected, the drawing is no longer shared");
+                share = null;
+                return;
+            }
+            for (Change change : changes.values())
+            {
+                Shape shape = change.shape;
+                int n = layers.indexOf(change.layer);
+                if (change.net < 0)
+                {
+                    SceneOp op = new SceneOp();
+                    op.kind = SceneOp.REMOVE;
+                    send(shape, op);
+                    removed.put(key(shape), op.clock);
+                    remote.remove(key(shape));
+                    appended.remove(shape.id);
+                }
+                else if ((change.net > 0 || change.edited) && n >= 0)
+                {
+                    boolean drawing = (shape.id == stroke_id && stroke_points != null) || shape.id == dabs_id;
+                    Integer sent = appended.get(shape.id);
+                    SceneOp op = new SceneOp();
+                    if (!describe(shape, op))
+                    {
+                        continue;
+                    }
+                    op.layer = n;
+                    if (drawing && sent != null && change.net == 0)
+                    {
+                        // Only the points added since the last frame, and the one before them
+                        if (op.count > sent)
+                        {
+                            op.kind = SceneOp.APPEND;
+                            op.keep = sent;
+                            op.points = Arrays.copyOfRange(op.points, sent - 2, op.count);
+                            op.count = op.points.length;
+                            send(shape, op);
+                        }
+                    }
+                    else
+                    {
+                        op.kind = SceneOp.PUT;
+                        send(shape, op);
+                    }
+                    if (drawing)
+                    {
+                        appended.put(shape.id, op.kind == SceneOp.APPEND ? op.keep + op.count - 2 : op.count);
+                    }
+                    else
+                    {
+                        appended.remove(shape.id);
+                    }
+                }
+            }
+            changes.clear();
+            if (!batch.isEmpty())
+            {
+                try
+                {
+                    client.send(batch);
+                }
+                catch (IOException e)
+                {
+                    System.err.println("Session: can't send: " + e.getMessage());
+                }
+                batch.clear();
+            }
+        }
+
+        /**
+         * Describes the geometry, position and style of a shape to an op
+         * @return false if shapes of its kind aren't shared
+         */
+        private boolean describe(Shape shape, SceneOp op)
+        {
+            Shape g = shape instanceof Instance ? ((Instance) shape).prototype : shape;
+            op.color = shape.paletteIndex();
+            op.blend = shape.blend;
+            return describe(g, shape.x, shape.y, op, 0);
+        }
+
+        /*
+         * Describes the geometry of a shape placed at a position to an op, and for a compound
+         * the geometry of each member to an op of its own
+         */
+        private boolean describe(Shape g, int x, int y, SceneOp op, int depth)
+        {
+            op.x = x;
+            op.y = y;
+            op.w = g.w;
+            op.h = g.h;
+            op.degrees = degrees(g.a);
+            if (g instanceof Pixel)
+            {
+                op.form = SceneOp.PIXEL;
+            }
+            else if (g instanceof Ellipse)
+            {
+                op.form = SceneOp.ELLIPSE;
+            }
+            else if (g instanceof Rectangle)
+            {
+                op.form = SceneOp.RECTANGLE;
+            }
+            else if (g instanceof Stroke)
+            {
+                Stroke stroke = (Stroke) g;
+                op.form = SceneOp.STROKE;
+                op.curves = stroke.curves;
+                op.points = placed(stroke.points, stroke.count, x + stroke.ox - stroke.points[0],
+                        y + stroke.oy - stroke.points[1]);
+                op.count = stroke.count;
+            }
+            else if (g instanceof Dabs)
+            {
+                Dabs dabs = (Dabs) g;
+                op.form = SceneOp.DABS;
+                op.brush = dabs.brush.name();
+                op.hardness = dabs.hardness;
+                op.points = placed(dabs.points, dabs.count, x + dabs.ox - dabs.points[0],
+                        y + dabs.oy - dabs.points[1]);
+                op.count = dabs.count;
+            }
+            else if (g instanceof Fill)
+            {
+                Fill fill = (Fill) g;
+                op.form = SceneOp.FILL;
+                op.spans = fill.spans.clone();
+                for (int i = 0; i < op.spans.length; i += 3)
+                {
+                    op.spans[i] += y - fill.oy;
+                    op.spans[i + 1] += x - fill.ox;
+                    op.spans[i + 2] += x - fill.ox;
+                }
+            }
+            else if (g instanceof Compound && depth < SceneOp.MAX_DEPTH)
+            {
+                Compound compound = (Compound) g;
+                op.form = SceneOp.COMPOUND;
+                op.members = new SceneOp[compound.members.length];
+                for (int i = 0; i < op.members.length; i++)
+                {
+                    SceneOp member = new SceneOp();
+                    member.kind = SceneOp.PUT;
+                    member.color = compound.colors[i] & 0xFF;
+                    // A copy holding a shape that isn't shared, such as an image, isn't shared either
+                    if (!describe(compound.members[i], x + compound.dx[i], y + compound.dy[i], member, depth + 1))
+                    {
+                        return false;
+                    }
+                    op.members[i] = member;
+                }
+            }
+            else
+            {
+                return false;
+            }
+            return true;
+        }
+
+        /*
+         * Copy of the first count floats of x, y pairs moved by an offset
+         */
+        private float[] placed(float[] points, int count, float dx, float dy)
+        {
+            float[] moved = new float[Math.max(2, count)];
+            for (int i = 0; i < count; i += 2)
+            {
+                moved[i] = points[i] + dx;
+                moved[i + 1] = points[i + 1] + dy;
+            }
+            return moved;
+        }
+
+        /**
+         * Makes a shape from an op that put one
+         */
+        private Shape build(SceneOp op)
+        {
+            Shape shape;
+            switch (op.form)
+            {
+                case SceneOp.PIXEL:
+                    shape = new Pixel(op.x, op.y, op.color);
+                    break;
+                case SceneOp.ELLIPSE:
+                    shape = new Ellipse(op.x, op.y, op.w, op.h, op.degrees, op.color);
+                    break;
+                case SceneOp.RECTANGLE:
+                    shape = new Rectangle(op.x, op.y, op.w, op.h, op.degrees, op.color);
+                    break;
+                case SceneOp.STROKE:
+                    shape = new Stroke(op.points, op.count, op.curves, op.w, op.color);
+                    break;
+                case SceneOp.DABS:
+                    // A brush this window doesn't have is drawn with the first one
+                    Brush brush = Brushes.all().get(0);
+                    for (Brush b : Brushes.all())
+                    {
+                        if (b.name().equals(op.brush))
+                        {
+                            brush = b;
+                        }
+                    }
+                    Dabs dabs = new Dabs(brush, op.w, op.hardness, op.points[0], op.points[1], op.color);
+                    for (int i = 2; i < op.count; i += 2)
+                    {
+                        dabs.add(op.points[i], op.points[i + 1]);
+                    }
+                    shape = dabs;
+                    break;
+                case SceneOp.FILL:
+                    shape = new Fill(op.spans, op.x, op.y, op.color);
+                    break;
+                case SceneOp.COMPOUND:
+                    ArrayList<Shape> members = new ArrayList<>();
+                    for (SceneOp member : op.members)
+                    {
+                        Shape built = build(member);
+                        if (built == null)
+                        {
+                            return null;
+                        }
+                        members.add(built);
+                    }
+                    shape = new Instance(new Compound(members, op.x, op.y), op.x, op.y, op.color);
+                    break;
+                default:
+                    return null;
+            }
+            shape.blend = (byte) op.blend;
+            return shape;
+        }
+
+        /**
+         * Applies the ops that arrived from other users since the last frame
+         */
+        public void receive()
+        {
+            quiet = true;
+            List<SceneOp> ops;
+            while ((ops = client.poll()) != null)
+            {
+                for (SceneOp op : ops)
+                {
+                    counter = Math.max(counter, SceneOp.counter(op.clock));
+                    apply(op);
+                }
+            }
+            quiet = false;
+        }
+
+        private void apply(SceneOp op)
+        {
+            if (op.kind == SceneOp.CLEAR)
+            {
+                clear(op.clock);
+                return;
+            }
+            long key = op.key();
+            if (op.clock < cleared)
+            {
+                return;
+            }
+            Layer l = layers.get(constrain(op.layer, 0, layers.size() - 1));
+            int i = find(l, key);
+            if (i < 0)
+            {
+                Long gone = removed.get(key);
+                // A shape this window never had, unless it flattened it
+                if (op.kind == SceneOp.PUT && op.author != user && !remote.containsKey(key)
+                        && (gone == null || gone < op.clock))
+                {
+                    Shape shape = build(op);
+                    if (shape != null)
+                    {
+                        Shared state = state(shape);
+                        state.key = key;
+                        state.clock = op.clock;
+                        removed.remove(key);
+                        remote.put(key, shape.id);
+                        // Below the shapes shared after it and the ones not shared yet, as every window has them
+                        state.born = op.born != 0 ? op.born : op.clock;
+                        int at = l.shapes.size();
+                        while (at > 0 && (born(l.shapes.get(at - 1)) == 0 || born(l.shapes.get(at - 1)) > state.born))
+                        {
+                            at--;
+                        }
+                        l.shapes.add(at, shape);
+                        l.dirty = true;
+                    }
+                }
+                return;
+            }
+            Shape old = l.shapes.get(i);
+            if (clock(old) >= op.clock)
+            {
+                // A newer change of the shape was already applied
+                return;
+            }
+            if (op.kind == SceneOp.REMOVE)
+            {
+                removed.put(key, op.clock);
+                remote.remove(key);
+                group.remove(old.id);
+                l.shapes.remove(i);
+                l.dirty = true;
+                return;
+            }
+            if (op.kind == SceneOp.APPEND)
+            {
+                // The stroke so far, then the points after the last one kept
+                SceneOp whole = new SceneOp();
+                if (!describe(old, whole) || op.keep < 2 || op.keep > whole.count)
+                {
+                    return;
+                }
+                float[] points = Arrays.copyOf(whole.points, op.keep - 2 + op.count);
+                System.arraycopy(op.points, 0, points, op.keep - 2, op.count);
+                whole.points = points;
+                whole.count = points.length;
+                whole.clock = op.clock;
+                op = whole;
+            }
+            Shape shape = build(op);
+            if (shape != null)
+            {
+                // The shape keeps its id, so selections and this window's edits still find it,
+                // and with it its key and the clock it was born with
+                shape.id = old.id;
+                state(shape).clock = op.clock;
+                l.shapes.set(i, shape);
+                l.reindex(i);
+                l.dirty = true;
+            }
+        }
+
+        /*
+         * Index of the shape with a key in a layer, or -1
+         */
+        private int find(Layer l, long key)
+        {
+            int id;
+            if ((int) (key >>> 32) == user)
+            {
+                id = (int) key;
+            }
+            else
+            {
+                Integer local = remote.get(key);
+                if (local == null)
+                {
+                    return -1;
+                }
+                id = local;
+            }
+            // Recent shapes are the ones most likely to change
+            for (int i = l.shapes.size() - 1; i >= 0; i--)
+            {
+                if (l.shapes.get(i).id == id)
+                {
+                    return i;
+                }
+            }
+            return -1;
         }
 
-        public void draw()
+        /*
+         * Removes every shape last changed before a clear, and everything that isn't shared
+         */
+        private void clear(long clock)
         {
-            stroke(c);
-            line(x0, y0, x1, y1);
-            noStroke();
+            if (clock <= cleared)
+            {
+                return;
+            }
+            cleared = clock;
+            for (Layer l : layers)
+            {
+                BitSet gone = new BitSet();
+                for (int i = 0; i < l.shapes.size(); i++)
+                {
+                    if (clock(l.shapes.get(i)) <= clock)
+                    {
+                        gone.set(i);
+                    }
+                }
+                l.shapes.removeAll(gone);
+                l.lines.clear();
+                l.setBase(null);
+                l.dirty = true;
+            }
+            group.clear();
+            removed.clear();
+            // Shapes added or edited this frame and not sent yet are gone too. Sending them would
+            // give them a clock past the clear, so the other windows would keep them.
+            Iterator<Change> pending = changes.values().iterator();
+            while (pending.hasNext())
+            {
+                Change change = pending.next();
+                if (clock(change.shape) <= clock)
+                {
+                    pending.remove();
+                    appended.remove(change.shape.id);
+                }
+            }
+            // Shapes of other users that were made after the clear are still found by key
+            remote.clear();
+            for (Layer l : layers)
+            {
+                for (Shape shape : l.shapes)
+                {
+                    Shared state = shared.get(shape.id);
+                    if (state != null && state.key != 0)
+                    {
+                        remote.put(state.key, shape.id);
+                    }
+                }
+            }
         }
     }
 
@@ -11,8 +11,20 @@ package com.ncfsofteng.artprogram;
  * by entering new values using the MenuWindow.
  */
 import javax.swing.JOptionPane;
+import java.awt.GraphicsEnvironment;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
 public class ExampleDriver {
 
+    // Where the canvas size used last is kept, so the next run can start with it
+    private static final File SETTINGS = new File(System.getProperty("user.home"), ".artprogram.properties");
+
     // Create a map mapping strings with parameter names to double representing their values. Key/Value pairs
     // are added to this map so they can be tweaked from the MenuWindow
     static java.util.LinkedHashMap<String, Double> parameters = new java.util.LinkedHashMap<String, Double>();
@@ -22,21 +34,134 @@ public class ExampleDriver {
     public static void main(String[] args) {
         // Initialize Parameters with names and starting values
 
-        // Prompt user for their initial canvas size.
-        int canvasWidth;
-        int canvasLength;
-        String input = JOptionPane.showInputDialog("Please enter the pixel width you'd like your canvas to be!");
-        String input2 = JOptionPane.showInputDialog("Please enter the pixel height you'd like your canvas to be!");
-        // Try to set the newValue to the user's input
+        // The canvas is the size given by "--size WIDTHxHEIGHT", the size used last time with
+        // "--last", or else the size the user enters. Either flag skips the dialogs.
+        Properties settings = new Properties();
+        try (InputStream in = new FileInputStream(SETTINGS)) {
+            settings.load(in);
+        }
+        catch (IOException e) {
+            // First run, the defaults below are used
+        }
+        int canvasWidth = size(settings.getProperty("width"), 500);
+        int canvasLength = size(settings.getProperty("height"), 500);
+        boolean ask = true;
+        boolean startup = false;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--size") && i + 1 < args.length) {
+                String[] size = args[++i].split("x");
+                canvasWidth = size(size[0], canvasWidth);
+                canvasLength = size(size[size.length - 1], canvasLength);
+                ask = false;
+            }
+            else if (args[i].equals("--last")) {
+                ask = false;
+            }
+            else if (args[i].equals("--startup-time")) {
+                startup = true;
+            }
+        }
+        if (ask) {
+            // Prompt user for their initial canvas size, starting from the last one.
+            String input = JOptionPane.showInputDialog("Please enter the pixel width you'd like your canvas to be!", canvasWidth);
+            String input2 = JOptionPane.showInputDialog("Please enter the pixel height you'd like your canvas to be!", canvasLength);
+            // Try to set the newValue to the user's input
+            try {
+                canvasWidth = Integer.parseInt(input);
+                canvasLength = Integer.parseInt(input2);
+            }
+            catch (NumberFormatException e) {
+                // Canvas launches with default sizes if given bad input
+                canvasWidth = 500;
+                canvasLength = 500;
+            }
+        }
+        // Timed runs, such as the one that makes the class data archive, leave the last size alone
+        boolean changed = size(settings.getProperty("width"), -1) != canvasWidth
+                || size(settings.getProperty("height"), -1) != canvasLength;
+        if (changed && !startup) {
+            settings.setProperty("width", Integer.toString(canvasWidth));
+            settings.setProperty("height", Integer.toString(canvasLength));
+            try (OutputStream out = new FileOutputStream(SETTINGS)) {
+                settings.store(out, "artprogram");
+            }
+            catch (IOException e) {
+                System.err.println("Can't keep the canvas size in " + SETTINGS + ": " + e.getMessage());
+            }
+        }
+        addButtons(parameters);
+        //creates and displays windows!
+        DrawingWindow window = new DrawingWindow(canvasWidth, canvasLength, parameters, 500, 500);
+        for (int i = 0; i < args.length; i++) {
+            // "--record file" logs the session so ReplayDriver can play it back
+            if (args[i].equals("--record") && i + 1 < args.length) {
+                try {
+                    window.record(new BufferedOutputStream(new FileOutputStream(args[++i])));
+                }
+                catch (IOException e) {
+                    System.err.println("Can't record to " + args[i] + ": " + e.getMessage());
+                }
+            }
+            // "--serve [port]" hosts a shared drawing and joins it, "--join host[:port]" joins one
+            else if (args[i].equals("--serve") || (args[i].equals("--join") && i + 1 < args.length)) {
+                String host = SessionServer.localAddress();
+                int port = SessionServer.PORT;
+                try {
+                    if (args[i].equals("--serve")) {
+                        if (i + 1 < args.length && !args[i + 1].startsWith("--")) {
+                            port = Integer.parseInt(args[++i]);
+                        }
+                        new SessionServer(port);
+                    }
+                    else {
+                        String[] address = args[++i].split(":");
+                        host = address[0];
+                        if (address.length > 1) {
+                            port = Integer.parseInt(address[1]);
+                        }
+                    }
+                    window.share(new SessionClient(host, port));
+                }
+                catch (IOException | NumberFormatException e) {
+                    System.err.println("Can't share the drawing at " + host + ":" + port + ": " + e.getMessage());
+                }
+            }
+        }
+        // "--startup-time" prints how long the first frame took to draw and exits
+        if (startup) {
+            boolean headless = GraphicsEnvironment.isHeadless();
+            window.reportStartup(!headless);
+            if (headless) {
+                // Without a display the frame is drawn off screen
+                window.startOffscreen();
+                window.drawFrame();
+                System.exit(0);
+            }
+        }
+        window.createWindow();
+    }
+
+    /*
+     * Parses a canvas size, returning fallback if it is missing or isn't a positive number
+     */
+    private static int size(String value, int fallback) {
+        if (value == null) {
+            return fallback;
+        }
         try {
-            canvasWidth = Integer.parseInt(input);
-            canvasLength = Integer.parseInt(input2);
+            int size = Integer.parseInt(value.trim());
+            return size > 0 ? size : fallback;
         }
         catch (NumberFormatException e) {
-            // Canvas launches with default sizes if given bad input
-            canvasWidth = 500;
-            canvasLength = 500;
+            return fallback;
         }
+    }
+
+    /**
+     * Adds every menu button, in menu order, to a parameter map.
+     * @param parameters map to add the buttons to
+     */
+    static void addButtons(java.util.Map<String, Double> parameters) {
         //Sets all buttons up with off values.
         parameters.put("Red", 0.0);
         parameters.put("Green", 0.0);
@@ -49,6 +174,7 @@ public class ExampleDriver {
         parameters.put("Orange", 0.0);
         parameters.put("Magenta", 0.0);
         parameters.put("Brown", 0.0);
+        parameters.put("Palette", 0.0);
         parameters.put("Circle", 0.0);
         parameters.put("Square", 0.0);
         parameters.put("Rectangle", 0.0);
@@ -57,14 +183,19 @@ public class ExampleDriver {
         parameters.put("Line", 0.0);
         parameters.put("Brush Size", 0.0);
         parameters.put("Brush Type", 0.0);
+        parameters.put("Smoothing", 0.0);
         parameters.put("Brush Mode", 0.0);
         parameters.put("Clipboard", 0.0);
         parameters.put("Clear", 0.0);
         parameters.put("Save", 0.0);
         parameters.put("Load", 0.0);
+        parameters.put("New", 0.0);
+        parameters.put("Layers", 0.0);
+        parameters.put("Blend Mode", 0.0);
+        parameters.put("Filter", 0.0);
+        parameters.put("Time Lapse", 0.0);
+        parameters.put("Memory", 0.0);
+        parameters.put("Stats", 0.0);
         parameters.put("Magic Wand", 0.0);
-        //creates and displays windows!
-        DrawingWindow window = new DrawingWindow(canvasWidth, canvasLength, parameters, 500, 500);
-        window.createWindow();
     }
 }
@@ -0,0 +1,162 @@
+package com.ncfsofteng.artprogram;
+
+/**
+ * FloodFill.java
+ * Span based scanline flood fill over a packed ARGB pixel buffer. Instead of visiting
+ * pixels one at a time, each step fills a whole horizontal run and only pushes one seed
+ * per run of matching pixels on the rows above and below. The filled area is returned
+ * run-length encoded as spans, so a region of any size is stored as a handful of ints per row.
+ */
+
+import java.util.Arrays;
+
+class FloodFill {
+
+    private FloodFill() {
+    }
+
+    /**
+     * Fills the region of pixels connected to (sx, sy) whose color is within tolerance of
+     * the seed color on every channel.
+     * @param pixels packed ARGB pixels, row major
+     * @param width width of the buffer
+     * @param height height of the buffer
+     * @param sx x value of the seed
+     * @param sy y value of the seed
+     * @param tolerance largest allowed difference per color channel (0-255)
+     * @return spans packed as {y, x0, x1} triples sorted by row then x, with x1 inclusive
+     */
+    public static int[] fill(int[] pixels, int width, int height, int sx, int sy, int tolerance) {
+        if (sx < 0 || sy < 0 || sx >= width || sy >= height) {
+            return new int[0];
+        }
+        int seed = pixels[sy * width + sx];
+        long[] visited = new long[(width * height + 63) >>> 6];
+
+        // Stack of seed points packed as y * width + x
+        int[] stack = new int[256];
+        int top = 0;
+        stack[top++] = sy * width + sx;
+
+        // Spans packed as (y << 40) | (x0 << 20) | x1 so they can be sorted in one call
+        long[] spans = new long[64];
+        int count = 0;
+
+        while (top > 0) {
+            int p = stack[--top];
+            if ((visited[p >>> 6] & (1L << p)) != 0) {
+                continue;
+            }
+            int y = p / width;
+            int row = y * width;
+
+            // Grow the run left and right from the seed
+            int x0 = p - row;
+            int x1 = x0;
+            while (x0 > 0 && fillable(pixels, visited, row + x0 - 1, seed, tolerance)) {
+                x0--;
+            }
+            while (x1 < width - 1 && fillable(pixels, visited, row + x1 + 1, seed, tolerance)) {
+                x1++;
+            }
+            for (int i = row + x0; i <= row + x1; i++) {
+                visited[i >>> 6] |= 1L << i;
+            }
+
+            if (count == spans.length) {
+                spans = Arrays.copyOf(spans, count * 2);
+            }
+            spans[count++] = ((long) y << 40) | ((long) x0 << 20) | x1;
+
+            // Push one seed for every run of fillable pixels touching this one above and below
+            for (int ny = y - 1; ny <= y + 1; ny += 2) {
+                if (ny < 0 || ny >= height) {
+                    continue;
+                }
+                int nrow = ny * width;
+                boolean inRun = false;
+                for (int x = x0; x <= x1; x++) {
+                    boolean ok = fillable(pixels, visited, nrow + x, seed, tolerance);
+                    if (ok && !inRun) {
+                        if (top == stack.length) {
+                            stack = Arrays.copyOf(stack, top * 2);
+                        }
+                        stack[top++] = nrow + x;
+                    }
+                    inRun = ok;
+                }
+            }
+        }
+
+        Arrays.sort(spans, 0, count);
+        int[] result = new int[count * 3];
+        for (int i = 0; i < count; i++) {
+            result[i * 3] = (int) (spans[i] >>> 40);
+            result[i * 3 + 1] = (int) ((spans[i] >>> 20) & 0xFFFFF);
+            result[i * 3 + 2] = (int) (spans[i] & 0xFFFFF);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the index of the first span on the given row, or -1 if the row has no spans.
+     * @param spans spans as returned by fill()
+     * @param y row to look up
+     * @return index of the span (not of the int) in the array
+     */
+    public static int firstSpan(int[] spans, int y) {
+        int lo = 0;
+        int hi = spans.length / 3 - 1;
+        int found = -1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int my = spans[mid * 3];
+            if (my < y) {
+                lo = mid + 1;
+            }
+            else {
+                if (my == y) {
+                    found = mid;
+                }
+                hi = mid - 1;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Returns true if a point is covered by one of the spans
+     * @param spans spans as returned by fill()
+     * @param x x value of the point
+     * @param y y value of the point
+     * @return coverage status
+     */
+    public static boolean covers(int[] spans, int x, int y) {
+        int i = firstSpan(spans, y);
+        if (i < 0) {
+            return false;
+        }
+        for (int j = i * 3; j < spans.length && spans[j] == y; j += 3) {
+            if (x >= spans[j + 1] && x <= spans[j + 2]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /*
+     * A pixel can be filled if it has not been visited and every channel is within tolerance of the seed
+     */
+    private static boolean fillable(int[] pixels, long[] visited, int i, int seed, int tolerance) {
+        if ((visited[i >>> 6] & (1L << i)) != 0) {
+            return false;
+        }
+        int c = pixels[i];
+        if (c == seed) {
+            return true;
+        }
+        return Math.abs(((c >> 16) & 0xFF) - ((seed >> 16) & 0xFF)) <= tolerance
+                && Math.abs(((c >> 8) & 0xFF) - ((seed >> 8) & 0xFF)) <= tolerance
+                && Math.abs((c & 0xFF) - (seed & 0xFF)) <= tolerance;
+    }
+}
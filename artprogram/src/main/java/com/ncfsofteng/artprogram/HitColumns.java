@@ -0,0 +1,455 @@
+package com.ncfsofteng.artprogram;
+
+/**
+ * HitColumns.java
+ * The hit-test geometry of a list of shapes, stored as one array per value instead of one
+ * object per shape, so a query reads a few flat arrays front to back. Each shape is an
+ * ellipse or a box, both centered on a point and turned by an angle whose cosine and sine
+ * are worked out when the shape is stored, not on every test. Shapes of any other form are
+ * stored as their bounding box and reported as candidates that the caller tests itself.
+ *
+ * Before the first query the shapes are sorted into a grid of cells by their centers, about
+ * sixteen to a cell, and the columns are laid out cell by cell with a bounding box around
+ * each cell. A query skips every cell whose box it misses and tests the rest in a tight loop
+ * over primitive arrays, with no calls or allocation, that the JIT can unroll and vectorize.
+ * A query therefore costs about the same whether the shapes were drawn in a few strokes or
+ * scattered over the whole canvas.
+ *
+ * Shapes may be inserted and removed after the cells are built without building them again.
+ * A new shape goes into a last cell of its own that isn't sorted, and a removed one stays in
+ * its cell with a center that is not a number, which every test fails, until there are
+ * enough of either that a query sorts the cells again.
+ */
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+class HitColumns {
+    // Forms of shape
+    public static final int ELLIPSE = 0;
+    public static final int BOX = 1;
+    public static final int BOUNDS = 2; // only the bounding box is known
+
+    private static final int PER_CELL = 16;
+    private static final int MAX_CELLS = 1 << 16;
+    private static final int UNSORTED = 256; // shapes the last cell holds at least before the cells are sorted again
+
+    private int size = 0;
+    private boolean sorted = false;
+    private int used = 0; // entries in the cells, including removed ones
+    private int removed = 0; // entries of removed shapes
+
+    // Geometry as stored, by index
+    private float[] x = new float[64];
+    private float[] y = new float[64];
+    private float[] cos = new float[64];
+    private float[] sin = new float[64];
+    private float[] rx = new float[64]; // half width
+    private float[] ry = new float[64]; // half height
+    private byte[] kind = new byte[64];
+
+    // The same geometry laid out cell by cell, and the index each entry came from, -1 once removed
+    private float[] cx = new float[0];
+    private float[] cy = new float[0];
+    private float[] ccos = new float[0];
+    private float[] csin = new float[0];
+    private float[] crx = new float[0];
+    private float[] cry = new float[0];
+    private byte[] ckind = new byte[0];
+    private int[] index = new int[0];
+    private int[] slot = new int[64]; // where each index is in the cell order
+
+    // Entries of cell c are [start[c], start[c + 1]), inside the box (x0, y0)-(x1, y1), which
+    // only grows as shapes move until the cells are rebuilt. The last cell holds the shapes
+    // inserted since, in the order they came.
+    private int cells = 0;
+    private int[] start = new int[1];
+    private float[] x0 = new float[0];
+    private float[] y0 = new float[0];
+    private float[] x1 = new float[0];
+    private float[] y1 = new float[0];
+
+    private int[] found = new int[64];
+
+    /**
+     * Removes every shape
+     */
+    public void clear() {
+        size = 0;
+        sorted = false;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the form of a shape, ELLIPSE, BOX or BOUNDS
+     */
+    public int kind(int i) {
+        return kind[i];
+    }
+
+    /**
+     * Stores the geometry of the shape at an index, which is either already stored or the next one.
+     * @param i index of the shape
+     * @param form ELLIPSE, BOX, or BOUNDS for a bounding box the caller tests the shape within
+     * @param x center x value
+     * @param y center y value
+     * @param cos cosine of the angle the shape is turned by
+     * @param sin sine of the angle the shape is turned by
+     * @param rx half the width
+     * @param ry half the height
+     */
+    public void set(int i, int form, float x, float y, float cos, float sin, float rx, float ry) {
+        if (i == size) {
+            insert(i);
+        }
+        this.x[i] = x;
+        this.y[i] = y;
+        this.cos[i] = cos;
+        this.sin[i] = sin;
+        this.rx[i] = rx;
+        this.ry[i] = ry;
+        this.kind[i] = (byte) form;
+        if (sorted) {
+            // Update the entry in place and grow its cell to cover it
+            int s = slot[i];
+            copy(i, s);
+            int c = cellOf(s);
+            cover(c, s);
+        }
+    }
+
+    /**
+     * Makes room for a shape at an index, moving the shapes from there on up by one. Its
+     * geometry is stored with set() next, and until then no query finds it.
+     * @param i index of the new shape, at most size()
+     */
+    public void insert(int i) {
+        if (size == kind.length) {
+            grow();
+        }
+        int moved = size - i;
+        if (moved > 0) {
+            System.arraycopy(x, i, x, i + 1, moved);
+            System.arraycopy(y, i, y, i + 1, moved);
+            System.arraycopy(cos, i, cos, i + 1, moved);
+            System.arraycopy(sin, i, sin, i + 1, moved);
+            System.arraycopy(rx, i, rx, i + 1, moved);
+            System.arraycopy(ry, i, ry, i + 1, moved);
+            System.arraycopy(kind, i, kind, i + 1, moved);
+            System.arraycopy(slot, i, slot, i + 1, moved);
+        }
+        size++;
+        if (!sorted) {
+            return;
+        }
+        for (int j = i + 1; j < size; j++) {
+            index[slot[j]] = j;
+        }
+        // Into the last cell, found by no query until set() stores it
+        if (used == cx.length) {
+            growCells();
+        }
+        int s = used++;
+        start[cells] = used;
+        index[s] = i;
+        slot[i] = s;
+        cx[s] = Float.NaN;
+        cy[s] = Float.NaN;
+        if (used - start[cells - 1] > Math.max(UNSORTED, size / 8)) {
+            sorted = false;
+        }
+    }
+
+    /**
+     * Removes shapes, moving the ones after each down over it
+     * @param indices indices of the shapes to remove
+     */
+    public void remove(BitSet indices) {
+        int first = indices.nextSetBit(0);
+        if (first < 0) {
+            return;
+        }
+        if (sorted) {
+            // Leave the entries where they are, as centers no test is true of
+            for (int i = first; i >= 0; i = indices.nextSetBit(i + 1)) {
+                int s = slot[i];
+                index[s] = -1;
+                cx[s] = Float.NaN;
+                cy[s] = Float.NaN;
+                removed++;
+            }
+        }
+        int kept = first;
+        for (int i = indices.nextClearBit(first); i < size; i = indices.nextClearBit(i + 1)) {
+            x[kept] = x[i];
+            y[kept] = y[i];
+            cos[kept] = cos[i];
+            sin[kept] = sin[i];
+            rx[kept] = rx[i];
+            ry[kept] = ry[i];
+            kind[kept] = kind[i];
+            slot[kept] = slot[i];
+            if (sorted) {
+                index[slot[kept]] = kept;
+            }
+            kept++;
+        }
+        size = kept;
+        if (removed > Math.max(UNSORTED, size / 4)) {
+            sorted = false;
+        }
+    }
+
+    /**
+     * Returns the indices found by the last query, in increasing order
+     */
+    public int[] found() {
+        return found;
+    }
+
+    /**
+     * Finds the shapes a point is inside of, and the shapes of other forms whose bounding box it is inside of.
+     * @param px x value of the point
+     * @param py y value of the point
+     * @return number of indices in found()
+     */
+    public int point(float px, float py) {
+        sort();
+        int n = 0;
+        for (int c = 0; c < cells; c++) {
+            if (px < x0[c] || px > x1[c] || py < y0[c] || py > y1[c]) {
+                continue;
+            }
+            for (int s = start[c], end = start[c + 1]; s < end; s++) {
+                // Removed entries fail the test, as every comparison with a NaN is false
+                found[n] = index[s];
+                n += inside(s, px, py) ? 1 : 0;
+            }
+        }
+        Arrays.sort(found, 0, n);
+        return n;
+    }
+
+    /**
+     * Finds the shapes touched by a brush of the given radius swept from one point to another:
+     * those whose center is within the radius of the path, those the path crosses, and those
+     * the edge of the brush closest to them is inside of. Shapes of other forms are found if
+     * their bounding box comes within the radius of the path. A point query with a radius is
+     * a sweep that starts and ends at the same point.
+     * @param ax x value the brush moved from
+     * @param ay y value the brush moved from
+     * @param bx x value the brush moved to
+     * @param by y value the brush moved to
+     * @param r radius of the brush
+     * @return number of indices in found()
+     */
+    public int sweep(float ax, float ay, float bx, float by, float r) {
+        sort();
+        float dx = bx - ax;
+        float dy = by - ay;
+        float length2 = dx * dx + dy * dy;
+        float minX = Math.min(ax, bx) - r;
+        float minY = Math.min(ay, by) - r;
+        float maxX = Math.max(ax, bx) + r;
+        float maxY = Math.max(ay, by) + r;
+        int n = 0;
+        for (int c = 0; c < cells; c++) {
+            if (maxX < x0[c] || minX > x1[c] || maxY < y0[c] || minY > y1[c]) {
+                continue;
+            }
+            for (int s = start[c], end = start[c + 1]; s < end; s++) {
+                // Closest point of the path to the center of the shape
+                float t = length2 == 0 ? 0 : Math.max(0, Math.min(1, ((cx[s] - ax) * dx + (cy[s] - ay) * dy) / length2));
+                float qx = ax + t * dx;
+                float qy = ay + t * dy;
+                float ex = cx[s] - qx;
+                float ey = cy[s] - qy;
+                float d = (float) Math.sqrt(ex * ex + ey * ey);
+                boolean hit;
+                if (ckind[s] == BOUNDS) {
+                    // The path comes within the radius of the circle around the box
+                    hit = d <= r + (float) Math.sqrt(crx[s] * crx[s] + cry[s] * cry[s]);
+                }
+                else {
+                    hit = d <= r || inside(s, qx, qy) || inside(s, qx + ex / d * r, qy + ey / d * r);
+                }
+                found[n] = index[s];
+                n += hit ? 1 : 0;
+            }
+        }
+        Arrays.sort(found, 0, n);
+        return n;
+    }
+
+    /*
+     * Tests a point against the shape in an entry, in the frame of the shape where it isn't turned
+     */
+    private boolean inside(int s, float px, float py) {
+        float dx = px - cx[s];
+        float dy = py - cy[s];
+        float u = ccos[s] * dx + csin[s] * dy;
+        float v = ccos[s] * dy - csin[s] * dx;
+        float a = crx[s];
+        float b = cry[s];
+        // Both tests without branches, then pick one
+        boolean ellipse = u * u * (b * b) + v * v * (a * a) <= a * a * b * b;
+        boolean box = Math.abs(u) < a & Math.abs(v) < b;
+        return ckind[s] == ELLIPSE ? ellipse : box;
+    }
+
+    /*
+     * Sorts the shapes into cells by their centers with a counting sort, if any were added since
+     */
+    private void sort() {
+        if (sorted) {
+            return;
+        }
+        sorted = true;
+        used = size;
+        removed = 0;
+        if (cx.length < size) {
+            int capacity = kind.length;
+            cx = new float[capacity];
+            cy = new float[capacity];
+            ccos = new float[capacity];
+            csin = new float[capacity];
+            crx = new float[capacity];
+            cry = new float[capacity];
+            ckind = new byte[capacity];
+            index = new int[capacity];
+        }
+
+        // A grid over the centers with about PER_CELL shapes to a cell
+        float minX = Float.MAX_VALUE;
+        float minY = Float.MAX_VALUE;
+        float maxX = -Float.MAX_VALUE;
+        float maxY = -Float.MAX_VALUE;
+        for (int i = 0; i < size; i++) {
+            minX = Math.min(minX, x[i]);
+            minY = Math.min(minY, y[i]);
+            maxX = Math.max(maxX, x[i]);
+            maxY = Math.max(maxY, y[i]);
+        }
+        float w = Math.max(1, maxX - minX);
+        float h = Math.max(1, maxY - minY);
+        int target = Math.max(1, Math.min(MAX_CELLS, size / PER_CELL));
+        int columns = Math.max(1, Math.min(target, Math.round((float) Math.sqrt(target * w / h))));
+        int rows = Math.max(1, target / columns);
+        int grid = columns * rows;
+        // and one more cell, empty for now, for the shapes inserted later
+        cells = grid + 1;
+        if (start.length < cells + 1) {
+            start = new int[cells + 1];
+            x0 = new float[cells];
+            y0 = new float[cells];
+            x1 = new float[cells];
+            y1 = new float[cells];
+        }
+
+        // Count the shapes of each cell, then place them in index order within their cell.
+        // slot[] holds each shape's cell until it is placed.
+        Arrays.fill(start, 0, cells + 1, 0);
+        float scaleX = columns / w;
+        float scaleY = rows / h;
+        for (int i = 0; i < size; i++) {
+            int col = Math.min(columns - 1, (int) ((x[i] - minX) * scaleX));
+            int row = Math.min(rows - 1, (int) ((y[i] - minY) * scaleY));
+            int c = row * columns + col;
+            slot[i] = c;
+            start[c + 1]++;
+        }
+        for (int c = 0; c < cells; c++) {
+            start[c + 1] += start[c];
+            x0[c] = Float.MAX_VALUE;
+            y0[c] = Float.MAX_VALUE;
+            x1[c] = -Float.MAX_VALUE;
+            y1[c] = -Float.MAX_VALUE;
+        }
+        int[] next = Arrays.copyOf(start, grid);
+        for (int i = 0; i < size; i++) {
+            int c = slot[i];
+            int s = next[c]++;
+            slot[i] = s;
+            index[s] = i;
+            copy(i, s);
+            cover(c, s);
+        }
+    }
+
+    /*
+     * Copies the geometry of an index to an entry
+     */
+    private void copy(int i, int s) {
+        cx[s] = x[i];
+        cy[s] = y[i];
+        ccos[s] = cos[i];
+        csin[s] = sin[i];
+        crx[s] = rx[i];
+        cry[s] = ry[i];
+        ckind[s] = kind[i];
+    }
+
+    /*
+     * Grows the box of a cell to cover the turned shape of one of its entries, or for a
+     * bounding box the circle around it that a sweep tests against
+     */
+    private void cover(int c, int s) {
+        float ex = Math.abs(ccos[s]) * crx[s] + Math.abs(csin[s]) * cry[s];
+        float ey = Math.abs(csin[s]) * crx[s] + Math.abs(ccos[s]) * cry[s];
+        if (ckind[s] == BOUNDS) {
+            ex = ey = (float) Math.sqrt(crx[s] * crx[s] + cry[s] * cry[s]);
+        }
+        x0[c] = Math.min(x0[c], cx[s] - ex);
+        y0[c] = Math.min(y0[c], cy[s] - ey);
+        x1[c] = Math.max(x1[c], cx[s] + ex);
+        y1[c] = Math.max(y1[c], cy[s] + ey);
+    }
+
+    /*
+     * Cell an entry is in
+     */
+    private int cellOf(int s) {
+        // The last cell starting at or before s, skipping empty cells
+        int c = Arrays.binarySearch(start, 0, cells + 1, s);
+        if (c < 0) {
+            return -c - 2;
+        }
+        while (start[c + 1] == s) {
+            c++;
+        }
+        return c;
+    }
+
+    private void grow() {
+        int capacity = kind.length * 2;
+        slot = Arrays.copyOf(slot, capacity);
+        x = Arrays.copyOf(x, capacity);
+        y = Arrays.copyOf(y, capacity);
+        cos = Arrays.copyOf(cos, capacity);
+        sin = Arrays.copyOf(sin, capacity);
+        rx = Arrays.copyOf(rx, capacity);
+        ry = Arrays.copyOf(ry, capacity);
+        kind = Arrays.copyOf(kind, capacity);
+        found = Arrays.copyOf(found, Math.max(capacity, found.length));
+    }
+
+    /*
+     * Makes room for more entries than there are indices, as removed ones stay until sorted again
+     */
+    private void growCells() {
+        int capacity = Math.max(64, cx.length * 2);
+        cx = Arrays.copyOf(cx, capacity);
+        cy = Arrays.copyOf(cy, capacity);
+        ccos = Arrays.copyOf(ccos, capacity);
+        csin = Arrays.copyOf(csin, capacity);
+        crx = Arrays.copyOf(crx, capacity);
+        cry = Arrays.copyOf(cry, capacity);
+        ckind = Arrays.copyOf(ckind, capacity);
+        index = Arrays.copyOf(index, capacity);
+        // A query may store one index past the ones it found
+        found = Arrays.copyOf(found, Math.max(capacity, found.length));
+    }
+}
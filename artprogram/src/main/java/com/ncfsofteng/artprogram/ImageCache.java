@@ -0,0 +1,130 @@
+package com.ncfsofteng.artprogram;
+
+/**
+ * ImageCache.java
+ * Images loaded from files, decoded once and shared by every document open in the program.
+ * Loading a file that is already cached, into the same document or another, costs a lookup
+ * instead of a decode and a second copy of the pixels. Images are keyed by file, size and
+ * modification time, so a file changed on disk is decoded again.
+ *
+ * Cached images are never edited: the shapes that draw them copy the pixels before a filter
+ * or resize. The images used least recently are dropped once they take more than the budget,
+ * which only makes the next load of them decode again.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import processing.core.PApplet;
+import processing.core.PImage;
+
+class ImageCache {
+    private static ImageCache shared;
+
+    private final long budget;
+    private long bytes = 0;
+    private int hits = 0;
+    private int misses = 0;
+    // Access order, so the first entry is the one used least recently
+    private final LinkedHashMap<String, PImage> images = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * @param budget bytes of pixels to keep
+     */
+    public ImageCache(long budget) {
+        this.budget = budget;
+    }
+
+    /**
+     * Returns the cache shared by every document, which keeps up to an eighth of the heap
+     */
+    public static synchronized ImageCache shared() {
+        if (shared == null) {
+            shared = new ImageCache(Runtime.getRuntime().maxMemory() / 8);
+        }
+        return shared;
+    }
+
+    /**
+     * Returns an image, decoding it if it isn't cached. The image must not be edited.
+     * @param loader sketch whose folder relative paths are found in
+     * @param path file or URL of the image
+     * @param extension type of the image, or null to take it from the path
+     * @return the image, or null if it can't be loaded
+     */
+    public PImage load(PApplet loader, String path, String extension) {
+        String key = key(loader, path, extension);
+        synchronized (this) {
+            PImage image = images.get(key);
+            if (image != null) {
+                hits++;
+                return image;
+            }
+        }
+        // Decoded outside the lock, so a big image doesn't hold up other documents
+        PImage image = extension == null ? loader.loadImage(path) : loader.loadImage(path, extension);
+        if (image == null || image.width <= 0) {
+            return image;
+        }
+        synchronized (this) {
+            // Another document may have decoded the same file meanwhile
+            PImage cached = images.get(key);
+            if (cached != null) {
+                hits++;
+                return cached;
+            }
+            misses++;
+            images.put(key, image);
+            bytes += MemoryGovernor.array(image.width * image.height, 4);
+            Iterator<Map.Entry<String, PImage>> oldest = images.entrySet().iterator();
+            while (bytes > budget && images.size() > 1) {
+                PImage dropped = oldest.next().getValue();
+                oldest.remove();
+                bytes -= MemoryGovernor.array(dropped.width * dropped.height, 4);
+            }
+        }
+        return image;
+    }
+
+    /**
+     * Returns how many loads found their image cached
+     */
+    public synchronized int hits() {
+        return hits;
+    }
+
+    /**
+     * Returns how many loads decoded their image
+     */
+    public synchronized int misses() {
+        return misses;
+    }
+
+    /**
+     * Returns the bytes of pixels cached
+     */
+    public synchronized long bytes() {
+        return bytes;
+    }
+
+    private static String key(PApplet loader, String path, String extension) {
+        String suffix = extension == null ? "" : "." + extension;
+        if (path.contains("://")) {
+            return path + suffix;
+        }
+        File file = new File(path);
+        if (!file.isAbsolute()) {
+            file = new File(loader.sketchPath(path));
+        }
+        try {
+            file = file.getCanonicalFile();
+        }
+        catch (IOException e) {
+            file = file.getAbsoluteFile();
+        }
+        return file.getPath() + suffix + "@" + file.lastModified() + ":" + file.length();
+    }
+}
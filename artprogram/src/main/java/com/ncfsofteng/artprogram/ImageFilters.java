@@ -0,0 +1,275 @@
+package com.ncfsofteng.artprogram;
+
+/**
+ * ImageFilters.java
+ * Blur, sharpen and color adjustment filters over packed ARGB pixel buffers.
+ * Blurs are separable: a horizontal pass over every row followed by a vertical pass, each
+ * using running sums so the cost per pixel does not depend on the radius. Every pass is
+ * split into bands of rows that run in parallel on the shared compute pool. Blurs work on
+ * premultiplied pixels so transparent areas don't bleed their color into opaque ones.
+ */
+
+class ImageFilters {
+    // Filters
+    public static final int GAUSSIAN_BLUR = 0;
+    public static final int BOX_BLUR = 1;
+    public static final int SHARPEN = 2;
+    public static final int BRIGHTNESS = 3;
+    public static final int CONTRAST = 4;
+    public static final int SATURATION = 5;
+    public static final int GRAYSCALE = 6;
+    public static final int INVERT = 7;
+    public static final String[] NAMES = {"Gaussian Blur", "Box Blur", "Sharpen", "Brightness",
+            "Contrast", "Saturation", "Grayscale", "Invert"};
+    // What the amount of each filter means
+    public static final String[] AMOUNTS = {"radius in pixels", "radius in pixels", "strength in percent",
+            "-255 to 255", "percent, 100 is unchanged", "percent, 100 is unchanged", "unused", "unused"};
+
+    private ImageFilters() {
+    }
+
+    /**
+     * Applies a filter to an image in place
+     * @param filter one of the filters
+     * @param pixels straight ARGB pixels, row major
+     * @param width width of the image
+     * @param height height of the image
+     * @param amount strength of the filter, see AMOUNTS
+     */
+    public static void apply(int filter, int[] pixels, int width, int height, float amount) {
+        switch (filter) {
+            case GAUSSIAN_BLUR:
+                gaussianBlur(pixels, width, height, amount);
+                break;
+            case BOX_BLUR:
+                boxBlur(pixels, width, height, Math.round(amount));
+                break;
+            case SHARPEN:
+                sharpen(pixels, width, height, 2, amount / 100f);
+                break;
+            case BRIGHTNESS:
+                adjust(pixels, width, height, amount, 1, 1);
+                break;
+            case CONTRAST:
+                adjust(pixels, width, height, 0, amount / 100f, 1);
+                break;
+            case SATURATION:
+                adjust(pixels, width, height, 0, 1, amount / 100f);
+                break;
+            case GRAYSCALE:
+                adjust(pixels, width, height, 0, 1, 0);
+                break;
+            case INVERT:
+                adjust(pixels, width, height, 0, -1, 1);
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Approximates a gaussian blur with three box blurs whose sizes match its variance.
+     * @param radius radius of the blur, three standard deviations
+     */
+    public static void gaussianBlur(int[] pixels, int width, int height, float radius) {
+        if (radius <= 0) {
+            return;
+        }
+        double sigma = radius / 3.0;
+        int passes = 3;
+        // Box widths for n passes, see W. Wells, "Efficient synthesis of gaussian filters by cascaded uniform filters"
+        int wl = (int) Math.floor(Math.sqrt(12 * sigma * sigma / passes + 1));
+        if (wl % 2 == 0) {
+            wl--;
+        }
+        int wu = wl + 2;
+        int m = (int) Math.round((12 * sigma * sigma - passes * wl * wl - 4 * passes * wl - 3 * passes) / (-4.0 * wl - 4));
+
+        int[] tmp = new int[pixels.length];
+        premultiply(pixels, width, height, true);
+        for (int i = 0; i < passes; i++) {
+            int r = ((i < m ? wl : wu) - 1) / 2;
+            boxPass(pixels, tmp, width, height, r);
+        }
+        premultiply(pixels, width, height, false);
+    }
+
+    /**
+     * Blurs every pixel with the average of the square of pixels around it
+     * @param radius half the width of the square
+     */
+    public static void boxBlur(int[] pixels, int width, int height, int radius) {
+        if (radius <= 0) {
+            return;
+        }
+        int[] tmp = new int[pixels.length];
+        premultiply(pixels, width, height, true);
+        boxPass(pixels, tmp, width, height, radius);
+        premultiply(pixels, width, height, false);
+    }
+
+    /**
+     * Unsharp mask: pushes every pixel away from a blurred copy of the image
+     * @param radius radius of the blur
+     * @param amount how far to push, 1 doubles the difference
+     */
+    public static void sharpen(final int[] pixels, final int width, int height, int radius, final float amount) {
+        final int[] blurred = pixels.clone();
+        gaussianBlur(blurred, width, height, radius);
+        final int k = Math.round(amount * 256);
+        WorkerPools.forRows(height, new WorkerPools.Rows() {
+            public void run(int y0, int y1) {
+                for (int i = y0 * width; i < y1 * width; i++) {
+                    int p = pixels[i];
+                    int b = blurred[i];
+                    int r = clamp((p >> 16 & 0xFF) + (((p >> 16 & 0xFF) - (b >> 16 & 0xFF)) * k >> 8));
+                    int g = clamp((p >> 8 & 0xFF) + (((p >> 8 & 0xFF) - (b >> 8 & 0xFF)) * k >> 8));
+                    int bl = clamp((p & 0xFF) + (((p & 0xFF) - (b & 0xFF)) * k >> 8));
+                    pixels[i] = (p & 0xFF000000) | (r << 16) | (g << 8) | bl;
+                }
+            }
+        });
+    }
+
+    /**
+     * Brightness, contrast and saturation adjustment. Brightness and contrast are
+     * folded into one lookup table built before the pixels are touched.
+     * @param brightness value added to every channel
+     * @param contrast scale of every channel around the middle grey, -1 inverts
+     * @param saturation scale of every channel around the pixel's luma, 0 is grey
+     */
+    public static void adjust(final int[] pixels, final int width, int height, float brightness, float contrast, float saturation) {
+        final int[] lut = new int[256];
+        for (int i = 0; i < 256; i++) {
+            lut[i] = clamp(Math.round((i - 127.5f) * contrast + 127.5f + brightness));
+        }
+        final int s = Math.round(saturation * 256);
+        WorkerPools.forRows(height, new WorkerPools.Rows() {
+            public void run(int y0, int y1) {
+                for (int i = y0 * width; i < y1 * width; i++) {
+                    int p = pixels[i];
+                    int r = lut[p >> 16 & 0xFF];
+                    int g = lut[p >> 8 & 0xFF];
+                    int b = lut[p & 0xFF];
+                    int luma = (r * 77 + g * 150 + b * 29) >> 8;
+                    r = clamp(luma + ((r - luma) * s >> 8));
+                    g = clamp(luma + ((g - luma) * s >> 8));
+                    b = clamp(luma + ((b - luma) * s >> 8));
+                    pixels[i] = (p & 0xFF000000) | (r << 16) | (g << 8) | b;
+                }
+            }
+        });
+    }
+
+    /*
+     * Converts to or from premultiplied alpha in parallel bands
+     */
+    private static void premultiply(final int[] pixels, final int width, int height, final boolean forward) {
+        WorkerPools.forRows(height, new WorkerPools.Rows() {
+            public void run(int y0, int y1) {
+                if (forward) {
+                    Compositor.premultiply(pixels, y0 * width, (y1 - y0) * width);
+                }
+                else {
+                    Compositor.unpremultiply(pixels, y0 * width, (y1 - y0) * width);
+                }
+            }
+        });
+    }
+
+    /*
+     * One box blur: rows of pixels into tmp, then columns of tmp back into pixels
+     */
+    private static void boxPass(final int[] pixels, final int[] tmp, final int width, final int height, final int radius) {
+        // 2^32 / (2r + 1) rounded, so a sum times it is the mean in the top 32 bits of a long.
+        // With 16 bits or a truncated scale the mean of a wide blur came out a few steps dark.
+        final long scale = ((1L << 32) + radius) / (2 * radius + 1);
+        WorkerPools.forRows(height, new WorkerPools.Rows() {
+            public void run(int y0, int y1) {
+                for (int y = y0; y < y1; y++) {
+                    blurRow(pixels, tmp, y * width, width, radius, scale);
+                }
+            }
+        });
+        WorkerPools.forRows(height, new WorkerPools.Rows() {
+            public void run(int y0, int y1) {
+                blurColumns(tmp, pixels, width, height, y0, y1, radius, scale);
+            }
+        });
+    }
+
+    private static void blurRow(int[] src, int[] dst, int row, int width, int radius, long scale) {
+        int a = 0;
+        int r = 0;
+        int g = 0;
+        int b = 0;
+        int last = width - 1;
+        for (int k = -radius; k <= radius; k++) {
+            int p = src[row + Math.min(last, Math.max(0, k))];
+            a += p >>> 24;
+            r += p >> 16 & 0xFF;
+            g += p >> 8 & 0xFF;
+            b += p & 0xFF;
+        }
+        for (int x = 0; x < width; x++) {
+            dst[row + x] = pack(a, r, g, b, scale);
+            int out = src[row + Math.max(0, x - radius)];
+            int in = src[row + Math.min(last, x + radius + 1)];
+            a += (in >>> 24) - (out >>> 24);
+            r += (in >> 16 & 0xFF) - (out >> 16 & 0xFF);
+            g += (in >> 8 & 0xFF) - (out >> 8 & 0xFF);
+            b += (in & 0xFF) - (out & 0xFF);
+        }
+    }
+
+    /*
+     * Vertical pass over rows [y0, y1). Keeps one running sum per column and slides all of them
+     * down a row at a time, so memory is read in whole rows.
+     */
+    private static void blurColumns(int[] src, int[] dst, int width, int height, int y0, int y1, int radius, long scale) {
+        int[] a = new int[width];
+        int[] r = new int[width];
+        int[] g = new int[width];
+        int[] b = new int[width];
+        int last = height - 1;
+        for (int k = y0 - radius; k <= y0 + radius; k++) {
+            int row = Math.min(last, Math.max(0, k)) * width;
+            for (int x = 0; x < width; x++) {
+                int p = src[row + x];
+                a[x] += p >>> 24;
+                r[x] += p >> 16 & 0xFF;
+                g[x] += p >> 8 & 0xFF;
+                b[x] += p & 0xFF;
+            }
+        }
+        for (int y = y0; y < y1; y++) {
+            int row = y * width;
+            int outRow = Math.max(0, y - radius) * width;
+            int inRow = Math.min(last, y + radius + 1) * width;
+            for (int x = 0; x < width; x++) {
+                dst[row + x] = pack(a[x], r[x], g[x], b[x], scale);
+                int out = src[outRow + x];
+                int in = src[inRow + x];
+                a[x] += (in >>> 24) - (out >>> 24);
+                r[x] += (in >> 16 & 0xFF) - (out >> 16 & 0xFF);
+                g[x] += (in >> 8 & 0xFF) - (out >> 8 & 0xFF);
+                b[x] += (in & 0xFF) - (out & 0xFF);
+            }
+        }
+    }
+
+    /*
+     * Packs the rounded means of the channel sums of a window
+     */
+    private static int pack(int a, int r, int g, int b, long scale) {
+        return mean(a, scale) << 24 | mean(r, scale) << 16 | mean(g, scale) << 8 | mean(b, scale);
+    }
+
+    private static int mean(int sum, long scale) {
+        return (int) ((sum * scale + (1L << 31)) >>> 32);
+    }
+
+    private static int clamp(int v) {
+        return Math.max(0, Math.min(255, v));
+    }
+}
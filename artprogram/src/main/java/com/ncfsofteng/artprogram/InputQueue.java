@@ -0,0 +1,126 @@
+package com.ncfsofteng.artprogram;
+
+/**
+ * InputQueue.java
+ * A fixed size ring of mouse events between the code that receives input and the draw loop
+ * that applies it. Event fields live in preallocated parallel arrays, so pushing an event
+ * allocates nothing. There is one producer and one consumer, and each only writes its own end
+ * of the ring, so neither ever takes a lock. An event is published by the volatile write of
+ * head after its fields are stored, and its slot is handed back by the volatile write of tail.
+ */
+
+class InputQueue {
+    // Event types
+    public static final int PRESSED = 0;
+    public static final int RELEASED = 1;
+    public static final int CLICKED = 2;
+    public static final int DRAGGED = 3;
+    // Modifier key bits
+    public static final int SHIFT = 1;
+    public static final int CONTROL = 2;
+    public static final int ALT = 4;
+
+    private final int mask;
+    private final int[] types;
+    private final int[] xs;
+    private final int[] ys;
+    private final int[] pxs;
+    private final int[] pys;
+    private final int[] buttons;
+    private final int[] modifiers;
+    private final int[] times;
+    private volatile long head = 0;
+    private volatile long tail = 0;
+    private int dropped = 0;
+
+    /**
+     * @param capacity number of events the ring holds, rounded up to a power of two
+     */
+    public InputQueue(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        mask = size - 1;
+        types = new int[size];
+        xs = new int[size];
+        ys = new int[size];
+        pxs = new int[size];
+        pys = new int[size];
+        buttons = new int[size];
+        modifiers = new int[size];
+        times = new int[size];
+    }
+
+    /**
+     * Adds an event. Only the producer may call this.
+     * @return false if the ring was full and the event was dropped
+     */
+    public boolean push(int type, int x, int y, int px, int py, int button, int modifierKeys, int time) {
+        long h = head;
+        if (h - tail > mask) {
+            dropped++;
+            return false;
+        }
+        int i = (int) h & mask;
+        types[i] = type;
+        xs[i] = x;
+        ys[i] = y;
+        pxs[i] = px;
+        pys[i] = py;
+        buttons[i] = button;
+        modifiers[i] = modifierKeys;
+        times[i] = time;
+        head = h + 1;
+        return true;
+    }
+
+    /**
+     * Takes the oldest event. Only the consumer may call this.
+     * @param e receives the event
+     * @return false if there was no event
+     */
+    public boolean poll(Event e) {
+        long t = tail;
+        if (t == head) {
+            return false;
+        }
+        int i = (int) t & mask;
+        e.type = types[i];
+        e.x = xs[i];
+        e.y = ys[i];
+        e.px = pxs[i];
+        e.py = pys[i];
+        e.button = buttons[i];
+        e.modifiers = modifiers[i];
+        e.time = times[i];
+        tail = t + 1;
+        return true;
+    }
+
+    /**
+     * Returns the type of the oldest event without taking it, or -1 if there is none. Only the consumer may call this.
+     */
+    public int peekType() {
+        long t = tail;
+        return t == head ? -1 : types[(int) t & mask];
+    }
+
+    /**
+     * Returns the number of events dropped because the ring was full
+     */
+    public int dropped() {
+        return dropped;
+    }
+
+    /**
+     * A mouse event copied out of the ring, reused by the consumer
+     */
+    static class Event {
+        int type;
+        int x;
+        int y;
+        int px; // position before the event
+        int py;
+        int button;
+        int modifiers;
+        int time; // milliseconds since the sketch started
+    }
+}
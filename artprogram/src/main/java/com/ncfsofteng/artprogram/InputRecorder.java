@@ -0,0 +1,295 @@
+package com.ncfsofteng.artprogram;
+
+/**
+ * InputRecorder.java
+ * Logs everything that changes a drawing from outside: mouse events, menu buttons, answers
+ * typed into prompts and images picked to load, grouped by the frame they were applied in.
+ * The sketch is deterministic given this input, so playing a log back into a fresh
+ * DrawingWindow rebuilds the same canvas, frame by frame. See ReplayDriver.
+ *
+ * The log is a stream of records, each a one byte kind followed by variable length integers
+ * (zigzag encoded when they can be negative) and UTF strings, so a typical mouse event takes
+ * about eight bytes. Positions are stored relative to the previous event.
+ */
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+
+class InputRecorder implements Closeable {
+    private static final int MAGIC = 0x41525431; // "ART1"
+    // Record kinds
+    private static final int FRAME = 0;
+    private static final int INPUT = 1;
+    private static final int MENU = 2;
+    private static final int PROMPT = 3;
+    private static final int CANCEL = 4; // a prompt that was closed without an answer
+    private static final int IMAGE = 5;
+    // Frames between flushes, so a crash loses at most this much of the log
+    private static final int FLUSH_FRAMES = 60;
+
+    private final DataOutputStream out;
+    private boolean failed = false;
+    private int lastTime = 0;
+    private int lastX = 0;
+    private int lastY = 0;
+    private int frames = 0;
+
+    /**
+     * Starts a log.
+     * @param out stream to write the log to, closed by close()
+     * @param width width of the canvas
+     * @param height height of the canvas
+     */
+    public InputRecorder(OutputStream out, int width, int height) throws IOException {
+        this.out = new DataOutputStream(out);
+        this.out.writeInt(MAGIC);
+        writeVar(width);
+        writeVar(height);
+    }
+
+    /**
+     * Marks the start of a frame. The mouse position is logged because the frame draws it.
+     * @param time milliseconds since the sketch started
+     * @param mouseX x value of the mouse
+     * @param mouseY y value of the mouse
+     */
+    public void frame(int time, int mouseX, int mouseY) {
+        try {
+            out.write(FRAME);
+            writeVar(time - lastTime);
+            writeSigned(mouseX - lastX);
+            writeSigned(mouseY - lastY);
+            lastTime = time;
+            lastX = mouseX;
+            lastY = mouseY;
+            if (++frames % FLUSH_FRAMES == 0) {
+                out.flush();
+            }
+        }
+        catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Records a mouse event applied this frame
+     */
+    public void input(InputQueue.Event e) {
+        try {
+            out.write(INPUT);
+            out.write(e.type);
+            writeSigned(e.x - lastX);
+            writeSigned(e.y - lastY);
+            writeSigned(e.px - e.x);
+            writeSigned(e.py - e.y);
+            writeVar(e.button);
+            out.write(e.modifiers);
+            lastX = e.x;
+            lastY = e.y;
+        }
+        catch (IOException ex) {
+            fail(ex);
+        }
+    }
+
+    /**
+     * Records a menu button pressed this frame
+     */
+    public void menu(String name) {
+        try {
+            out.write(MENU);
+            out.writeUTF(name);
+        }
+        catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Records the answer to a prompt, or null if it was cancelled
+     */
+    public void prompt(String answer) {
+        try {
+            if (answer == null) {
+                out.write(CANCEL);
+            }
+            else {
+                out.write(PROMPT);
+                out.writeUTF(answer);
+            }
+        }
+        catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Records the path of an image loaded this frame
+     */
+    public void image(String path) {
+        try {
+            out.write(IMAGE);
+            out.writeUTF(path);
+        }
+        catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    public void close() throws IOException {
+        out.close();
+    }
+
+    /*
+     * Reports the first write that fails. The log is useless after it, but drawing goes on.
+     */
+    private void fail(IOException e) {
+        if (!failed) {
+            failed = true;
+            System.err.println("Recording stopped: " + e.getMessage());
+        }
+    }
+
+    private void writeVar(int v) throws IOException {
+        while ((v & ~0x7F) != 0) {
+            out.write((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        out.write(v);
+    }
+
+    private void writeSigned(int v) throws IOException {
+        writeVar((v << 1) ^ (v >> 31));
+    }
+
+    /**
+     * Reads a log back one frame at a time
+     */
+    static class Playback implements Closeable {
+        public final int width;
+        public final int height;
+        private final DataInputStream in;
+        private int kind;
+        private int time = 0; // of the next frame
+        private int lastX = 0;
+        private int lastY = 0;
+        private final InputQueue.Event event = new InputQueue.Event();
+        private final ArrayDeque<String> answers = new ArrayDeque<>();
+        // Stands for a cancelled prompt, since the deque can't hold null. Compared by identity.
+        private static final String CANCELLED = new String();
+
+        public Playback(InputStream in) throws IOException {
+            this.in = new DataInputStream(in);
+            if (this.in.readInt() != MAGIC) {
+                throw new IOException("Not an input log");
+            }
+            width = readVar();
+            height = readVar();
+            next();
+        }
+
+        /**
+         * Returns true while there are frames left
+         */
+        public boolean hasFrame() {
+            return kind == FRAME;
+        }
+
+        /**
+         * Returns the time the next frame started at when it was recorded, in milliseconds since the sketch started
+         */
+        public int time() {
+            return time;
+        }
+
+        /**
+         * Reads the next frame into a window: its mouse events are queued, its menu buttons
+         * pressed and its prompt answers kept for answer().
+         */
+        public void feed(DrawingWindow window) throws IOException {
+            lastX += readSigned();
+            lastY += readSigned();
+            window.replayMouse(lastX, lastY);
+            next();
+            while (kind != FRAME && kind != -1) {
+                switch (kind) {
+                    case INPUT:
+                        event.type = in.read();
+                        event.x = lastX + readSigned();
+                        event.y = lastY + readSigned();
+                        event.px = event.x + readSigned();
+                        event.py = event.y + readSigned();
+                        event.button = readVar();
+                        event.modifiers = in.read();
+                        event.time = time;
+                        lastX = event.x;
+                        lastY = event.y;
+                        window.replayInput(event);
+                        break;
+                    case MENU:
+                        window.replayMenu(in.readUTF());
+                        break;
+                    case PROMPT:
+                        answers.add(in.readUTF());
+                        break;
+                    case CANCEL:
+                        answers.add(CANCELLED);
+                        break;
+                    case IMAGE:
+                        window.replayImage(in.readUTF());
+                        break;
+                    default:
+                        throw new IOException("Bad record " + kind);
+                }
+                next();
+            }
+        }
+
+        /**
+         * Returns the next recorded prompt answer, or null if it was cancelled or the log has none left
+         */
+        public String answer() {
+            String answer = answers.poll();
+            return answer == CANCELLED ? null : answer;
+        }
+
+        public void close() throws IOException {
+            in.close();
+        }
+
+        /*
+         * Reads the kind of the next record, -1 at the end of the log, and the time of a frame
+         */
+        private void next() throws IOException {
+            kind = in.read();
+            if (kind == FRAME) {
+                time += readVar();
+            }
+        }
+
+        private int readVar() throws IOException {
+            int v = 0;
+            for (int shift = 0; ; shift += 7) {
+                int b = in.read();
+                if (b < 0) {
+                    throw new EOFException();
+                }
+                v |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return v;
+                }
+            }
+        }
+
+        private int readSigned() throws IOException {
+            int v = readVar();
+            return (v >>> 1) ^ -(v & 1);
+        }
+    }
+}
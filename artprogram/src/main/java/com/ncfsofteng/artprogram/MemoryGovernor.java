@@ -0,0 +1,132 @@
+package com.ncfsofteng.artprogram;
+
+/**
+ * MemoryGovernor.java
+ * Keeps the shapes of a drawing within a memory budget. Every so many frames the window tells
+ * the governor the approximate size of its shapes and of the rasters older shapes were
+ * flattened into, as counted by SceneStats, and asks how much is over. Once the budget is
+ * passed, the oldest shapes of a layer are drawn into that layer's TileRaster and dropped,
+ * until the scene is back to half the budget. What the raster grows by counts against what
+ * the shapes freed. The shapes drawn most recently stay editable, and a long session can't
+ * run the heap out.
+ *
+ * The budget is a quarter of the heap by default. The artprogram.sceneBudget system property
+ * (in megabytes) overrides it, and so does the Memory menu button.
+ */
+
+class MemoryGovernor {
+    // Approximate sizes in bytes on a 64-bit JVM with compressed references
+    public static final int SHAPE = 68; // a shape's fields, its header and its slot in a list, measured for an ellipse
+    public static final int LINE = 44; // the same for a line
+    private static final int ARRAY = 16; // header of an array
+
+    private final int interval;
+    private long budget;
+    private int frames = 0;
+    private long footprint = 0; // of the scene when it was last measured
+
+    // Everything done so far, for report()
+    private int flattens = 0;
+    private long shapes = 0;
+    private long freed = 0;
+    private String last = null;
+
+    /**
+     * @param budget bytes the shapes may take before the oldest are flattened
+     * @param interval frames between checks
+     */
+    public MemoryGovernor(long budget, int interval) {
+        this.budget = budget;
+        this.interval = Math.max(1, interval);
+    }
+
+    /**
+     * Returns the budget set by the artprogram.sceneBudget property, or a quarter of the heap
+     */
+    public static long defaultBudget() {
+        String property = System.getProperty("artprogram.sceneBudget");
+        if (property != null) {
+            try {
+                return Long.parseLong(property.trim()) << 20;
+            }
+            catch (NumberFormatException e) {
+                System.err.println("Ignoring artprogram.sceneBudget=" + property + ": not a number of megabytes");
+            }
+        }
+        return Runtime.getRuntime().maxMemory() / 4;
+    }
+
+    /**
+     * Returns the approximate size of an array
+     * @param length number of elements
+     * @param element size of an element in bytes
+     */
+    public static long array(int length, int element) {
+        return (ARRAY + (long) length * element + 7) & ~7L;
+    }
+
+    /**
+     * Counts a frame and returns true when it is time to measure the scene again
+     */
+    public boolean due() {
+        return ++frames % interval == 0;
+    }
+
+    public long budget() {
+        return budget;
+    }
+
+    public void setBudget(long budget) {
+        this.budget = Math.max(0, budget);
+    }
+
+    /**
+     * Takes the latest size of the scene.
+     * @param footprint approximate bytes taken by the shapes and rasters of every layer
+     * @return bytes to flatten, or 0 while the scene is within the budget
+     */
+    public long excess(long footprint) {
+        this.footprint = footprint;
+        // Flatten down to half the budget, so the next flatten is a while off
+        return footprint > budget ? footprint - budget / 2 : 0;
+    }
+
+    /**
+     * Records a flatten and reports it.
+     * @param layer name of the layer flattened
+     * @param count number of shapes flattened
+     * @param bytes approximate bytes the shapes took
+     * @param grown bytes the raster grew by
+     * @param raster raster the shapes were drawn into
+     */
+    public void flattened(String layer, int count, long bytes, long grown, TileRaster raster) {
+        flattens++;
+        shapes += count;
+        freed += bytes - grown;
+        footprint -= bytes - grown;
+        last = "flattened the " + count + " oldest shapes of " + layer + " (" + kilobytes(bytes)
+                + ") into " + raster.tiles() + " tiles (" + kilobytes(raster.bytes()) + ")";
+        System.out.println("Memory: " + last);
+    }
+
+    /**
+     * Describes the budget, the size of the scene and what has been flattened
+     */
+    public String report() {
+        StringBuilder report = new StringBuilder();
+        report.append("Shapes and flattened rasters take about ").append(kilobytes(footprint)).append(" of a ")
+                .append(kilobytes(budget)).append(" budget.\n");
+        if (flattens == 0) {
+            report.append("Nothing has been flattened.\n");
+        }
+        else {
+            report.append("Flattened ").append(shapes).append(" shapes (freeing ").append(kilobytes(freed)).append(") in ")
+                    .append(flattens).append(flattens == 1 ? " pass" : " passes").append(", last ").append(last).append(".\n");
+        }
+        return report.toString();
+    }
+
+    private static String kilobytes(long bytes) {
+        return (bytes + 1023) / 1024 + " KB";
+    }
+}
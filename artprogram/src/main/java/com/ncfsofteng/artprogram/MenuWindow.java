@@ -19,6 +19,7 @@ public class MenuWindow extends ProcessingWindow {
     private Map<String, Double> parameters;
     private Map<String, Button> updateButtons;
     private float buttonHeight;
+    private Runnable closed = null; // run instead of ending the program when the window is closed
     private static final int TEXT_SIZE = 20;
 
     /**
@@ -38,6 +39,25 @@ public class MenuWindow extends ProcessingWindow {
         buttonHeight = (float) ((height / (parameters.keySet().size())));
     }
 
+    /**
+     * Sets what closing the window does instead of ending the program
+     * @param closed called once the window is closed
+     */
+    void onClose(Runnable closed) {
+        this.closed = closed;
+    }
+
+    @Override
+    public void exitActual() {
+        if (closed != null) {
+            closed.run();
+        }
+        else {
+            WorkerPools.finish();
+            super.exitActual();
+        }
+    }
+
     /**
      * If the mouse is pressed over one of the update buttons, a dialog prompting
      * the user for a new value will be launched. If the user does not enter a
@@ -77,9 +97,13 @@ public class MenuWindow extends ProcessingWindow {
         int Ylevel = 1;
         // Iterate through each parameter, create an updateButton for the parameter,
         // and draw it to the output window
+        int index = 0;
         for (String parameter : parameterNames) {
             centerY = (Ylevel * verticalSpacing);
-            updateButtons.put(parameter,  new Button(parameter, buttonX[Xlevel], centerY, buttonHeight));
+            index++;
+            //special placement for a button left alone on the last line to make it look nice :).
+            float centerX = (Xlevel == 0 && index == numParameters) ? width / 2 : buttonX[Xlevel];
+            updateButtons.put(parameter,  new Button(parameter, centerX, centerY, buttonHeight));
             updateButtons.get(parameter).draw();
             if (Xlevel == 2){
                 Xlevel = 0;
@@ -118,10 +142,6 @@ public class MenuWindow extends ProcessingWindow {
          * Draws the button to the output window
          */
         private void draw() {
-            //special placement for the magic wand to make it look nice :).
-            if(parameter.equals("Magic Wand")){
-                this.centerX = width / 2;
-            }
             rectMode(CENTER);
             fill(50);
             rect(centerX, centerY, bWidth, bHeight);
@@ -0,0 +1,115 @@
+package com.ncfsofteng.artprogram;
+
+/**
+ * Palette.java
+ * A table of up to 255 user definable colors, which may be translucent. Shapes store a
+ * one byte index into the palette and the packed ARGB color is looked up when the shape
+ * is drawn, so changing an entry recolors everything drawn with it without touching the shapes.
+ * Index 255 is reserved for NONE, meaning "no color of its own".
+ */
+
+import java.util.Arrays;
+
+class Palette {
+    public static final int SIZE = 255;
+    public static final int NONE = 255;
+
+    private final int[] colors = new int[SIZE + 1];
+    private final String[] names = new String[SIZE];
+    private int count = 0;
+
+    /**
+     * Creates a palette holding the 11 colors of the menu buttons at indices 0-10:
+     * RED/GREEN/BLUE/WHITE/GREY/BLACK/YELLOW/CYAN/MAGENTA/ORANGE/BROWN
+     */
+    public Palette() {
+        add("Red", rgb(255, 0, 0));
+        add("Green", rgb(0, 255, 0));
+        add("Blue", rgb(0, 0, 255));
+        add("White", rgb(255, 255, 255));
+        add("Grey", rgb(128, 128, 128));
+        add("Black", rgb(0, 0, 0));
+        add("Yellow", rgb(255, 255, 0));
+        add("Cyan", rgb(0, 255, 255));
+        add("Magenta", rgb(255, 0, 255));
+        add("Orange", rgb(255, 165, 0));
+        add("Brown", rgb(165, 42, 42));
+        // Unused indices and NONE resolve to black
+        Arrays.fill(colors, count, colors.length, rgb(0, 0, 0));
+    }
+
+    /**
+     * Creates a copy of another palette, e.g. for a background export that must not see later edits
+     */
+    public Palette(Palette source) {
+        System.arraycopy(source.colors, 0, colors, 0, colors.length);
+        System.arraycopy(source.names, 0, names, 0, names.length);
+        count = source.count;
+    }
+
+    /**
+     * Returns the packed ARGB color of an index
+     * @param index palette index (0-255)
+     * @return ARGB color
+     */
+    public int argb(int index) {
+        return colors[index & 0xFF];
+    }
+
+    /**
+     * Changes the color of an existing entry or defines a new one. Indices past the end
+     * of the palette are appended, so the returned index may differ from the requested one.
+     * @param index palette index to change
+     * @param name name of the color
+     * @param argb new ARGB color
+     * @return index that now holds the color, or -1 if the palette is full
+     */
+    public int set(int index, String name, int argb) {
+        if (index < 0) {
+            return -1;
+        }
+        if (index >= count) {
+            return add(name, argb);
+        }
+        colors[index] = argb;
+        names[index] = name;
+        return index;
+    }
+
+    /**
+     * Appends a color to the palette
+     * @param name name of the color
+     * @param argb ARGB color
+     * @return index of the new color, or -1 if the palette is full
+     */
+    public int add(String name, int argb) {
+        if (count == SIZE) {
+            return -1;
+        }
+        colors[count] = argb;
+        names[count] = name;
+        return count++;
+    }
+
+    public String name(int index) {
+        return names[index];
+    }
+
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Packs an opaque color the same way Processing's color(r, g, b) does in the default color mode
+     */
+    public static int rgb(int r, int g, int b) {
+        return argb(255, r, g, b);
+    }
+
+    /**
+     * Packs a translucent color the same way Processing's color(r, g, b, a) does in the default color mode
+     */
+    public static int argb(int a, int r, int g, int b) {
+        return (a << 24) | (r << 16) | (g << 8) | b;
+    }
+}
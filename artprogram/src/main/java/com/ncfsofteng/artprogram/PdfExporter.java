@@ -0,0 +1,573 @@
+package com.ncfsofteng.artprogram;
+
+/**
+ * PdfExporter.java
+ * Writes the canvas as a single page PDF while the shapes are being visited, so memory use
+ * does not grow with the drawing. Each layer is a form XObject that is an isolated transparency
+ * group, so the page paints it once with the opacity and blend mode of the layer, the way the
+ * Compositor does on screen, and the shapes inside only carry their own alpha and blend mode.
+ * The content of each layer is deflated on its way to the file and its length is written
+ * afterwards as an indirect object. Consecutive primitives of the same opaque color are merged
+ * into one path with one fill operator, which turns a brush stroke or a cloud of spray paint
+ * into a single path of compact "re" dots instead of thousands of fills. All subpaths run in
+ * the same direction, so under the nonzero rule merged shapes never cut holes in each other.
+ * Translucent and blended primitives are filled one at a time so overlaps blend as they do on
+ * screen. Images are written once per PImage after the layers, with their alpha as a soft mask.
+ */
+
+import processing.core.PConstants;
+import processing.core.PImage;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+class PdfExporter implements VectorSink {
+    // Distance of the bezier control points of a quarter of the unit circle
+    private static final float KAPPA = 0.5522848f;
+    // Objects with fixed numbers, the rest are numbered as they are written
+    private static final int CATALOG = 1;
+    private static final int PAGES = 2;
+    private static final int PAGE = 3;
+    private static final int CONTENT = 4;
+    private static final int RESOURCES = 5;
+    // Kinds of pending path
+    private static final int NONE = 0;
+    private static final int FILL = 1;
+    private static final int STROKE = 2;
+    // Graphics state of an opaque primitive in the normal blend mode, the only one that is merged
+    private static final int OPAQUE = (Compositor.NORMAL << 8) | 255;
+    // PDF names of the Compositor blend modes. PDF has no additive mode, so ADD falls back to Normal.
+    private static final String[] BLEND_NAMES = {"Normal", "Multiply", "Screen", "Normal", "Darken", "Lighten", "Difference"};
+    // Every channel value 0-255 written as a fraction of 1
+    private static final String[] UNIT = new String[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            String s = String.valueOf(Math.round(i * 1000 / 255f) / 1000f);
+            UNIT[i] = s.endsWith(".0") ? s.substring(0, s.length() - 2) : s;
+        }
+    }
+
+    private final Counter file;
+    private DeflaterOutputStream content;
+    private final Deflater deflater = new Deflater();
+    private final int width;
+    private final int height;
+    // Layer content is formatted here before it is deflated
+    private final byte[] buffer = new byte[1 << 14];
+    private int used = 0;
+    private long[] offsets = new long[16];
+    private int objects = RESOURCES;
+
+    // The layer being written: its form, the object its length goes in and where its stream starts
+    private int group;
+    private int groupLength;
+    private long groupStart;
+    private boolean painted = false; // anything drawn in the layer yet
+    // Form and graphics state of each layer, in drawing order
+    private final ArrayList<int[]> groups = new ArrayList<>();
+
+    // Current graphics state within the layer
+    private int shapeBlend = Compositor.NORMAL;
+    private int fillArgb = 0xFF000000;
+    private int fillRgb = 0;
+    private int strokeRgb = 0;
+    private float lineWidth = 1;
+    private int state = OPAQUE;
+    private int pending = NONE;
+
+    // Graphics states and images used by the page and the layers, in the order they were first used
+    private final Map<Integer, Integer> states = new LinkedHashMap<>();
+    private final Map<PImage, Integer> images = new IdentityHashMap<>();
+    private final ArrayList<PImage> imageList = new ArrayList<>();
+
+    /**
+     * Starts a page and writes everything up to the content of the first layer.
+     * @param out stream to write the file to, which is left open
+     * @param width width of the page in pixels
+     * @param height height of the page in pixels
+     */
+    public PdfExporter(OutputStream out, int width, int height) throws IOException {
+        this.file = new Counter(out);
+        this.width = width;
+        this.height = height;
+        ascii("%PDF-1.4\n");
+        begin(CATALOG);
+        ascii("<< /Type /Catalog /Pages " + PAGES + " 0 R >>\nendobj\n");
+        begin(PAGES);
+        ascii("<< /Type /Pages /Kids [" + PAGE + " 0 R] /Count 1 >>\nendobj\n");
+        begin(PAGE);
+        ascii("<< /Type /Page /Parent " + PAGES + " 0 R /MediaBox [0 0 " + width + " " + height + "] /Resources "
+                + RESOURCES + " 0 R /Contents " + CONTENT + " 0 R >>\nendobj\n");
+        beginGroup(OPAQUE);
+    }
+
+    public void layer(float opacity, int blend) throws IOException {
+        int key = (blend << 8) | Math.round(opacity * 255);
+        if (painted) {
+            endGroup();
+            beginGroup(key);
+        }
+        else {
+            // Nothing to paint yet, so the layer started last can take the new settings
+            groups.get(groups.size() - 1)[1] = key;
+        }
+        shapeBlend = Compositor.NORMAL;
+    }
+
+    public void blend(int blend) {
+        shapeBlend = blend;
+    }
+
+    public void fill(int argb) {
+        fillArgb = argb;
+    }
+
+    public void rect(float x, float y, float w, float h) throws IOException {
+        paint(FILL, fillArgb);
+        // Keep every rectangle in the same direction as every other subpath
+        if (w < 0) {
+            x += w;
+            w = -w;
+        }
+        if (h < 0) {
+            y += h;
+            h = -h;
+        }
+        put(x).put(y).put(w).put(h).put("re\n");
+    }
+
+    public void rect(float cx, float cy, float w, float h, float angle) throws IOException {
+        if (angle == 0) {
+            rect(cx - w / 2, cy - h / 2, w, h);
+            return;
+        }
+        paint(FILL, fillArgb);
+        float cos = (float) Math.cos(angle);
+        float sin = (float) Math.sin(angle);
+        float rx = Math.abs(w) / 2;
+        float ry = Math.abs(h) / 2;
+        point(cx, cy, cos, sin, -rx, -ry).put("m ");
+        point(cx, cy, cos, sin, rx, -ry).put("l ");
+        point(cx, cy, cos, sin, rx, ry).put("l ");
+        point(cx, cy, cos, sin, -rx, ry).put("l h\n");
+    }
+
+    public void ellipse(float cx, float cy, float w, float h, float angle) throws IOException {
+        paint(FILL, fillArgb);
+        float cos = (float) Math.cos(angle);
+        float sin = (float) Math.sin(angle);
+        float rx = Math.abs(w) / 2;
+        float ry = Math.abs(h) / 2;
+        float kx = KAPPA * rx;
+        float ky = KAPPA * ry;
+        // Four quarter arcs, turning the same way as a rectangle
+        point(cx, cy, cos, sin, rx, 0).put("m ");
+        point(cx, cy, cos, sin, rx, ky);
+        point(cx, cy, cos, sin, kx, ry);
+        point(cx, cy, cos, sin, 0, ry).put("c ");
+        point(cx, cy, cos, sin, -kx, ry);
+        point(cx, cy, cos, sin, -rx, ky);
+        point(cx, cy, cos, sin, -rx, 0).put("c ");
+        point(cx, cy, cos, sin, -rx, -ky);
+        point(cx, cy, cos, sin, -kx, -ry);
+        point(cx, cy, cos, sin, 0, -ry).put("c ");
+        point(cx, cy, cos, sin, kx, -ry);
+        point(cx, cy, cos, sin, rx, -ky);
+        point(cx, cy, cos, sin, rx, 0).put("c h\n");
+    }
+
+    public void dot(int x, int y) throws IOException {
+        paint(FILL, fillArgb);
+        put(x).put(y).put("1 1 re\n");
+    }
+
+    public void line(float x0, float y0, float x1, float y1, int argb) throws IOException {
+        lineWidth(1);
+        paint(STROKE, argb);
+        put(x0).put(y0).put("m ").put(x1).put(y1).put("l\n");
+    }
+
+    public void stroke(float[] points, int count, boolean curves, float width, int argb) throws IOException {
+        lineWidth(width);
+        paint(STROKE, argb);
+        put(points[0]).put(points[1]).put("m ");
+        if (count == 2) {
+            // A segment of no length, which round caps turn into a dot
+            put(points[0]).put(points[1]).put("l\n");
+            return;
+        }
+        for (int i = 2; i < count; i += curves ? 6 : 2) {
+            if (curves) {
+                put(points[i]).put(points[i + 1]).put(points[i + 2]).put(points[i + 3]).put(points[i + 4]).put(points[i + 5]).put("c ");
+            }
+            else {
+                put(points[i]).put(points[i + 1]).put("l ");
+            }
+        }
+        put("\n");
+    }
+
+    public void image(PImage image, int x, int y) throws IOException {
+        endPath();
+        setState(0xFF000000);
+        painted = true;
+        Integer index = images.get(image);
+        if (index == null) {
+            index = imageList.size();
+            images.put(image, index);
+            imageList.add(image);
+        }
+        // Map the unit square of the image onto its rectangle, top row first
+        put("q ").put(image.width).put("0 0 ").put(-image.height).put(x).put(y + image.height)
+                .put("cm /I").put(index).put("Do Q\n");
+    }
+
+    public void finish() throws IOException {
+        endGroup();
+        deflater.end();
+
+        // The page paints each layer once with its graphics state
+        StringBuilder page = new StringBuilder();
+        for (int[] g : groups) {
+            page.append("q ");
+            if (g[1] != OPAQUE) {
+                page.append("/G").append(stateIndex(g[1])).append(" gs ");
+            }
+            page.append("/L").append(g[0]).append(" Do Q\n");
+        }
+        begin(CONTENT);
+        ascii("<< /Length " + page.length() + " >>\nstream\n" + page + "endstream\nendobj\n");
+
+        int[] imageObjects = new int[imageList.size()];
+        for (int i = 0; i < imageObjects.length; i++) {
+            imageObjects[i] = writeImage(imageList.get(i));
+        }
+
+        begin(RESOURCES);
+        StringBuilder resources = new StringBuilder("<< /ExtGState <<");
+        for (Map.Entry<Integer, Integer> s : states.entrySet()) {
+            String alpha = UNIT[s.getKey() & 0xFF];
+            resources.append(" /G").append(s.getValue()).append(" << /ca ").append(alpha).append(" /CA ").append(alpha)
+                    .append(" /BM /").append(BLEND_NAMES[s.getKey() >> 8]).append(" >>");
+        }
+        resources.append(" >> /XObject <<");
+        for (int[] g : groups) {
+            resources.append(" /L").append(g[0]).append(' ').append(g[0]).append(" 0 R");
+        }
+        for (int i = 0; i < imageObjects.length; i++) {
+            resources.append(" /I").append(i).append(' ').append(imageObjects[i]).append(" 0 R");
+        }
+        resources.append(" >> >>\nendobj\n");
+        ascii(resources.toString());
+
+        long xref = file.count;
+        StringBuilder table = new StringBuilder();
+        table.append("xref\n0 ").append(objects + 1).append("\n0000000000 65535 f \n");
+        for (int i = 1; i <= objects; i++) {
+            String offset = String.valueOf(offsets[i]);
+            for (int j = offset.length(); j < 10; j++) {
+                table.append('0');
+            }
+            table.append(offset).append(" 00000 n \n");
+        }
+        table.append("trailer\n<< /Size ").append(objects + 1).append(" /Root ").append(CATALOG)
+                .append(" 0 R >>\nstartxref\n").append(xref).append("\n%%EOF\n");
+        ascii(table.toString());
+        file.flush();
+    }
+
+    /*
+     * Starts the form of a layer, which later graphics states and primitives go into
+     * @param key graphics state the page paints the layer with, as made by key()
+     */
+    private void beginGroup(int key) throws IOException {
+        group = ++objects;
+        groupLength = ++objects;
+        groups.add(new int[] {group, key});
+        begin(group);
+        ascii("<< /Type /XObject /Subtype /Form /BBox [0 0 " + width + " " + height
+                + "] /Group << /S /Transparency /I true >> /Resources " + RESOURCES + " 0 R /Length "
+                + groupLength + " 0 R /Filter /FlateDecode >>\nstream\n");
+        groupStart = file.count;
+        deflater.reset();
+        content = new DeflaterOutputStream(file, deflater, 1 << 16);
+        painted = false;
+        // A group starts from the initial graphics state whatever the page has set
+        state = OPAQUE;
+        pending = NONE;
+        fillRgb = 0;
+        strokeRgb = 0;
+        lineWidth = 1;
+
+        // Flip the page so y grows downwards like on the canvas, and round the ends and joins of lines
+        put("1 0 0 -1 0 ").put(height).put("cm 1 J 1 j\n");
+    }
+
+    /*
+     * Writes the rest of the form of the layer being written and its length
+     */
+    private void endGroup() throws IOException {
+        endPath();
+        drain();
+        content.finish();
+        long length = file.count - groupStart;
+        ascii("\nendstream\nendobj\n");
+        begin(groupLength);
+        ascii(length + "\nendobj\n");
+    }
+
+    /*
+     * Gets ready to add a primitive of the given kind and color to the layer. It joins the pending
+     * path when that path has the same kind, color and graphics state and is opaque.
+     */
+    private void paint(int kind, int argb) throws IOException {
+        int rgb = argb & 0xFFFFFF;
+        int key = key(argb);
+        painted = true;
+        if (pending == kind && key == state && key == OPAQUE && rgb == (kind == FILL ? fillRgb : strokeRgb)) {
+            return;
+        }
+        endPath();
+        setState(argb);
+        if (kind == FILL && rgb != fillRgb) {
+            color(rgb).put("rg\n");
+            fillRgb = rgb;
+        }
+        else if (kind == STROKE && rgb != strokeRgb) {
+            color(rgb).put("RG\n");
+            strokeRgb = rgb;
+        }
+        pending = kind;
+    }
+
+    /*
+     * Graphics state of a primitive of the given color within its layer: blend mode in the high
+     * bits and alpha in the low byte
+     */
+    private int key(int argb) {
+        return (shapeBlend << 8) | argb >>> 24;
+    }
+
+    private void setState(int argb) throws IOException {
+        int key = key(argb);
+        if (key == state) {
+            return;
+        }
+        put("/G").put(stateIndex(key)).put("gs\n");
+        state = key;
+    }
+
+    /*
+     * Returns the number of the ExtGState of a graphics state key, adding it if it is new
+     */
+    private int stateIndex(int key) {
+        Integer index = states.get(key);
+        if (index == null) {
+            index = states.size();
+            states.put(key, index);
+        }
+        return index;
+    }
+
+    /*
+     * Sets the width of the following strokes, which ends the pending stroke if it was different
+     */
+    private void lineWidth(float width) throws IOException {
+        if (width != lineWidth) {
+            endPath();
+            put(width).put("w\n");
+            lineWidth = width;
+        }
+    }
+
+    private void endPath() throws IOException {
+        if (pending == FILL) {
+            put("f\n");
+        }
+        else if (pending == STROKE) {
+            put("S\n");
+        }
+        pending = NONE;
+    }
+
+    /*
+     * Writes an image and its soft mask, returning the object number of the image
+     */
+    private int writeImage(PImage image) throws IOException {
+        image.loadPixels();
+        boolean alpha = false;
+        if (image.format == PConstants.ARGB) {
+            for (int p : image.pixels) {
+                if (p >>> 24 != 255) {
+                    alpha = true;
+                    break;
+                }
+            }
+        }
+        int mask = alpha ? writeSamples(image, true, 0) : 0;
+        return writeSamples(image, false, mask);
+    }
+
+    /*
+     * Writes the color or the alpha channel of an image as a deflated image object, one row at a time
+     */
+    private int writeSamples(PImage image, boolean alpha, int mask) throws IOException {
+        int object = ++objects;
+        int length = ++objects;
+        begin(object);
+        ascii("<< /Type /XObject /Subtype /Image /Width " + image.width + " /Height " + image.height
+                + (alpha ? " /ColorSpace /DeviceGray" : " /ColorSpace /DeviceRGB") + " /BitsPerComponent 8"
+                + (mask != 0 ? " /SMask " + mask + " 0 R" : "") + " /Filter /FlateDecode /Length " + length + " 0 R >>\nstream\n");
+        long start = file.count;
+        Deflater rows = new Deflater();
+        DeflaterOutputStream samples = new DeflaterOutputStream(file, rows, 1 << 16);
+        byte[] row = new byte[image.width * (alpha ? 1 : 3)];
+        for (int y = 0; y < image.height; y++) {
+            int i = y * image.width;
+            if (alpha) {
+                for (int x = 0; x < image.width; x++) {
+                    row[x] = (byte) (image.pixels[i + x] >>> 24);
+                }
+            }
+            else {
+                for (int x = 0, j = 0; x < image.width; x++) {
+                    int p = image.pixels[i + x];
+                    row[j++] = (byte) (p >> 16);
+                    row[j++] = (byte) (p >> 8);
+                    row[j++] = (byte) p;
+                }
+            }
+            samples.write(row);
+        }
+        samples.finish();
+        rows.end();
+        long size = file.count - start;
+        ascii("\nendstream\nendobj\n");
+        begin(length);
+        ascii(size + "\nendobj\n");
+        return object;
+    }
+
+    private PdfExporter point(float cx, float cy, float cos, float sin, float x, float y) throws IOException {
+        return put(cx + cos * x - sin * y).put(cy + sin * x + cos * y);
+    }
+
+    private PdfExporter color(int rgb) throws IOException {
+        return put(UNIT[rgb >> 16 & 0xFF]).put(" ").put(UNIT[rgb >> 8 & 0xFF]).put(" ").put(UNIT[rgb & 0xFF]).put(" ");
+    }
+
+    /*
+     * Records where an object starts and writes its header
+     */
+    private void begin(int object) throws IOException {
+        if (object >= offsets.length) {
+            offsets = Arrays.copyOf(offsets, object * 2);
+        }
+        offsets[object] = file.count;
+        ascii(object + " 0 obj\n");
+    }
+
+    private void ascii(String s) throws IOException {
+        file.write(s.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /*
+     * The put() methods append to the content of the layer being written
+     */
+    private PdfExporter put(String s) throws IOException {
+        if (used + s.length() > buffer.length) {
+            drain();
+        }
+        for (int i = 0; i < s.length(); i++) {
+            buffer[used++] = (byte) s.charAt(i);
+        }
+        return this;
+    }
+
+    /*
+     * Writes an integer followed by a space
+     */
+    private PdfExporter put(int v) throws IOException {
+        if (used + 12 > buffer.length) {
+            drain();
+        }
+        if (v < 0) {
+            buffer[used++] = '-';
+            v = -v;
+        }
+        int digits = 1;
+        for (int t = v; t >= 10; t /= 10) {
+            digits++;
+        }
+        for (int i = used + digits - 1; i >= used; i--) {
+            buffer[i] = (byte) ('0' + v % 10);
+            v /= 10;
+        }
+        used += digits;
+        buffer[used++] = ' ';
+        return this;
+    }
+
+    /*
+     * Writes a number rounded to two decimals followed by a space
+     */
+    private PdfExporter put(float v) throws IOException {
+        int hundredths = Math.round(v * 100);
+        if (hundredths % 100 == 0) {
+            return put(hundredths / 100);
+        }
+        if (hundredths < 0) {
+            put("-");
+            hundredths = -hundredths;
+        }
+        put(hundredths / 100);
+        // Replace the space after the integer part with the decimals
+        used--;
+        int fraction = hundredths % 100;
+        buffer[used++] = '.';
+        buffer[used++] = (byte) ('0' + fraction / 10);
+        if (fraction % 10 != 0) {
+            buffer[used++] = (byte) ('0' + fraction % 10);
+        }
+        buffer[used++] = ' ';
+        return this;
+    }
+
+    private void drain() throws IOException {
+        content.write(buffer, 0, used);
+        used = 0;
+    }
+
+    /*
+     * Counts the bytes written so objects can be listed by offset in the cross reference table
+     */
+    private static class Counter extends FilterOutputStream {
+        long count = 0;
+
+        Counter(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,336 @@
+package com.ncfsofteng.artprogram;
+
+/**
+ * PngEncoder.java
+ * Writes packed ARGB pixels as a PNG using every core. The image is cut into bands of rows
+ * and each band is filtered and deflated on the compute pool as a separate raw deflate
+ * stream. Every band but the last ends with a sync flush, which leaves it byte aligned and
+ * unfinished, so the bands can be written one after another as a single zlib stream. Each
+ * band becomes its own IDAT chunk as soon as it and the bands before it are done, and the
+ * Adler-32 checksums of the bands are combined at the end. Buffers and deflaters are kept
+ * between calls, so an encoder used for repeated saves stops allocating after the first one.
+ * An encoder may only be used by one thread at a time.
+ */
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+class PngEncoder {
+    private static final byte[] SIGNATURE = {(byte) 137, 80, 78, 71, 13, 10, 26, 10};
+    // Rows are rarely worth splitting into bands smaller than this
+    private static final int MIN_BAND = 32;
+    private static final int ADLER_BASE = 65521;
+
+    private final int level;
+    private final ArrayList<Band> bands = new ArrayList<>();
+    private final CRC32 crc = new CRC32();
+    private final byte[] header = new byte[8];
+
+    /**
+     * @param level deflate level (0-9), Deflater.BEST_SPEED is a good choice for interactive saves
+     */
+    public PngEncoder(int level) {
+        this.level = level;
+    }
+
+    /**
+     * Encodes an image.
+     * @param pixels ARGB pixels, row major
+     * @param width width of the image
+     * @param height height of the image
+     * @param alpha true to keep the alpha channel, false to write an opaque RGB image
+     * @param out stream to write the PNG to, which is left open
+     */
+    public void encode(int[] pixels, int width, int height, boolean alpha, OutputStream out) throws IOException {
+        encode(pixels, width, height, alpha, out, null, null);
+    }
+
+    /**
+     * Encodes an image with an extra chunk before the image data, where readers that only
+     * want the chunk find it without reading the rest of the file.
+     * @param pixels ARGB pixels, row major
+     * @param width width of the image
+     * @param height height of the image
+     * @param alpha true to keep the alpha channel, false to write an opaque RGB image
+     * @param out stream to write the PNG to, which is left open
+     * @param type type of the extra chunk, such as Previews.CHUNK
+     * @param data contents of the extra chunk, or null to leave it out
+     */
+    public void encode(final int[] pixels, final int width, final int height, final boolean alpha, OutputStream out,
+                       String type, byte[] data) throws IOException {
+        ForkJoinPool pool = WorkerPools.compute();
+        int rows = Math.max(MIN_BAND, (height + pool.getParallelism() * 2 - 1) / (pool.getParallelism() * 2));
+        int count = Math.max(1, (height + rows - 1) / rows);
+        while (bands.size() < count) {
+            bands.add(new Band(level));
+        }
+
+        ArrayList<ForkJoinTask<?>> tasks = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            final Band band = bands.get(i);
+            final int y0 = i * rows;
+            final int y1 = Math.min(height, y0 + rows);
+            final boolean last = i == count - 1;
+            tasks.add(pool.submit(new Runnable() {
+                public void run() {
+                    band.encode(pixels, width, y0, y1, alpha, last);
+                }
+            }));
+        }
+
+        out.write(SIGNATURE);
+        byte[] ihdr = new byte[13];
+        putInt(ihdr, 0, width);
+        putInt(ihdr, 4, height);
+        ihdr[8] = 8; // bits per channel
+        ihdr[9] = (byte) (alpha ? 6 : 2); // RGBA or RGB
+        chunk(out, "IHDR", ihdr, 0, ihdr.length);
+        if (data != null) {
+            chunk(out, type, data, 0, data.length);
+        }
+
+        // zlib header for a 32K window, then the bands in order as they finish
+        long adler = 1;
+        for (int i = 0; i < count; i++) {
+            tasks.get(i).join();
+            Band band = bands.get(i);
+            int off = 0;
+            if (i == 0) {
+                band.out[0] = 0x78;
+                band.out[1] = 0x01;
+            }
+            else {
+                off = 2;
+            }
+            adler = combine(adler, band.adler, band.rawLength);
+            int length = band.length - off;
+            if (i == count - 1) {
+                putInt(band.out, band.length, (int) adler);
+                length += 4;
+            }
+            chunk(out, "IDAT", band.out, off, length);
+        }
+        chunk(out, "IEND", new byte[0], 0, 0);
+    }
+
+    /*
+     * Writes a chunk with its length and CRC
+     */
+    private void chunk(OutputStream out, String type, byte[] data, int off, int len) throws IOException {
+        putInt(header, 0, len);
+        for (int i = 0; i < 4; i++) {
+            header[4 + i] = (byte) type.charAt(i);
+        }
+        crc.reset();
+        crc.update(header, 4, 4);
+        crc.update(data, off, len);
+        out.write(header, 0, 8);
+        out.write(data, off, len);
+        putInt(header, 0, (int) crc.getValue());
+        out.write(header, 0, 4);
+    }
+
+    /*
+     * Adler-32 of two byte ranges put together, from the Adler-32 of each and the length of the second
+     */
+    static long combine(long adler1, long adler2, long length2) {
+        long rem = length2 % ADLER_BASE;
+        long sum1 = adler1 & 0xFFFF;
+        long sum2 = (rem * sum1) % ADLER_BASE;
+        sum1 += (adler2 & 0xFFFF) + ADLER_BASE - 1;
+        sum2 += (adler1 >>> 16) + (adler2 >>> 16) + ADLER_BASE - rem;
+        if (sum1 >= ADLER_BASE) {
+            sum1 -= ADLER_BASE;
+        }
+        if (sum1 >= ADLER_BASE) {
+            sum1 -= ADLER_BASE;
+        }
+        if (sum2 >= 2L * ADLER_BASE) {
+            sum2 -= 2L * ADLER_BASE;
+        }
+        if (sum2 >= ADLER_BASE) {
+            sum2 -= ADLER_BASE;
+        }
+        return sum1 | (sum2 << 16);
+    }
+
+    private static void putInt(byte[] b, int off, int v) {
+        b[off] = (byte) (v >>> 24);
+        b[off + 1] = (byte) (v >>> 16);
+        b[off + 2] = (byte) (v >>> 8);
+        b[off + 3] = (byte) v;
+    }
+
+    /*
+     * A band of rows with the buffers it is filtered and deflated into
+     */
+    private static class Band {
+        final Deflater deflater;
+        final Adler32 checksum = new Adler32();
+        byte[] previous = new byte[0];
+        byte[] current = new byte[0];
+        byte[] filtered = new byte[0];
+        byte[] trial = new byte[0];
+        // Two bytes are kept free in front for the zlib header and four at the end for the checksum
+        byte[] out = new byte[0];
+        int length;
+        long adler;
+        long rawLength;
+
+        Band(int level) {
+            deflater = new Deflater(level, true);
+        }
+
+        void encode(int[] pixels, int width, int y0, int y1, boolean alpha, boolean last) {
+            int bpp = alpha ? 4 : 3;
+            int stride = width * bpp;
+            if (current.length != stride) {
+                previous = new byte[stride];
+                current = new byte[stride];
+                filtered = new byte[stride + 1];
+                trial = new byte[stride + 1];
+            }
+            // zlib's worst case for incompressible input, plus 5 bytes for each stored block
+            // and for the sync flush. ensureRoom() grows the buffer if it is ever exceeded.
+            int raw = (y1 - y0) * (stride + 1);
+            int bound = raw + (raw >> 12) + (raw >> 14) + (raw >> 25) + 13 + 5 * ((raw >> 14) + 2);
+            if (out.length < bound + 6) {
+                out = new byte[bound + 6];
+            }
+            deflater.reset();
+            checksum.reset();
+            length = 2;
+
+            // The first row is filtered against the last row of the band above
+            if (y0 > 0) {
+                unpack(pixels, (y0 - 1) * width, width, alpha, previous);
+            }
+            else {
+                Arrays.fill(previous, (byte) 0);
+            }
+            for (int y = y0; y < y1; y++) {
+                unpack(pixels, y * width, width, alpha, current);
+                filter(current, previous, bpp, stride);
+                checksum.update(filtered, 0, stride + 1);
+                deflater.setInput(filtered, 0, stride + 1);
+                while (!deflater.needsInput()) {
+                    ensureRoom();
+                    length += deflater.deflate(out, length, out.length - 4 - length, Deflater.NO_FLUSH);
+                }
+                byte[] t = previous;
+                previous = current;
+                current = t;
+            }
+            if (last) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    ensureRoom();
+                    length += deflater.deflate(out, length, out.length - 4 - length, Deflater.NO_FLUSH);
+                }
+            }
+            else {
+                // A full buffer means there may be more to flush
+                int room;
+                int n;
+                do {
+                    ensureRoom();
+                    room = out.length - 4 - length;
+                    n = deflater.deflate(out, length, room, Deflater.SYNC_FLUSH);
+                    length += n;
+                } while (n == room);
+            }
+            adler = checksum.getValue();
+            rawLength = (long) (y1 - y0) * (stride + 1);
+        }
+
+        /*
+         * Grows out when it is full, since deflate() makes no progress without room to write to
+         */
+        private void ensureRoom() {
+            if (out.length - 4 - length <= 0) {
+                out = Arrays.copyOf(out, out.length + (out.length >> 1) + 64);
+            }
+        }
+
+        private static void unpack(int[] pixels, int off, int width, boolean alpha, byte[] row) {
+            int j = 0;
+            for (int i = off; i < off + width; i++) {
+                int p = pixels[i];
+                row[j++] = (byte) (p >> 16);
+                row[j++] = (byte) (p >> 8);
+                row[j++] = (byte) p;
+                if (alpha) {
+                    row[j++] = (byte) (p >>> 24);
+                }
+            }
+        }
+
+        /*
+         * Picks the filter with the smallest sum of absolute residuals, the usual PNG heuristic,
+         * and leaves the filtered row with its filter type byte in filtered[]
+         */
+        private void filter(byte[] row, byte[] up, int bpp, int stride) {
+            long best = Long.MAX_VALUE;
+            for (int type = 0; type <= 4; type++) {
+                byte[] dst = best == Long.MAX_VALUE ? filtered : trial;
+                dst[0] = (byte) type;
+                long sum = 0;
+                for (int i = 0; i < stride; i++) {
+                    int x = row[i] & 0xFF;
+                    int a = i >= bpp ? row[i - bpp] & 0xFF : 0;
+                    int b = up[i] & 0xFF;
+                    int c = i >= bpp ? up[i - bpp] & 0xFF : 0;
+                    int predicted;
+                    switch (type) {
+                        case 1:
+                            predicted = a;
+                            break;
+                        case 2:
+                            predicted = b;
+                            break;
+                        case 3:
+                            predicted = (a + b) >> 1;
+                            break;
+                        case 4:
+                            predicted = paeth(a, b, c);
+                            break;
+                        default:
+                            predicted = 0;
+                            break;
+                    }
+                    byte v = (byte) (x - predicted);
+                    dst[i + 1] = v;
+                    sum += Math.abs(v);
+                    if (sum >= best) {
+                        break;
+                    }
+                }
+                if (sum < best) {
+                    best = sum;
+                    if (dst == trial) {
+                        trial = filtered;
+                        filtered = dst;
+                    }
+                }
+            }
+        }
+
+        private static int paeth(int a, int b, int c) {
+            int p = a + b - c;
+            int pa = Math.abs(p - a);
+            int pb = Math.abs(p - b);
+            int pc = Math.abs(p - c);
+            if (pa <= pb && pa <= pc) {
+                return a;
+            }
+            return pb <= pc ? b : c;
+        }
+    }
+}
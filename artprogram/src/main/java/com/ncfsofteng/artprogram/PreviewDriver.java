@@ -0,0 +1,127 @@
+package com.ncfsofteng.artprogram;
+
+/**
+ * PreviewDriver.java
+ * Looks after the previews of a folder of saved drawings without a display, see Previews.
+ * By default it gives every PNG in the folder a new preview, working on one file per core.
+ * Each file is decoded once to shrink it, and its image data is copied over as it is. With
+ * --list it prints the size and preview of each PNG instead, reading only the start of the
+ * files, so even a large folder lists in moments.
+ *
+ * Usage: PreviewDriver [--list] [--size pixels] folder
+ *   --list  list the drawings and their previews instead of making new previews
+ *   --size  longest side of new previews, 256 by default
+ */
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
+
+import javax.imageio.ImageIO;
+
+public class PreviewDriver {
+
+    public static void main(String[] args) throws InterruptedException {
+        System.setProperty("java.awt.headless", "true");
+        boolean list = false;
+        int size = Previews.SIZE;
+        String folder = null;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--list")) {
+                list = true;
+            }
+            else if (args[i].equals("--size") && i + 1 < args.length) {
+                try {
+                    size = Integer.parseInt(args[++i]);
+                }
+                catch (NumberFormatException e) {
+                    // Not a size, so the usage is printed below
+                    size = 0;
+                }
+            }
+            else {
+                folder = args[i];
+            }
+        }
+        if (folder == null || size < 1 || !new File(folder).isDirectory()) {
+            System.err.println("Usage: PreviewDriver [--list] [--size pixels] folder");
+            System.exit(2);
+        }
+
+        File[] files = new File(folder).listFiles(new FileFilter() {
+            public boolean accept(File file) {
+                return file.isFile() && file.getName().toLowerCase().endsWith(".png");
+            }
+        });
+        Arrays.sort(files);
+        long start = System.nanoTime();
+        int failed = list ? list(files) : regenerate(files, size);
+        System.out.println(files.length + " drawings in " + (System.nanoTime() - start) / 1000000 + " ms"
+                + (failed > 0 ? ", " + failed + " failed" : ""));
+        System.exit(failed > 0 ? 1 : 0);
+    }
+
+    /*
+     * Prints each drawing's size and preview, returns how many couldn't be read
+     */
+    private static int list(File[] files) {
+        int failed = 0;
+        for (File file : files) {
+            try {
+                Previews.Info info = Previews.read(file);
+                System.out.println(file.getName() + "\t" + info.width + "x" + info.height + "\t"
+                        + (info.preview == null ? "no preview"
+                        : "preview " + info.previewWidth() + "x" + info.previewHeight() + ", " + info.preview.length + " bytes"));
+            }
+            catch (IOException e) {
+                System.err.println(file.getName() + ": " + e.getMessage());
+                failed++;
+            }
+        }
+        return failed;
+    }
+
+    /*
+     * Gives each drawing a new preview on the compute pool, returns how many failed
+     */
+    private static int regenerate(File[] files, final int size) throws InterruptedException {
+        List<Callable<String>> tasks = new ArrayList<>(files.length);
+        for (final File file : files) {
+            tasks.add(new Callable<String>() {
+                public String call() throws IOException {
+                    BufferedImage image = ImageIO.read(file);
+                    if (image == null) {
+                        throw new IOException("can't decode it");
+                    }
+                    int w = image.getWidth();
+                    int h = image.getHeight();
+                    int[] pixels = image.getRGB(0, 0, w, h, null, 0, w);
+                    // Encoders keep buffers for one thread, and previews are small, so compress them hard
+                    byte[] preview = Previews.encode(pixels, w, h, size, new PngEncoder(Deflater.BEST_COMPRESSION));
+                    Previews.write(file, preview);
+                    return file.getName() + "\t" + w + "x" + h + "\tpreview of " + preview.length + " bytes";
+                }
+            });
+        }
+        int failed = 0;
+        List<Future<String>> results = WorkerPools.compute().invokeAll(tasks);
+        for (int i = 0; i < files.length; i++) {
+            try {
+                System.out.println(results.get(i).get());
+            }
+            catch (ExecutionException e) {
+                System.err.println(files[i].getName() + ": " + e.getCause().getMessage());
+                failed++;
+            }
+        }
+        return failed;
+    }
+}
@@ -0,0 +1,292 @@
+package com.ncfsofteng.artprogram;
+
+/**
+ * Previews.java
+ * Small previews of saved drawings, so a folder of them can be browsed without decoding any
+ * full size image. Save builds the preview on the background thread from its copy of the
+ * canvas, by halving it with a 2x2 box filter until another halving would take it below the
+ * preview size and then box filtering it the rest of the way. That looks like an average of
+ * the whole canvas yet reads each pixel once, and every halving after the first only reads a
+ * quarter as much.
+ *
+ * The preview is kept as a little PNG in a private "prVw" chunk of the saved PNG. The chunk
+ * comes straight after the header, so reading it only reads the start of the file, and
+ * viewers that don't know it skip it. See PreviewDriver for a folder at a time.
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+class Previews {
+    public static final int SIZE = 256; // longest side of a preview by default
+    public static final String CHUNK = "prVw"; // ancillary, private, safe to copy
+    static final int MAX_PREVIEW = 1 << 24; // bytes of the longest preview chunk read, a longer one is damaged
+    private static final byte[] SIGNATURE = {(byte) 137, 80, 78, 71, 13, 10, 26, 10};
+
+    private Previews() {
+    }
+
+    /**
+     * What the start of a PNG says about it
+     */
+    static final class Info {
+        public int width;
+        public int height;
+        public byte[] preview; // PNG of the preview, or null if the file has none
+
+        /**
+         * Returns the width of the preview, read from its header, or 0 if there is none
+         */
+        public int previewWidth() {
+            return preview == null ? 0 : ByteBuffer.wrap(preview, 16, 4).getInt();
+        }
+
+        /**
+         * Returns the height of the preview, read from its header, or 0 if there is none
+         */
+        public int previewHeight() {
+            return preview == null ? 0 : ByteBuffer.wrap(preview, 20, 4).getInt();
+        }
+    }
+
+    /**
+     * Shrinks ARGB pixels so that neither side is over a size, keeping their proportions
+     * @param pixels pixels to shrink, which are left as they are
+     * @param width width of the pixels
+     * @param height height of the pixels
+     * @param size longest side allowed
+     * @param dims set to the width and height of the result
+     * @return the shrunk pixels, or pixels itself if they already fit
+     */
+    public static int[] downsample(int[] pixels, int width, int height, int size, int[] dims) {
+        float scale = Math.min(1f, (float) size / Math.max(width, height));
+        int tw = Math.max(1, Math.round(width * scale));
+        int th = Math.max(1, Math.round(height * scale));
+        int w = width;
+        int h = height;
+        int[] src = pixels;
+        while (w / 2 >= tw && h / 2 >= th) {
+            src = halve(src, w, h);
+            w /= 2;
+            h /= 2;
+        }
+        if (w != tw || h != th) {
+            src = box(src, w, h, tw, th);
+        }
+        dims[0] = tw;
+        dims[1] = th;
+        return src;
+    }
+
+    /**
+     * Encodes a preview of a canvas
+     * @param pixels ARGB pixels of the canvas
+     * @param width width of the canvas
+     * @param height height of the canvas
+     * @param size longest side of the preview
+     * @param encoder encoder to use, which is only used by the calling thread meanwhile
+     * @return the preview as an opaque PNG
+     */
+    public static byte[] encode(int[] pixels, int width, int height, int size, PngEncoder encoder) throws IOException {
+        int[] dims = new int[2];
+        int[] small = downsample(pixels, width, height, size, dims);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(dims[0] * dims[1]);
+        encoder.encode(small, dims[0], dims[1], false, out);
+        return out.toByteArray();
+    }
+
+    /**
+     * Reads the size and the preview of a PNG. Only the chunks before the image data are read.
+     * A chunk whose length can't be right is taken as damaged, and so is everything after it.
+     * @param file PNG to read
+     * @return what the file says, with a null preview if it has none or it is damaged
+     * @throws IOException if the file can't be read or isn't a PNG
+     */
+    public static Info read(File file) throws IOException {
+        Info info = new Info();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 8192))) {
+            byte[] signature = new byte[8];
+            in.readFully(signature);
+            if (!Arrays.equals(signature, SIGNATURE)) {
+                throw new IOException(file + " is not a PNG");
+            }
+            byte[] type = new byte[4];
+            while (true) {
+                int length = in.readInt();
+                in.readFully(type);
+                String name = new String(type, "US-ASCII");
+                if (name.equals("IDAT") || name.equals("IEND")) {
+                    break;
+                }
+                boolean header = name.equals("IHDR");
+                if (length < 0 || (header && length != 13) || (name.equals(CHUNK) && length > MAX_PREVIEW)) {
+                    break;
+                }
+                if (header || name.equals(CHUNK)) {
+                    byte[] data = new byte[length];
+                    in.readFully(data);
+                    CRC32 crc = new CRC32();
+                    crc.update(type);
+                    crc.update(data);
+                    boolean intact = in.readInt() == (int) crc.getValue();
+                    if (header) {
+                        ByteBuffer fields = ByteBuffer.wrap(data);
+                        info.width = fields.getInt();
+                        info.height = fields.getInt();
+                    }
+                    else if (intact && data.length > 24) {
+                        info.preview = data;
+                    }
+                }
+                else {
+                    skip(in, length + 4L);
+                }
+            }
+        }
+        catch (EOFException e) {
+            // A cut off file keeps whatever was read before the cut
+        }
+        return info;
+    }
+
+    /**
+     * Puts a new preview in a PNG. The other chunks are copied as they are, so the image
+     * isn't decoded or compressed again. The file is replaced once the new one is written.
+     * @param file PNG to change
+     * @param preview PNG of the preview
+     */
+    public static void write(File file, byte[] preview) throws IOException {
+        byte[] png = Files.readAllBytes(file.toPath());
+        if (png.length < 8 || !Arrays.equals(Arrays.copyOf(png, 8), SIGNATURE)) {
+            throw new IOException(file + " is not a PNG");
+        }
+        File temp = new File(file.getPath() + ".tmp");
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(temp), 1 << 16)) {
+            out.write(SIGNATURE);
+            ByteBuffer chunks = ByteBuffer.wrap(png);
+            int at = 8;
+            while (at + 12 <= png.length) {
+                int length = chunks.getInt(at);
+                String name = new String(png, at + 4, 4, "US-ASCII");
+                int end = at + 12 + length;
+                if (length < 0 || end > png.length) {
+                    throw new IOException(file + " has a damaged " + name + " chunk");
+                }
+                if (!name.equals(CHUNK)) {
+                    out.write(png, at, end - at);
+                }
+                if (name.equals("IHDR")) {
+                    chunk(out, CHUNK, preview);
+                }
+                at = end;
+                if (name.equals("IEND")) {
+                    break;
+                }
+            }
+        }
+        catch (IOException e) {
+            temp.delete();
+            throw e;
+        }
+        try {
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (IOException e) {
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static void chunk(OutputStream out, String type, byte[] data) throws IOException {
+        byte[] name = type.getBytes("US-ASCII");
+        CRC32 crc = new CRC32();
+        crc.update(name);
+        crc.update(data);
+        DataOutputStream chunk = new DataOutputStream(out);
+        chunk.writeInt(data.length);
+        chunk.write(name);
+        chunk.write(data);
+        chunk.writeInt((int) crc.getValue());
+        chunk.flush();
+    }
+
+    private static void skip(DataInputStream in, long n) throws IOException {
+        while (n > 0) {
+            long skipped = in.skip(n);
+            if (skipped <= 0) {
+                throw new EOFException();
+            }
+            n -= skipped;
+        }
+    }
+
+    /*
+     * Averages each 2x2 block of pixels into one, leaving out the last row and column of odd sizes
+     */
+    private static int[] halve(int[] src, int w, int h) {
+        int nw = w / 2;
+        int nh = h / 2;
+        int[] dst = new int[nw * nh];
+        for (int y = 0; y < nh; y++) {
+            int top = 2 * y * w;
+            int bottom = top + w;
+            for (int x = 0, i = y * nw; x < nw; x++, i++) {
+                int p0 = src[top + 2 * x];
+                int p1 = src[top + 2 * x + 1];
+                int p2 = src[bottom + 2 * x];
+                int p3 = src[bottom + 2 * x + 1];
+                // Two channels at a time, each sum of four bytes fits in its 16 bits
+                int rb = (p0 & 0xFF00FF) + (p1 & 0xFF00FF) + (p2 & 0xFF00FF) + (p3 & 0xFF00FF);
+                int ag = (p0 >>> 8 & 0xFF00FF) + (p1 >>> 8 & 0xFF00FF) + (p2 >>> 8 & 0xFF00FF) + (p3 >>> 8 & 0xFF00FF);
+                dst[i] = (rb + 0x20002) >>> 2 & 0xFF00FF | ((ag + 0x20002) >>> 2 & 0xFF00FF) << 8;
+            }
+        }
+        return dst;
+    }
+
+    /*
+     * Averages the block of pixels each pixel of the result covers, for the last step of
+     * less than a halving
+     */
+    private static int[] box(int[] src, int w, int h, int tw, int th) {
+        int[] dst = new int[tw * th];
+        for (int y = 0; y < th; y++) {
+            int y0 = (int) ((long) y * h / th);
+            int y1 = Math.max(y0 + 1, (int) ((long) (y + 1) * h / th));
+            for (int x = 0; x < tw; x++) {
+                int x0 = (int) ((long) x * w / tw);
+                int x1 = Math.max(x0 + 1, (int) ((long) (x + 1) * w / tw));
+                long a = 0;
+                long r = 0;
+                long g = 0;
+                long b = 0;
+                for (int sy = y0; sy < y1; sy++) {
+                    for (int sx = x0, i = sy * w + x0; sx < x1; sx++, i++) {
+                        int p = src[i];
+                        a += p >>> 24;
+                        r += p >> 16 & 0xFF;
+                        g += p >> 8 & 0xFF;
+                        b += p & 0xFF;
+                    }
+                }
+                int n = (y1 - y0) * (x1 - x0);
+                dst[y * tw + x] = (int) ((a + n / 2) / n) << 24 | (int) ((r + n / 2) / n) << 16
+                        | (int) ((g + n / 2) / n) << 8 | (int) ((b + n / 2) / n);
+            }
+        }
+        return dst;
+    }
+}
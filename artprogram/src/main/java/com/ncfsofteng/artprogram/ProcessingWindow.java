@@ -11,6 +11,11 @@ package com.ncfsofteng.artprogram;
 
 import processing.core.PApplet;
 
+import javax.swing.SwingUtilities;
+import java.awt.Component;
+import java.awt.EventQueue;
+import java.awt.Window;
+
 abstract class ProcessingWindow extends PApplet {
     public final int width;
     public final int height;
@@ -37,6 +42,26 @@ abstract class ProcessingWindow extends PApplet {
         PApplet.runSketch(title, this);
     }
 
+    /**
+     * Hides the window and frees its frame, for a window closed while the program goes on
+     */
+    public void closeWindow() {
+        if (surface == null) {
+            return;
+        }
+        final Object canvas = surface.getNative();
+        EventQueue.invokeLater(new Runnable() {
+            public void run() {
+                if (canvas instanceof Component) {
+                    Window window = SwingUtilities.getWindowAncestor((Component) canvas);
+                    if (window != null) {
+                        window.dispose();
+                    }
+                }
+            }
+        });
+    }
+
     /**
      * Initializes the ProcessingWindow's dimensions
      */
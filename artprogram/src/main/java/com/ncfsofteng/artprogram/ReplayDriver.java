@@ -0,0 +1,102 @@
+package com.ncfsofteng.artprogram;
+
+/**
+ * ReplayDriver.java
+ * Plays back a session recorded with "ExampleDriver --record file" into an off-screen
+ * DrawingWindow and reports how long each frame took to draw and a checksum of the
+ * final canvas. Two runs of the same log draw the same canvas, so the checksum tells
+ * whether a change altered what gets drawn, and the frame times whether it got slower.
+ *
+ * Usage: ReplayDriver [--realtime] [--headless] [--stats] file
+ *   --realtime  wait for each frame's recorded time instead of drawing as fast as possible
+ *   --headless  run without a display, e.g. on a build server
+ *   --stats     print what the drawing holds at the end as JSON, see DrawingWindow.statsJson()
+ */
+
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+
+public class ReplayDriver {
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        boolean realtime = false;
+        boolean stats = false;
+        String file = null;
+        for (String arg : args) {
+            if (arg.equals("--realtime")) {
+                realtime = true;
+            }
+            else if (arg.equals("--stats")) {
+                stats = true;
+            }
+            else if (arg.equals("--headless")) {
+                System.setProperty("java.awt.headless", "true");
+            }
+            else {
+                file = arg;
+            }
+        }
+        if (file == null) {
+            System.err.println("Usage: ReplayDriver [--realtime] [--headless] [--stats] file");
+            System.exit(2);
+        }
+
+        try (InputRecorder.Playback log = new InputRecorder.Playback(new BufferedInputStream(new FileInputStream(file)))) {
+            LinkedHashMap<String, Double> parameters = new LinkedHashMap<>();
+            ExampleDriver.addButtons(parameters);
+            DrawingWindow window = new DrawingWindow(log.width, log.height, parameters);
+            window.replay(log);
+            window.startOffscreen();
+
+            long[] times = new long[1024];
+            int frames = 0;
+            long start = System.nanoTime();
+            while (log.hasFrame()) {
+                if (realtime) {
+                    long wait = log.time() - (System.nanoTime() - start) / 1000000;
+                    if (wait > 0) {
+                        Thread.sleep(wait);
+                    }
+                }
+                long t0 = System.nanoTime();
+                window.drawFrame();
+                if (frames == times.length) {
+                    times = Arrays.copyOf(times, frames * 2);
+                }
+                times[frames++] = System.nanoTime() - t0;
+            }
+            long total = System.nanoTime() - start;
+
+            Arrays.sort(times, 0, frames);
+            System.out.println("Frames:      " + frames + " in " + millis(total) + " ms");
+            if (frames > 0) {
+                System.out.println("Frame times: p50 " + millis(percentile(times, frames, 50))
+                        + " ms, p90 " + millis(percentile(times, frames, 90))
+                        + " ms, p99 " + millis(percentile(times, frames, 99))
+                        + " ms, max " + millis(times[frames - 1]) + " ms");
+            }
+            System.out.println("Canvas hash: " + String.format("%08x", window.canvasHash()));
+            if (stats) {
+                System.out.print(window.statsJson());
+            }
+        }
+        // Let saves started by the replay finish before exiting
+        WorkerPools.finish();
+        System.exit(0);
+    }
+
+    /*
+     * Nearest-rank percentile of the first n sorted values
+     */
+    private static long percentile(long[] sorted, int n, int p) {
+        int rank = (int) Math.ceil(p / 100.0 * n);
+        return sorted[Math.max(0, rank - 1)];
+    }
+
+    private static String millis(long nanos) {
+        return String.format("%.2f", nanos / 1e6);
+    }
+}
@@ -0,0 +1,430 @@
+package com.ncfsofteng.artprogram;
+
+/**
+ * SceneOp.java
+ * One change to a shared drawing, as sent between the windows of a session: a shape put in
+ * place, points added to the end of a stroke, a shape removed, or everything cleared.
+ *
+ * Each shape is named by a key, the user that made it and the serial that user gave it, so
+ * users never need to agree on ids. Each op carries a clock, a Lamport counter times 65536
+ * plus the id of the user that made the op, which orders any two ops on the same shape the
+ * same way for everyone. A window applies an op only if its clock is newer than the last
+ * op applied to that shape, so the last writer wins and every window ends up drawing the
+ * same scene whatever order the ops arrive in.
+ *
+ * Ops travel in batches, one per frame. A batch is a length-prefixed frame of variable
+ * length integers, with serials, clocks, positions and points stored as zigzag encoded
+ * differences from the op before, and the layer, color and size left out when they repeat.
+ * A spray paint pixel takes about five bytes.
+ *
+ * A copy of a group is a compound: its members follow it in the same op, each with its own
+ * form, color and size and its position as an offset from the compound's. Members may be
+ * compounds themselves, as a copy of a group may hold earlier copies.
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+class SceneOp {
+    // Kinds of op
+    public static final int PUT = 0; // the whole shape, replacing whatever was known of it
+    public static final int APPEND = 1; // points added to the end of a stroke
+    public static final int REMOVE = 2;
+    public static final int CLEAR = 3; // every shape made before the op, on every layer
+
+    // Forms of shape
+    public static final int PIXEL = 0;
+    public static final int ELLIPSE = 1;
+    public static final int RECTANGLE = 2;
+    public static final int STROKE = 3;
+    public static final int DABS = 4;
+    public static final int FILL = 5;
+    public static final int COMPOUND = 6; // a copy of a group, its members in members
+
+    // Bits of the byte that starts an op, after the kind and form
+    private static final int OTHER_AUTHOR = 0x20; // the shape was made by another user than the sender
+    private static final int SAME_STYLE = 0x40; // layer, color, blend and size are those of the op before
+    private static final int BORN = 0x80; // a PUT carries the clock its shape is stacked by
+    private static final float POINT_SCALE = 8; // points are sent to an eighth of a pixel
+    static final int MAX_FRAME = 1 << 24; // longest frame read, far more than a frame of drawing makes
+    static final int MAX_OPS = 4096; // most ops put in one frame by those that split their ops up
+    static final int MAX_DEPTH = 32; // most compounds nested in one another
+
+    public int kind;
+    public int author; // user that made the shape
+    public int serial; // number the author gave the shape
+    public long clock;
+    // PUT of a shape made from another, such as the pieces of an erased stroke: the clock the
+    // shape is stacked by, older than the op's so it goes where the other was. 0 if the op's.
+    public long born;
+    public int layer;
+    public int form;
+    public int x;
+    public int y;
+    public int w;
+    public int h;
+    public float degrees;
+    public int color; // palette index
+    public int blend;
+    // Strokes and dabs: x, y pairs on the canvas. For APPEND, the last point kept and then the
+    // points added after it.
+    public float[] points;
+    public int count; // floats of points in use
+    public int keep; // APPEND: floats of the stroke kept before the added points
+    public boolean curves;
+    public String brush;
+    public float hardness;
+    public int[] spans; // FILL, see FloodFill
+    // COMPOUND: the members, with their form, color, size, angle, position and geometry
+    public SceneOp[] members;
+
+    /**
+     * Returns the key of the shape the op is about
+     */
+    public long key() {
+        return key(author, serial);
+    }
+
+    public static long key(int author, int serial) {
+        return (long) author << 32 | (serial & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Returns a clock for an op made by a user
+     * @param counter Lamport counter of the user, bigger than any it has seen
+     * @param user id of the user
+     */
+    public static long clock(long counter, int user) {
+        return counter << 16 | user;
+    }
+
+    /**
+     * Returns the Lamport counter of a clock
+     */
+    public static long counter(long clock) {
+        return clock >>> 16;
+    }
+
+    /**
+     * Encodes a batch of ops made by a user into one frame
+     * @param sender id of the user whose clocks the ops carry
+     * @param ops ops to encode
+     * @return the frame, length prefix included
+     */
+    public static byte[] encode(int sender, List<SceneOp> ops) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(16 + ops.size() * 8);
+        DataOutputStream out = new DataOutputStream(bytes);
+        writeVar(out, sender);
+        writeVar(out, ops.size());
+        SceneOp last = new SceneOp();
+        last.layer = -1;
+        for (SceneOp op : ops) {
+            boolean other = op.author != sender;
+            // Removes and clears have no style, so they leave the one before in place
+            boolean styled = op.kind == PUT || op.kind == APPEND;
+            boolean same = !styled || op.layer == last.layer && op.color == last.color && op.blend == last.blend
+                    && op.w == last.w && op.h == last.h && op.degrees == last.degrees;
+            boolean born = op.kind == PUT && op.born != 0;
+            out.write(op.kind | op.form << 2 | (other ? OTHER_AUTHOR : 0) | (same ? SAME_STYLE : 0) | (born ? BORN : 0));
+            if (other) {
+                writeVar(out, op.author);
+            }
+            writeSigned(out, op.serial - last.serial);
+            writeSigned(out, (int) (counter(op.clock) - counter(last.clock)));
+            if (born) {
+                writeVar(out, (int) (counter(op.clock) - counter(op.born)));
+                writeVar(out, (int) (op.born & 0xFFFF));
+            }
+            if (!same) {
+                writeVar(out, op.layer);
+                writeVar(out, op.color);
+                writeVar(out, op.blend);
+                writeVar(out, op.w);
+                writeVar(out, op.h);
+                out.writeFloat(op.degrees);
+            }
+            if (op.kind == PUT) {
+                writeSigned(out, op.x - last.x);
+                writeSigned(out, op.y - last.y);
+                writeGeometry(out, op);
+                last.x = op.x;
+                last.y = op.y;
+            }
+            else if (op.kind == APPEND) {
+                writeVar(out, op.keep);
+                writePoints(out, op.points, op.count);
+            }
+            last.serial = op.serial;
+            last.clock = op.clock;
+            if (styled) {
+                last.layer = op.layer;
+                last.color = op.color;
+                last.blend = op.blend;
+                last.w = op.w;
+                last.h = op.h;
+                last.degrees = op.degrees;
+            }
+        }
+        out.flush();
+        ByteArrayOutputStream frame = new ByteArrayOutputStream(bytes.size() + 5);
+        DataOutputStream framed = new DataOutputStream(frame);
+        writeVar(framed, bytes.size());
+        bytes.writeTo(framed);
+        return frame.toByteArray();
+    }
+
+    /**
+     * Decodes a frame made by encode()
+     * @param frame the frame without its length prefix, as returned by readFrame()
+     * @return the ops of the frame
+     */
+    public static List<SceneOp> decode(byte[] frame) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(frame));
+        int sender = readVar(in);
+        int n = size(in, readVar(in));
+        List<SceneOp> ops = new ArrayList<>(n);
+        SceneOp last = new SceneOp();
+        for (int k = 0; k < n; k++) {
+            int head = in.readUnsignedByte();
+            SceneOp op = new SceneOp();
+            op.kind = head & 3;
+            op.form = head >> 2 & 7;
+            op.author = (head & OTHER_AUTHOR) != 0 ? readVar(in) : sender;
+            op.serial = last.serial + readSigned(in);
+            op.clock = clock(counter(last.clock) + readSigned(in), sender);
+            if ((head & BORN) != 0) {
+                long age = readVar(in);
+                op.born = clock(counter(op.clock) - age, readVar(in));
+            }
+            if ((head & SAME_STYLE) != 0) {
+                op.layer = last.layer;
+                op.color = last.color;
+                op.blend = last.blend;
+                op.w = last.w;
+                op.h = last.h;
+                op.degrees = last.degrees;
+            }
+            else {
+                op.layer = readVar(in);
+                op.color = readVar(in);
+                op.blend = readVar(in);
+                op.w = readVar(in);
+                op.h = readVar(in);
+                op.degrees = in.readFloat();
+            }
+            op.x = last.x;
+            op.y = last.y;
+            if (op.kind == PUT) {
+                op.x += readSigned(in);
+                op.y += readSigned(in);
+                readGeometry(in, op, 0);
+            }
+            else if (op.kind == APPEND) {
+                op.keep = readVar(in);
+                readPoints(in, op);
+            }
+            ops.add(op);
+            last = op;
+        }
+        return ops;
+    }
+
+    /**
+     * Reads the next frame from a stream
+     * @return the frame without its length prefix, or null at the end of the stream
+     */
+    public static byte[] readFrame(DataInputStream in) throws IOException {
+        int first = in.read();
+        if (first < 0) {
+            return null;
+        }
+        long length = first & 0x7F;
+        for (int shift = 7; (first & 0x80) != 0 && length <= MAX_FRAME; shift += 7) {
+            first = in.read();
+            if (first < 0) {
+                throw new EOFException();
+            }
+            length |= (long) (first & 0x7F) << shift;
+        }
+        // A damaged or hostile length mustn't make the reader allocate whatever it says
+        if (length > MAX_FRAME) {
+            throw new IOException("frame of " + length + " bytes is over the limit of " + MAX_FRAME);
+        }
+        byte[] frame = new byte[(int) length];
+        in.readFully(frame);
+        return frame;
+    }
+
+    /**
+     * Writes a frame read by readFrame() back out with its length prefix
+     */
+    public static void writeFrame(OutputStream out, byte[] frame) throws IOException {
+        DataOutputStream data = new DataOutputStream(out);
+        writeVar(data, frame.length);
+        data.write(frame);
+    }
+
+    /**
+     * Returns a coordinate of a point as the other windows receive it
+     */
+    public static float snap(float v) {
+        return Math.round(v * POINT_SCALE) / POINT_SCALE;
+    }
+
+    /*
+     * Writes what a PUT holds beyond the position and style, which depends on the form
+     */
+    private static void writeGeometry(DataOutputStream out, SceneOp op) throws IOException {
+        switch (op.form) {
+            case STROKE:
+                out.writeBoolean(op.curves);
+                writePoints(out, op.points, op.count);
+                break;
+            case DABS:
+                out.writeUTF(op.brush);
+                out.writeFloat(op.hardness);
+                writePoints(out, op.points, op.count);
+                break;
+            case FILL:
+                writeVar(out, op.spans.length);
+                for (int i = 0; i < op.spans.length; i++) {
+                    // Rows go up by one, and ends are near the row before
+                    writeSigned(out, op.spans[i] - (i >= 3 ? op.spans[i - 3] : 0));
+                }
+                break;
+            case COMPOUND:
+                writeVar(out, op.members.length);
+                for (SceneOp member : op.members) {
+                    out.write(member.form);
+                    writeVar(out, member.color);
+                    writeVar(out, member.w);
+                    writeVar(out, member.h);
+                    out.writeFloat(member.degrees);
+                    writeSigned(out, member.x - op.x);
+                    writeSigned(out, member.y - op.y);
+                    writeGeometry(out, member);
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    private static void readGeometry(DataInputStream in, SceneOp op, int depth) throws IOException {
+        switch (op.form) {
+            case STROKE:
+                op.curves = in.readBoolean();
+                readPoints(in, op);
+                break;
+            case DABS:
+                op.brush = in.readUTF();
+                op.hardness = in.readFloat();
+                readPoints(in, op);
+                break;
+            case FILL:
+                op.spans = new int[size(in, readVar(in))];
+                for (int i = 0; i < op.spans.length; i++) {
+                    op.spans[i] = readSigned(in) + (i >= 3 ? op.spans[i - 3] : 0);
+                }
+                break;
+            case COMPOUND:
+                // A damaged or hostile frame mustn't recurse until the stack runs out
+                if (depth >= MAX_DEPTH) {
+                    throw new IOException("damaged frame, compounds nested over " + MAX_DEPTH + " deep");
+                }
+                op.members = new SceneOp[size(in, readVar(in))];
+                for (int i = 0; i < op.members.length; i++) {
+                    SceneOp member = new SceneOp();
+                    member.kind = PUT;
+                    member.form = in.readUnsignedByte();
+                    member.color = readVar(in);
+                    member.w = readVar(in);
+                    member.h = readVar(in);
+                    member.degrees = in.readFloat();
+                    member.x = op.x + readSigned(in);
+                    member.y = op.y + readSigned(in);
+                    readGeometry(in, member, depth + 1);
+                    op.members[i] = member;
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    private static void writePoints(DataOutputStream out, float[] points, int count) throws IOException {
+        writeVar(out, count);
+        int lx = 0;
+        int ly = 0;
+        for (int i = 0; i < count; i += 2) {
+            int qx = Math.round(points[i] * POINT_SCALE);
+            int qy = Math.round(points[i + 1] * POINT_SCALE);
+            writeSigned(out, qx - lx);
+            writeSigned(out, qy - ly);
+            lx = qx;
+            ly = qy;
+        }
+    }
+
+    private static void readPoints(DataInputStream in, SceneOp op) throws IOException {
+        op.count = size(in, readVar(in));
+        op.points = new float[Math.max(2, op.count)];
+        int qx = 0;
+        int qy = 0;
+        for (int i = 0; i < op.count; i += 2) {
+            qx += readSigned(in);
+            qy += readSigned(in);
+            op.points[i] = qx / POINT_SCALE;
+            op.points[i + 1] = qy / POINT_SCALE;
+        }
+    }
+
+    /*
+     * Checks a count read from a frame, each of whose items takes at least a byte of what is left
+     */
+    private static int size(DataInputStream in, int n) throws IOException {
+        if (n < 0 || n > in.available()) {
+            throw new IOException("damaged frame, " + n + " items in " + in.available() + " bytes");
+        }
+        return n;
+    }
+
+    static void writeVar(DataOutputStream out, int v) throws IOException {
+        while ((v & ~0x7F) != 0) {
+            out.write((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        out.write(v);
+    }
+
+    private static void writeSigned(DataOutputStream out, int v) throws IOException {
+        writeVar(out, (v << 1) ^ (v >> 31));
+    }
+
+    static int readVar(InputStream in) throws IOException {
+        int v = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException();
+            }
+            v |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return v;
+            }
+        }
+    }
+
+    private static int readSigned(InputStream in) throws IOException {
+        int v = readVar(in);
+        return (v >>> 1) ^ -(v & 1);
+    }
+}
@@ -0,0 +1,222 @@
+package com.ncfsofteng.artprogram;
+
+/**
+ * SceneStats.java
+ * Running totals of what a drawing holds: how many objects of each type, about how many bytes
+ * they take, and how much of that is buffers such as image pixels and stroke points. The
+ * layers tell it about every object as it is added or removed, so reading the totals costs
+ * nothing however big the drawing is. A sample taken once a second gives the growth rate.
+ *
+ * Sizes are estimates for a 64-bit JVM, see MemoryGovernor.
+ */
+
+import java.util.Map;
+import java.util.TreeMap;
+
+class SceneStats {
+    private static final int SAMPLES = 31; // one a second, for the growth over the last 30 seconds
+    private static final int INTERVAL = 1000; // milliseconds between samples
+
+    private final TreeMap<String, Tally> types = new TreeMap<>();
+    private long count = 0;
+    private long bytes = 0;
+    private long buffers = 0;
+    private long raster = 0;
+
+    // Ring of samples of the totals, oldest at first
+    private final long[] times = new long[SAMPLES];
+    private final long[] sizes = new long[SAMPLES];
+    private final long[] counts = new long[SAMPLES];
+    private int first = 0;
+    private int samples = 0;
+
+    private static final class Tally {
+        long count;
+        long bytes;
+        long buffers;
+    }
+
+    /**
+     * Counts an object added to the drawing.
+     * @param type type of the object
+     * @param bytes approximate bytes it takes, buffers included
+     * @param buffers bytes of that in arrays such as pixels or points
+     */
+    public void added(String type, long bytes, long buffers) {
+        Tally tally = types.get(type);
+        if (tally == null) {
+            tally = new Tally();
+            types.put(type, tally);
+        }
+        tally.count++;
+        tally.bytes += bytes;
+        tally.buffers += buffers;
+        this.count++;
+        this.bytes += bytes;
+        this.buffers += buffers;
+    }
+
+    /**
+     * Takes back an object removed from the drawing, with the sizes it was added with
+     */
+    public void removed(String type, long bytes, long buffers) {
+        Tally tally = types.get(type);
+        tally.count--;
+        tally.bytes -= bytes;
+        tally.buffers -= buffers;
+        this.count--;
+        this.bytes -= bytes;
+        this.buffers -= buffers;
+    }
+
+    /**
+     * Counts a change in the buffers of an object already in the drawing, such as a growing stroke
+     * @param type type of the object
+     * @param change bytes added to its buffers, negative if they shrank
+     */
+    public void resized(String type, long change) {
+        Tally tally = types.get(type);
+        tally.bytes += change;
+        tally.buffers += change;
+        this.bytes += change;
+        this.buffers += change;
+    }
+
+    /**
+     * Counts a change in the bytes of the rasters old shapes were flattened into
+     */
+    public void rasterChanged(long change) {
+        raster += change;
+    }
+
+    public long count() {
+        return count;
+    }
+
+    public long bytes() {
+        return bytes;
+    }
+
+    /**
+     * Returns the bytes of the rasters old shapes were flattened into
+     */
+    public long rasterBytes() {
+        return raster;
+    }
+
+    /**
+     * Samples the totals if a second has passed since the last sample
+     * @param millis current time in milliseconds
+     */
+    public void tick(long millis) {
+        if (samples > 0 && millis - times[(first + samples - 1) % SAMPLES] < INTERVAL) {
+            return;
+        }
+        int i;
+        if (samples < SAMPLES) {
+            i = (first + samples++) % SAMPLES;
+        }
+        else {
+            i = first;
+            first = (first + 1) % SAMPLES;
+        }
+        times[i] = millis;
+        sizes[i] = bytes;
+        counts[i] = count;
+    }
+
+    /**
+     * Returns the seconds the growth rates are measured over, 0 until there are two samples
+     */
+    public float growthSeconds() {
+        return samples < 2 ? 0 : (times[last()] - times[first]) / 1000f;
+    }
+
+    /**
+     * Returns how many bytes a second the drawing grew by over the sampled period
+     */
+    public float bytesPerSecond() {
+        float seconds = growthSeconds();
+        return seconds == 0 ? 0 : (sizes[last()] - sizes[first]) / seconds;
+    }
+
+    /**
+     * Returns how many objects a second were added over the sampled period, less those removed
+     */
+    public float objectsPerSecond() {
+        float seconds = growthSeconds();
+        return seconds == 0 ? 0 : (counts[last()] - counts[first]) / seconds;
+    }
+
+    /**
+     * Describes the totals as text, one line per type.
+     * @param layers number of layers
+     * @param grouped number of shapes in the group
+     * @param groupBytes bytes the group selection takes
+     */
+    public String report(int layers, int grouped, long groupBytes) {
+        StringBuilder report = new StringBuilder();
+        report.append(count).append(" objects on ").append(layers).append(layers == 1 ? " layer" : " layers")
+                .append(" take about ").append(kilobytes(bytes)).append(", ").append(kilobytes(buffers))
+                .append(" of it in buffers.\n");
+        for (Map.Entry<String, Tally> e : types.entrySet()) {
+            Tally tally = e.getValue();
+            if (tally.count == 0) {
+                continue;
+            }
+            report.append(" ").append(e.getKey()).append(": ").append(tally.count).append(", ")
+                    .append(kilobytes(tally.bytes)).append(" (").append(tally.bytes / tally.count).append(" bytes each");
+            if (tally.buffers > 0) {
+                report.append(", ").append(kilobytes(tally.buffers)).append(" in buffers");
+            }
+            report.append(")\n");
+        }
+        report.append("Flattened rasters: ").append(kilobytes(raster)).append("\n");
+        report.append("Group: ").append(grouped).append(" shapes, ").append(kilobytes(groupBytes)).append("\n");
+        if (growthSeconds() > 0) {
+            report.append(String.format("Growth over the last %.0f s: %.1f KB/s, %.1f objects/s\n",
+                    growthSeconds(), bytesPerSecond() / 1024, objectsPerSecond()));
+        }
+        return report.toString();
+    }
+
+    /**
+     * Describes the totals as a JSON object, with sizes in bytes.
+     * @param layers number of layers
+     * @param grouped number of shapes in the group
+     * @param groupBytes bytes the group selection takes
+     */
+    public String toJson(int layers, int grouped, long groupBytes) {
+        StringBuilder json = new StringBuilder();
+        json.append("{\n  \"objects\": ").append(count)
+                .append(",\n  \"bytes\": ").append(bytes)
+                .append(",\n  \"bufferBytes\": ").append(buffers)
+                .append(",\n  \"rasterBytes\": ").append(raster)
+                .append(",\n  \"layers\": ").append(layers)
+                .append(",\n  \"group\": {\"shapes\": ").append(grouped).append(", \"bytes\": ").append(groupBytes).append("}")
+                .append(",\n  \"growth\": {\"seconds\": ").append(growthSeconds())
+                .append(", \"bytesPerSecond\": ").append(bytesPerSecond())
+                .append(", \"objectsPerSecond\": ").append(objectsPerSecond()).append("}")
+                .append(",\n  \"types\": {");
+        String separator = "\n";
+        for (Map.Entry<String, Tally> e : types.entrySet()) {
+            Tally tally = e.getValue();
+            if (tally.count == 0) {
+                continue;
+            }
+            json.append(separator).append("    \"").append(e.getKey()).append("\": {\"count\": ").append(tally.count)
+                    .append(", \"bytes\": ").append(tally.bytes).append(", \"bufferBytes\": ").append(tally.buffers).append("}");
+            separator = ",\n";
+        }
+        json.append("\n  }\n}\n");
+        return json.toString();
+    }
+
+    private int last() {
+        return (first + samples - 1) % SAMPLES;
+    }
+
+    private static String kilobytes(long bytes) {
+        return (bytes + 1023) / 1024 + " KB";
+    }
+}
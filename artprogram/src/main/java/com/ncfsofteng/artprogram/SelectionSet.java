@@ -0,0 +1,129 @@
+package com.ncfsofteng.artprogram;
+
+/**
+ * SelectionSet.java
+ * A SelectionSet holds the shapes selected in group mode as a bitset indexed by shape id.
+ * Membership tests and the union/subtract/toggle operations do not depend on equals() or
+ * hashCode() of the shapes, and combining two selections costs one pass over the bits.
+ */
+
+import java.util.BitSet;
+
+class SelectionSet {
+    // Set operations a selection gesture can perform
+    public static final int UNION = 0;
+    public static final int SUBTRACT = 1;
+    public static final int TOGGLE = 2;
+
+    private final BitSet ids = new BitSet();
+
+    /**
+     * Returns true if the shape with the given id is selected
+     * @param id shape id
+     * @return selection status
+     */
+    public boolean contains(int id) {
+        return ids.get(id);
+    }
+
+    /**
+     * Selects a single shape
+     * @param id shape id
+     */
+    public void add(int id) {
+        ids.set(id);
+    }
+
+    /**
+     * Deselects a single shape
+     * @param id shape id
+     */
+    public void remove(int id) {
+        ids.clear(id);
+    }
+
+    /**
+     * Adds every id in other to the selection.
+     * @param other ids to add
+     * @return true if at least one id was not selected before
+     */
+    public boolean union(BitSet other) {
+        int before = ids.cardinality();
+        ids.or(other);
+        return ids.cardinality() != before;
+    }
+
+    /**
+     * Removes every id in other from the selection
+     * @param other ids to remove
+     */
+    public void subtract(BitSet other) {
+        ids.andNot(other);
+    }
+
+    /**
+     * Flips the selection state of every id in other
+     * @param other ids to toggle
+     */
+    public void toggle(BitSet other) {
+        ids.xor(other);
+    }
+
+    /**
+     * Applies one of UNION, SUBTRACT or TOGGLE with the given ids
+     * @param operation set operation
+     * @param other ids to combine with the selection
+     */
+    public void apply(int operation, BitSet other) {
+        switch (operation) {
+            case SUBTRACT:
+                subtract(other);
+                break;
+            case TOGGLE:
+                toggle(other);
+                break;
+            default:
+                union(other);
+                break;
+        }
+    }
+
+    public void clear() {
+        ids.clear();
+    }
+
+    public boolean isEmpty() {
+        return ids.isEmpty();
+    }
+
+    public int size() {
+        return ids.cardinality();
+    }
+
+    /**
+     * Returns the approximate number of bytes the selection takes, which grows with the largest id selected
+     */
+    public long bytes() {
+        return MemoryGovernor.array(ids.size() / 64, 8) + 24;
+    }
+
+    /**
+     * Even-odd test of whether a point lies inside a closed polygon, used by lasso selection.
+     * @param xs x coordinates of the polygon vertices
+     * @param ys y coordinates of the polygon vertices
+     * @param n number of vertices
+     * @param px x coordinate of the point
+     * @param py y coordinate of the point
+     * @return true if the point is inside
+     */
+    public static boolean insidePolygon(int[] xs, int[] ys, int n, float px, float py) {
+        boolean inside = false;
+        for (int i = 0, j = n - 1; i < n; j = i++) {
+            if ((ys[i] > py) != (ys[j] > py)
+                    && px < (float) (xs[j] - xs[i]) * (py - ys[i]) / (float) (ys[j] - ys[i]) + xs[i]) {
+                inside = !inside;
+            }
+        }
+        return inside;
+    }
+}
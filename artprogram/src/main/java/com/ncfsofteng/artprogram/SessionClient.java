@@ -0,0 +1,156 @@
+package com.ncfsofteng.artprogram;
+
+/**
+ * SessionClient.java
+ * A window's connection to a SessionServer. The window hands over the ops of each frame as
+ * one batch, which is encoded right away and written by a background thread, and picks up
+ * the batches of other users on its next frame, decoded by another background thread. The
+ * animation thread never waits on the network.
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+class SessionClient implements Closeable {
+    private static final byte[] CLOSED = new byte[0]; // tells the writer to stop, compared by identity
+
+    private final Socket socket;
+    private final int user;
+    private final BlockingQueue<byte[]> outgoing = new LinkedBlockingQueue<>();
+    private final ConcurrentLinkedQueue<List<SceneOp>> incoming = new ConcurrentLinkedQueue<>();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong received = new AtomicLong();
+    private volatile boolean connected = true;
+
+    /**
+     * Joins a session.
+     * @param host address of the server
+     * @param port port of the server
+     */
+    public SessionClient(String host, int port) throws IOException {
+        socket = new Socket(host, port);
+        socket.setTcpNoDelay(true);
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        if (in.readInt() != SessionServer.MAGIC) {
+            socket.close();
+            throw new IOException(host + ":" + port + " is not a drawing session");
+        }
+        user = SceneOp.readVar(in);
+        final OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+        Thread reader = new Thread(new Runnable() {
+            public void run() {
+                read(in);
+            }
+        }, "Session client reader");
+        Thread writer = new Thread(new Runnable() {
+            public void run() {
+                write(out);
+            }
+        }, "Session client writer");
+        reader.setDaemon(true);
+        writer.setDaemon(true);
+        reader.start();
+        writer.start();
+    }
+
+    /**
+     * Returns the id the server gave this user, 1 for the first to join
+     */
+    public int user() {
+        return user;
+    }
+
+    public boolean connected() {
+        return connected;
+    }
+
+    /**
+     * Sends a batch of ops made by this user
+     */
+    public void send(List<SceneOp> ops) throws IOException {
+        byte[] frame = SceneOp.encode(user, ops);
+        sent.addAndGet(frame.length);
+        outgoing.add(frame);
+    }
+
+    /**
+     * Returns the next batch of ops from other users, or null if none has arrived
+     */
+    public List<SceneOp> poll() {
+        return incoming.poll();
+    }
+
+    /**
+     * Returns bytes sent so far
+     */
+    public long sent() {
+        return sent.get();
+    }
+
+    /**
+     * Returns bytes received so far
+     */
+    public long received() {
+        return received.get();
+    }
+
+    /**
+     * Leaves the session once the batches already sent are written
+     */
+    public void close() {
+        outgoing.add(CLOSED);
+    }
+
+    private void read(DataInputStream in) {
+        try {
+            byte[] frame;
+            while ((frame = SceneOp.readFrame(in)) != null) {
+                received.addAndGet(frame.length);
+                incoming.add(SceneOp.decode(frame));
+            }
+        }
+        catch (IOException e) {
+            if (!socket.isClosed()) {
+                System.err.println("Session: lost the server: " + e.getMessage());
+            }
+        }
+        connected = false;
+    }
+
+    private void write(OutputStream out) {
+        try {
+            while (true) {
+                byte[] frame = outgoing.take();
+                if (frame == CLOSED) {
+                    break;
+                }
+                out.write(frame);
+                // Batches queued together go out in one packet
+                if (outgoing.isEmpty()) {
+                    out.flush();
+                }
+            }
+            out.flush();
+        }
+        catch (IOException | InterruptedException e) {
+            System.err.println("Session: can't send to the server: " + e.getMessage());
+        }
+        connected = false;
+        try {
+            socket.close();
+        }
+        catch (IOException e) {
+            // Already gone
+        }
+    }
+}
@@ -0,0 +1,386 @@
+package com.ncfsofteng.artprogram;
+
+/**
+ * SessionServer.java
+ * Hosts a shared drawing for several windows, see SessionClient. The server gives every
+ * client that connects a user id, sends it the drawing so far so it can catch up, and then
+ * passes each batch a client sends on to every other client as it arrives. Which op wins is
+ * decided by each window from the clocks the ops carry, see SceneOp.
+ *
+ * The drawing so far is kept as History, which applies each batch the way a window would
+ * and keeps only the ops still needed to get to the same scene: for each shape the op that
+ * made it, the last whole shape put since and the points added after that, and nothing
+ * from before the last clear. A late client is sent those, so what it has to read grows
+ * with the drawing and not with how long the session has gone on.
+ *
+ * Each client has its own thread reading from it and its own thread writing to it from a
+ * queue, so a slow client falls behind without holding up the others. The queue is
+ * bounded, and a client that falls further behind than that is dropped, as it can no
+ * longer keep up anyway; it can join again and catch up from the history.
+ *
+ * Usage: SessionServer [port]
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+public class SessionServer implements Closeable {
+    public static final int PORT = 4321;
+    static final int MAGIC = 0x41525453; // "ARTS"
+    static final int BEHIND = 1024; // batches a client may fall behind before it is dropped
+    private static final byte[] CLOSED = new byte[0]; // tells a writer to stop, compared by identity
+
+    private final ServerSocket socket;
+    private final List<Client> clients = new CopyOnWriteArrayList<>();
+    private final History history = new History(); // the drawing so far, for clients that join late
+    private long bytes = 0;
+    private int users = 0;
+
+    private final class Client {
+        final int user;
+        final Socket socket;
+        final BlockingQueue<byte[]> queue;
+
+        Client(int user, Socket socket, List<byte[]> history) {
+            this.user = user;
+            this.socket = socket;
+            queue = new ArrayBlockingQueue<>(history.size() + BEHIND);
+            queue.addAll(history);
+        }
+    }
+
+    /**
+     * The ops of a session that still matter, in the order they arrived. An op that a window
+     * would ignore, or whose effect a later op undoes, is dropped.
+     */
+    static final class History {
+        private final Map<Long, Shape> shapes = new HashMap<>();
+        private final Map<Long, Long> removed = new HashMap<>(); // clock of the remove of each removed shape
+        private Kept clear; // the last clear
+        private long cleared = 0;
+        private long arrived = 0; // ops so far
+
+        // An op and when it arrived
+        private static final class Kept {
+            final long order;
+            final SceneOp op;
+
+            Kept(long order, SceneOp op) {
+                this.order = order;
+                this.op = op;
+            }
+        }
+
+        // The ops kept of one shape: the one that made it, so late windows stack it where
+        // the others do, then the last whole shape and the points added since
+        private static final class Shape {
+            long clock;
+            final List<Kept> ops = new ArrayList<>(2);
+        }
+
+        /**
+         * Applies a batch, as decoded by SceneOp.decode()
+         */
+        void add(List<SceneOp> ops) {
+            for (SceneOp op : ops) {
+                add(new Kept(arrived++, op));
+            }
+        }
+
+        private void add(Kept kept) {
+            SceneOp op = kept.op;
+            if (op.kind == SceneOp.CLEAR) {
+                if (op.clock > cleared) {
+                    cleared = op.clock;
+                    clear = kept;
+                    // Shapes changed after the clear stay, as they do in the windows
+                    for (Iterator<Shape> i = shapes.values().iterator(); i.hasNext(); ) {
+                        if (i.next().clock <= cleared) {
+                            i.remove();
+                        }
+                    }
+                    removed.clear();
+                }
+                return;
+            }
+            if (op.clock < cleared) {
+                return;
+            }
+            long key = op.key();
+            Shape shape = shapes.get(key);
+            if (shape == null) {
+                Long gone = removed.get(key);
+                if (op.kind == SceneOp.PUT && (gone == null || gone < op.clock)) {
+                    removed.remove(key);
+                    shape = new Shape();
+                    shape.clock = op.clock;
+                    shape.ops.add(kept);
+                    shapes.put(key, shape);
+                }
+                return;
+            }
+            if (shape.clock >= op.clock) {
+                return;
+            }
+            shape.clock = op.clock;
+            if (op.kind == SceneOp.REMOVE) {
+                shapes.remove(key);
+                removed.put(key, op.clock);
+                return;
+            }
+            if (op.kind == SceneOp.PUT) {
+                // Points added before a whole shape are part of it
+                shape.ops.subList(1, shape.ops.size()).clear();
+            }
+            shape.ops.add(kept);
+        }
+
+        /**
+         * Returns the ops kept as frames in the order they arrived, each made of ops of one
+         * sender and at most SceneOp.MAX_OPS of them
+         */
+        List<byte[]> frames() throws IOException {
+            List<Kept> all = new ArrayList<>();
+            if (clear != null) {
+                all.add(clear);
+            }
+            for (Shape shape : shapes.values()) {
+                all.addAll(shape.ops);
+            }
+            Collections.sort(all, new Comparator<Kept>() {
+                public int compare(Kept a, Kept b) {
+                    return Long.compare(a.order, b.order);
+                }
+            });
+            List<byte[]> frames = new ArrayList<>();
+            List<SceneOp> batch = new ArrayList<>();
+            int sender = -1;
+            for (Kept kept : all) {
+                // A frame's clocks are all those of its sender
+                int user = (int) (kept.op.clock & 0xFFFF);
+                if (user != sender || batch.size() == SceneOp.MAX_OPS) {
+                    frame(frames, sender, batch);
+                    sender = user;
+                }
+                batch.add(kept.op);
+            }
+            frame(frames, sender, batch);
+            return frames;
+        }
+
+        /**
+         * Returns how many ops are kept
+         */
+        int size() {
+            int n = clear != null ? 1 : 0;
+            for (Shape shape : shapes.values()) {
+                n += shape.ops.size();
+            }
+            return n;
+        }
+
+        private static void frame(List<byte[]> frames, int sender, List<SceneOp> batch) throws IOException {
+            if (!batch.isEmpty()) {
+                byte[] framed = SceneOp.encode(sender, batch);
+                // Written again by writeFrame(), so without the length encode() put in front
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(framed));
+                frames.add(SceneOp.readFrame(in));
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * Starts a server and its thread accepting clients
+     * @param port port to listen on, 0 for any free one
+     */
+    public SessionServer(int port) throws IOException {
+        socket = new ServerSocket(port);
+        Thread accept = new Thread(new Runnable() {
+            public void run() {
+                accept();
+            }
+        }, "Session server");
+        accept.setDaemon(true);
+        accept.start();
+        System.out.println("Session: serving on port " + port());
+    }
+
+    public static void main(String[] args) throws IOException {
+        new SessionServer(args.length > 0 ? Integer.parseInt(args[0]) : PORT);
+        // The accept thread is a daemon, so stay alive until killed
+        while (true) {
+            try {
+                Thread.sleep(Long.MAX_VALUE);
+            }
+            catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Returns the port the server listens on
+     */
+    public int port() {
+        return socket.getLocalPort();
+    }
+
+    /**
+     * Returns the address a client on this machine connects to
+     */
+    public static String localAddress() {
+        return InetAddress.getLoopbackAddress().getHostAddress();
+    }
+
+    /**
+     * Returns the bytes of ops passed on so far, counted once however many clients they went to
+     */
+    public synchronized long bytes() {
+        return bytes;
+    }
+
+    /**
+     * Stops accepting clients and disconnects the ones connected
+     */
+    public void close() throws IOException {
+        socket.close();
+        for (Client client : clients) {
+            client.socket.close();
+        }
+    }
+
+    private void accept() {
+        while (!socket.isClosed()) {
+            try {
+                Socket s = socket.accept();
+                s.setTcpNoDelay(true);
+                final Client client;
+                synchronized (this) {
+                    // The history goes out before any new batch, and no batch is missed in between
+                    client = new Client(++users, s, history.frames());
+                    clients.add(client);
+                }
+                start(client);
+                System.out.println("Session: user " + client.user + " joined from " + s.getRemoteSocketAddress());
+            }
+            catch (IOException e) {
+                if (!socket.isClosed()) {
+                    System.err.println("Session: can't accept a client: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void start(final Client client) throws IOException {
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(client.socket.getOutputStream()));
+        out.writeInt(MAGIC);
+        SceneOp.writeVar(out, client.user);
+        out.flush();
+        Thread writer = new Thread(new Runnable() {
+            public void run() {
+                write(client, out);
+            }
+        }, "Session writer " + client.user);
+        Thread reader = new Thread(new Runnable() {
+            public void run() {
+                read(client);
+            }
+        }, "Session reader " + client.user);
+        writer.setDaemon(true);
+        reader.setDaemon(true);
+        writer.start();
+        reader.start();
+    }
+
+    /*
+     * Passes every batch the client sends on to the others until it disconnects
+     */
+    private void read(Client client) {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(client.socket.getInputStream()))) {
+            byte[] frame;
+            while ((frame = SceneOp.readFrame(in)) != null) {
+                List<SceneOp> ops = SceneOp.decode(frame);
+                synchronized (this) {
+                    history.add(ops);
+                    bytes += frame.length;
+                    for (Client other : clients) {
+                        if (other != client && !other.queue.offer(frame)) {
+                            drop(other);
+                        }
+                    }
+                }
+            }
+        }
+        catch (IOException e) {
+            if (!socket.isClosed()) {
+                System.err.println("Session: lost user " + client.user + ": " + e.getMessage());
+            }
+        }
+        clients.remove(client);
+        // A full queue means the writer is stuck on a closed socket, which stops it as well
+        client.queue.offer(CLOSED);
+        System.out.println("Session: user " + client.user + " left");
+    }
+
+    /*
+     * Disconnects a client that has fallen too far behind, which ends its reader and writer
+     */
+    private void drop(Client client) {
+        if (clients.remove(client)) {
+            System.err.println("Session: user " + client.user + " fell " + BEHIND + " batches behind, dropping it");
+            try {
+                client.socket.close();
+            }
+            catch (IOException e) {
+                // Already gone
+            }
+        }
+    }
+
+    /*
+     * Sends the client its queue, flushing whenever the queue runs dry
+     */
+    private void write(Client client, OutputStream out) {
+        try {
+            while (true) {
+                byte[] frame = client.queue.take();
+                if (frame == CLOSED) {
+                    break;
+                }
+                SceneOp.writeFrame(out, frame);
+                if (client.queue.isEmpty()) {
+                    out.flush();
+                }
+            }
+        }
+        catch (IOException | InterruptedException e) {
+            // The reader notices the lost connection and reports it
+        }
+        try {
+            client.socket.close();
+        }
+        catch (IOException e) {
+            // Already gone
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package com.ncfsofteng.artprogram;
+
+/**
+ * StampCache.java
+ * Dabs of stamp brushes, drawn once per brush, size, hardness and color and then reused by
+ * every dab that matches. A stamp is an ARGB image: the brush's alpha mask times the alpha of
+ * the color. The stamps used least recently are dropped once they take more than the budget.
+ * Exports read stamps on the background thread, so access is synchronized.
+ */
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import processing.core.PConstants;
+import processing.core.PImage;
+
+class StampCache {
+    private final long budget;
+    private long bytes = 0;
+    private int misses = 0;
+    // Access order, so the first entry is the one used least recently
+    private final LinkedHashMap<Key, PImage> stamps = new LinkedHashMap<>(16, 0.75f, true);
+
+    private static final class Key {
+        final Brush brush;
+        final int size;
+        final float hardness;
+        final int argb;
+
+        Key(Brush brush, int size, float hardness, int argb) {
+            this.brush = brush;
+            this.size = size;
+            this.hardness = hardness;
+            this.argb = argb;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) o;
+            return brush == k.brush && size == k.size && hardness == k.hardness && argb == k.argb;
+        }
+
+        @Override
+        public int hashCode() {
+            return ((System.identityHashCode(brush) * 31 + size) * 31 + Float.floatToIntBits(hardness)) * 31 + argb;
+        }
+    }
+
+    /**
+     * @param budget bytes of stamps to keep
+     */
+    public StampCache(long budget) {
+        this.budget = budget;
+    }
+
+    /**
+     * Returns the stamp for a dab, drawing it if it isn't cached.
+     * @param brush brush whose mask to use
+     * @param size width and height in pixels
+     * @param hardness hardness given to the brush
+     * @param argb color of the dab
+     */
+    public synchronized PImage get(Brush brush, int size, float hardness, int argb) {
+        Key key = new Key(brush, size, hardness, argb);
+        PImage stamp = stamps.get(key);
+        if (stamp == null) {
+            misses++;
+            stamp = draw(brush, size, hardness, argb);
+            stamps.put(key, stamp);
+            bytes += MemoryGovernor.array(size * size, 4);
+            Iterator<Map.Entry<Key, PImage>> oldest = stamps.entrySet().iterator();
+            while (bytes > budget && stamps.size() > 1) {
+                PImage dropped = oldest.next().getValue();
+                oldest.remove();
+                bytes -= MemoryGovernor.array(dropped.width * dropped.height, 4);
+            }
+        }
+        return stamp;
+    }
+
+    /**
+     * Returns how many stamps have been drawn because they weren't cached
+     */
+    public synchronized int misses() {
+        return misses;
+    }
+
+    private static PImage draw(Brush brush, int size, float hardness, int argb) {
+        int[] alpha = new int[size * size];
+        brush.dab(size, hardness, alpha);
+        PImage stamp = new PImage(size, size, PConstants.ARGB);
+        int rgb = argb & 0xFFFFFF;
+        int a = argb >>> 24;
+        for (int i = 0; i < alpha.length; i++) {
+            int coverage = Math.max(0, Math.min(255, alpha[i]));
+            stamp.pixels[i] = (coverage * a + 127) / 255 << 24 | rgb;
+        }
+        stamp.updatePixels();
+        return stamp;
+    }
+
+    /**
+     * Draws a stamp over ARGB pixels, with straight (not premultiplied) alpha, as the canvas does.
+     * @param pixels pixels to draw on
+     * @param width width of the pixels
+     * @param height height of the pixels
+     * @param stamp stamp to draw
+     * @param x x position of the left edge of the stamp
+     * @param y y position of the top edge of the stamp
+     */
+    public static void composite(int[] pixels, int width, int height, PImage stamp, int x, int y) {
+        for (int sy = Math.max(0, -y); sy < stamp.height && y + sy < height; sy++) {
+            for (int sx = Math.max(0, -x); sx < stamp.width && x + sx < width; sx++) {
+                int src = stamp.pixels[sy * stamp.width + sx];
+                int sa = src >>> 24;
+                if (sa == 0) {
+                    continue;
+                }
+                int i = (y + sy) * width + x + sx;
+                int dst = pixels[i];
+                int da = dst >>> 24;
+                // Source over: a = sa + da (1 - sa), color weighted by each side's share of a
+                int keep = da * (255 - sa) / 255;
+                int a = sa + keep;
+                int r = (((src >> 16) & 0xFF) * sa + ((dst >> 16) & 0xFF) * keep) / a;
+                int g = (((src >> 8) & 0xFF) * sa + ((dst >> 8) & 0xFF) * keep) / a;
+                int b = ((src & 0xFF) * sa + (dst & 0xFF) * keep) / a;
+                pixels[i] = a << 24 | r << 16 | g << 8 | b;
+            }
+        }
+    }
+}
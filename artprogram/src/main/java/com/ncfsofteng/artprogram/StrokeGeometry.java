@@ -0,0 +1,368 @@
+package com.ncfsofteng.artprogram;
+
+/**
+ * StrokeGeometry.java
+ * Hit tests and eraser cuts for the paths of brush strokes, in the form Stroke keeps them: x, y
+ * pairs of a polyline, or a first point followed by two control points and an end point per
+ * cubic segment. Curves are tested as a polyline of samples along each segment, a few pixels
+ * apart, so a point near the middle of a curve is found as well as one near its ends.
+ *
+ * The eraser sweeps a capsule, every point within a radius of the line it moved along. A cut
+ * removes the parts of a path inside the capsule and returns the parts outside as paths of the
+ * same form. Curve segments are split exactly, so the pieces of a curve still draw the same
+ * curve where they are kept.
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+class StrokeGeometry {
+    private static final float SAMPLE = 4; // most control polygon length between samples of a curve
+    private static final int MAX_SAMPLES = 64; // per curve segment
+    private static final float SHORTEST = 0.5f; // pieces shorter than this are dropped
+    private static final int STEPS = 24; // halvings when looking for where the eraser starts or stops
+
+    private StrokeGeometry() {
+    }
+
+    /**
+     * Returns true if a point is within a distance of a path
+     * @param points points of the path
+     * @param count floats of points in use
+     * @param curves true if the points are cubic segments
+     * @param qx x value of the point
+     * @param qy y value of the point
+     * @param r distance
+     */
+    public static boolean near(float[] points, int count, boolean curves, float qx, float qy, float r) {
+        float r2 = r * r;
+        if (count == 2) {
+            return distance2(qx, qy, points[0], points[1], points[0], points[1]) <= r2;
+        }
+        float[] c = new float[8];
+        for (int i = 2; i < count; i += curves ? 6 : 2) {
+            if (!curves) {
+                if (distance2(qx, qy, points[i - 2], points[i - 1], points[i], points[i + 1]) <= r2) {
+                    return true;
+                }
+                continue;
+            }
+            System.arraycopy(points, i - 2, c, 0, 8);
+            int n = samples(c);
+            float ax = c[0];
+            float ay = c[1];
+            for (int k = 1; k <= n; k++) {
+                float t = (float) k / n;
+                float bx = cubic(c[0], c[2], c[4], c[6], t);
+                float by = cubic(c[1], c[3], c[5], c[7], t);
+                if (distance2(qx, qy, ax, ay, bx, by) <= r2) {
+                    return true;
+                }
+                ax = bx;
+                ay = by;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Cuts away the parts of a path within a distance of the line an eraser moved along
+     * @param points points of the path
+     * @param count floats of points in use
+     * @param curves true if the points are cubic segments
+     * @param x0 x value the eraser moved from
+     * @param y0 y value the eraser moved from
+     * @param x1 x value the eraser moved to
+     * @param y1 y value the eraser moved to
+     * @param r distance from the line that is cut away
+     * @return null if nothing is cut, else the paths left, in order along the path, each in the
+     *         form of the path and exactly as long as its points
+     */
+    public static List<float[]> cut(float[] points, int count, boolean curves,
+            float x0, float y0, float x1, float y1, float r) {
+        Cutter cutter = new Cutter(x0, y0, x1, y1, r);
+        if (count == 2) {
+            return cutter.inside(points[0], points[1]) ? new ArrayList<float[]>() : null;
+        }
+        if (!cutter.overlaps(points, count)) {
+            return null;
+        }
+        float[] c = new float[8];
+        float[] s = new float[2];
+        if (!cutter.inside(points[0], points[1])) {
+            cutter.start(points[0], points[1]);
+        }
+        for (int i = 2; i < count; i += curves ? 6 : 2) {
+            if (curves) {
+                System.arraycopy(points, i - 2, c, 0, 8);
+            }
+            else {
+                // A line only needs the ends
+                c[0] = points[i - 2];
+                c[1] = points[i - 1];
+                c[6] = points[i];
+                c[7] = points[i + 1];
+            }
+            int n = curves ? samples(c) : 1;
+            float ax = c[0];
+            float ay = c[1];
+            for (int k = 0; k < n; k++) {
+                float bx = curves ? cubic(c[0], c[2], c[4], c[6], (k + 1f) / n) : c[6];
+                float by = curves ? cubic(c[1], c[3], c[5], c[7], (k + 1f) / n) : c[7];
+                if (cutter.covered(ax, ay, bx, by, s)) {
+                    cutter.cut = true;
+                    if (cutter.open()) {
+                        cutter.extend(c, curves, (k + s[0]) / n);
+                        cutter.finish();
+                    }
+                    if (s[1] < 1) {
+                        float t = (k + s[1]) / n;
+                        cutter.start(curves ? cubic(c[0], c[2], c[4], c[6], t) : ax + (bx - ax) * s[1],
+                                curves ? cubic(c[1], c[3], c[5], c[7], t) : ay + (by - ay) * s[1]);
+                        cutter.from = t;
+                    }
+                }
+                else if (!cutter.open()) {
+                    // Only touched the capsule at the end of the last sample
+                    cutter.start(ax, ay);
+                    cutter.from = (float) k / n;
+                }
+                ax = bx;
+                ay = by;
+            }
+            cutter.extend(c, curves, 1);
+            cutter.from = 0;
+        }
+        cutter.finish();
+        return cutter.cut ? cutter.pieces : null;
+    }
+
+    /*
+     * Number of lines a cubic segment is tested as
+     */
+    private static int samples(float[] c) {
+        float length = (float) (Math.hypot(c[2] - c[0], c[3] - c[1]) + Math.hypot(c[4] - c[2], c[5] - c[3])
+                + Math.hypot(c[6] - c[4], c[7] - c[5]));
+        return Math.max(1, Math.min(MAX_SAMPLES, (int) Math.ceil(length / SAMPLE)));
+    }
+
+    private static float cubic(float p0, float p1, float p2, float p3, float t) {
+        float u = 1 - t;
+        return u * u * u * p0 + 3 * u * u * t * p1 + 3 * u * t * t * p2 + t * t * t * p3;
+    }
+
+    /*
+     * Squared distance from a point to the line segment from (ax, ay) to (bx, by)
+     */
+    static float distance2(float px, float py, float ax, float ay, float bx, float by) {
+        float dx = bx - ax;
+        float dy = by - ay;
+        float length2 = dx * dx + dy * dy;
+        float t = length2 == 0 ? 0 : Math.max(0, Math.min(1, ((px - ax) * dx + (py - ay) * dy) / length2));
+        float ex = px - (ax + t * dx);
+        float ey = py - (ay + t * dy);
+        return ex * ex + ey * ey;
+    }
+
+    /*
+     * Control points of the part of a cubic segment between two values of t
+     */
+    private static void part(float[] c, float a, float b, float[] out) {
+        System.arraycopy(c, 0, out, 0, 8);
+        if (b < 1) {
+            split(out, b, true);
+        }
+        if (a > 0) {
+            split(out, a / b, false);
+        }
+    }
+
+    /*
+     * Replaces a cubic segment by its part before or after t, by de Casteljau's construction
+     */
+    private static void split(float[] c, float t, boolean before) {
+        for (int axis = 0; axis < 2; axis++) {
+            float p0 = c[axis];
+            float p1 = c[2 + axis];
+            float p2 = c[4 + axis];
+            float p3 = c[6 + axis];
+            float q0 = p0 + (p1 - p0) * t;
+            float q1 = p1 + (p2 - p1) * t;
+            float q2 = p2 + (p3 - p2) * t;
+            float r0 = q0 + (q1 - q0) * t;
+            float r1 = q1 + (q2 - q1) * t;
+            float m = r0 + (r1 - r0) * t;
+            if (before) {
+                c[2 + axis] = q0;
+                c[4 + axis] = r0;
+                c[6 + axis] = m;
+            }
+            else {
+                c[axis] = m;
+                c[2 + axis] = r1;
+                c[4 + axis] = q2;
+            }
+        }
+    }
+
+    /*
+     * The capsule an eraser swept and the pieces of a path left outside it
+     */
+    private static final class Cutter {
+        final float x0;
+        final float y0;
+        final float x1;
+        final float y1;
+        final float r;
+        final float r2;
+        final List<float[]> pieces = new ArrayList<>();
+        boolean cut = false;
+        float from = 0; // t where the open piece entered the segment being cut
+        private float[] piece = null; // the open piece, null inside the capsule
+        private int used = 0;
+        private final float[] part = new float[8];
+
+        Cutter(float x0, float y0, float x1, float y1, float r) {
+            this.x0 = x0;
+            this.y0 = y0;
+            this.x1 = x1;
+            this.y1 = y1;
+            this.r = r;
+            this.r2 = r * r;
+        }
+
+        boolean inside(float x, float y) {
+            return distance2(x, y, x0, y0, x1, y1) <= r2;
+        }
+
+        /*
+         * Returns true if the bounding box of the path, which its control points bound, reaches the capsule's
+         */
+        boolean overlaps(float[] points, int count) {
+            float left = Math.min(x0, x1) - r;
+            float right = Math.max(x0, x1) + r;
+            float top = Math.min(y0, y1) - r;
+            float bottom = Math.max(y0, y1) + r;
+            float x = Float.MAX_VALUE;
+            float y = Float.MAX_VALUE;
+            float X = -Float.MAX_VALUE;
+            float Y = -Float.MAX_VALUE;
+            for (int i = 0; i < count; i += 2) {
+                x = Math.min(x, points[i]);
+                y = Math.min(y, points[i + 1]);
+                X = Math.max(X, points[i]);
+                Y = Math.max(Y, points[i + 1]);
+            }
+            return x <= right && X >= left && y <= bottom && Y >= top;
+        }
+
+        /*
+         * Finds the part of the line from a to b inside the capsule. The distance from the
+         * capsule's line is convex along the line, so that part is one span, found by looking
+         * for the closest point and then for where the distance reaches r on either side.
+         * @param s receives the span as fractions of the line
+         * @return false if the line stays outside
+         */
+        boolean covered(float ax, float ay, float bx, float by, float[] s) {
+            float lo = 0;
+            float hi = 1;
+            for (int k = 0; k < STEPS; k++) {
+                float m1 = lo + (hi - lo) / 3;
+                float m2 = hi - (hi - lo) / 3;
+                if (d2(ax, ay, bx, by, m1) <= d2(ax, ay, bx, by, m2)) {
+                    hi = m2;
+                }
+                else {
+                    lo = m1;
+                }
+            }
+            float closest = (lo + hi) / 2;
+            if (d2(ax, ay, bx, by, closest) > r2) {
+                return false;
+            }
+            s[0] = edge(ax, ay, bx, by, closest, 0);
+            s[1] = edge(ax, ay, bx, by, closest, 1);
+            return true;
+        }
+
+        /*
+         * Where the distance reaches r between a point inside the capsule and an end of the line
+         */
+        private float edge(float ax, float ay, float bx, float by, float in, float end) {
+            if (d2(ax, ay, bx, by, end) <= r2) {
+                return end;
+            }
+            float out = end;
+            for (int k = 0; k < STEPS; k++) {
+                float m = (in + out) / 2;
+                if (d2(ax, ay, bx, by, m) <= r2) {
+                    in = m;
+                }
+                else {
+                    out = m;
+                }
+            }
+            return out;
+        }
+
+        private float d2(float ax, float ay, float bx, float by, float t) {
+            return distance2(ax + (bx - ax) * t, ay + (by - ay) * t, x0, y0, x1, y1);
+        }
+
+        boolean open() {
+            return piece != null;
+        }
+
+        /*
+         * Starts a piece at a point outside the capsule
+         */
+        void start(float x, float y) {
+            piece = new float[16];
+            used = 0;
+            add(x, y);
+        }
+
+        /*
+         * Adds the segment being cut to the open piece, from where the piece entered it up to t
+         */
+        void extend(float[] c, boolean curves, float t) {
+            if (piece != null && t > from) {
+                if (curves) {
+                    part(c, from, t, part);
+                    add(part[2], part[3]);
+                    add(part[4], part[5]);
+                    add(part[6], part[7]);
+                }
+                else {
+                    add(c[0] + (c[6] - c[0]) * t, c[1] + (c[7] - c[1]) * t);
+                }
+            }
+        }
+
+        /*
+         * Ends the open piece, keeping it if it is long enough to see
+         */
+        void finish() {
+            if (piece == null) {
+                return;
+            }
+            float length = 0;
+            for (int i = 2; i < used; i += 2) {
+                length += Math.hypot(piece[i] - piece[i - 2], piece[i + 1] - piece[i - 1]);
+            }
+            if (used > 2 && length >= SHORTEST) {
+                pieces.add(Arrays.copyOf(piece, used));
+            }
+            piece = null;
+        }
+
+        private void add(float x, float y) {
+            if (used + 2 > piece.length) {
+                piece = Arrays.copyOf(piece, piece.length * 2);
+            }
+            piece[used++] = x;
+            piece[used++] = y;
+        }
+    }
+}
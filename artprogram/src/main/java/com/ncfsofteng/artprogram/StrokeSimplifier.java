@@ -0,0 +1,193 @@
+package com.ncfsofteng.artprogram;
+
+/**
+ * StrokeSimplifier.java
+ * Collects the mouse samples of a brush stroke and reduces them to the few points needed to
+ * draw the same stroke. While the stroke is drawn, samples closer than the tolerance to the
+ * last kept point are dropped as they arrive, which removes the jitter of a slow mouse at no
+ * cost. When the stroke ends, Ramer-Douglas-Peucker removes every point that lies within the
+ * tolerance of the line between the points kept around it. smooth() can then turn the
+ * polyline into cubic curves through the same points.
+ *
+ * Kept points are only ever appended, so the array returned by points() may be drawn while
+ * the stroke grows, as long as no more than count() floats of it are read.
+ */
+
+import java.util.Arrays;
+
+class StrokeSimplifier {
+    private final float tolerance;
+    private float[] points = new float[64];
+    private int count = 0;
+    // Last sample if it was dropped, which the finished stroke must still end at
+    private boolean dropped = false;
+    private float lastX;
+    private float lastY;
+
+    /**
+     * Starts a stroke.
+     * @param tolerance distance in pixels a simplified stroke may stray from the samples
+     * @param x x value of the first sample
+     * @param y y value of the first sample
+     */
+    public StrokeSimplifier(float tolerance, float x, float y) {
+        this.tolerance = Math.max(0, tolerance);
+        append(x, y);
+    }
+
+    /**
+     * Adds a sample.
+     * @return true if the sample was kept, false if it was too close to the last kept one
+     */
+    public boolean add(float x, float y) {
+        float dx = x - points[count - 2];
+        float dy = y - points[count - 1];
+        dropped = dx * dx + dy * dy <= tolerance * tolerance;
+        if (dropped) {
+            lastX = x;
+            lastY = y;
+            return false;
+        }
+        append(x, y);
+        return true;
+    }
+
+    /**
+     * Returns the points kept so far as x, y pairs. Only the first count() floats are valid.
+     */
+    public float[] points() {
+        return points;
+    }
+
+    /**
+     * Returns the number of floats of points() in use, two per point
+     */
+    public int count() {
+        return count;
+    }
+
+    /**
+     * Ends the stroke at the last sample and simplifies it.
+     * @return the points of the simplified stroke as x, y pairs
+     */
+    public float[] finish() {
+        if (dropped) {
+            append(lastX, lastY);
+            dropped = false;
+        }
+        return simplify(points, count, tolerance);
+    }
+
+    /**
+     * Ramer-Douglas-Peucker simplification of a polyline. The first and last points are always
+     * kept, and any other point is dropped if it is within the tolerance of the segment between
+     * the points kept on either side of it.
+     * @param points x, y pairs
+     * @param count number of floats of points to use
+     * @param tolerance largest distance in pixels a dropped point may have from the result
+     * @return the kept points as x, y pairs
+     */
+    public static float[] simplify(float[] points, int count, float tolerance) {
+        int n = count / 2;
+        if (n <= 2) {
+            return Arrays.copyOf(points, count);
+        }
+        boolean[] keep = new boolean[n];
+        keep[0] = true;
+        keep[n - 1] = true;
+        int kept = 2;
+        // Ranges still to split, as pairs of point indices
+        int[] stack = new int[64];
+        int top = 0;
+        stack[top++] = 0;
+        stack[top++] = n - 1;
+        float limit = tolerance * tolerance;
+        while (top > 0) {
+            int last = stack[--top];
+            int first = stack[--top];
+            float worst = limit;
+            int split = -1;
+            for (int i = first + 1; i < last; i++) {
+                float d = distance2(points, i, first, last);
+                if (d > worst) {
+                    worst = d;
+                    split = i;
+                }
+            }
+            if (split >= 0) {
+                keep[split] = true;
+                kept++;
+                if (top + 4 > stack.length) {
+                    stack = Arrays.copyOf(stack, stack.length * 2);
+                }
+                stack[top++] = first;
+                stack[top++] = split;
+                stack[top++] = split;
+                stack[top++] = last;
+            }
+        }
+        float[] result = new float[kept * 2];
+        int j = 0;
+        for (int i = 0; i < n; i++) {
+            if (keep[i]) {
+                result[j++] = points[i * 2];
+                result[j++] = points[i * 2 + 1];
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Turns a polyline into a Catmull-Rom spline through its points, written as cubic bezier
+     * segments: the first point, then two control points and an end point for each segment.
+     * @param points x, y pairs of at least two points
+     * @return the curve
+     */
+    public static float[] smooth(float[] points) {
+        int n = points.length / 2;
+        float[] curve = new float[2 + (n - 1) * 6];
+        curve[0] = points[0];
+        curve[1] = points[1];
+        int j = 2;
+        for (int i = 0; i < n - 1; i++) {
+            // The ends are treated as if the stroke went on in a straight line
+            int before = Math.max(0, i - 1) * 2;
+            int start = i * 2;
+            int end = (i + 1) * 2;
+            int after = Math.min(n - 1, i + 2) * 2;
+            for (int k = 0; k < 2; k++) {
+                curve[j + k] = points[start + k] + (points[end + k] - points[before + k]) / 6;
+                curve[j + 2 + k] = points[end + k] - (points[after + k] - points[start + k]) / 6;
+                curve[j + 4 + k] = points[end + k];
+            }
+            j += 6;
+        }
+        return curve;
+    }
+
+    private void append(float x, float y) {
+        if (count + 2 > points.length) {
+            // A new array, so a copy of the stroke drawn elsewhere keeps the points it has
+            points = Arrays.copyOf(points, points.length * 2);
+        }
+        points[count++] = x;
+        points[count++] = y;
+    }
+
+    /*
+     * Squared distance of point i from the segment between points a and b
+     */
+    private static float distance2(float[] p, int i, int a, int b) {
+        float x = p[i * 2];
+        float y = p[i * 2 + 1];
+        float ax = p[a * 2];
+        float ay = p[a * 2 + 1];
+        float dx = p[b * 2] - ax;
+        float dy = p[b * 2 + 1] - ay;
+        float length2 = dx * dx + dy * dy;
+        float t = length2 == 0 ? 0 : Math.max(0, Math.min(1, ((x - ax) * dx + (y - ay) * dy) / length2));
+        float ex = x - (ax + t * dx);
+        float ey = y - (ay + t * dy);
+        return ex * ex + ey * ey;
+    }
+}
@@ -0,0 +1,402 @@
+package com.ncfsofteng.artprogram;
+
+/**
+ * SvgExporter.java
+ * Writes the canvas as SVG text while the shapes are being visited, straight into a byte
+ * buffer that is drained to a channel whenever it fills, so memory use does not grow with
+ * the drawing. Consecutive primitives with the same color and blend mode share one <g> that
+ * carries their style, and runs of dots and axis aligned rectangles inside it are written as
+ * a single compact <path>. Ellipses and rotated rectangles stay <ellipse> and <rect> elements
+ * so they can still be edited in other programs. An image is written once, either embedded
+ * as a base64 PNG or as a link to a PNG file next to the SVG, and reused with <use>.
+ */
+
+import processing.core.PConstants;
+import processing.core.PImage;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+class SvgExporter implements VectorSink {
+    // Kinds of open style group
+    private static final int NONE = 0;
+    private static final int FILL = 1;
+    private static final int STROKE = 2;
+    // CSS names of the Compositor blend modes. SVG has no additive mode, so ADD falls back to normal.
+    private static final String[] BLEND_NAMES = {"normal", "multiply", "screen", "normal", "darken", "lighten", "difference"};
+    private static final byte[] HEX = "0123456789abcdef".getBytes();
+    private static final byte[] BASE64 = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".getBytes();
+
+    private final WritableByteChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 16);
+    // Where linked images are written, or null to embed them
+    private final File assets;
+
+    private boolean inLayer = false;
+    private int blend = Compositor.NORMAL;
+    private int fillArgb = 0xFF000000;
+    // Style of the open group, and whether a <path> is open inside it
+    private int group = NONE;
+    private int groupArgb;
+    private int groupBlend;
+    private float groupWidth;
+    private boolean path = false;
+
+    // Images already written, with the id and position of their first use
+    private final Map<PImage, int[]> images = new IdentityHashMap<>();
+
+    /**
+     * Starts the document.
+     * @param channel channel to write the file to, which is left open
+     * @param width width of the canvas
+     * @param height height of the canvas
+     * @param assets directory to write linked images to, or null to embed images in the SVG
+     */
+    public SvgExporter(WritableByteChannel channel, int width, int height, File assets) throws IOException {
+        this.channel = channel;
+        this.assets = assets;
+        put("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<svg xmlns=\"http://www.w3.org/2000/svg\" "
+                + "xmlns:xlink=\"http://www.w3.org/1999/xlink\" width=\"").put(width).put("\" height=\"").put(height)
+                .put("\" viewBox=\"0 0 ").put(width).put(' ').put(height).put("\">\n");
+    }
+
+    public void layer(float opacity, int blend) throws IOException {
+        endGroup();
+        if (inLayer) {
+            put("</g>\n");
+        }
+        put("<g");
+        if (opacity < 1) {
+            put(" opacity=\"").put(opacity).put('"');
+        }
+        if (blend != Compositor.NORMAL) {
+            put(" style=\"mix-blend-mode:").put(BLEND_NAMES[blend]).put('"');
+        }
+        put(">\n");
+        inLayer = true;
+        this.blend = Compositor.NORMAL;
+    }
+
+    public void blend(int blend) {
+        this.blend = blend;
+    }
+
+    public void fill(int argb) {
+        fillArgb = argb;
+    }
+
+    public void rect(float x, float y, float w, float h) throws IOException {
+        style(FILL, fillArgb);
+        beginPath();
+        // Keep every rectangle in the same direction so merged ones never cut holes in each other
+        if (w < 0) {
+            x += w;
+            w = -w;
+        }
+        if (h < 0) {
+            y += h;
+            h = -h;
+        }
+        put('M').put(x).put(' ').put(y).put('h').put(w).put('v').put(h).put('h').put(-w).put('z');
+    }
+
+    public void rect(float cx, float cy, float w, float h, float angle) throws IOException {
+        style(FILL, fillArgb);
+        endPath();
+        put("<rect x=\"").put(cx - w / 2).put("\" y=\"").put(cy - h / 2).put("\" width=\"").put(Math.abs(w))
+                .put("\" height=\"").put(Math.abs(h)).put('"');
+        rotate(cx, cy, angle);
+        put("/>\n");
+    }
+
+    public void ellipse(float cx, float cy, float w, float h, float angle) throws IOException {
+        style(FILL, fillArgb);
+        endPath();
+        put("<ellipse cx=\"").put(cx).put("\" cy=\"").put(cy).put("\" rx=\"").put(Math.abs(w) / 2)
+                .put("\" ry=\"").put(Math.abs(h) / 2).put('"');
+        rotate(cx, cy, angle);
+        put("/>\n");
+    }
+
+    public void dot(int x, int y) throws IOException {
+        rect(x, y, 1, 1);
+    }
+
+    public void line(float x0, float y0, float x1, float y1, int argb) throws IOException {
+        style(STROKE, argb, 1);
+        beginPath();
+        put('M').put(x0).put(' ').put(y0).put('L').put(x1).put(' ').put(y1);
+    }
+
+    public void stroke(float[] points, int count, boolean curves, float width, int argb) throws IOException {
+        style(STROKE, argb, width);
+        beginPath();
+        put('M').put(points[0]).put(' ').put(points[1]);
+        if (count == 2) {
+            // A segment of no length, which round caps turn into a dot
+            put('L').put(points[0]).put(' ').put(points[1]);
+            return;
+        }
+        put(curves ? 'C' : 'L');
+        for (int i = 2; i < count; i++) {
+            put(points[i]).put(i + 1 < count ? ' ' : '\n');
+        }
+    }
+
+    public void image(PImage image, int x, int y) throws IOException {
+        endGroup();
+        int[] first = images.get(image);
+        if (first != null) {
+            put("<use xlink:href=\"#i").put(first[0]).put("\" x=\"").put(x - first[1]).put("\" y=\"").put(y - first[2]).put('"');
+            blendStyle(blend);
+            put("/>\n");
+            return;
+        }
+        int id = images.size();
+        images.put(image, new int[] {id, x, y});
+        put("<image id=\"i").put(id).put("\" x=\"").put(x).put("\" y=\"").put(y).put("\" width=\"").put(image.width)
+                .put("\" height=\"").put(image.height).put('"');
+        blendStyle(blend);
+        put(" xlink:href=\"");
+        if (assets == null) {
+            put("data:image/png;base64,");
+            Base64Stream base64 = new Base64Stream();
+            writePng(image, base64);
+            base64.end();
+        }
+        else {
+            File file = new File(assets, "image" + id + ".png");
+            try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file))) {
+                writePng(image, out);
+            }
+            put(escape(assets.getName() + "/" + file.getName()));
+        }
+        put("\"/>\n");
+    }
+
+    public void finish() throws IOException {
+        endGroup();
+        if (inLayer) {
+            put("</g>\n");
+        }
+        put("</svg>\n");
+        drain();
+    }
+
+    /*
+     * Makes sure a group with the style of the next primitive is open
+     */
+    private void style(int kind, int argb) throws IOException {
+        style(kind, argb, 1);
+    }
+
+    /*
+     * Makes sure a group with the style of the next primitive is open, with the given stroke width
+     */
+    private void style(int kind, int argb, float width) throws IOException {
+        // Blended primitives get a group each so they blend with each other as they do on screen
+        if (group == kind && groupArgb == argb && groupBlend == blend && blend == Compositor.NORMAL
+                && (kind == FILL || groupWidth == width)) {
+            return;
+        }
+        endGroup();
+        int alpha = argb >>> 24;
+        if (kind == FILL) {
+            put("<g fill=\"").color(argb).put('"');
+            if (alpha != 255) {
+                put(" fill-opacity=\"").put(alpha / 255f).put('"');
+            }
+        }
+        else {
+            put("<g fill=\"none\" stroke=\"").color(argb).put("\" stroke-linecap=\"round\" stroke-linejoin=\"round\"");
+            if (width != 1) {
+                put(" stroke-width=\"").put(width).put('"');
+            }
+            if (alpha != 255) {
+                put(" stroke-opacity=\"").put(alpha / 255f).put('"');
+            }
+        }
+        blendStyle(blend);
+        put(">\n");
+        group = kind;
+        groupArgb = argb;
+        groupBlend = blend;
+        groupWidth = width;
+    }
+
+    private void blendStyle(int blend) throws IOException {
+        if (blend != Compositor.NORMAL) {
+            put(" style=\"mix-blend-mode:").put(BLEND_NAMES[blend]).put('"');
+        }
+    }
+
+    private void rotate(float cx, float cy, float angle) throws IOException {
+        if (angle != 0) {
+            put(" transform=\"rotate(").put((float) Math.toDegrees(angle)).put(' ').put(cx).put(' ').put(cy).put(")\"");
+        }
+    }
+
+    /*
+     * Opens a <path> for the next primitive, or keeps adding to the open one when the group is
+     * opaque. Translucent primitives each get their own path so their overlaps blend.
+     */
+    private void beginPath() throws IOException {
+        if (path && groupArgb >>> 24 == 255) {
+            return;
+        }
+        endPath();
+        put("<path d=\"");
+        path = true;
+    }
+
+    private void endPath() throws IOException {
+        if (path) {
+            put("\"/>\n");
+            path = false;
+        }
+    }
+
+    private void endGroup() throws IOException {
+        endPath();
+        if (group != NONE) {
+            put("</g>\n");
+            group = NONE;
+        }
+    }
+
+    private SvgExporter color(int argb) throws IOException {
+        room(7);
+        buffer.put((byte) '#');
+        for (int shift = 20; shift >= 0; shift -= 4) {
+            buffer.put(HEX[argb >> shift & 0xF]);
+        }
+        return this;
+    }
+
+    /*
+     * Encodes an image as PNG, with an alpha channel only when the image has one
+     */
+    private static void writePng(PImage image, OutputStream out) throws IOException {
+        image.loadPixels();
+        boolean alpha = image.format == PConstants.ARGB;
+        BufferedImage png = new BufferedImage(image.width, image.height,
+                alpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+        png.setRGB(0, 0, image.width, image.height, image.pixels, 0, image.width);
+        ImageIO.write(png, "png", out);
+    }
+
+    private static String escape(String s) {
+        return s.replace("&", "&amp;").replace("\"", "&quot;").replace("<", "&lt;");
+    }
+
+    /*
+     * The put() methods append ASCII text to the buffer
+     */
+    private SvgExporter put(String s) throws IOException {
+        for (int i = 0; i < s.length(); i++) {
+            room(1);
+            buffer.put((byte) s.charAt(i));
+        }
+        return this;
+    }
+
+    private SvgExporter put(char c) throws IOException {
+        room(1);
+        buffer.put((byte) c);
+        return this;
+    }
+
+    private SvgExporter put(int v) throws IOException {
+        room(11);
+        if (v < 0) {
+            buffer.put((byte) '-');
+            v = -v;
+        }
+        int divisor = 1;
+        while (v / divisor >= 10) {
+            divisor *= 10;
+        }
+        for (; divisor > 0; divisor /= 10) {
+            buffer.put((byte) ('0' + v / divisor % 10));
+        }
+        return this;
+    }
+
+    /*
+     * Writes a number rounded to two decimals
+     */
+    private SvgExporter put(float v) throws IOException {
+        int hundredths = Math.round(v * 100);
+        if (hundredths < 0) {
+            put('-');
+            hundredths = -hundredths;
+        }
+        put(hundredths / 100);
+        int fraction = hundredths % 100;
+        if (fraction != 0) {
+            room(3);
+            buffer.put((byte) '.');
+            buffer.put((byte) ('0' + fraction / 10));
+            if (fraction % 10 != 0) {
+                buffer.put((byte) ('0' + fraction % 10));
+            }
+        }
+        return this;
+    }
+
+    private void room(int bytes) throws IOException {
+        if (buffer.remaining() < bytes) {
+            drain();
+        }
+    }
+
+    private void drain() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /*
+     * Base64 encodes whatever is written to it into the document
+     */
+    private class Base64Stream extends OutputStream {
+        private int bits = 0;
+        private int count = 0;
+
+        @Override
+        public void write(int b) throws IOException {
+            bits = (bits << 8) | (b & 0xFF);
+            if (++count == 3) {
+                room(4);
+                buffer.put(BASE64[bits >> 18 & 0x3F]).put(BASE64[bits >> 12 & 0x3F])
+                        .put(BASE64[bits >> 6 & 0x3F]).put(BASE64[bits & 0x3F]);
+                bits = 0;
+                count = 0;
+            }
+        }
+
+        /*
+         * Writes the last partial group with padding
+         */
+        void end() throws IOException {
+            room(4);
+            if (count == 1) {
+                buffer.put(BASE64[bits >> 2 & 0x3F]).put(BASE64[bits << 4 & 0x3F]).put((byte) '=').put((byte) '=');
+            }
+            else if (count == 2) {
+                buffer.put(BASE64[bits >> 10 & 0x3F]).put(BASE64[bits >> 4 & 0x3F]).put(BASE64[bits << 2 & 0x3F]).put((byte) '=');
+            }
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package com.ncfsofteng.artprogram;
+
+/**
+ * TileRaster.java
+ * A layer-sized ARGB image cut into square tiles, where tiles with nothing on them aren't
+ * stored at all. Shapes flattened out of a long session usually cover only part of the
+ * canvas, so this costs far less than a full bitmap. A TileRaster never changes after it is
+ * made, so snapshots can share it with the layer it belongs to.
+ */
+
+import processing.core.PConstants;
+import processing.core.PGraphics;
+import processing.core.PImage;
+
+import java.io.IOException;
+
+class TileRaster {
+    public static final int SIZE = 128;
+
+    private final int columns;
+    private final int rows;
+    private final PImage[] tiles; // null where the tile is fully transparent
+    private final int count;
+
+    private TileRaster(int columns, int rows, PImage[] tiles, int count) {
+        this.columns = columns;
+        this.rows = rows;
+        this.tiles = tiles;
+        this.count = count;
+    }
+
+    /**
+     * Cuts an image into tiles, keeping only the tiles that aren't fully transparent.
+     * @param pixels ARGB pixels, row major
+     * @param width width of the image
+     * @param height height of the image
+     */
+    public static TileRaster of(int[] pixels, int width, int height) {
+        int columns = (width + SIZE - 1) / SIZE;
+        int rows = (height + SIZE - 1) / SIZE;
+        PImage[] tiles = new PImage[columns * rows];
+        int count = 0;
+        for (int ty = 0; ty < rows; ty++) {
+            for (int tx = 0; tx < columns; tx++) {
+                int x0 = tx * SIZE;
+                int y0 = ty * SIZE;
+                int w = Math.min(SIZE, width - x0);
+                int h = Math.min(SIZE, height - y0);
+                if (transparent(pixels, width, x0, y0, w, h)) {
+                    continue;
+                }
+                PImage tile = new PImage(w, h, PConstants.ARGB);
+                for (int y = 0; y < h; y++) {
+                    System.arraycopy(pixels, (y0 + y) * width + x0, tile.pixels, y * w, w);
+                }
+                tiles[ty * columns + tx] = tile;
+                count++;
+            }
+        }
+        return new TileRaster(columns, rows, tiles, count);
+    }
+
+    /**
+     * Draws the tiles at their places
+     * @param pg graphics to draw on
+     */
+    public void draw(PGraphics pg) {
+        for (int i = 0; i < tiles.length; i++) {
+            if (tiles[i] != null) {
+                pg.image(tiles[i], (i % columns) * SIZE, (i / columns) * SIZE);
+            }
+        }
+    }
+
+    /**
+     * Describes the tiles to a vector exporter as images
+     * @param sink exporter to describe the tiles to
+     */
+    public void export(VectorSink sink) throws IOException {
+        for (int i = 0; i < tiles.length; i++) {
+            if (tiles[i] != null) {
+                sink.image(tiles[i], (i % columns) * SIZE, (i / columns) * SIZE);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of tiles stored
+     */
+    public int tiles() {
+        return count;
+    }
+
+    /**
+     * Returns the approximate number of bytes the tiles take
+     */
+    public long bytes() {
+        long bytes = MemoryGovernor.array(tiles.length, 4);
+        for (PImage tile : tiles) {
+            if (tile != null) {
+                bytes += MemoryGovernor.SHAPE + MemoryGovernor.array(tile.pixels.length, 4);
+            }
+        }
+        return bytes;
+    }
+
+    private static boolean transparent(int[] pixels, int width, int x0, int y0, int w, int h) {
+        for (int y = y0; y < y0 + h; y++) {
+            for (int i = y * width + x0, end = i + w; i < end; i++) {
+                if (pixels[i] >>> 24 != 0) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,233 @@
+package com.ncfsofteng.artprogram;
+
+/**
+ * TimeLapse.java
+ * Records the canvas every few frames and encodes the recording on a background thread,
+ * either as a numbered PNG sequence or as an animated GIF. Frames are copied into a fixed
+ * ring of pixel arrays that are reused for the whole recording. The animation thread is the
+ * only writer and the encoder thread the only reader, so the ring needs no locks. When the
+ * encoder falls behind and the ring is full, the new frame is dropped instead of waiting.
+ */
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.Deflater;
+
+class TimeLapse {
+    // Output formats
+    public static final int PNG = 0;
+    public static final int GIF = 1;
+    // Number of frames the ring holds
+    static final int CAPACITY = 8;
+    // Time each GIF frame is shown, in hundredths of a second
+    private static final int GIF_DELAY = 10;
+
+    private final File output;
+    private final int format;
+    private final int interval;
+
+    // Ring of frames. head is only written by the animation thread and tail only by the encoder.
+    private final int[][] frames = new int[CAPACITY][];
+    private final int[] widths = new int[CAPACITY];
+    private final int[] heights = new int[CAPACITY];
+    private volatile long head = 0;
+    private volatile long tail = 0;
+    private volatile boolean running = true;
+
+    private final Thread encoder;
+    private long frameCount = 0;
+    private int dropped = 0;
+    private volatile int written = 0;
+
+    /**
+     * Starts a recording.
+     * @param output directory for a PNG sequence, or file for a GIF
+     * @param format PNG or GIF
+     * @param interval number of frames between captures
+     */
+    public TimeLapse(File output, int format, int interval) {
+        this.output = output;
+        this.format = format;
+        this.interval = Math.max(1, interval);
+        if (format == PNG) {
+            output.mkdirs();
+        }
+        encoder = new Thread(new Runnable() {
+            public void run() {
+                encode();
+            }
+        }, "Time-lapse encoder");
+        encoder.start();
+    }
+
+    /**
+     * Called once per frame from the animation thread.
+     * @return true on every interval-th frame, when the caller should capture() the canvas
+     */
+    public boolean due() {
+        return running && frameCount++ % interval == 0;
+    }
+
+    /**
+     * Copies the canvas into the ring, or drops it if the encoder hasn't freed a slot yet.
+     * @param pixels ARGB pixels of the canvas
+     * @param width width of the canvas
+     * @param height height of the canvas
+     */
+    public void capture(int[] pixels, int width, int height) {
+        if (head - tail == CAPACITY) {
+            dropped++;
+            return;
+        }
+        int slot = (int) (head % CAPACITY);
+        int n = width * height;
+        if (frames[slot] == null || frames[slot].length != n) {
+            frames[slot] = new int[n];
+        }
+        System.arraycopy(pixels, 0, frames[slot], 0, n);
+        widths[slot] = width;
+        heights[slot] = height;
+        // Publishes the frame to the encoder
+        head++;
+        LockSupport.unpark(encoder);
+    }
+
+    /**
+     * Stops capturing. The encoder finishes the frames already in the ring and closes the output.
+     */
+    public void stop() {
+        running = false;
+        LockSupport.unpark(encoder);
+    }
+
+    /**
+     * Waits for the encoder to finish after stop().
+     * @param millis longest time to wait, or 0 to wait until it finishes
+     * @return true if the encoder has finished and closed the output
+     */
+    public boolean join(long millis) throws InterruptedException {
+        encoder.join(millis);
+        return !encoder.isAlive();
+    }
+
+    public int dropped() {
+        return dropped;
+    }
+
+    public int written() {
+        return written;
+    }
+
+    /*
+     * Body of the encoder thread
+     */
+    private void encode() {
+        ImageWriter gif = null;
+        ImageOutputStream stream = null;
+        PngEncoder png = new PngEncoder(Deflater.BEST_SPEED);
+        try {
+            if (format == GIF) {
+                gif = ImageIO.getImageWritersByFormatName("gif").next();
+                stream = ImageIO.createImageOutputStream(output);
+                gif.setOutput(stream);
+                gif.prepareWriteSequence(null);
+            }
+            while (true) {
+                if (tail == head) {
+                    if (!running) {
+                        break;
+                    }
+                    LockSupport.park(this);
+                    continue;
+                }
+                int slot = (int) (tail % CAPACITY);
+                if (gif != null) {
+                    BufferedImage image = wrap(frames[slot], widths[slot], heights[slot]);
+                    gif.writeToSequence(new IIOImage(image, null, gifMetadata(gif, image, written == 0)), null);
+                }
+                else {
+                    File file = new File(output, String.format("frame%05d.png", written));
+                    try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 1 << 16)) {
+                        png.encode(frames[slot], widths[slot], heights[slot], false, out);
+                    }
+                }
+                written++;
+                // Hands the slot back to the animation thread
+                tail++;
+            }
+            if (gif != null) {
+                gif.endWriteSequence();
+            }
+        }
+        catch (IOException e) {
+            System.err.println("Time-lapse stopped: " + e.getMessage());
+            running = false;
+        }
+        finally {
+            if (stream != null) {
+                try {
+                    stream.close();
+                }
+                catch (IOException e) {}
+            }
+            if (gif != null) {
+                gif.dispose();
+            }
+        }
+    }
+
+    /*
+     * Views a frame as an opaque BufferedImage without copying it
+     */
+    private static BufferedImage wrap(int[] pixels, int width, int height) {
+        int[] masks = {0xFF0000, 0xFF00, 0xFF};
+        WritableRaster raster = Raster.createPackedRaster(new DataBufferInt(pixels, width * height), width, height, width, masks, null);
+        return new BufferedImage(new DirectColorModel(24, masks[0], masks[1], masks[2]), raster, false, null);
+    }
+
+    /*
+     * Frame delay for every GIF frame, and the looping extension on the first one
+     */
+    private static IIOMetadata gifMetadata(ImageWriter writer, BufferedImage image, boolean first) throws IOException {
+        IIOMetadata metadata = writer.getDefaultImageMetadata(ImageTypeSpecifier.createFromRenderedImage(image), null);
+        String format = metadata.getNativeMetadataFormatName();
+        IIOMetadataNode root = (IIOMetadataNode) metadata.getAsTree(format);
+
+        IIOMetadataNode control = new IIOMetadataNode("GraphicControlExtension");
+        control.setAttribute("disposalMethod", "none");
+        control.setAttribute("userInputFlag", "FALSE");
+        control.setAttribute("transparentColorFlag", "FALSE");
+        control.setAttribute("delayTime", String.valueOf(GIF_DELAY));
+        control.setAttribute("transparentColorIndex", "0");
+        root.appendChild(control);
+
+        if (first) {
+            IIOMetadataNode extensions = new IIOMetadataNode("ApplicationExtensions");
+            IIOMetadataNode loop = new IIOMetadataNode("ApplicationExtension");
+            loop.setAttribute("applicationID", "NETSCAPE");
+            loop.setAttribute("authenticationCode", "2.0");
+            // Loop forever
+            loop.setUserObject(new byte[] {1, 0, 0});
+            extensions.appendChild(loop);
+            root.appendChild(extensions);
+        }
+        metadata.setFromTree(format, root);
+        return metadata;
+    }
+}
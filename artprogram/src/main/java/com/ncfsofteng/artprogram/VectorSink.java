@@ -0,0 +1,102 @@
+package com.ncfsofteng.artprogram;
+
+/**
+ * VectorSink.java
+ * Receives the canvas as a stream of vector primitives, in drawing order, for export to a
+ * vector file format. Shapes describe themselves with these calls instead of drawing through
+ * a PGraphics, so an exporter sees whole shapes and can merge, group or compact them as its
+ * format allows. Colors are packed ARGB.
+ */
+
+import processing.core.PImage;
+
+import java.io.IOException;
+
+interface VectorSink {
+
+    /**
+     * Starts a layer. Everything until the next layer is drawn with its opacity and blend mode.
+     * @param opacity opacity of the layer (0-1)
+     * @param blend Compositor blend mode of the layer
+     */
+    void layer(float opacity, int blend) throws IOException;
+
+    /**
+     * Sets the blend mode of the following primitives, which blend with what is below them in
+     * their layer. The layer as a whole is blended with its own mode.
+     * @param blend Compositor blend mode
+     */
+    void blend(int blend) throws IOException;
+
+    /**
+     * Sets the color of the following filled primitives
+     * @param argb ARGB color
+     */
+    void fill(int argb) throws IOException;
+
+    /**
+     * Fills an axis aligned rectangle
+     * @param x x value of the left edge
+     * @param y y value of the top edge
+     * @param w width
+     * @param h height
+     */
+    void rect(float x, float y, float w, float h) throws IOException;
+
+    /**
+     * Fills a rectangle rotated about its center
+     * @param cx Center x value
+     * @param cy Center y value
+     * @param w width
+     * @param h height
+     * @param angle angle in radians, clockwise on screen
+     */
+    void rect(float cx, float cy, float w, float h, float angle) throws IOException;
+
+    /**
+     * Fills an ellipse rotated about its center
+     * @param cx Center x value
+     * @param cy Center y value
+     * @param w width
+     * @param h height
+     * @param angle angle in radians, clockwise on screen
+     */
+    void ellipse(float cx, float cy, float w, float h, float angle) throws IOException;
+
+    /**
+     * Fills a single pixel, such as one drop of spray paint
+     * @param x x value of the pixel
+     * @param y y value of the pixel
+     */
+    void dot(int x, int y) throws IOException;
+
+    /**
+     * Strokes a one pixel wide line with round caps
+     * @param argb ARGB color of the line
+     */
+    void line(float x0, float y0, float x1, float y1, int argb) throws IOException;
+
+    /**
+     * Strokes a path with round caps and joins, such as a brush stroke
+     * @param points x, y of the first point, then x, y of each following point, or of two
+     *               control points and an end point of each cubic segment
+     * @param count number of floats of points to use
+     * @param curves true if the points after the first are cubic segments
+     * @param width width of the stroke
+     * @param argb ARGB color of the stroke
+     */
+    void stroke(float[] points, int count, boolean curves, float width, int argb) throws IOException;
+
+    /**
+     * Draws an image at its natural size
+     * @param image image to draw, the same PImage may be passed many times
+     * @param x x value of the left edge
+     * @param y y value of the top edge
+     */
+    void image(PImage image, int x, int y) throws IOException;
+
+    /**
+     * Writes everything still pending. No primitives may follow.
+     */
+    void finish() throws IOException;
+}
@@ -0,0 +1,119 @@
+package com.ncfsofteng.artprogram;
+
+/**
+ * WorkerPools.java
+ * Thread pools shared by everything that runs work off the animation thread. Pools are
+ * created the first time they are needed, so a session that never filters or exports
+ * never starts their threads.
+ */
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+class WorkerPools {
+    private static ForkJoinPool compute;
+    private static ExecutorService background;
+
+    private WorkerPools() {
+    }
+
+    /**
+     * Returns the fork-join pool used for data parallel work such as image filters,
+     * with one worker per core.
+     */
+    public static synchronized ForkJoinPool compute() {
+        if (compute == null) {
+            compute = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        }
+        return compute;
+    }
+
+    /**
+     * Returns the single thread that exports and saves run on, one after another, while the
+     * animation thread goes on drawing. It works from snapshots, never from live state.
+     */
+    public static synchronized ExecutorService background() {
+        if (background == null) {
+            background = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    return new Thread(r, "Background saves");
+                }
+            });
+        }
+        return background;
+    }
+
+    /**
+     * Lets the saves and exports queued on the background thread finish, waiting up to a
+     * minute, and stops the thread. Called before the program exits, since exiting kills the
+     * thread wherever it is and would leave a file half written.
+     */
+    public static void finish() {
+        ExecutorService pool;
+        synchronized (WorkerPools.class) {
+            pool = background;
+            background = null;
+        }
+        if (pool == null) {
+            return;
+        }
+        pool.shutdown();
+        try {
+            if (!pool.awaitTermination(1, TimeUnit.MINUTES)) {
+                System.err.println("Gave up waiting for a save to finish");
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Work on a range of rows of an image
+     */
+    interface Rows {
+        void run(int y0, int y1);
+    }
+
+    /**
+     * Runs rows.run() over [0, height) split into bands on the compute pool, and waits for all bands.
+     * @param height number of rows
+     * @param rows work for a band of rows
+     */
+    public static void forRows(int height, Rows rows) {
+        ForkJoinPool pool = compute();
+        // A few bands per worker so uneven rows still balance out
+        int band = Math.max(8, height / (pool.getParallelism() * 4));
+        pool.invoke(new RowTask(rows, 0, height, band));
+    }
+
+    private static class RowTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Rows rows;
+        private final int y0;
+        private final int y1;
+        private final int band;
+
+        private RowTask(Rows rows, int y0, int y1, int band) {
+            this.rows = rows;
+            this.y0 = y0;
+            this.y1 = y1;
+            this.band = band;
+        }
+
+        @Override
+        protected void compute() {
+            if (y1 - y0 <= band) {
+                rows.run(y0, y1);
+                return;
+            }
+            int mid = (y0 + y1) >>> 1;
+            invokeAll(new RowTask(rows, y0, mid, band), new RowTask(rows, mid, y1, band));
+        }
+    }
+}
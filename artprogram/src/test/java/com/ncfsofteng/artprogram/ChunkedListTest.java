@@ -0,0 +1,297 @@
+package com.ncfsofteng.artprogram;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks ChunkedList against an ArrayList, and that its snapshots keep what the list held
+ * when they were taken however the list changes afterwards.
+ */
+public class ChunkedListTest
+{
+    @Test
+    public void actsLikeAnArrayList()
+    {
+        ChunkedList<Integer> list = new ChunkedList<>();
+        List<Integer> expected = new ArrayList<>();
+        Random random = new Random(1);
+        for (int step = 0; step < 20000; step++)
+        {
+            int op = random.nextInt(10);
+            if (op < 5 || expected.isEmpty())
+            {
+                list.add(step);
+                expected.add(step);
+            }
+            else if (op < 7)
+            {
+                int i = random.nextInt(expected.size() + 1);
+                list.add(i, step);
+                expected.add(i, step);
+            }
+            else if (op < 8)
+            {
+                int i = random.nextInt(expected.size());
+                assertEquals(expected.set(i, step), list.set(i, step));
+            }
+            else if (op < 9)
+            {
+                int i = random.nextInt(expected.size());
+                assertEquals(expected.remove(i), list.remove(i));
+            }
+            else
+            {
+                int from = random.nextInt(expected.size());
+                int to = Math.min(expected.size(), from + random.nextInt(100));
+                list.subList(from, to).clear();
+                expected.subList(from, to).clear();
+            }
+        }
+        assertEquals(expected, list);
+    }
+
+    @Test
+    public void snapshotsKeepTheirContents()
+    {
+        ChunkedList<Integer> list = new ChunkedList<>();
+        List<Integer> expected = new ArrayList<>();
+        List<ChunkedList.Snapshot<Integer>> snapshots = new ArrayList<>();
+        List<List<Integer>> contents = new ArrayList<>();
+        Random random = new Random(2);
+        for (int step = 0; step < 5000; step++)
+        {
+            if (step % 250 == 0)
+            {
+                snapshots.add(list.snapshot());
+                contents.add(new ArrayList<>(expected));
+            }
+            int op = random.nextInt(4);
+            if (op < 2 || expected.isEmpty())
+            {
+                list.add(step);
+                expected.add(step);
+            }
+            else if (op < 3)
+            {
+                int i = random.nextInt(expected.size());
+                list.set(i, -step);
+                expected.set(i, -step);
+            }
+            else
+            {
+                int i = random.nextInt(expected.size());
+                list.remove(i);
+                expected.remove(i);
+            }
+        }
+        list.clear();
+        list.add(42);
+        for (int k = 0; k < snapshots.size(); k++)
+        {
+            assertEquals(contents.get(k), items(snapshots.get(k)));
+        }
+    }
+
+    @Test
+    public void snapshotsShareUntilWritten()
+    {
+        ChunkedList<Integer> list = new ChunkedList<>();
+        for (int i = 0; i < 200; i++)
+        {
+            list.add(i);
+        }
+        ChunkedList.Snapshot<Integer> before = list.snapshot();
+        // Writes to the first chunk copy it once, the snapshot keeps the original
+        list.set(0, -1);
+        list.set(1, -2);
+        ChunkedList.Snapshot<Integer> after = list.snapshot();
+        list.set(2, -3);
+        assertEquals(0, (int) before.get(0));
+        assertEquals(1, (int) before.get(1));
+        assertEquals(2, (int) before.get(2));
+        assertEquals(-1, (int) after.get(0));
+        assertEquals(2, (int) after.get(2));
+        assertEquals(-3, (int) list.get(2));
+        assertEquals(199, (int) before.get(199));
+        assertEquals(200, before.size());
+    }
+
+    @Test
+    public void elementsAreSharedOnceASnapshotIsTaken()
+    {
+        ChunkedList<String> list = new ChunkedList<>();
+        int old = ChunkedList.epoch();
+        list.add("old");
+        assertFalse("no snapshot has been taken yet", list.isShared(old));
+        list.snapshot();
+        assertTrue("the snapshot holds the element", list.isShared(old));
+        int young = ChunkedList.epoch();
+        list.add("young");
+        assertFalse("the element was made after the snapshot", list.isShared(young));
+        list.snapshot();
+        assertTrue(list.isShared(young));
+    }
+
+    @Test
+    public void observerSeesEveryElement()
+    {
+        ChunkedList<Integer> list = new ChunkedList<>();
+        final int[] total = new int[2];
+        list.observe(new ChunkedList.Observer<Integer>() {
+            public void added(Integer element) {
+                total[0]++;
+                total[1] += element;
+            }
+
+            public void removed(Integer element) {
+                total[0]--;
+                total[1] -= element;
+            }
+        });
+        for (int i = 1; i <= 100; i++)
+        {
+            list.add(i);
+        }
+        list.add(0, 1000);
+        list.set(50, 7);
+        list.remove(10);
+        list.subList(20, 40).clear();
+        int sum = 0;
+        for (int e : list)
+        {
+            sum += e;
+        }
+        assertEquals(list.size(), total[0]);
+        assertEquals(sum, total[1]);
+        list.clear();
+        assertEquals(0, total[0]);
+        assertEquals(0, total[1]);
+    }
+
+    @Test
+    public void indexerFollowsEveryPosition()
+    {
+        final ChunkedList<Integer> list = new ChunkedList<>();
+        // Kept in step from the indexer alone, as a copy of the list
+        final List<Integer> copy = new ArrayList<>();
+        list.index(new ChunkedList.Indexer() {
+            public void inserted(int index) {
+                copy.add(index, list.get(index));
+            }
+
+            public void replaced(int index) {
+                copy.set(index, list.get(index));
+            }
+
+            public void removed(BitSet indices) {
+                for (int i = indices.length() - 1; i >= 0; i = indices.previousSetBit(i - 1)) {
+                    copy.remove(i);
+                }
+            }
+        });
+        Random random = new Random(3);
+        for (int step = 0; step < 5000; step++)
+        {
+            int op = random.nextInt(10);
+            if (op < 4 || list.isEmpty())
+            {
+                list.add(step);
+            }
+            else if (op < 6)
+            {
+                list.add(random.nextInt(list.size() + 1), step);
+            }
+            else if (op < 7)
+            {
+                list.set(random.nextInt(list.size()), step);
+            }
+            else if (op < 8)
+            {
+                list.remove(random.nextInt(list.size()));
+            }
+            else
+            {
+                BitSet indices = new BitSet();
+                for (int k = random.nextInt(5); k >= 0; k--)
+                {
+                    indices.set(random.nextInt(list.size()));
+                }
+                list.removeAll(indices);
+            }
+            assertEquals(list.size(), copy.size());
+        }
+        assertEquals(copy, list);
+        list.clear();
+        assertTrue(copy.isEmpty());
+    }
+
+    @Test
+    public void removeAllKeepsTheRestInOrder()
+    {
+        ChunkedList<Integer> list = new ChunkedList<>();
+        List<Integer> expected = new ArrayList<>();
+        BitSet indices = new BitSet();
+        for (int i = 0; i < 300; i++)
+        {
+            list.add(i);
+            if (i % 3 == 0 || i > 250)
+            {
+                indices.set(i);
+            }
+            else
+            {
+                expected.add(i);
+            }
+        }
+        ChunkedList.Snapshot<Integer> before = list.snapshot();
+        list.removeAll(indices);
+        assertEquals(expected, list);
+        assertEquals(300, before.size());
+        assertEquals(3, (int) before.get(3));
+    }
+
+    @Test
+    public void modificationsIgnoreSet()
+    {
+        ChunkedList<Integer> list = new ChunkedList<>();
+        list.add(1);
+        int modifications = list.modifications();
+        list.set(0, 2);
+        assertEquals(modifications, list.modifications());
+        list.add(3);
+        assertTrue(modifications != list.modifications());
+    }
+
+    @Test(expected = ConcurrentModificationException.class)
+    public void iteratorFailsFast()
+    {
+        ChunkedList<Integer> list = new ChunkedList<>();
+        list.add(1);
+        list.add(2);
+        Iterator<Integer> i = list.iterator();
+        i.next();
+        list.add(3);
+        i.next();
+    }
+
+    private static List<Integer> items(ChunkedList.Snapshot<Integer> snapshot)
+    {
+        List<Integer> items = new ArrayList<>();
+        for (Integer e : snapshot)
+        {
+            items.add(e);
+        }
+        assertEquals(snapshot.size(), items.size());
+        return items;
+    }
+}
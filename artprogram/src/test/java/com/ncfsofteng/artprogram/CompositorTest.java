@@ -0,0 +1,123 @@
+package com.ncfsofteng.artprogram;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * Blends single pixels in every mode and checks the exact values against the compositing
+ * formulas worked out by hand, including sources and destinations that are fully transparent
+ * or fully opaque.
+ */
+public class CompositorTest
+{
+    private static final int[] MODES = {Compositor.NORMAL, Compositor.MULTIPLY, Compositor.SCREEN,
+            Compositor.ADD, Compositor.DARKEN, Compositor.LIGHTEN, Compositor.DIFFERENCE};
+
+    @Test
+    public void opaqueOverOpaque()
+    {
+        // Straight colors (64, 192, 255) over (128, 64, 32)
+        int src = 0xFF40C0FF;
+        int dst = 0xFF804020;
+        assertEquals(0xFF40C0FF, blend(Compositor.NORMAL, src, dst, 255));
+        assertEquals(0xFF203020, blend(Compositor.MULTIPLY, src, dst, 255));
+        assertEquals(0xFFA0D0FF, blend(Compositor.SCREEN, src, dst, 255));
+        assertEquals(0xFFC0FFFF, blend(Compositor.ADD, src, dst, 255));
+        assertEquals(0xFF404020, blend(Compositor.DARKEN, src, dst, 255));
+        assertEquals(0xFF80C0FF, blend(Compositor.LIGHTEN, src, dst, 255));
+        assertEquals(0xFF4080DF, blend(Compositor.DIFFERENCE, src, dst, 255));
+    }
+
+    @Test
+    public void halfAlphaOverWhite()
+    {
+        // Red at alpha 128 premultiplies to 128, and leaves 127 of the white beneath
+        int src = 0x80FF0000;
+        int dst = 0xFFFFFFFF;
+        assertEquals(0xFFFF7F7F, blend(Compositor.NORMAL, src, dst, 255));
+        assertEquals(0xFFFF7F7F, blend(Compositor.MULTIPLY, src, dst, 255));
+        assertEquals(0xFFFFFFFF, blend(Compositor.SCREEN, src, dst, 255));
+        assertEquals(0xFFFFFFFF, blend(Compositor.ADD, src, dst, 255));
+        assertEquals(0xFFFF7F7F, blend(Compositor.DARKEN, src, dst, 255));
+        assertEquals(0xFFFFFFFF, blend(Compositor.LIGHTEN, src, dst, 255));
+        assertEquals(0xFF7FFFFF, blend(Compositor.DIFFERENCE, src, dst, 255));
+    }
+
+    @Test
+    public void halfAlphaOverHalfAlpha()
+    {
+        // Premultiplied (0, 128, 0) at 128 over (64, 0, 0) at 128
+        int src = 0x8000FF00;
+        int dst = 0x80400000;
+        assertEquals(0xC0208000, blend(Compositor.NORMAL, src, dst, 255));
+        assertEquals(0xC0204000, blend(Compositor.MULTIPLY, src, dst, 255));
+        assertEquals(0xC0408000, blend(Compositor.SCREEN, src, dst, 255));
+        assertEquals(0xFF408000, blend(Compositor.ADD, src, dst, 255));
+        assertEquals(0xC0204000, blend(Compositor.DARKEN, src, dst, 255));
+        assertEquals(0xC0408000, blend(Compositor.LIGHTEN, src, dst, 255));
+        assertEquals(0xC0408000, blend(Compositor.DIFFERENCE, src, dst, 255));
+    }
+
+    @Test
+    public void transparentSourceLeavesTheDestination()
+    {
+        int[] dsts = {0x00000000, 0x80402010, 0xFF804020};
+        for (int mode : MODES)
+        {
+            for (int dst : dsts)
+            {
+                String name = Compositor.NAMES[mode] + " onto " + Integer.toHexString(dst);
+                assertEquals(name, dst, blend(mode, 0x00FF8040, dst, 255));
+                // A layer at opacity 0 is as good as transparent
+                assertEquals(name, dst, blend(mode, 0xFFFF8040, dst, 0));
+            }
+        }
+    }
+
+    @Test
+    public void opaqueSourceOverNothingIsTheSource()
+    {
+        for (int mode : MODES)
+        {
+            assertEquals(Compositor.NAMES[mode], 0xFF40C0FF, blend(mode, 0xFF40C0FF, 0x00000000, 255));
+        }
+    }
+
+    @Test
+    public void opacityScalesTheSource()
+    {
+        // Blue at opacity 51 of 255 is a fifth of blue, premultiplied
+        assertEquals(0x33000033, blend(Compositor.NORMAL, 0xFF0000FF, 0x00000000, 51));
+        // Half alpha at half opacity is a quarter
+        assertEquals(0x40400000, blend(Compositor.NORMAL, 0x80FF0000, 0x00000000, 128));
+    }
+
+    @Test
+    public void onlyTheGivenRangeIsBlended()
+    {
+        int[] dst = {0xFF000000, 0xFF000000, 0xFF000000, 0xFF000000};
+        int[] src = {0xFFFFFFFF, 0xFF102030, 0xFF405060, 0xFFFFFFFF};
+        Compositor.composite(dst, 2, src, 1, 2, Compositor.NORMAL, 255);
+        assertArrayEquals(new int[] {0xFF000000, 0xFF000000, 0xFF102030, 0xFF405060}, dst);
+    }
+
+    @Test
+    public void premultiplyRoundTrips()
+    {
+        int[] pixels = {0x80FF8040, 0x00FF8040, 0xFFFF8040};
+        Compositor.premultiply(pixels, 0, 3);
+        assertArrayEquals(new int[] {0x80804020, 0x00000000, 0xFFFF8040}, pixels);
+        Compositor.unpremultiply(pixels, 0, 3);
+        // The color of a transparent pixel is gone for good
+        assertArrayEquals(new int[] {0x80FF8040, 0x00000000, 0xFFFF8040}, pixels);
+    }
+
+    private static int blend(int mode, int src, int dst, int opacity)
+    {
+        int[] d = {dst};
+        Compositor.composite(d, 0, new int[] {src}, 0, 1, mode, opacity);
+        return d[0];
+    }
+}
@@ -0,0 +1,206 @@
+package com.ncfsofteng.artprogram;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks the spans FloodFill returns for enclosed and open regions, at the edge of the
+ * tolerance and for seeds off the buffer, and checks them against filling pixel by pixel.
+ */
+public class FloodFillTest
+{
+    private static final int WHITE = 0xFFFFFFFF;
+    private static final int BLACK = 0xFF000000;
+
+    @Test
+    public void enclosedRegionStopsAtItsBorder()
+    {
+        int[] pixels = ring(10, 10);
+        int[] spans = FloodFill.fill(pixels, 10, 10, 4, 5, 0);
+        assertArrayEquals(new int[] {3, 3, 6, 4, 3, 6, 5, 3, 6, 6, 3, 6}, spans);
+        assertEquals(1, FloodFill.firstSpan(spans, 4));
+        assertEquals(-1, FloodFill.firstSpan(spans, 2));
+        assertEquals(-1, FloodFill.firstSpan(spans, 7));
+    }
+
+    @Test
+    public void regionTouchingTheEdgesGoesAroundTheBorder()
+    {
+        int[] pixels = ring(10, 10);
+        int[] spans = FloodFill.fill(pixels, 10, 10, 9, 9, 0);
+        // Whole rows above and below the ring, and a span each side of it on the rows between
+        assertArrayEquals(new int[] {0, 0, 9, 1, 0, 9,
+                2, 0, 1, 2, 8, 9, 3, 0, 1, 3, 8, 9, 4, 0, 1, 4, 8, 9,
+                5, 0, 1, 5, 8, 9, 6, 0, 1, 6, 8, 9, 7, 0, 1, 7, 8, 9,
+                8, 0, 9, 9, 0, 9}, spans);
+        assertEquals(64, area(spans));
+    }
+
+    @Test
+    public void toleranceIsInclusiveOnEveryChannel()
+    {
+        int gray = 0xFF646464;
+        int[] pixels = {gray, 0xFF787878, 0xFF646478, 0xFF796464, gray};
+        // 20 away on every channel, then on blue alone, then 21 away on red
+        assertArrayEquals(new int[] {0, 0, 2}, FloodFill.fill(pixels, 5, 1, 0, 0, 20));
+        assertArrayEquals(new int[] {0, 0, 4}, FloodFill.fill(pixels, 5, 1, 0, 0, 21));
+        assertArrayEquals(new int[] {0, 0, 0}, FloodFill.fill(pixels, 5, 1, 0, 0, 19));
+        // Exactly the seed color fills whatever the tolerance
+        assertArrayEquals(new int[] {0, 4, 4}, FloodFill.fill(pixels, 5, 1, 4, 0, 0));
+    }
+
+    @Test
+    public void seedOutsideTheBufferFillsNothing()
+    {
+        int[] pixels = ring(10, 10);
+        int[][] seeds = {{-1, 0}, {0, -1}, {10, 0}, {0, 10}, {10, 10}};
+        for (int[] seed : seeds)
+        {
+            assertEquals(0, FloodFill.fill(pixels, 10, 10, seed[0], seed[1], 255).length);
+        }
+        assertFalse(FloodFill.covers(new int[0], 0, 0));
+    }
+
+    @Test
+    public void coversRowsWithSeveralSpans()
+    {
+        // A comb: white teeth at even x joined along the bottom row
+        int width = 9;
+        int height = 4;
+        int[] pixels = new int[width * height];
+        for (int y = 0; y < height; y++)
+        {
+            for (int x = 0; x < width; x++)
+            {
+                pixels[y * width + x] = y == height - 1 || x % 2 == 0 ? WHITE : BLACK;
+            }
+        }
+        int[] spans = FloodFill.fill(pixels, width, height, 0, 0, 0);
+        assertEquals(16, spans.length / 3);
+        for (int y = 0; y < height; y++)
+        {
+            for (int x = 0; x < width; x++)
+            {
+                assertEquals(x + ", " + y, pixels[y * width + x] == WHITE, FloodFill.covers(spans, x, y));
+            }
+        }
+        assertFalse(FloodFill.covers(spans, -1, 0));
+        assertFalse(FloodFill.covers(spans, width, 0));
+        assertFalse(FloodFill.covers(spans, 0, height));
+    }
+
+    @Test
+    public void spansMatchFillingPixelByPixel()
+    {
+        Random random = new Random(4);
+        for (int round = 0; round < 200; round++)
+        {
+            int width = 1 + random.nextInt(40);
+            int height = 1 + random.nextInt(40);
+            int[] pixels = new int[width * height];
+            for (int i = 0; i < pixels.length; i++)
+            {
+                // Few colors so regions grow and wind around each other
+                pixels[i] = 0xFF000000 | random.nextInt(3) * 0x303030;
+            }
+            int sx = random.nextInt(width);
+            int sy = random.nextInt(height);
+            int tolerance = random.nextInt(2) * 0x30;
+            int[] spans = FloodFill.fill(pixels, width, height, sx, sy, tolerance);
+            boolean[] filled = naive(pixels, width, height, sx, sy, tolerance);
+
+            int previous = -1;
+            for (int i = 0; i < spans.length; i += 3)
+            {
+                int key = spans[i] * width + spans[i + 1];
+                assertTrue("spans out of order", key > previous);
+                previous = spans[i] * width + spans[i + 2];
+            }
+            int count = 0;
+            for (int y = 0; y < height; y++)
+            {
+                for (int x = 0; x < width; x++)
+                {
+                    assertEquals(filled[y * width + x], FloodFill.covers(spans, x, y));
+                    count += filled[y * width + x] ? 1 : 0;
+                }
+            }
+            assertEquals(count, area(spans));
+        }
+    }
+
+    /*
+     * A white buffer with a black square outline from (2, 2) to (7, 7)
+     */
+    private static int[] ring(int width, int height)
+    {
+        int[] pixels = new int[width * height];
+        Arrays.fill(pixels, WHITE);
+        for (int i = 2; i <= 7; i++)
+        {
+            pixels[2 * width + i] = BLACK;
+            pixels[7 * width + i] = BLACK;
+            pixels[i * width + 2] = BLACK;
+            pixels[i * width + 7] = BLACK;
+        }
+        return pixels;
+    }
+
+    private static int area(int[] spans)
+    {
+        int area = 0;
+        for (int i = 0; i < spans.length; i += 3)
+        {
+            area += spans[i + 2] - spans[i + 1] + 1;
+        }
+        return area;
+    }
+
+    /*
+     * Four way fill one pixel at a time, with the same test of the color as FloodFill
+     */
+    private static boolean[] naive(int[] pixels, int width, int height, int sx, int sy, int tolerance)
+    {
+        boolean[] filled = new boolean[pixels.length];
+        int seed = pixels[sy * width + sx];
+        ArrayDeque<Integer> queue = new ArrayDeque<>();
+        queue.add(sy * width + sx);
+        filled[sy * width + sx] = true;
+        while (!queue.isEmpty())
+        {
+            int p = queue.poll();
+            int x = p % width;
+            int y = p / width;
+            int[] next = {x > 0 ? p - 1 : -1, x < width - 1 ? p + 1 : -1, y > 0 ? p - width : -1, y < height - 1 ? p + width : -1};
+            for (int q : next)
+            {
+                if (q >= 0 && !filled[q] && close(pixels[q], seed, tolerance))
+                {
+                    filled[q] = true;
+                    queue.add(q);
+                }
+            }
+        }
+        return filled;
+    }
+
+    private static boolean close(int c, int seed, int tolerance)
+    {
+        for (int shift = 0; shift <= 16; shift += 8)
+        {
+            if (Math.abs((c >> shift & 0xFF) - (seed >> shift & 0xFF)) > tolerance)
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,125 @@
+package com.ncfsofteng.artprogram;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Times HitColumns while shapes come and go between queries, the way a layer uses it: each
+ * step adds, inserts or removes shapes and then runs a point and a sweep query. The columns
+ * are either kept in step with insert() and remove(), or cleared and stored again on every
+ * change as layers used to, so the time of a step includes the rebuild.
+ *
+ * Not a test, run it by hand: HitColumnsBenchmark [shapes] [steps]
+ */
+public class HitColumnsBenchmark
+{
+    private static final int WIDTH = 1600;
+    private static final int HEIGHT = 1000;
+
+    public static void main(String[] args)
+    {
+        int shapes = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        int steps = args.length > 1 ? Integer.parseInt(args[1]) : 5000;
+        // The first rounds warm up the JIT
+        for (int round = 0; round < 5; round++)
+        {
+            for (boolean rebuild : new boolean[] {true, false})
+            {
+                double appends = run(shapes, steps, rebuild, false);
+                double mixed = run(shapes, steps, rebuild, true);
+                System.out.printf("%-11s %d shapes: %8.1f us a step adding, %8.1f us a step adding and removing%n",
+                        rebuild ? "rebuild" : "incremental", shapes, appends, mixed);
+            }
+        }
+    }
+
+    /*
+     * Returns the microseconds a step took
+     */
+    private static double run(int shapes, int steps, boolean rebuild, boolean mixed)
+    {
+        Random random = new Random(7);
+        List<float[]> list = new ArrayList<>();
+        HitColumns columns = new HitColumns();
+        for (int i = 0; i < shapes; i++)
+        {
+            list.add(shape(random));
+            store(columns, i, list.get(i));
+        }
+        columns.point(0, 0);
+        long hits = 0;
+        long start = System.nanoTime();
+        for (int step = 0; step < steps; step++)
+        {
+            int op = mixed ? random.nextInt(10) : 0;
+            BitSet removed = null;
+            int at;
+            if (op < 6)
+            {
+                at = list.size();
+                list.add(shape(random));
+            }
+            else if (op < 7)
+            {
+                at = random.nextInt(list.size() + 1);
+                list.add(at, shape(random));
+            }
+            else
+            {
+                at = -1;
+                removed = new BitSet();
+                for (int k = random.nextInt(3); k >= 0; k--)
+                {
+                    removed.set(random.nextInt(list.size()));
+                }
+                for (int i = removed.length() - 1; i >= 0; i = removed.previousSetBit(i - 1))
+                {
+                    list.remove(i);
+                }
+            }
+
+            if (rebuild)
+            {
+                columns.clear();
+                for (int i = 0; i < list.size(); i++)
+                {
+                    store(columns, i, list.get(i));
+                }
+            }
+            else if (removed != null)
+            {
+                columns.remove(removed);
+            }
+            else
+            {
+                columns.insert(at);
+                store(columns, at, list.get(at));
+            }
+
+            float x = random.nextFloat() * WIDTH;
+            float y = random.nextFloat() * HEIGHT;
+            hits += columns.point(x, y);
+            hits += columns.sweep(x, y, x + 20, y + 5, 8);
+        }
+        long nanos = System.nanoTime() - start;
+        if (hits < 0)
+        {
+            System.out.println(hits);
+        }
+        return nanos / 1e3 / steps;
+    }
+
+    private static float[] shape(Random random)
+    {
+        float angle = random.nextFloat() * (float) Math.PI;
+        return new float[] {random.nextInt(2), random.nextFloat() * WIDTH, random.nextFloat() * HEIGHT,
+                (float) Math.cos(angle), (float) Math.sin(angle), 2 + random.nextFloat() * 30, 2 + random.nextFloat() * 30};
+    }
+
+    private static void store(HitColumns columns, int i, float[] s)
+    {
+        columns.set(i, (int) s[0], s[1], s[2], s[3], s[4], s[5], s[6]);
+    }
+}
@@ -0,0 +1,223 @@
+package com.ncfsofteng.artprogram;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks HitColumns queries against testing every shape one by one, and that columns kept in
+ * step with insert() and remove() answer the same as columns stored again from scratch.
+ */
+public class HitColumnsTest
+{
+    private static final int WIDTH = 800;
+    private static final int HEIGHT = 600;
+
+    @Test
+    public void pointFindsTheShapesAround()
+    {
+        HitColumns columns = new HitColumns();
+        // An ellipse turned a quarter turn, and a box that isn't turned
+        columns.set(0, HitColumns.ELLIPSE, 100, 100, 0, 1, 40, 10);
+        columns.set(1, HitColumns.BOX, 110, 100, 1, 0, 20, 20);
+        columns.set(2, HitColumns.BOUNDS, 500, 500, 1, 0, 5, 5);
+        assertEquals(3, columns.size());
+        assertEquals(HitColumns.BOX, columns.kind(1));
+
+        assertArrayEquals(new int[] {0, 1}, found(columns, columns.point(105, 100)));
+        assertArrayEquals(new int[] {0}, found(columns, columns.point(100, 135)));
+        assertArrayEquals(new int[] {1}, found(columns, columns.point(125, 115)));
+        assertArrayEquals(new int[] {}, found(columns, columns.point(135, 100)));
+        assertArrayEquals(new int[] {2}, found(columns, columns.point(503, 497)));
+
+        // A sweep past the ellipse finds it, a point on the same path doesn't
+        assertArrayEquals(new int[] {}, found(columns, columns.point(60, 150)));
+        assertArrayEquals(new int[] {0}, found(columns, columns.sweep(60, 150, 140, 150, 15)));
+        assertArrayEquals(new int[] {2}, found(columns, columns.sweep(490, 490, 490, 490, 15)));
+
+        columns.clear();
+        assertEquals(0, columns.size());
+        assertEquals(0, columns.point(105, 100));
+    }
+
+    @Test
+    public void queriesMatchTestingEveryShape()
+    {
+        Random random = new Random(5);
+        List<float[]> shapes = new ArrayList<>();
+        HitColumns columns = new HitColumns();
+        for (int i = 0; i < 3000; i++)
+        {
+            shapes.add(shape(random));
+            store(columns, i, shapes.get(i));
+        }
+        for (int q = 0; q < 500; q++)
+        {
+            check(columns, shapes, random);
+        }
+    }
+
+    @Test
+    public void insertAndRemoveMatchAFreshBuild()
+    {
+        Random random = new Random(6);
+        List<float[]> shapes = new ArrayList<>();
+        HitColumns columns = new HitColumns();
+        for (int i = 0; i < 1000; i++)
+        {
+            shapes.add(shape(random));
+            store(columns, i, shapes.get(i));
+        }
+        for (int step = 0; step < 3000; step++)
+        {
+            int op = random.nextInt(10);
+            if (op < 4)
+            {
+                shapes.add(shape(random));
+                store(columns, shapes.size() - 1, shapes.get(shapes.size() - 1));
+            }
+            else if (op < 6)
+            {
+                int at = random.nextInt(shapes.size() + 1);
+                shapes.add(at, shape(random));
+                columns.insert(at);
+                store(columns, at, shapes.get(at));
+            }
+            else if (op < 7)
+            {
+                // Moved in place
+                int at = random.nextInt(shapes.size());
+                shapes.set(at, shape(random));
+                store(columns, at, shapes.get(at));
+            }
+            else
+            {
+                BitSet removed = new BitSet();
+                for (int k = random.nextInt(4); k >= 0; k--)
+                {
+                    removed.set(random.nextInt(shapes.size()));
+                }
+                for (int i = removed.length() - 1; i >= 0; i = removed.previousSetBit(i - 1))
+                {
+                    shapes.remove(i);
+                }
+                columns.remove(removed);
+            }
+            assertEquals(shapes.size(), columns.size());
+            check(columns, shapes, random);
+        }
+
+        HitColumns fresh = new HitColumns();
+        for (int i = 0; i < shapes.size(); i++)
+        {
+            store(fresh, i, shapes.get(i));
+        }
+        for (int q = 0; q < 200; q++)
+        {
+            float x = random.nextFloat() * WIDTH;
+            float y = random.nextFloat() * HEIGHT;
+            assertArrayEquals(found(fresh, fresh.point(x, y)), found(columns, columns.point(x, y)));
+            assertArrayEquals(found(fresh, fresh.sweep(x, y, x + 30, y - 10, 6)), found(columns, columns.sweep(x, y, x + 30, y - 10, 6)));
+        }
+    }
+
+    /*
+     * Runs a point and a sweep query at random and compares them with testing each shape
+     */
+    private static void check(HitColumns columns, List<float[]> shapes, Random random)
+    {
+        float x = random.nextFloat() * WIDTH;
+        float y = random.nextFloat() * HEIGHT;
+        float bx = x + random.nextFloat() * 40 - 20;
+        float by = y + random.nextFloat() * 40 - 20;
+        float r = random.nextFloat() * 10;
+        int[] expected = new int[shapes.size()];
+        int n = 0;
+        for (int i = 0; i < shapes.size(); i++)
+        {
+            if (inside(shapes.get(i), x, y))
+            {
+                expected[n++] = i;
+            }
+        }
+        assertArrayEquals("point " + x + ", " + y, Arrays.copyOf(expected, n), found(columns, columns.point(x, y)));
+
+        // Every shape a sweep finds is within the radius of the path, and every shape whose center is, is found
+        int[] swept = found(columns, columns.sweep(x, y, bx, by, r));
+        for (int i = 0; i < shapes.size(); i++)
+        {
+            float[] s = shapes.get(i);
+            boolean centered = distance(s[1], s[2], x, y, bx, by) <= r * 0.999f;
+            boolean hit = Arrays.binarySearch(swept, i) >= 0;
+            if (centered)
+            {
+                assertTrue("sweep misses the shape centered on its path", hit);
+            }
+            if (hit)
+            {
+                float reach = (float) Math.sqrt(s[5] * s[5] + s[6] * s[6]);
+                assertTrue("sweep finds a shape out of reach", distance(s[1], s[2], x, y, bx, by) <= r + reach + 0.01f);
+            }
+        }
+    }
+
+    private static int[] found(HitColumns columns, int n)
+    {
+        return Arrays.copyOf(columns.found(), n);
+    }
+
+    /*
+     * A shape as form, center, cosine, sine and half sizes
+     */
+    private static float[] shape(Random random)
+    {
+        float angle = random.nextFloat() * (float) Math.PI;
+        return new float[] {random.nextInt(2), random.nextFloat() * WIDTH, random.nextFloat() * HEIGHT,
+                (float) Math.cos(angle), (float) Math.sin(angle), 2 + random.nextFloat() * 30, 2 + random.nextFloat() * 30};
+    }
+
+    private static void store(HitColumns columns, int i, float[] s)
+    {
+        columns.set(i, (int) s[0], s[1], s[2], s[3], s[4], s[5], s[6]);
+    }
+
+    /*
+     * The same test as HitColumns, one shape at a time
+     */
+    private static boolean inside(float[] s, float px, float py)
+    {
+        float dx = px - s[1];
+        float dy = py - s[2];
+        float u = s[3] * dx + s[4] * dy;
+        float v = s[3] * dy - s[4] * dx;
+        float a = s[5];
+        float b = s[6];
+        if (s[0] == HitColumns.ELLIPSE)
+        {
+            return u * u * (b * b) + v * v * (a * a) <= a * a * b * b;
+        }
+        return Math.abs(u) < a && Math.abs(v) < b;
+    }
+
+    /*
+     * Distance of a point from the segment between two others
+     */
+    private static float distance(float x, float y, float ax, float ay, float bx, float by)
+    {
+        float dx = bx - ax;
+        float dy = by - ay;
+        float length2 = dx * dx + dy * dy;
+        float t = length2 == 0 ? 0 : Math.max(0, Math.min(1, ((x - ax) * dx + (y - ay) * dy) / length2));
+        float ex = x - (ax + t * dx);
+        float ey = y - (ay + t * dy);
+        return (float) Math.sqrt(ex * ex + ey * ey);
+    }
+}
@@ -0,0 +1,41 @@
+package com.ncfsofteng.artprogram;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * Checks that blurs keep a flat color as it is, however wide they are.
+ */
+public class ImageFiltersTest
+{
+    private static final int WIDTH = 900;
+    private static final int HEIGHT = 4;
+
+    @Test
+    public void blursKeepFlatColors()
+    {
+        for (int radius : new int[] {1, 5, 60, 150, 400})
+        {
+            for (int color : new int[] {0xFFFFFFFF, 0xFFC88025, 0x80FF4000})
+            {
+                int[] box = flat(color);
+                ImageFilters.boxBlur(box, WIDTH, HEIGHT, radius);
+                assertEquals("box blur of radius " + radius, Integer.toHexString(color), Integer.toHexString(box[WIDTH / 2]));
+                int[] gaussian = flat(color);
+                ImageFilters.gaussianBlur(gaussian, WIDTH, HEIGHT, radius);
+                assertEquals("gaussian blur of radius " + radius, Integer.toHexString(color),
+                        Integer.toHexString(gaussian[WIDTH / 2]));
+            }
+        }
+    }
+
+    private static int[] flat(int color)
+    {
+        int[] pixels = new int[WIDTH * HEIGHT];
+        Arrays.fill(pixels, color);
+        return pixels;
+    }
+}
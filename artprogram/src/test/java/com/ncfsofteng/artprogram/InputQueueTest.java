@@ -0,0 +1,127 @@
+package com.ncfsofteng.artprogram;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Checks that InputQueue hands events over in order with every field, drops them only when
+ * full, and loses none between a producer and a consumer thread.
+ */
+public class InputQueueTest
+{
+    @Test
+    public void eventsComeOutInOrder()
+    {
+        InputQueue queue = new InputQueue(8);
+        InputQueue.Event e = new InputQueue.Event();
+        assertEquals(-1, queue.peekType());
+        assertFalse(queue.poll(e));
+
+        assertTrue(queue.push(InputQueue.PRESSED, 1, 2, 3, 4, 1, InputQueue.SHIFT, 100));
+        assertTrue(queue.push(InputQueue.DRAGGED, 5, 6, 1, 2, 1, InputQueue.CONTROL | InputQueue.ALT, 116));
+        assertEquals(InputQueue.PRESSED, queue.peekType());
+        assertTrue(queue.poll(e));
+        assertEquals(InputQueue.PRESSED, e.type);
+        assertEquals(1, e.x);
+        assertEquals(2, e.y);
+        assertEquals(3, e.px);
+        assertEquals(4, e.py);
+        assertEquals(1, e.button);
+        assertEquals(InputQueue.SHIFT, e.modifiers);
+        assertEquals(100, e.time);
+
+        assertEquals(InputQueue.DRAGGED, queue.peekType());
+        assertTrue(queue.poll(e));
+        assertEquals(5, e.x);
+        assertEquals(InputQueue.CONTROL | InputQueue.ALT, e.modifiers);
+        assertEquals(116, e.time);
+        assertEquals(-1, queue.peekType());
+        assertFalse(queue.poll(e));
+    }
+
+    @Test
+    public void fullRingDropsEvents()
+    {
+        // Rounded up from 5 to 8
+        InputQueue queue = new InputQueue(5);
+        for (int i = 0; i < 8; i++)
+        {
+            assertTrue(queue.push(InputQueue.DRAGGED, i, 0, 0, 0, 1, 0, i));
+        }
+        assertFalse(queue.push(InputQueue.RELEASED, 8, 0, 0, 0, 1, 0, 8));
+        assertFalse(queue.push(InputQueue.RELEASED, 9, 0, 0, 0, 1, 0, 9));
+        assertEquals(2, queue.dropped());
+
+        // Taking one makes room for one, and the ring wraps around
+        InputQueue.Event e = new InputQueue.Event();
+        assertTrue(queue.poll(e));
+        assertEquals(0, e.x);
+        assertTrue(queue.push(InputQueue.RELEASED, 10, 0, 0, 0, 1, 0, 10));
+        assertFalse(queue.push(InputQueue.RELEASED, 11, 0, 0, 0, 1, 0, 11));
+        for (int i = 1; i < 8; i++)
+        {
+            assertTrue(queue.poll(e));
+            assertEquals(i, e.x);
+        }
+        assertTrue(queue.poll(e));
+        assertEquals(InputQueue.RELEASED, e.type);
+        assertEquals(10, e.x);
+        assertFalse(queue.poll(e));
+        assertEquals(3, queue.dropped());
+    }
+
+    @Test
+    public void capacityIsAPowerOfTwo()
+    {
+        // Never fewer than four
+        int[][] cases = {{1, 4}, {2, 4}, {4, 4}, {5, 8}, {64, 64}, {65, 128}};
+        for (int[] c : cases)
+        {
+            InputQueue queue = new InputQueue(c[0]);
+            int pushed = 0;
+            while (queue.push(InputQueue.CLICKED, pushed, 0, 0, 0, 1, 0, 0))
+            {
+                pushed++;
+            }
+            assertEquals("capacity " + c[0], c[1], pushed);
+        }
+    }
+
+    @Test(timeout = 20000)
+    public void threadsLoseNoEvents() throws InterruptedException
+    {
+        final InputQueue queue = new InputQueue(16);
+        final int events = 200000;
+        Thread producer = new Thread() {
+            public void run() {
+                for (int i = 0; i < events; i++) {
+                    while (!queue.push(InputQueue.DRAGGED, i, -i, i - 1, 1 - i, 1, 0, i)) {
+                        Thread.yield();
+                    }
+                }
+            }
+        };
+        producer.start();
+        InputQueue.Event e = new InputQueue.Event();
+        for (int i = 0; i < events; )
+        {
+            if (!queue.poll(e))
+            {
+                Thread.yield();
+                continue;
+            }
+            // Every field was stored before the event was published
+            assertEquals(i, e.x);
+            assertEquals(-i, e.y);
+            assertEquals(i - 1, e.px);
+            assertEquals(1 - i, e.py);
+            assertEquals(i, e.time);
+            i++;
+        }
+        producer.join();
+        assertFalse(queue.poll(e));
+    }
+}
@@ -0,0 +1,156 @@
+package com.ncfsofteng.artprogram;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+/**
+ * Writes the input of a scene as an input log, one mouse event or menu button per frame,
+ * the way ExampleDriver --record would have logged a user making it.
+ */
+class InputScript
+{
+    private static final int LEFT = 37; // the left mouse button, as Processing numbers it
+
+    private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    private final InputRecorder log;
+    private final InputQueue.Event event = new InputQueue.Event();
+    private int time = 0;
+
+    InputScript(int width, int height) throws IOException
+    {
+        log = new InputRecorder(bytes, width, height);
+    }
+
+    /**
+     * Presses a menu button and answers the prompt it opens
+     */
+    void menu(String button, String answer)
+    {
+        frame();
+        log.menu(button);
+        log.prompt(answer);
+    }
+
+    void menu(String button)
+    {
+        frame();
+        log.menu(button);
+    }
+
+    void click(int x, int y)
+    {
+        pressWith(x, y, 0);
+    }
+
+    /**
+     * Clicks with modifier keys held
+     * @param modifiers InputQueue modifier key bits
+     */
+    void pressWith(int x, int y, int modifiers)
+    {
+        frame();
+        input(InputQueue.PRESSED, x, y, x, y, modifiers);
+        input(InputQueue.RELEASED, x, y, x, y, modifiers);
+        input(InputQueue.CLICKED, x, y, x, y, modifiers);
+    }
+
+    /**
+     * Presses at (x0, y0), drags to (x1, y1) in steps frames and releases
+     */
+    void drag(int x0, int y0, int x1, int y1, int steps)
+    {
+        frame();
+        input(InputQueue.PRESSED, x0, y0, x0, y0, 0);
+        int px = x0;
+        int py = y0;
+        for (int i = 1; i <= steps; i++)
+        {
+            int x = x0 + (x1 - x0) * i / steps;
+            int y = y0 + (y1 - y0) * i / steps;
+            frame();
+            input(InputQueue.DRAGGED, x, y, px, py, 0);
+            px = x;
+            py = y;
+        }
+        frame();
+        input(InputQueue.RELEASED, x1, y1, x1, y1, 0);
+    }
+
+    /**
+     * Presses at the first of a list of x, y pairs, drags through the rest a frame each and releases
+     */
+    void drag(int[] points)
+    {
+        frame();
+        input(InputQueue.PRESSED, points[0], points[1], points[0], points[1], 0);
+        for (int i = 2; i < points.length; i += 2)
+        {
+            frame();
+            input(InputQueue.DRAGGED, points[i], points[i + 1], points[i - 2], points[i - 1], 0);
+        }
+        frame();
+        int n = points.length;
+        input(InputQueue.RELEASED, points[n - 2], points[n - 1], points[n - 2], points[n - 1], 0);
+    }
+
+    /**
+     * Moves the mouse to (x, y) without pressing it
+     */
+    void moveTo(int x, int y)
+    {
+        event.x = x;
+        event.y = y;
+        frame();
+    }
+
+    /**
+     * Gives frames without any input
+     */
+    void idle(int frames)
+    {
+        for (int i = 0; i < frames; i++)
+        {
+            frame();
+        }
+    }
+
+    void image(String path)
+    {
+        frame();
+        log.image(path);
+    }
+
+    /**
+     * Returns the frames written so far
+     */
+    int frames()
+    {
+        return time / 16;
+    }
+
+    byte[] finish() throws IOException
+    {
+        frame();
+        log.close();
+        return bytes.toByteArray();
+    }
+
+    private void frame()
+    {
+        time += 16;
+        log.frame(time, event.x, event.y);
+    }
+
+    private void input(int type, int x, int y, int px, int py, int modifiers)
+    {
+        event.type = type;
+        event.x = x;
+        event.y = y;
+        event.px = px;
+        event.py = py;
+        event.button = LEFT;
+        event.modifiers = modifiers;
+        event.time = time;
+        log.input(event);
+    }
+}
@@ -0,0 +1,257 @@
+package com.ncfsofteng.artprogram;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import processing.core.PConstants;
+import processing.core.PImage;
+
+/**
+ * Exports a small scene with PdfExporter and reads the file back the way a PDF reader finds
+ * its objects: through the cross reference table, the indirect stream lengths and the
+ * deflated streams they point at.
+ */
+public class PdfExporterTest
+{
+    private static final int WIDTH = 200;
+    private static final int HEIGHT = 150;
+    private static final Pattern OBJECT = Pattern.compile("(\\d+) 0 obj\n");
+    private static final Pattern LENGTH = Pattern.compile("/Length (\\d+)( 0 R)?");
+
+    private static String pdf;
+    private static Map<Integer, Integer> objects;
+
+    @BeforeClass
+    public static void export() throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PdfExporter exporter = new PdfExporter(out, WIDTH, HEIGHT);
+
+        // Opaque fills of one color are merged, translucent and blended ones are not
+        exporter.fill(0xFFCC2020);
+        exporter.rect(10, 10, 30, 20);
+        exporter.dot(50, 50);
+        exporter.dot(51, 50);
+        exporter.ellipse(100, 60, 40, 20, 0.5f);
+        exporter.blend(Compositor.MULTIPLY);
+        exporter.fill(0x802040FF);
+        exporter.rect(120, 80, 30, 30, 0.25f);
+        exporter.blend(Compositor.NORMAL);
+        exporter.stroke(new float[] {10, 100, 40, 120, 70, 100}, 6, false, 4, 0xFF00AA00);
+        exporter.stroke(new float[] {10, 130, 20, 120, 40, 140, 60, 130}, 8, true, 2, 0xC0000000);
+        exporter.line(0, 0, 199, 149, 0xFF000000);
+
+        // A second layer, half opaque and screened, with the same image twice and one without alpha
+        exporter.layer(0.5f, Compositor.SCREEN);
+        PImage translucent = image(PConstants.ARGB, 0x80FF8000);
+        exporter.image(translucent, 20, 20);
+        exporter.image(translucent, 60, 20);
+        exporter.image(image(PConstants.RGB, 0xFF3060C0), 100, 20);
+        exporter.finish();
+
+        pdf = new String(out.toByteArray(), StandardCharsets.ISO_8859_1);
+        objects = new HashMap<>();
+        Matcher m = OBJECT.matcher(pdf);
+        while (m.find())
+        {
+            // Stream data is binary, so only headers at the start of a line count
+            if (m.start() == 0 || pdf.charAt(m.start() - 1) == '\n')
+            {
+                objects.put(Integer.parseInt(m.group(1)), m.start());
+            }
+        }
+    }
+
+    @Test
+    public void crossReferencesPointAtTheirObjects()
+    {
+        assertTrue(pdf.startsWith("%PDF-1.4\n"));
+        assertTrue(pdf.endsWith("%%EOF\n"));
+        int xref = pdf.lastIndexOf("\nxref\n") + 1;
+        Matcher start = Pattern.compile("startxref\n(\\d+)\n%%EOF\n$").matcher(pdf);
+        assertTrue("no startxref", start.find());
+        assertEquals(xref, Integer.parseInt(start.group(1)));
+
+        String[] lines = pdf.substring(xref).split("\n");
+        assertEquals("xref", lines[0]);
+        String[] range = lines[1].split(" ");
+        assertEquals("0", range[0]);
+        int size = Integer.parseInt(range[1]);
+        assertEquals("0000000000 65535 f ", lines[2]);
+        for (int i = 1; i < size; i++)
+        {
+            String entry = lines[2 + i];
+            assertEquals("entry " + i + " is 20 bytes with its end of line", 19, entry.length());
+            assertTrue(entry, entry.endsWith(" 00000 n "));
+            int offset = Integer.parseInt(entry.substring(0, 10));
+            assertTrue("object " + i + " isn't at " + offset, pdf.startsWith(i + " 0 obj\n", offset));
+        }
+        assertEquals(size - 1, objects.size());
+        assertTrue(pdf.contains("trailer\n<< /Size " + size + " /Root 1 0 R >>"));
+    }
+
+    @Test
+    public void streamLengthsAreTheRealLengths()
+    {
+        int streams = 0;
+        for (Map.Entry<Integer, Integer> object : objects.entrySet())
+        {
+            String header = header(object.getValue());
+            if (!header.endsWith("stream\n"))
+            {
+                continue;
+            }
+            int length = length(header);
+            int data = object.getValue() + header.length();
+            assertTrue("object " + object.getKey() + " has " + length + " bytes of stream",
+                    pdf.startsWith("\nendstream\n", data + length) || pdf.startsWith("endstream\n", data + length));
+            streams++;
+        }
+        // The page, two layers, and the color and mask of one image and the color of the other
+        assertEquals(6, streams);
+    }
+
+    @Test
+    public void deflatedStreamsInflate() throws DataFormatException
+    {
+        List<byte[]> layers = new ArrayList<>();
+        List<byte[]> images = new ArrayList<>();
+        for (int offset : objects.values())
+        {
+            String header = header(offset);
+            if (!header.contains("/FlateDecode"))
+            {
+                continue;
+            }
+            int data = offset + header.length();
+            byte[] inflated = inflate(data, length(header));
+            if (header.contains("/Subtype /Form"))
+            {
+                layers.add(inflated);
+            }
+            else
+            {
+                images.add(inflated);
+                int samples = header.contains("/DeviceGray") ? 1 : 3;
+                assertEquals(header, 16 * 8 * samples, inflated.length);
+            }
+        }
+        assertEquals(2, layers.size());
+        assertEquals(3, images.size());
+
+        // The red fills went into one path, and the layer draws the image it holds twice
+        String shapes = text(layers, "rg");
+        assertEquals(shapes, 1, count(shapes, "0.8 0.125 0.125 rg"));
+        assertTrue(shapes, shapes.contains(" re"));
+        assertTrue(shapes, shapes.contains("S\n"));
+        String pictures = text(layers, "Do");
+        assertEquals(pictures, 2, count(pictures, "/I0 Do"));
+        assertEquals(pictures, 1, count(pictures, "/I1 Do"));
+        // The translucent image has a soft mask, the opaque one doesn't
+        assertEquals(1, count(pdf, "/SMask "));
+    }
+
+    /*
+     * Returns the header of the object at an offset, up to the start of its stream data or the end of the object
+     */
+    private static String header(int offset)
+    {
+        int stream = pdf.indexOf("stream\n", offset);
+        int end = pdf.indexOf("endobj\n", offset);
+        return stream >= 0 && stream < end ? pdf.substring(offset, stream + 7) : pdf.substring(offset, end);
+    }
+
+    /*
+     * Returns the length of the stream a header starts, looking it up if it is an indirect object
+     */
+    private static int length(String header)
+    {
+        Matcher m = LENGTH.matcher(header);
+        assertTrue(header, m.find());
+        int value = Integer.parseInt(m.group(1));
+        if (m.group(2) == null)
+        {
+            return value;
+        }
+        Integer offset = objects.get(value);
+        assertTrue("no length object " + value, offset != null);
+        String body = pdf.substring(offset, pdf.indexOf("endobj\n", offset));
+        return Integer.parseInt(body.substring(body.indexOf('\n') + 1).trim());
+    }
+
+    private static byte[] inflate(int data, int length) throws DataFormatException
+    {
+        byte[] input = new byte[length];
+        for (int i = 0; i < length; i++)
+        {
+            input[i] = (byte) pdf.charAt(data + i);
+        }
+        Inflater inflater = new Inflater();
+        inflater.setInput(input);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        while (!inflater.finished())
+        {
+            int n = inflater.inflate(buffer);
+            assertTrue("the stream ends before its deflated data does", n > 0 || !inflater.needsInput());
+            out.write(buffer, 0, n);
+        }
+        assertEquals("bytes after the deflated data", 0, inflater.getRemaining());
+        inflater.end();
+        return out.toByteArray();
+    }
+
+    /*
+     * Returns the content of the layers that use an operator
+     */
+    private static String text(List<byte[]> layers, String operator)
+    {
+        StringBuilder text = new StringBuilder();
+        for (byte[] layer : layers)
+        {
+            String s = new String(layer, StandardCharsets.ISO_8859_1);
+            if (s.contains(operator))
+            {
+                text.append(s);
+            }
+        }
+        return text.toString();
+    }
+
+    private static int count(String s, String part)
+    {
+        int n = 0;
+        for (int i = s.indexOf(part); i >= 0; i = s.indexOf(part, i + 1))
+        {
+            n++;
+        }
+        return n;
+    }
+
+    private static PImage image(int format, int argb)
+    {
+        PImage image = new PImage(16, 8, format);
+        image.loadPixels();
+        for (int i = 0; i < image.pixels.length; i++)
+        {
+            image.pixels[i] = argb;
+        }
+        image.updatePixels();
+        return image;
+    }
+}
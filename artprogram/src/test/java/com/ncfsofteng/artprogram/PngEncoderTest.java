@@ -0,0 +1,102 @@
+package com.ncfsofteng.artprogram;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import javax.imageio.ImageIO;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Encodes pixels with PngEncoder and decodes them again with ImageIO, which must give back
+ * the same pixels. Random pixels don't compress, so they take deflate's worst case.
+ */
+public class PngEncoderTest
+{
+    @BeforeClass
+    public static void headless()
+    {
+        System.setProperty("java.awt.headless", "true");
+    }
+
+    @Test(timeout = 60000)
+    public void randomPixelsFastest() throws IOException
+    {
+        roundTrip(random(1920, 1080, 1), 1920, 1080, false, Deflater.BEST_SPEED);
+    }
+
+    @Test(timeout = 60000)
+    public void randomPixelsSmallest() throws IOException
+    {
+        roundTrip(random(1920, 1080, 2), 1920, 1080, true, Deflater.BEST_COMPRESSION);
+    }
+
+    @Test(timeout = 60000)
+    public void randomPixelsStored() throws IOException
+    {
+        roundTrip(random(640, 480, 3), 640, 480, true, Deflater.NO_COMPRESSION);
+    }
+
+    @Test
+    public void oddSizes() throws IOException
+    {
+        // One band, a band of a single row, and a single pixel
+        roundTrip(random(7, 5, 4), 7, 5, false, Deflater.BEST_SPEED);
+        roundTrip(random(3, 1025, 5), 3, 1025, true, Deflater.BEST_SPEED);
+        roundTrip(random(1, 1, 6), 1, 1, true, Deflater.BEST_SPEED);
+    }
+
+    @Test
+    public void encoderIsReused() throws IOException
+    {
+        // Buffers kept from a big image must not leak into a smaller one, or the other way round
+        PngEncoder encoder = new PngEncoder(Deflater.BEST_SPEED);
+        int[] big = random(800, 600, 7);
+        int[] small = random(50, 40, 8);
+        check(encoder, small, 50, 40, false);
+        check(encoder, big, 800, 600, false);
+        check(encoder, small, 50, 40, false);
+    }
+
+    private static void roundTrip(int[] pixels, int width, int height, boolean alpha, int level) throws IOException
+    {
+        check(new PngEncoder(level), pixels, width, height, alpha);
+    }
+
+    private static void check(PngEncoder encoder, int[] pixels, int width, int height, boolean alpha) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        encoder.encode(pixels, width, height, alpha, out);
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(out.toByteArray()));
+        assertEquals(width, image.getWidth());
+        assertEquals(height, image.getHeight());
+        int[] expected = pixels.clone();
+        if (!alpha)
+        {
+            for (int i = 0; i < expected.length; i++)
+            {
+                expected[i] |= 0xFF000000;
+            }
+        }
+        assertArrayEquals(expected, image.getRGB(0, 0, width, height, null, 0, width));
+    }
+
+    private static int[] random(int width, int height, long seed)
+    {
+        Random random = new Random(seed);
+        int[] pixels = new int[width * height];
+        for (int i = 0; i < pixels.length; i++)
+        {
+            pixels[i] = random.nextInt();
+        }
+        return pixels;
+    }
+}
@@ -0,0 +1,184 @@
+package com.ncfsofteng.artprogram;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+import javax.imageio.ImageIO;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Shrinks canvases into previews, puts them in PNGs and reads them back, including from
+ * files whose chunks are damaged or cut off.
+ */
+public class PreviewsTest
+{
+    private static final int WIDTH = 600;
+    private static final int HEIGHT = 300;
+
+    @BeforeClass
+    public static void headless()
+    {
+        System.setProperty("java.awt.headless", "true");
+    }
+
+    @Test
+    public void downsampleKeepsProportions()
+    {
+        int[] dims = new int[2];
+        int[] flat = new int[WIDTH * HEIGHT];
+        Arrays.fill(flat, 0xFF336699);
+        int[] small = Previews.downsample(flat, WIDTH, HEIGHT, 256, dims);
+        assertEquals(256, dims[0]);
+        assertEquals(128, dims[1]);
+        assertEquals(256 * 128, small.length);
+        for (int p : small)
+        {
+            assertEquals(0xFF336699, p);
+        }
+
+        // Already small enough
+        assertSame(flat, Previews.downsample(flat, WIDTH, HEIGHT, 600, dims));
+        assertEquals(WIDTH, dims[0]);
+        assertEquals(HEIGHT, dims[1]);
+    }
+
+    @Test
+    public void downsampleAverages()
+    {
+        // Black and white stripes a pixel wide come out grey, from halving and from a box step
+        int[] stripes = new int[WIDTH * HEIGHT];
+        for (int i = 0; i < stripes.length; i++)
+        {
+            stripes[i] = i % 2 == 0 ? 0xFF000000 : 0xFFFFFFFF;
+        }
+        int[] dims = new int[2];
+        for (int size : new int[] {300, 256, 100})
+        {
+            int[] small = Previews.downsample(stripes, WIDTH, HEIGHT, size, dims);
+            assertEquals(size, dims[0]);
+            for (int p : small)
+            {
+                assertEquals(0xFF, p >>> 24);
+                assertEquals(128, p & 0xFF, 1);
+            }
+        }
+    }
+
+    @Test
+    public void writeThenRead() throws IOException
+    {
+        int[] canvas = canvas();
+        File file = save(canvas);
+        byte[] preview = Previews.encode(canvas, WIDTH, HEIGHT, 64, new PngEncoder(Deflater.BEST_SPEED));
+        Previews.write(file, preview);
+        Previews.Info info = Previews.read(file);
+        assertEquals(WIDTH, info.width);
+        assertEquals(HEIGHT, info.height);
+        assertArrayEquals(preview, info.preview);
+        assertEquals(64, info.previewWidth());
+        assertEquals(32, info.previewHeight());
+
+        // A new preview replaces the old one, and the image is left as it was
+        byte[] larger = Previews.encode(canvas, WIDTH, HEIGHT, 128, new PngEncoder(Deflater.BEST_SPEED));
+        Previews.write(file, larger);
+        info = Previews.read(file);
+        assertArrayEquals(larger, info.preview);
+        BufferedImage image = ImageIO.read(file);
+        assertArrayEquals(canvas, image.getRGB(0, 0, WIDTH, HEIGHT, null, 0, WIDTH));
+    }
+
+    @Test
+    public void noPreview() throws IOException
+    {
+        Previews.Info info = Previews.read(save(canvas()));
+        assertEquals(WIDTH, info.width);
+        assertNull(info.preview);
+        assertEquals(0, info.previewWidth());
+    }
+
+    @Test
+    public void damagedPreviewsAreLeftOut() throws IOException
+    {
+        int[] canvas = canvas();
+        File file = save(canvas);
+        Previews.write(file, Previews.encode(canvas, WIDTH, HEIGHT, 64, new PngEncoder(Deflater.BEST_SPEED)));
+        byte[] png = Files.readAllBytes(file.toPath());
+        // The preview chunk comes straight after the 8 byte signature and the 25 byte header
+        int at = 8 + 25;
+        assertEquals(Previews.CHUNK, new String(png, at + 4, 4, "US-ASCII"));
+
+        byte[] flipped = png.clone();
+        flipped[at + 8 + 30] ^= 1;
+        Files.write(file.toPath(), flipped);
+        Previews.Info info = Previews.read(file);
+        assertEquals(WIDTH, info.width);
+        assertNull("the CRC doesn't match", info.preview);
+
+        // Lengths too long to be a preview are not read
+        for (int length : new int[] {Integer.MAX_VALUE, -5, Previews.MAX_PREVIEW + 1})
+        {
+            byte[] lengthened = png.clone();
+            ByteBuffer.wrap(lengthened).putInt(at, length);
+            Files.write(file.toPath(), lengthened);
+            info = Previews.read(file);
+            assertEquals(HEIGHT, info.height);
+            assertNull(info.preview);
+        }
+
+        // A file cut off in the preview keeps its size
+        Files.write(file.toPath(), Arrays.copyOf(png, at + 40));
+        info = Previews.read(file);
+        assertEquals(WIDTH, info.width);
+        assertNull(info.preview);
+    }
+
+    @Test(expected = IOException.class)
+    public void notAPng() throws IOException
+    {
+        File file = File.createTempFile("preview", ".png");
+        file.deleteOnExit();
+        Files.write(file.toPath(), "not a picture at all".getBytes("US-ASCII"));
+        Previews.read(file);
+    }
+
+    private static int[] canvas()
+    {
+        int[] pixels = new int[WIDTH * HEIGHT];
+        for (int y = 0; y < HEIGHT; y++)
+        {
+            for (int x = 0; x < WIDTH; x++)
+            {
+                pixels[y * WIDTH + x] = 0xFF000000 | x % 256 << 16 | y % 256 << 8 | (x ^ y) & 0xFF;
+            }
+        }
+        return pixels;
+    }
+
+    private static File save(int[] pixels) throws IOException
+    {
+        File file = File.createTempFile("preview", ".png");
+        file.deleteOnExit();
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        new PngEncoder(Deflater.BEST_SPEED).encode(pixels, WIDTH, HEIGHT, false, png);
+        try (OutputStream out = new FileOutputStream(file))
+        {
+            png.writeTo(out);
+        }
+        return file;
+    }
+}
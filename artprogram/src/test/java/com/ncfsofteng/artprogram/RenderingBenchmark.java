@@ -0,0 +1,75 @@
+package com.ncfsofteng.artprogram;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Times the scenes of RenderingTest and counts the bytes their frames allocate, from the
+ * first frame to the last, leaving out making the window. Each scene is replayed a few times
+ * first to warm up the JIT, then the time and allocation of each further replay is printed.
+ * The allocation is only counted on JVMs that report it per thread. RenderingBudgetTest holds
+ * the scenes to budgets measured the same way.
+ *
+ * Not a test, run it by hand: RenderingBenchmark [rounds]
+ */
+public class RenderingBenchmark
+{
+    private static final int WARMUP = 5;
+
+    public static void main(String[] args) throws IOException
+    {
+        System.setProperty("java.awt.headless", "true");
+        int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        String[] names = {"brush", "stamps", "shapes", "blend", "group", "duplicate", "erase", "flatten", "import"};
+        InputScript[] scripts = {RenderingTest.brushStrokesScript(), RenderingTest.stampBrushesScript(),
+                RenderingTest.shapesScript(), RenderingTest.blendModesScript(), RenderingTest.groupAndMoveScript(),
+                RenderingTest.duplicateScript(), RenderingTest.eraseScript(), RenderingTest.flattenedHistoryScript(),
+                RenderingTest.imageImportScript()};
+        for (int k = 0; k < scripts.length; k++)
+        {
+            byte[] log = scripts[k].finish();
+            for (int round = 0; round < WARMUP; round++)
+            {
+                run(log);
+            }
+            for (int round = 0; round < rounds; round++)
+            {
+                long[] cost = run(log);
+                System.out.printf("%-10s %8.1f ms %10s%n", names[k], cost[0] / 1e6,
+                        cost[1] < 0 ? "" : (cost[1] >> 10) + " KB");
+            }
+        }
+    }
+
+    /*
+     * Replays a log and returns the nanoseconds and bytes allocated (-1 if unknown) its frames took
+     */
+    static long[] run(byte[] log) throws IOException
+    {
+        InputRecorder.Playback playback = new InputRecorder.Playback(new ByteArrayInputStream(log));
+        DrawingWindow window = RenderingTest.window(playback);
+        long bytes = allocated();
+        long start = System.nanoTime();
+        while (playback.hasFrame())
+        {
+            window.drawFrame();
+        }
+        long nanos = System.nanoTime() - start;
+        return new long[] {nanos, bytes < 0 ? -1 : allocated() - bytes};
+    }
+
+    /*
+     * Bytes allocated by this thread so far, or -1 if the JVM doesn't count them
+     */
+    private static long allocated()
+    {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean)
+        {
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,118 @@
+package com.ncfsofteng.artprogram;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Holds each scene of RenderingTest to a budget of the bytes its frames allocate. The scene is
+ * replayed a few times first to warm up the JIT, after which what it allocates hardly changes
+ * from one run to the next, and the budgets are about twice that. A change that allocates in
+ * the draw loop again fails, while the JVM's own noise doesn't. JVMs that don't count what a
+ * thread allocates skip the check.
+ *
+ * How long a scene takes depends on the machine, so those budgets are only checked with
+ * -Drendering.timeBudgets=true, which the budgets profile sets: mvn -P budgets test
+ */
+public class RenderingBudgetTest
+{
+    private static final boolean TIME_BUDGETS = Boolean.getBoolean("rendering.timeBudgets");
+    private static final int WARMUP = 3;
+    private static final int RUNS = 3;
+
+    @BeforeClass
+    public static void headless()
+    {
+        System.setProperty("java.awt.headless", "true");
+    }
+
+    @Test
+    public void brushStrokes() throws IOException
+    {
+        check("brush", RenderingTest.brushStrokesScript(), 1500, 3072);
+    }
+
+    @Test
+    public void stampBrushes() throws IOException
+    {
+        check("stamps", RenderingTest.stampBrushesScript(), 600, 512);
+    }
+
+    @Test
+    public void shapes() throws IOException
+    {
+        check("shapes", RenderingTest.shapesScript(), 600, 256);
+    }
+
+    @Test
+    public void blendModes() throws IOException
+    {
+        check("blend", RenderingTest.blendModesScript(), 250, 3072);
+    }
+
+    @Test
+    public void groupAndMove() throws IOException
+    {
+        check("group", RenderingTest.groupAndMoveScript(), 250, 256);
+    }
+
+    @Test
+    public void duplicate() throws IOException
+    {
+        check("duplicate", RenderingTest.duplicateScript(), 250, 256);
+    }
+
+    @Test
+    public void erase() throws IOException
+    {
+        check("erase", RenderingTest.eraseScript(), 1500, 1024);
+    }
+
+    @Test
+    public void flattenedHistory() throws IOException
+    {
+        check("memory", RenderingTest.flattenedHistoryScript(), 400, 3072);
+    }
+
+    @Test
+    public void imageImport() throws IOException
+    {
+        check("image", RenderingTest.imageImportScript(), 300, 256);
+    }
+
+    /*
+     * Replays a scene until it is warm, then checks the best of a few more runs against its
+     * budgets, as other work on the machine can only make a run slower
+     */
+    private static void check(String name, InputScript script, long maxMillis, long maxKilobytes) throws IOException
+    {
+        byte[] log = script.finish();
+        for (int i = 0; i < WARMUP; i++)
+        {
+            RenderingBenchmark.run(log);
+        }
+        long nanos = Long.MAX_VALUE;
+        long bytes = Long.MAX_VALUE;
+        for (int i = 0; i < RUNS; i++)
+        {
+            long[] cost = RenderingBenchmark.run(log);
+            nanos = Math.min(nanos, cost[0]);
+            bytes = Math.min(bytes, cost[1]);
+        }
+
+        if (bytes >= 0)
+        {
+            long kilobytes = bytes >> 10;
+            assertTrue(name + " allocated " + kilobytes + " KB, the budget is " + maxKilobytes + " KB",
+                    kilobytes <= maxKilobytes);
+        }
+        if (TIME_BUDGETS)
+        {
+            long millis = nanos / 1000000;
+            assertTrue(name + " took " + millis + " ms, the budget is " + maxMillis + " ms", millis <= maxMillis);
+        }
+    }
+}
@@ -0,0 +1,455 @@
+package com.ncfsofteng.artprogram;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.zip.Deflater;
+
+import javax.imageio.ImageIO;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Draws scenes through the same input a user would give, off-screen, and compares the canvas
+ * with a golden PNG in src/test/resources/golden. Each scene is replayed twice, and both runs
+ * must draw the same canvas. Run with -Dgolden.update=true to rewrite the goldens after an
+ * intended change. What the scenes may allocate and how long they may take is up to
+ * RenderingBudgetTest.
+ */
+public class RenderingTest
+{
+    private static final int WIDTH = 320;
+    private static final int HEIGHT = 240;
+    private static final File GOLDEN = new File(System.getProperty("golden.dir", "src/test/resources/golden"));
+    private static final File FAILURES = new File("target/golden-failures");
+    private static final boolean UPDATE = Boolean.getBoolean("golden.update");
+    // A channel may be off by this much before the pixel counts as different
+    private static final int CHANNEL_TOLERANCE = 16;
+    // Fraction of pixels that may differ, for antialiasing that varies between JDKs
+    private static final double PIXEL_TOLERANCE = 0.002;
+    // The mouse position text at the top depends on the installed fonts, so these rows are skipped
+    private static final int TEXT_ROWS = 30;
+
+    @BeforeClass
+    public static void headless()
+    {
+        System.setProperty("java.awt.headless", "true");
+    }
+
+    @Test
+    public void brushStrokes() throws IOException
+    {
+        check("brush", brushStrokesScript());
+    }
+
+    static InputScript brushStrokesScript() throws IOException
+    {
+        InputScript s = new InputScript(WIDTH, HEIGHT);
+        s.menu("Brush Type", "1");
+        s.drag(40, 60, 280, 80, 24);
+        s.menu("Red");
+        s.menu("Brush Type", "2");
+        s.drag(40, 120, 200, 200, 16);
+        s.menu("Blue");
+        s.menu("Brush Type", "3");
+        s.menu("Brush Size", "12");
+        s.drag(300, 50, 150, 220, 20);
+        s.menu("Green");
+        s.menu("Brush Type", "0");
+        s.menu("Brush Size", "40");
+        s.drag(60, 200, 120, 120, 10);
+        // A jittery wave, simplified and smoothed into curves when the mouse is released
+        s.menu("Black");
+        s.menu("Brush Type", "3");
+        s.menu("Brush Size", "6");
+        s.menu("Smoothing", "1.5 1");
+        int[] wave = new int[120];
+        for (int i = 0; i < wave.length; i += 2)
+        {
+            wave[i] = 20 + i * 2 + i % 3;
+            wave[i + 1] = 215 + (int) (12 * Math.sin(i / 8.0)) + i % 4 / 2;
+        }
+        s.drag(wave);
+        return s;
+    }
+
+    @Test
+    public void stampBrushes() throws IOException
+    {
+        check("stamps", stampBrushesScript());
+    }
+
+    static InputScript stampBrushesScript() throws IOException
+    {
+        InputScript s = new InputScript(WIDTH, HEIGHT);
+        s.menu("Brush Size", "24");
+        // Hard and soft round dabs, then chalk, which shares one cached stamp per size
+        s.menu("Brush Type", "4 1");
+        s.drag(30, 60, 290, 90, 24);
+        s.menu("Blue");
+        s.menu("Brush Type", "4 0");
+        s.drag(30, 130, 290, 110, 24);
+        s.menu("Brown");
+        s.menu("Brush Type", "5 0.5");
+        s.drag(30, 200, 290, 170, 24);
+        s.drag(160, 40, 160, 230, 24);
+        return s;
+    }
+
+    @Test
+    public void shapes() throws IOException
+    {
+        check("shapes", shapesScript());
+    }
+
+    static InputScript shapesScript() throws IOException
+    {
+        InputScript s = new InputScript(WIDTH, HEIGHT);
+        s.menu("Brush Mode", "1");
+        String[] kinds = {"Circle", "Square", "Rectangle", "Ellipse", "Pixel"};
+        String[] colors = {"Red", "Green", "Blue", "Orange", "Black"};
+        for (int i = 0; i < kinds.length; i++)
+        {
+            s.menu(kinds[i]);
+            s.menu(colors[i]);
+            for (int j = 0; j < 4; j++)
+            {
+                s.click(40 + i * 60, 60 + j * 45);
+            }
+        }
+        s.menu("Line");
+        s.menu("Magenta");
+        s.drag(20, 230, 300, 40, 8);
+        return s;
+    }
+
+    @Test
+    public void blendModes() throws IOException
+    {
+        check("blend", blendModesScript());
+    }
+
+    static InputScript blendModesScript() throws IOException
+    {
+        InputScript s = new InputScript(WIDTH, HEIGHT);
+        s.menu("Brush Mode", "1");
+        s.menu("Brush Size", "60");
+        s.menu("Rectangle");
+        s.menu("Yellow");
+        for (int x = 40; x < WIDTH; x += 60)
+        {
+            s.click(x, 140);
+        }
+        // One circle of each mode over the rectangles, then two overlapping in one run
+        s.menu("Circle");
+        s.menu("Blue");
+        for (int mode = 1; mode < Compositor.NAMES.length; mode++)
+        {
+            s.menu("Blend Mode", String.valueOf(mode));
+            s.click(mode * 44, 110);
+        }
+        s.menu("Red");
+        s.menu("Blend Mode", "1");
+        s.click(120, 190);
+        s.click(150, 190);
+        s.menu("Blend Mode", "0");
+        s.click(280, 200);
+        return s;
+    }
+
+    @Test
+    public void groupAndMove() throws IOException
+    {
+        check("group", groupAndMoveScript());
+    }
+
+    static InputScript groupAndMoveScript() throws IOException
+    {
+        InputScript s = new InputScript(WIDTH, HEIGHT);
+        s.menu("Brush Mode", "1");
+        s.menu("Square");
+        for (int i = 0; i < 5; i++)
+        {
+            s.click(40 + i * 50, 80);
+            s.click(40 + i * 50, 180);
+        }
+        // Rubber band around the top row, then move it down and recolor one shape
+        s.menu("Brush Mode", "3");
+        s.drag(20, 60, 300, 140, 6);
+        s.menu("Brush Mode", "2");
+        s.drag(50, 90, 80, 120, 10);
+        s.menu("Cyan");
+        s.click(50, 190);
+        return s;
+    }
+
+    @Test
+    public void duplicate() throws IOException
+    {
+        check("duplicate", duplicateScript());
+    }
+
+    static InputScript duplicateScript() throws IOException
+    {
+        InputScript s = new InputScript(WIDTH, HEIGHT);
+        s.menu("Brush Mode", "1");
+        s.menu("Circle");
+        s.menu("Brown");
+        s.click(50, 60);
+        s.menu("Rectangle");
+        s.menu("Yellow");
+        s.click(260, 190);
+        s.menu("Brush Mode", "4");
+        s.click(50, 60);
+        s.click(265, 195);
+        // Group both originals and duplicate the group
+        s.menu("Brush Mode", "3");
+        s.click(50, 60);
+        s.pressWith(265, 195, InputQueue.SHIFT);
+        s.menu("Brush Mode", "4");
+        s.click(50, 60);
+        return s;
+    }
+
+    @Test
+    public void erase() throws IOException
+    {
+        check("erase", eraseScript());
+    }
+
+    static InputScript eraseScript() throws IOException
+    {
+        InputScript s = new InputScript(WIDTH, HEIGHT);
+        s.menu("Brush Mode", "1");
+        s.menu("Circle");
+        for (int x = 30; x < WIDTH; x += 40)
+        {
+            for (int y = 50; y < HEIGHT; y += 40)
+            {
+                s.click(x, y);
+            }
+        }
+        s.menu("Magic Wand");
+        s.menu("Brush Size", "15");
+        s.drag(10, 60, 310, 220, 30);
+        s.drag(300, 60, 40, 230, 30);
+        return s;
+    }
+
+    @Test
+    public void flattenedHistory() throws IOException
+    {
+        check("memory", flattenedHistoryScript());
+    }
+
+    static InputScript flattenedHistoryScript() throws IOException
+    {
+        InputScript s = new InputScript(WIDTH, HEIGHT);
+        s.menu("Brush Type", "2");
+        s.drag(30, 60, 290, 120, 20);
+        s.menu("Brush Mode", "1");
+        s.menu("Circle");
+        s.menu("Orange");
+        for (int x = 40; x < WIDTH; x += 60)
+        {
+            s.click(x, 170);
+        }
+        // A budget of nothing flattens everything drawn so far, then a normal budget keeps the rest
+        s.menu("Memory", "0");
+        s.menu("Memory", "64");
+        s.menu("Square");
+        s.menu("Blue");
+        s.click(70, 210);
+        s.click(250, 210);
+        // The new square still moves, a flattened circle doesn't
+        s.menu("Brush Mode", "2");
+        s.drag(250, 210, 280, 60, 8);
+        s.drag(40, 170, 40, 220, 8);
+        return s;
+    }
+
+    @Test
+    public void flattenGoesPastGroupedShapes() throws IOException
+    {
+        InputScript s = new InputScript(WIDTH, HEIGHT);
+        s.menu("Brush Mode", "1");
+        s.menu("Circle");
+        s.click(40, 80);
+        s.click(50, 90);
+        s.click(200, 80);
+        s.click(250, 180);
+        // The oldest circle is grouped, and the one over it has to stay above it
+        s.menu("Brush Mode", "3");
+        s.click(40, 80);
+        s.menu("Memory", "0");
+        String json = replay(s.finish()).statsJson();
+        assertTrue(json, json.contains("\"Ellipse\": {\"count\": 2,"));
+        assertFalse(json, json.contains("\"rasterBytes\": 0,"));
+    }
+
+    @Test
+    public void imageImport() throws IOException
+    {
+        check("image", imageImportScript());
+    }
+
+    static InputScript imageImportScript() throws IOException
+    {
+        // A generated image keeps binary fixtures out of the repository
+        int w = 96;
+        int h = 64;
+        int[] pixels = new int[w * h];
+        for (int y = 0; y < h; y++)
+        {
+            for (int x = 0; x < w; x++)
+            {
+                pixels[y * w + x] = 0xFF000000 | (x * 255 / w) << 16 | (y * 255 / h) << 8 | 0x80;
+            }
+        }
+        File file = File.createTempFile("import", ".png");
+        file.deleteOnExit();
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file)))
+        {
+            new PngEncoder(Deflater.BEST_SPEED).encode(pixels, w, h, false, out);
+        }
+
+        InputScript s = new InputScript(WIDTH, HEIGHT);
+        // Images are added with their corner at the center, move it to the corner and copy it back
+        s.image(file.getAbsolutePath());
+        s.menu("Brush Mode", "2");
+        s.drag(WIDTH / 2 + 10, HEIGHT / 2 + 10, 20, 50, 8);
+        s.menu("Brush Mode", "4");
+        s.click(40, 60);
+        return s;
+    }
+
+    @Test
+    public void sharedImagesCountOnce() throws IOException
+    {
+        int w = 96;
+        int h = 64;
+        File file = File.createTempFile("shared", ".png");
+        file.deleteOnExit();
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file)))
+        {
+            new PngEncoder(Deflater.BEST_SPEED).encode(new int[w * h], w, h, false, out);
+        }
+
+        // Loaded twice and copied twice, all drawing the pixels decoded by the first load
+        InputScript s = new InputScript(WIDTH, HEIGHT);
+        s.image(file.getAbsolutePath());
+        s.image(file.getAbsolutePath());
+        s.menu("Brush Mode", "4");
+        s.click(WIDTH / 2 + 5, HEIGHT / 2 + 5);
+        s.click(WIDTH / 2 + 5, HEIGHT / 2 + 5);
+        String json = replay(s.finish()).statsJson();
+        assertTrue(json, json.contains("\"bufferBytes\": " + MemoryGovernor.array(w * h, 4) + ","));
+    }
+
+    /*
+     * Replays a session twice and checks both runs agree with each other and with the golden
+     */
+    private static void check(String name, InputScript session) throws IOException
+    {
+        byte[] log = session.finish();
+        long first = replay(log).canvasHash();
+        DrawingWindow window = replay(log);
+        assertEquals(name + " drew a different canvas when replayed again", first, window.canvasHash());
+
+        window.loadPixels();
+        int[] actual = window.pixels.clone();
+        File golden = new File(GOLDEN, name + ".png");
+        if (UPDATE)
+        {
+            write(actual, golden);
+        }
+        else
+        {
+            if (!golden.exists())
+            {
+                fail("No golden image " + golden + ", run with -Dgolden.update=true to create it");
+            }
+            BufferedImage expected = ImageIO.read(golden);
+            assertEquals(WIDTH, expected.getWidth());
+            assertEquals(HEIGHT, expected.getHeight());
+            int different = 0;
+            for (int y = TEXT_ROWS; y < HEIGHT; y++)
+            {
+                for (int x = 0; x < WIDTH; x++)
+                {
+                    if (!close(actual[y * WIDTH + x], expected.getRGB(x, y)))
+                    {
+                        different++;
+                    }
+                }
+            }
+            int allowed = (int) (PIXEL_TOLERANCE * WIDTH * (HEIGHT - TEXT_ROWS));
+            if (different > allowed)
+            {
+                File failure = new File(FAILURES, name + ".png");
+                write(actual, failure);
+                fail(name + ": " + different + " pixels differ from the golden image, at most " + allowed
+                        + " may. The canvas was written to " + failure);
+            }
+        }
+    }
+
+    /*
+     * Draws every frame of a log into a new off-screen window
+     */
+    static DrawingWindow replay(byte[] log) throws IOException
+    {
+        InputRecorder.Playback playback = new InputRecorder.Playback(new ByteArrayInputStream(log));
+        DrawingWindow window = window(playback);
+        while (playback.hasFrame())
+        {
+            window.drawFrame();
+        }
+        return window;
+    }
+
+    /*
+     * Returns a new off-screen window that replays a log, with no frame drawn yet
+     */
+    static DrawingWindow window(InputRecorder.Playback playback)
+    {
+        LinkedHashMap<String, Double> parameters = new LinkedHashMap<>();
+        ExampleDriver.addButtons(parameters);
+        DrawingWindow window = new DrawingWindow(playback.width, playback.height, parameters);
+        window.replay(playback);
+        window.startOffscreen();
+        return window;
+    }
+
+    private static boolean close(int a, int b)
+    {
+        for (int shift = 0; shift < 24; shift += 8)
+        {
+            if (Math.abs(((a >> shift) & 0xFF) - ((b >> shift) & 0xFF)) > CHANNEL_TOLERANCE)
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void write(int[] pixels, File file) throws IOException
+    {
+        file.getParentFile().mkdirs();
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file)))
+        {
+            new PngEncoder(Deflater.BEST_COMPRESSION).encode(pixels, WIDTH, HEIGHT, false, out);
+        }
+    }
+}
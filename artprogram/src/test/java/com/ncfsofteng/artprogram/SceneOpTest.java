@@ -0,0 +1,273 @@
+package com.ncfsofteng.artprogram;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Encodes batches of every kind of op, decodes them again and checks nothing was lost, and
+ * checks the keys, clocks and frames the ops are sent with.
+ */
+public class SceneOpTest
+{
+    private static final int SENDER = 3;
+
+    @Test
+    public void keysAndClocks()
+    {
+        long key = SceneOp.key(7, -2);
+        assertEquals(7, key >>> 32);
+        assertEquals(-2, (int) key);
+        SceneOp op = new SceneOp();
+        op.author = 7;
+        op.serial = -2;
+        assertEquals(key, op.key());
+
+        long clock = SceneOp.clock(1000, SENDER);
+        assertEquals(1000, SceneOp.counter(clock));
+        assertEquals(SENDER, clock & 0xFFFF);
+        // A newer counter is a newer clock whatever the users, and the user breaks ties
+        assertTrue(SceneOp.clock(1001, 0) > SceneOp.clock(1000, 65535));
+        assertTrue(SceneOp.clock(1000, 2) > SceneOp.clock(1000, 1));
+    }
+
+    @Test
+    public void snapIsWhatTheOthersReceive()
+    {
+        assertEquals(10.125f, SceneOp.snap(10.1f), 0);
+        assertEquals(-3.5f, SceneOp.snap(-3.49f), 0);
+        assertEquals(SceneOp.snap(10.1f), SceneOp.snap(SceneOp.snap(10.1f)), 0);
+    }
+
+    @Test
+    public void everyKindSurvivesTheRoundTrip() throws IOException
+    {
+        List<SceneOp> ops = new ArrayList<>();
+        SceneOp ellipse = styled(SceneOp.PUT, SceneOp.ELLIPSE, 1, 100);
+        ellipse.x = 40;
+        ellipse.y = -12;
+        ellipse.degrees = 30;
+        ops.add(ellipse);
+
+        SceneOp stroke = styled(SceneOp.PUT, SceneOp.STROKE, 2, 101);
+        stroke.curves = true;
+        stroke.points = new float[] {1.5f, 2.25f, 40.125f, -8, 300, 200.5f, 0};
+        stroke.count = 6;
+        ops.add(stroke);
+
+        SceneOp dabs = styled(SceneOp.PUT, SceneOp.DABS, 3, 102);
+        dabs.author = 9;
+        dabs.brush = "Charcoal";
+        dabs.hardness = 0.75f;
+        dabs.points = new float[] {5, 5, 6, 7};
+        dabs.count = 4;
+        // Made from a shape of another user, so it is stacked where that one was
+        dabs.born = SceneOp.clock(50, 9);
+        ops.add(dabs);
+
+        SceneOp fill = styled(SceneOp.PUT, SceneOp.FILL, 4, 103);
+        fill.color = 12;
+        fill.spans = new int[] {10, 3, 9, 11, 2, 10, 12, 4, 8};
+        ops.add(fill);
+
+        SceneOp append = styled(SceneOp.APPEND, SceneOp.STROKE, 2, 104);
+        append.keep = 4;
+        append.points = new float[] {40.125f, -8, 41, -9};
+        append.count = 4;
+        ops.add(append);
+
+        SceneOp remove = new SceneOp();
+        remove.kind = SceneOp.REMOVE;
+        remove.author = SENDER;
+        remove.serial = 1;
+        remove.clock = SceneOp.clock(105, SENDER);
+        ops.add(remove);
+
+        SceneOp clear = new SceneOp();
+        clear.kind = SceneOp.CLEAR;
+        clear.author = SENDER;
+        clear.clock = SceneOp.clock(106, SENDER);
+        ops.add(clear);
+
+        List<SceneOp> decoded = roundTrip(ops);
+        assertEquals(ops.size(), decoded.size());
+        for (int k = 0; k < ops.size(); k++)
+        {
+            SceneOp expected = ops.get(k);
+            SceneOp actual = decoded.get(k);
+            String name = "op " + k;
+            assertEquals(name, expected.kind, actual.kind);
+            assertEquals(name, expected.key(), actual.key());
+            assertEquals(name, expected.clock, actual.clock);
+            assertEquals(name, expected.born, actual.born);
+            if (expected.kind == SceneOp.PUT || expected.kind == SceneOp.APPEND)
+            {
+                assertEquals(name, expected.form, actual.form);
+                assertEquals(name, expected.layer, actual.layer);
+                assertEquals(name, expected.color, actual.color);
+                assertEquals(name, expected.blend, actual.blend);
+                assertEquals(name, expected.w, actual.w);
+                assertEquals(name, expected.h, actual.h);
+                assertEquals(name, expected.degrees, actual.degrees, 0);
+            }
+        }
+        assertEquals(40, decoded.get(0).x);
+        assertEquals(-12, decoded.get(0).y);
+        assertTrue(decoded.get(1).curves);
+        assertPoints(stroke, decoded.get(1));
+        assertEquals("Charcoal", decoded.get(2).brush);
+        assertEquals(0.75f, decoded.get(2).hardness, 0);
+        assertPoints(dabs, decoded.get(2));
+        assertArrayEquals(fill.spans, decoded.get(3).spans);
+        assertEquals(4, decoded.get(4).keep);
+        assertPoints(append, decoded.get(4));
+    }
+
+    @Test
+    public void compoundsCarryTheirMembers() throws IOException
+    {
+        SceneOp inner = styled(SceneOp.PUT, SceneOp.COMPOUND, 0, 0);
+        inner.x = 90;
+        inner.y = 95;
+        SceneOp dot = styled(SceneOp.PUT, SceneOp.PIXEL, 0, 0);
+        dot.x = 91;
+        dot.y = 97;
+        inner.members = new SceneOp[] {dot};
+
+        SceneOp copy = styled(SceneOp.PUT, SceneOp.COMPOUND, 1, 1);
+        copy.x = 100;
+        copy.y = 100;
+        copy.color = Palette.NONE;
+        SceneOp ellipse = styled(SceneOp.PUT, SceneOp.ELLIPSE, 0, 0);
+        ellipse.x = 80;
+        ellipse.y = 130;
+        ellipse.degrees = 45;
+        ellipse.color = 7;
+        SceneOp stroke = styled(SceneOp.PUT, SceneOp.STROKE, 0, 0);
+        stroke.x = 120;
+        stroke.y = 110;
+        stroke.points = new float[] {110, 105, 130, 115};
+        stroke.count = 4;
+        copy.members = new SceneOp[] {ellipse, stroke, inner};
+
+        SceneOp decoded = roundTrip(Arrays.asList(copy)).get(0);
+        assertEquals(SceneOp.COMPOUND, decoded.form);
+        assertEquals(Palette.NONE, decoded.color);
+        assertEquals(3, decoded.members.length);
+        for (int i = 0; i < 3; i++)
+        {
+            SceneOp expected = copy.members[i];
+            SceneOp actual = decoded.members[i];
+            assertEquals(expected.form, actual.form);
+            assertEquals(expected.x, actual.x);
+            assertEquals(expected.y, actual.y);
+            assertEquals(expected.w, actual.w);
+            assertEquals(expected.color, actual.color);
+        }
+        assertEquals(45, decoded.members[0].degrees, 0);
+        assertPoints(stroke, decoded.members[1]);
+        assertEquals(91, decoded.members[2].members[0].x);
+        assertEquals(97, decoded.members[2].members[0].y);
+    }
+
+    @Test(expected = IOException.class)
+    public void deeplyNestedCompoundsAreRefused() throws IOException
+    {
+        SceneOp op = styled(SceneOp.PUT, SceneOp.PIXEL, 0, 0);
+        for (int depth = 0; depth <= SceneOp.MAX_DEPTH; depth++)
+        {
+            SceneOp outer = styled(SceneOp.PUT, SceneOp.COMPOUND, 1, 1);
+            outer.members = new SceneOp[] {op};
+            op = outer;
+        }
+        roundTrip(Arrays.asList(op));
+    }
+
+    @Test
+    public void pointsAreSnapped() throws IOException
+    {
+        SceneOp stroke = styled(SceneOp.PUT, SceneOp.STROKE, 1, 1);
+        stroke.points = new float[] {0.3f, 10.06f, -7.77f, 1000.01f};
+        stroke.count = 4;
+        SceneOp decoded = roundTrip(Arrays.asList(stroke)).get(0);
+        for (int i = 0; i < 4; i++)
+        {
+            assertEquals(SceneOp.snap(stroke.points[i]), decoded.points[i], 0);
+        }
+    }
+
+    @Test
+    public void framesAreReadBack() throws IOException
+    {
+        byte[] first = SceneOp.encode(SENDER, Arrays.asList(styled(SceneOp.PUT, SceneOp.RECTANGLE, 1, 1)));
+        byte[] second = SceneOp.encode(SENDER, new ArrayList<SceneOp>());
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        stream.write(first);
+        stream.write(second);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(stream.toByteArray()));
+        byte[] frame = SceneOp.readFrame(in);
+        assertEquals(SceneOp.RECTANGLE, SceneOp.decode(frame).get(0).form);
+        assertTrue(SceneOp.decode(SceneOp.readFrame(in)).isEmpty());
+        assertNull(SceneOp.readFrame(in));
+
+        // Written back out, a frame is the same bytes as encoded
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        SceneOp.writeFrame(out, frame);
+        assertArrayEquals(first, out.toByteArray());
+    }
+
+    @Test(expected = IOException.class)
+    public void oversizedFramesAreRefused() throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        SceneOp.writeVar(new DataOutputStream(out), SceneOp.MAX_FRAME + 1);
+        SceneOp.readFrame(new DataInputStream(new ByteArrayInputStream(out.toByteArray())));
+    }
+
+    /*
+     * Returns an op of the sender with a style and a clock
+     */
+    private static SceneOp styled(int kind, int form, int serial, long counter)
+    {
+        SceneOp op = new SceneOp();
+        op.kind = kind;
+        op.form = form;
+        op.author = SENDER;
+        op.serial = serial;
+        op.clock = SceneOp.clock(counter, SENDER);
+        op.layer = serial % 2;
+        op.color = 5;
+        op.blend = 1;
+        op.w = 20 + serial;
+        op.h = 10;
+        return op;
+    }
+
+    private static List<SceneOp> roundTrip(List<SceneOp> ops) throws IOException
+    {
+        byte[] framed = SceneOp.encode(SENDER, ops);
+        byte[] frame = SceneOp.readFrame(new DataInputStream(new ByteArrayInputStream(framed)));
+        return SceneOp.decode(frame);
+    }
+
+    private static void assertPoints(SceneOp expected, SceneOp actual)
+    {
+        assertEquals(expected.count, actual.count);
+        for (int i = 0; i < expected.count; i++)
+        {
+            assertEquals("point " + i, expected.points[i], actual.points[i], 0);
+        }
+    }
+}
@@ -0,0 +1,411 @@
+package com.ncfsofteng.artprogram;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Shares a drawing between off-screen windows through a SessionServer on this machine. Each
+ * window replays a script, and once the network is quiet every window must draw the same
+ * canvas, including one that joins after everything was drawn and catches up from the
+ * server's history.
+ */
+public class SessionTest
+{
+    private static final int WIDTH = 320;
+    private static final int HEIGHT = 240;
+    private static final long SETTLE_MILLIS = 20000;
+    private static final int IDLE = 3000; // frames at the end of each script, more than settling takes
+
+    private SessionServer server;
+    private final List<SessionClient> clients = new ArrayList<>();
+
+    @BeforeClass
+    public static void headless()
+    {
+        System.setProperty("java.awt.headless", "true");
+    }
+
+    @Before
+    public void serve() throws IOException
+    {
+        server = new SessionServer(0);
+    }
+
+    @After
+    public void stop() throws IOException
+    {
+        for (SessionClient client : clients)
+        {
+            client.close();
+        }
+        server.close();
+    }
+
+    /*
+     * One window sprays the whole time while the other sprays, clears and sprays again. Each of
+     * the second window's batches reaches the first before its next frame, so the clear lands
+     * in a frame that also added spray that hasn't been sent yet.
+     */
+    @Test(timeout = 60000)
+    public void sprayAndClearConverge() throws IOException, InterruptedException
+    {
+        InputScript a = new InputScript(WIDTH, HEIGHT);
+        a.menu("Brush Type", "0");
+        a.menu("Brush Size", "20");
+        a.menu("Red");
+        a.drag(20, 40, 300, 220, 80);
+        int busyA = end(a);
+
+        InputScript b = new InputScript(WIDTH, HEIGHT);
+        b.menu("Brush Type", "0");
+        b.menu("Brush Size", "30");
+        b.menu("Blue");
+        b.drag(300, 40, 160, 120, 20);
+        b.menu("Clear");
+        b.drag(160, 200, 20, 220, 20);
+        int busyB = end(b);
+
+        Window first = new Window(a, busyA);
+        Window second = new Window(b, busyB);
+        long[] latencies = new long[256];
+        int sent = 0;
+        while (first.active() || second.active())
+        {
+            long received = first.client.received();
+            long before = second.client.sent();
+            long start = System.nanoTime();
+            second.frame();
+            if (second.client.sent() != before)
+            {
+                // Latency of a batch from one window to the other while both spray
+                while (first.client.received() == received)
+                {
+                    if (System.nanoTime() - start > SETTLE_MILLIS * 1000000)
+                    {
+                        fail("a batch took over " + SETTLE_MILLIS + " ms to arrive");
+                    }
+                    Thread.yield();
+                }
+                if (sent < latencies.length)
+                {
+                    latencies[sent++] = System.nanoTime() - start;
+                }
+            }
+            first.frame();
+        }
+        settle(first, second);
+        assertEquals("the windows drew different canvases", first.window.canvasHash(), second.window.canvasHash());
+        assertNotEquals("the spray after the clear is missing", blank(), first.window.canvasHash());
+
+        Arrays.sort(latencies, 0, sent);
+        System.out.println("Session: " + sent + " batches, latency p50 " + latencies[sent / 2] / 1000
+                + " us, max " + latencies[sent - 1] / 1000 + " us, " + server.bytes() + " bytes");
+
+        // A window joining now is sent the history, cut at the clear
+        InputScript c = new InputScript(WIDTH, HEIGHT);
+        Window late = new Window(c, end(c));
+        settle(first, late);
+        assertEquals("a late window drew a different canvas", first.window.canvasHash(), late.window.canvasHash());
+    }
+
+    /*
+     * One window draws strokes and the other erases across them once they have arrived. The
+     * pieces left must stack where the strokes were in both windows, and in a late one.
+     */
+    @Test(timeout = 60000)
+    public void erasedStrokesConverge() throws IOException, InterruptedException
+    {
+        InputScript a = new InputScript(WIDTH, HEIGHT);
+        a.menu("Brush Type", "2");
+        a.menu("Red");
+        a.drag(20, 60, 300, 80, 30);
+        a.menu("Blue");
+        a.drag(20, 200, 300, 40, 30);
+        a.menu("Brush Type", "1");
+        a.menu("Green");
+        a.drag(40, 120, 280, 150, 30);
+        int busyA = end(a);
+
+        InputScript b = new InputScript(WIDTH, HEIGHT);
+        b.idle(200);
+        b.menu("Magic Wand");
+        b.menu("Brush Size", "8");
+        b.drag(160, 20, 170, 220, 20);
+        b.drag(80, 20, 90, 220, 20);
+        int busyB = end(b);
+
+        Window first = new Window(a, busyA);
+        Window second = new Window(b, busyB);
+        while (first.active() || second.active())
+        {
+            first.frame();
+            second.frame();
+        }
+        settle(first, second);
+        assertEquals("the windows drew different canvases", first.window.canvasHash(), second.window.canvasHash());
+
+        InputScript c = new InputScript(WIDTH, HEIGHT);
+        Window late = new Window(c, end(c));
+        settle(first, late);
+        assertEquals("a late window drew a different canvas", first.window.canvasHash(), late.window.canvasHash());
+    }
+
+    /*
+     * One window groups two shapes, duplicates the group, then moves the copy and gives it a
+     * color of its own. The copy is a compound of both shapes, which the other window and a
+     * late one must draw.
+     */
+    @Test(timeout = 60000)
+    public void duplicatedGroupsConverge() throws IOException, InterruptedException
+    {
+        InputScript a = new InputScript(WIDTH, HEIGHT);
+        a.menu("Brush Mode", "1");
+        a.menu("Circle");
+        a.menu("Brown");
+        a.click(50, 60);
+        a.menu("Rectangle");
+        a.menu("Yellow");
+        a.click(120, 90);
+        a.menu("Brush Mode", "3");
+        a.click(50, 60);
+        a.pressWith(120, 90, InputQueue.SHIFT);
+        a.menu("Brush Mode", "4");
+        a.click(50, 60);
+        // The copy is the group now, with the circle at the center
+        a.menu("Brush Mode", "2");
+        a.drag(WIDTH / 2, HEIGHT / 2, 200, 160, 10);
+        // A click on empty canvas ends the group, so the copy can be recolored as a whole
+        a.menu("Brush Mode", "3");
+        a.click(300, 40);
+        a.menu("Brush Mode", "2");
+        a.menu("Cyan");
+        a.click(200, 160);
+        int busyA = end(a);
+
+        InputScript b = new InputScript(WIDTH, HEIGHT);
+        int busyB = end(b);
+
+        Window first = new Window(a, busyA);
+        Window second = new Window(b, busyB);
+        while (first.active() || second.active())
+        {
+            first.frame();
+            second.frame();
+        }
+        settle(first, second);
+        assertEquals("the windows drew different canvases", first.window.canvasHash(), second.window.canvasHash());
+
+        InputScript c = new InputScript(WIDTH, HEIGHT);
+        Window late = new Window(c, end(c));
+        settle(first, late);
+        assertEquals("a late window drew a different canvas", first.window.canvasHash(), late.window.canvasHash());
+    }
+
+    @Test
+    public void historyKeepsTheSceneOnly() throws IOException
+    {
+        SessionServer.History history = new SessionServer.History();
+        List<SceneOp> batch = new ArrayList<>();
+        for (int i = 1; i <= 1000; i++)
+        {
+            batch.add(pixel(1, i, SceneOp.clock(i, 1)));
+        }
+        history.add(batch);
+        // A stroke made, added to and put again, then a pixel moved twice, both after the clear
+        history.add(Arrays.asList(clear(SceneOp.clock(1001, 2))));
+        history.add(Arrays.asList(stroke(SceneOp.PUT, SceneOp.clock(1002, 1)), stroke(SceneOp.APPEND, SceneOp.clock(1003, 1)),
+                stroke(SceneOp.PUT, SceneOp.clock(1004, 1)), stroke(SceneOp.APPEND, SceneOp.clock(1005, 1))));
+        history.add(Arrays.asList(pixel(2, 1, SceneOp.clock(1006, 2)), pixel(2, 1, SceneOp.clock(1007, 2)),
+                pixel(2, 1, SceneOp.clock(1008, 2))));
+        // Older than the clear, as from a slow window
+        history.add(Arrays.asList(pixel(1, 5000, SceneOp.clock(900, 1))));
+        assertEquals(1 + 3 + 2, history.size());
+
+        List<SceneOp> ops = new ArrayList<>();
+        for (byte[] frame : history.frames())
+        {
+            ops.addAll(SceneOp.decode(frame));
+        }
+        assertEquals(6, ops.size());
+        assertEquals(SceneOp.CLEAR, ops.get(0).kind);
+        assertEquals(SceneOp.clock(1001, 2), ops.get(0).clock);
+        long[] clocks = {1002, 1004, 1005, 1006, 1008};
+        for (int i = 0; i < clocks.length; i++)
+        {
+            assertEquals(SceneOp.counter(ops.get(i + 1).clock), clocks[i]);
+        }
+
+        // Removing the shapes leaves the clear
+        history.add(Arrays.asList(remove(1, 7, SceneOp.clock(1009, 1)), remove(2, 1, SceneOp.clock(1010, 2))));
+        assertEquals(1, history.size());
+    }
+
+    @Test
+    public void longFramesAreRefused() throws IOException
+    {
+        // A length prefix of 2^31 - 1, with nothing after it
+        byte[] stream = {(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x07};
+        try
+        {
+            SceneOp.readFrame(new DataInputStream(new ByteArrayInputStream(stream)));
+            fail("a frame over the limit was read");
+        }
+        catch (IOException e)
+        {
+            assertTrue(e.getMessage(), e.getMessage().contains("over the limit"));
+        }
+    }
+
+    /*
+     * Leaves the mouse where every script leaves it, as its position is drawn on the canvas,
+     * and gives the window frames to pick up what the others send. Returns the frames before those.
+     */
+    private static int end(InputScript script)
+    {
+        script.moveTo(WIDTH / 2, HEIGHT / 2);
+        int busy = script.frames();
+        script.idle(IDLE);
+        return busy;
+    }
+
+    /*
+     * Draws frames in both windows until neither receives anything more and they agree, or
+     * SETTLE_MILLIS pass
+     */
+    private static void settle(Window a, Window b) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + SETTLE_MILLIS;
+        int quiet = 0;
+        while (quiet < 5 && System.currentTimeMillis() < deadline)
+        {
+            long received = a.client.received() + b.client.received();
+            Thread.sleep(10);
+            a.frame();
+            b.frame();
+            boolean same = received == a.client.received() + b.client.received()
+                    && a.window.canvasHash() == b.window.canvasHash();
+            quiet = same ? quiet + 1 : 0;
+        }
+    }
+
+    private long blank() throws IOException
+    {
+        InputScript script = new InputScript(WIDTH, HEIGHT);
+        end(script);
+        InputRecorder.Playback playback = new InputRecorder.Playback(new ByteArrayInputStream(script.finish()));
+        DrawingWindow window = window(playback);
+        for (int i = 0; i < 5; i++)
+        {
+            window.drawFrame();
+        }
+        return window.canvasHash();
+    }
+
+    private static DrawingWindow window(InputRecorder.Playback playback)
+    {
+        LinkedHashMap<String, Double> parameters = new LinkedHashMap<>();
+        ExampleDriver.addButtons(parameters);
+        DrawingWindow window = new DrawingWindow(playback.width, playback.height, parameters);
+        window.replay(playback);
+        window.startOffscreen();
+        return window;
+    }
+
+    private static SceneOp pixel(int author, int serial, long clock)
+    {
+        SceneOp op = new SceneOp();
+        op.kind = SceneOp.PUT;
+        op.form = SceneOp.PIXEL;
+        op.author = author;
+        op.serial = serial;
+        op.clock = clock;
+        op.x = serial % WIDTH;
+        op.y = serial / WIDTH;
+        return op;
+    }
+
+    private static SceneOp stroke(int kind, long clock)
+    {
+        SceneOp op = new SceneOp();
+        op.kind = kind;
+        op.form = SceneOp.STROKE;
+        op.author = 1;
+        op.serial = 7;
+        op.clock = clock;
+        op.w = 4;
+        op.points = new float[] {10, 10, 20, 20};
+        op.count = 4;
+        op.keep = 2;
+        return op;
+    }
+
+    private static SceneOp clear(long clock)
+    {
+        SceneOp op = new SceneOp();
+        op.kind = SceneOp.CLEAR;
+        op.author = (int) (clock & 0xFFFF);
+        op.clock = clock;
+        return op;
+    }
+
+    private static SceneOp remove(int author, int serial, long clock)
+    {
+        SceneOp op = pixel(author, serial, clock);
+        op.kind = SceneOp.REMOVE;
+        return op;
+    }
+
+    /*
+     * An off-screen window replaying a script and sharing its drawing through the server
+     */
+    private final class Window
+    {
+        final InputRecorder.Playback playback;
+        final DrawingWindow window;
+        final SessionClient client;
+        private final int busy;
+        private int frames = 0;
+
+        Window(InputScript script, int busy) throws IOException
+        {
+            this.busy = busy;
+            playback = new InputRecorder.Playback(new ByteArrayInputStream(script.finish()));
+            window = window(playback);
+            client = new SessionClient(SessionServer.localAddress(), server.port());
+            clients.add(client);
+            window.share(client);
+        }
+
+        /**
+         * Returns true until the window has drawn every frame of its script but the idle ones at the end
+         */
+        boolean active()
+        {
+            return frames < busy;
+        }
+
+        void frame()
+        {
+            if (playback.hasFrame())
+            {
+                window.drawFrame();
+                frames++;
+            }
+        }
+    }
+}
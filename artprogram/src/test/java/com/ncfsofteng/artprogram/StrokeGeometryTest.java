@@ -0,0 +1,115 @@
+package com.ncfsofteng.artprogram;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Checks the hit tests and eraser cuts of stroke paths, on straight lines and on curves.
+ */
+public class StrokeGeometryTest
+{
+    private static final float EPSILON = 0.01f;
+    // An arch from (0, 0) up to a height of 75 at x = 50 and back down to (100, 0)
+    private static final float[] ARCH = {0, 0, 0, 100, 100, 100, 100, 0};
+
+    @Test
+    public void curvesAreHitAlongTheirLength()
+    {
+        // The top of the arch is far from its end points and the line between them
+        assertTrue(StrokeGeometry.near(ARCH, ARCH.length, true, 50, 76, 2));
+        assertTrue(StrokeGeometry.near(ARCH, ARCH.length, true, 16, 56, 2));
+        assertFalse(StrokeGeometry.near(ARCH, ARCH.length, true, 50, 0, 2));
+        assertFalse(StrokeGeometry.near(ARCH, ARCH.length, true, 50, 70, 2));
+    }
+
+    @Test
+    public void linesAreHitWithinTheDistance()
+    {
+        float[] line = {0, 0, 100, 0, 100, 100};
+        assertTrue(StrokeGeometry.near(line, line.length, false, 50, 3, 3));
+        assertTrue(StrokeGeometry.near(line, line.length, false, 97, 50, 3));
+        assertFalse(StrokeGeometry.near(line, line.length, false, 50, 4, 3));
+        float[] dot = {10, 10};
+        assertTrue(StrokeGeometry.near(dot, 2, false, 12, 10, 2));
+        assertFalse(StrokeGeometry.near(dot, 2, false, 13, 10, 2));
+    }
+
+    @Test
+    public void lineIsCutInTwo()
+    {
+        float[] line = {0, 0, 40, 0, 100, 0};
+        List<float[]> pieces = StrokeGeometry.cut(line, line.length, false, 50, -20, 50, 20, 5);
+        assertEquals(2, pieces.size());
+        assertPoints(new float[] {0, 0, 40, 0, 45, 0}, pieces.get(0));
+        assertPoints(new float[] {55, 0, 100, 0}, pieces.get(1));
+    }
+
+    @Test
+    public void endsAreCutOff()
+    {
+        float[] line = {0, 0, 100, 0};
+        List<float[]> pieces = StrokeGeometry.cut(line, line.length, false, 0, -20, 0, 20, 10);
+        assertEquals(1, pieces.size());
+        assertPoints(new float[] {10, 0, 100, 0}, pieces.get(0));
+
+        // Along the whole line nothing is left
+        assertTrue(StrokeGeometry.cut(line, line.length, false, 0, 0, 100, 0, 1).isEmpty());
+        float[] dot = {10, 10};
+        assertTrue(StrokeGeometry.cut(dot, 2, false, 10, 12, 10, 12, 3).isEmpty());
+    }
+
+    @Test
+    public void missesCutNothing()
+    {
+        float[] line = {0, 0, 100, 0};
+        assertNull(StrokeGeometry.cut(line, line.length, false, 50, 10, 60, 30, 5));
+        // The eraser crosses the arch's bounding box but not the arch
+        assertNull(StrokeGeometry.cut(ARCH, ARCH.length, true, 40, 30, 60, 30, 5));
+    }
+
+    @Test
+    public void curveIsCutIntoCurves()
+    {
+        // Through the top of the arch
+        List<float[]> pieces = StrokeGeometry.cut(ARCH, ARCH.length, true, 50, 60, 50, 90, 10);
+        assertEquals(2, pieces.size());
+        for (float[] piece : pieces)
+        {
+            assertEquals(8, piece.length);
+            // Every point of a piece is on the arch, outside the eraser
+            for (int k = 0; k <= 16; k++)
+            {
+                float t = k / 16f;
+                float x = cubic(piece[0], piece[2], piece[4], piece[6], t);
+                float y = cubic(piece[1], piece[3], piece[5], piece[7], t);
+                assertTrue(x + ", " + y, StrokeGeometry.near(ARCH, ARCH.length, true, x, y, 0.2f));
+                assertTrue(x + ", " + y, Math.abs(x - 50) >= 10 - EPSILON);
+            }
+        }
+        assertEquals(0, pieces.get(0)[0], EPSILON);
+        assertEquals(40, pieces.get(0)[6], 0.1f);
+        assertEquals(60, pieces.get(1)[0], 0.1f);
+        assertEquals(100, pieces.get(1)[6], EPSILON);
+    }
+
+    private static float cubic(float p0, float p1, float p2, float p3, float t)
+    {
+        float u = 1 - t;
+        return u * u * u * p0 + 3 * u * u * t * p1 + 3 * u * t * t * p2 + t * t * t * p3;
+    }
+
+    private static void assertPoints(float[] expected, float[] actual)
+    {
+        assertEquals(expected.length, actual.length);
+        for (int i = 0; i < expected.length; i++)
+        {
+            assertEquals(expected[i], actual[i], EPSILON);
+        }
+    }
+}
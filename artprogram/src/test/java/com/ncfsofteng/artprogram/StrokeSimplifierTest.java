@@ -0,0 +1,141 @@
+package com.ncfsofteng.artprogram;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks that StrokeSimplifier drops only points within its tolerance, always keeps the ends
+ * and corners of a stroke, and that smoothed strokes go through the points they were made from.
+ */
+public class StrokeSimplifierTest
+{
+    private static final float DELTA = 1e-4f;
+
+    @Test
+    public void jitterIsDropped()
+    {
+        StrokeSimplifier stroke = new StrokeSimplifier(2, 10, 10);
+        assertFalse(stroke.add(11, 10));
+        assertFalse(stroke.add(10, 11.5f));
+        assertTrue(stroke.add(13, 10));
+        assertFalse(stroke.add(14, 11));
+        assertEquals(4, stroke.count());
+        assertArrayEquals(new float[] {10, 10, 13, 10}, Arrays.copyOf(stroke.points(), 4), DELTA);
+
+        // The finished stroke still ends at the last sample, though it was dropped
+        float[] points = stroke.finish();
+        assertEquals(14, points[points.length - 2], DELTA);
+        assertEquals(11, points[points.length - 1], DELTA);
+        assertEquals(10, points[0], DELTA);
+    }
+
+    @Test
+    public void straightLineKeepsItsEnds()
+    {
+        StrokeSimplifier stroke = new StrokeSimplifier(1, 0, 0);
+        for (int x = 5; x <= 200; x += 5)
+        {
+            stroke.add(x, x % 2 == 0 ? 0.5f : -0.5f);
+        }
+        assertArrayEquals(new float[] {0, 0, 200, 0.5f}, stroke.finish(), DELTA);
+    }
+
+    @Test
+    public void cornersAreKept()
+    {
+        // Out along x, up along y and back, with points every pixel
+        float[] samples = new float[2 * 301];
+        int n = 0;
+        for (int i = 0; i <= 100; i++)
+        {
+            samples[n++] = i;
+            samples[n++] = 0;
+        }
+        for (int i = 1; i <= 100; i++)
+        {
+            samples[n++] = 100;
+            samples[n++] = i;
+        }
+        for (int i = 1; i <= 100; i++)
+        {
+            samples[n++] = 100 - i;
+            samples[n++] = 100;
+        }
+        assertArrayEquals(new float[] {0, 0, 100, 0, 100, 100, 0, 100}, StrokeSimplifier.simplify(samples, n, 0.5f), DELTA);
+
+        // Two points or fewer come back as they are
+        assertArrayEquals(new float[] {1, 2, 3, 4}, StrokeSimplifier.simplify(new float[] {1, 2, 3, 4, 9, 9}, 4, 5), DELTA);
+    }
+
+    @Test
+    public void simplifiedStrokesStayWithinTheTolerance()
+    {
+        Random random = new Random(4);
+        float tolerance = 1.5f;
+        float[] samples = new float[2000];
+        float x = 0;
+        float y = 0;
+        for (int i = 0; i < samples.length; i += 2)
+        {
+            x += random.nextFloat() * 4;
+            y += random.nextFloat() * 4 - 2;
+            samples[i] = x;
+            samples[i + 1] = y;
+        }
+        float[] kept = StrokeSimplifier.simplify(samples, samples.length, tolerance);
+        assertTrue(kept.length < samples.length);
+        for (int i = 0; i < samples.length; i += 2)
+        {
+            float nearest = Float.MAX_VALUE;
+            for (int j = 0; j + 3 < kept.length; j += 2)
+            {
+                nearest = Math.min(nearest, distance(samples[i], samples[i + 1], kept, j));
+            }
+            assertTrue("sample " + i / 2 + " is " + nearest + " from the stroke", nearest <= tolerance + DELTA);
+        }
+    }
+
+    @Test
+    public void smoothCurvesGoThroughThePoints()
+    {
+        float[] points = {0, 0, 50, 10, 80, 60, 120, 60};
+        float[] curve = StrokeSimplifier.smooth(points);
+        assertEquals(2 + 3 * 6, curve.length);
+        assertEquals(0, curve[0], DELTA);
+        assertEquals(0, curve[1], DELTA);
+        for (int i = 1; i < points.length / 2; i++)
+        {
+            int end = 2 + (i - 1) * 6 + 4;
+            assertEquals(points[i * 2], curve[end], DELTA);
+            assertEquals(points[i * 2 + 1], curve[end + 1], DELTA);
+        }
+
+        // A straight line stays straight
+        float[] line = StrokeSimplifier.smooth(new float[] {0, 0, 30, 0, 60, 0});
+        for (int i = 1; i < line.length; i += 2)
+        {
+            assertEquals(0, line[i], DELTA);
+        }
+    }
+
+    /*
+     * Distance of a point from the segment starting at point j of a polyline
+     */
+    private static float distance(float x, float y, float[] p, int j)
+    {
+        float dx = p[j + 2] - p[j];
+        float dy = p[j + 3] - p[j + 1];
+        float length2 = dx * dx + dy * dy;
+        float t = length2 == 0 ? 0 : Math.max(0, Math.min(1, ((x - p[j]) * dx + (y - p[j + 1]) * dy) / length2));
+        float ex = x - (p[j] + t * dx);
+        float ey = y - (p[j + 1] + t * dy);
+        return (float) Math.sqrt(ex * ex + ey * ey);
+    }
+}
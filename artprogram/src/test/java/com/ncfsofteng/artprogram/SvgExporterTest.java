@@ -0,0 +1,216 @@
+package com.ncfsofteng.artprogram;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.imageio.ImageIO;
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import processing.core.PConstants;
+import processing.core.PImage;
+
+/**
+ * Exports a small scene with SvgExporter, parses the file as XML and checks the layers, the
+ * style groups and the elements inside them, and the colors and opacities they carry.
+ */
+public class SvgExporterTest
+{
+    private static final String SVG = "http://www.w3.org/2000/svg";
+    private static final String XLINK = "http://www.w3.org/1999/xlink";
+
+    private static File assets;
+    private static Element root;
+
+    @BeforeClass
+    public static void export() throws Exception
+    {
+        assets = Files.createTempDirectory("svg").toFile();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        SvgExporter exporter = new SvgExporter(Channels.newChannel(out), 200, 150, assets);
+
+        exporter.layer(1, Compositor.NORMAL);
+        // Opaque rectangles and dots of one color share a path, the ellipse is an element of its own
+        exporter.fill(0xFFCC2020);
+        exporter.rect(10, 10, 30, 20);
+        exporter.rect(60, 40, -10, -10);
+        exporter.dot(70, 70);
+        exporter.ellipse(100, 60, 40, 20, (float) Math.PI / 4);
+        // Translucent rectangles get a path each so their overlap blends
+        exporter.fill(0x802040FF);
+        exporter.rect(120, 80, 30, 30);
+        exporter.rect(130, 90, 30, 30);
+        exporter.stroke(new float[] {10, 100, 40, 120, 70, 100}, 6, false, 4, 0xFF00AA00);
+        exporter.stroke(new float[] {10, 130, 20, 120, 40, 140, 60, 130}, 8, true, 2, 0xC0000000);
+        exporter.line(0, 0, 199, 149, 0xFF000000);
+
+        exporter.layer(0.5f, Compositor.SCREEN);
+        exporter.blend(Compositor.MULTIPLY);
+        exporter.fill(0xFF102030);
+        exporter.rect(5, 5, 10, 10);
+        exporter.rect(20, 5, 10, 10);
+        exporter.blend(Compositor.NORMAL);
+        PImage image = new PImage(16, 8, PConstants.ARGB);
+        image.loadPixels();
+        for (int i = 0; i < image.pixels.length; i++)
+        {
+            image.pixels[i] = 0x80FF8000;
+        }
+        image.updatePixels();
+        exporter.image(image, 20, 20);
+        exporter.image(image, 60, 30);
+        exporter.finish();
+
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        Document document = factory.newDocumentBuilder().parse(new ByteArrayInputStream(out.toByteArray()));
+        root = document.getDocumentElement();
+    }
+
+    @AfterClass
+    public static void removeAssets()
+    {
+        for (File file : assets.listFiles())
+        {
+            file.delete();
+        }
+        assets.delete();
+    }
+
+    @Test
+    public void documentHasTheCanvasSize()
+    {
+        assertEquals(SVG, root.getNamespaceURI());
+        assertEquals("svg", root.getLocalName());
+        assertEquals("200", root.getAttribute("width"));
+        assertEquals("150", root.getAttribute("height"));
+        assertEquals("0 0 200 150", root.getAttribute("viewBox"));
+    }
+
+    @Test
+    public void layersAreGroups()
+    {
+        List<Element> layers = children(root);
+        assertEquals(2, layers.size());
+        assertEquals("g", layers.get(0).getLocalName());
+        assertFalse(layers.get(0).hasAttribute("opacity"));
+        assertFalse(layers.get(0).hasAttribute("style"));
+        assertEquals("0.5", layers.get(1).getAttribute("opacity"));
+        assertEquals("mix-blend-mode:screen", layers.get(1).getAttribute("style"));
+    }
+
+    @Test
+    public void primitivesAreGroupedByStyle()
+    {
+        List<Element> groups = children(children(root).get(0));
+        assertEquals(5, groups.size());
+
+        Element opaque = groups.get(0);
+        assertEquals("#cc2020", opaque.getAttribute("fill"));
+        assertFalse(opaque.hasAttribute("fill-opacity"));
+        assertEquals("path ellipse", names(opaque));
+        // Both rectangles and the dot, drawn the same way round
+        String d = children(opaque).get(0).getAttribute("d");
+        assertEquals("M10 10h30v20h-30zM50 30h10v10h-10zM70 70h1v1h-1z", d);
+        Element ellipse = children(opaque).get(1);
+        assertEquals("20", ellipse.getAttribute("rx"));
+        assertEquals("10", ellipse.getAttribute("ry"));
+        assertEquals("rotate(45 100 60)", ellipse.getAttribute("transform"));
+
+        Element translucent = groups.get(1);
+        assertEquals("#2040ff", translucent.getAttribute("fill"));
+        assertEquals("0.5", translucent.getAttribute("fill-opacity"));
+        assertEquals("path path", names(translucent));
+
+        Element polyline = groups.get(2);
+        assertEquals("none", polyline.getAttribute("fill"));
+        assertEquals("#00aa00", polyline.getAttribute("stroke"));
+        assertEquals("4", polyline.getAttribute("stroke-width"));
+        assertFalse(polyline.hasAttribute("stroke-opacity"));
+        assertEquals("M10 100L40 120 70 100", children(polyline).get(0).getAttribute("d").trim());
+
+        Element curve = groups.get(3);
+        assertEquals("#000000", curve.getAttribute("stroke"));
+        assertEquals("2", curve.getAttribute("stroke-width"));
+        assertEquals("0.75", curve.getAttribute("stroke-opacity"));
+        assertEquals("M10 130C20 120 40 140 60 130", children(curve).get(0).getAttribute("d").trim());
+
+        Element line = groups.get(4);
+        assertEquals("#000000", line.getAttribute("stroke"));
+        assertFalse(line.hasAttribute("stroke-width"));
+        assertEquals("M0 0L199 149", children(line).get(0).getAttribute("d"));
+    }
+
+    @Test
+    public void blendedPrimitivesAndImages() throws Exception
+    {
+        List<Element> elements = children(children(root).get(1));
+        assertEquals("g g image use", names(elements));
+        // Each blended rectangle is a group of its own
+        for (int i = 0; i < 2; i++)
+        {
+            assertEquals("#102030", elements.get(i).getAttribute("fill"));
+            assertEquals("mix-blend-mode:multiply", elements.get(i).getAttribute("style"));
+            assertEquals(1, children(elements.get(i)).size());
+        }
+
+        Element image = elements.get(2);
+        assertEquals("i0", image.getAttribute("id"));
+        String href = image.getAttributeNS(XLINK, "href");
+        assertEquals(assets.getName() + "/image0.png", href);
+        BufferedImage png = ImageIO.read(new File(assets.getParentFile(), href));
+        assertEquals(16, png.getWidth());
+        assertEquals(8, png.getHeight());
+        assertTrue(png.getColorModel().hasAlpha());
+        assertEquals(0x80FF8000, png.getRGB(3, 3));
+
+        Element use = elements.get(3);
+        assertEquals("#i0", use.getAttributeNS(XLINK, "href"));
+        assertEquals("40", use.getAttribute("x"));
+        assertEquals("10", use.getAttribute("y"));
+    }
+
+    private static List<Element> children(Element parent)
+    {
+        List<Element> children = new ArrayList<>();
+        for (Node node = parent.getFirstChild(); node != null; node = node.getNextSibling())
+        {
+            if (node instanceof Element)
+            {
+                children.add((Element) node);
+            }
+        }
+        return children;
+    }
+
+    private static String names(Element parent)
+    {
+        return names(children(parent));
+    }
+
+    private static String names(List<Element> elements)
+    {
+        StringBuilder names = new StringBuilder();
+        for (Element element : elements)
+        {
+            names.append(names.length() == 0 ? "" : " ").append(element.getLocalName());
+        }
+        return names.toString();
+    }
+}
@@ -0,0 +1,145 @@
+package com.ncfsofteng.artprogram;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Records more frames than the ring holds in each format, and checks that every capture was
+ * either written or dropped, and that the files the encoder leaves behind decode.
+ */
+public class TimeLapseTest
+{
+    private static final int WIDTH = 64;
+    private static final int HEIGHT = 48;
+    private static final int CAPTURES = TimeLapse.CAPACITY * 4;
+
+    private File directory;
+
+    @Before
+    public void makeDirectory() throws IOException
+    {
+        directory = Files.createTempDirectory("timelapse").toFile();
+    }
+
+    @After
+    public void removeDirectory()
+    {
+        remove(directory);
+    }
+
+    @Test
+    public void dueEveryInterval() throws InterruptedException
+    {
+        TimeLapse timeLapse = new TimeLapse(new File(directory, "frames"), TimeLapse.PNG, 3);
+        boolean[] due = new boolean[7];
+        for (int i = 0; i < due.length; i++)
+        {
+            due[i] = timeLapse.due();
+        }
+        assertEquals("[true, false, false, true, false, false, true]", Arrays.toString(due));
+        timeLapse.stop();
+        assertFalse(timeLapse.due());
+        assertTrue(timeLapse.join(10000));
+        assertEquals(0, timeLapse.written());
+    }
+
+    @Test(timeout = 60000)
+    public void pngSequenceAccountsForEveryCapture() throws Exception
+    {
+        File frames = new File(directory, "frames");
+        TimeLapse timeLapse = record(frames, TimeLapse.PNG);
+        String[] names = frames.list();
+        Arrays.sort(names);
+        assertEquals(timeLapse.written(), names.length);
+
+        // The frames that made it are in the order they were captured, with their pixels intact
+        int previous = -1;
+        for (int k = 0; k < names.length; k++)
+        {
+            assertEquals(String.format("frame%05d.png", k), names[k]);
+            BufferedImage image = ImageIO.read(new File(frames, names[k]));
+            assertEquals(WIDTH, image.getWidth());
+            assertEquals(HEIGHT, image.getHeight());
+            int capture = (image.getRGB(0, 0) & 0xFF) / 4;
+            assertTrue(names[k] + " is out of order", capture > previous);
+            assertEquals(gray(capture), image.getRGB(WIDTH - 1, HEIGHT - 1));
+            previous = capture;
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void gifAccountsForEveryCapture() throws Exception
+    {
+        File gif = new File(directory, "recording.gif");
+        TimeLapse timeLapse = record(gif, TimeLapse.GIF);
+        ImageReader reader = ImageIO.getImageReadersByFormatName("gif").next();
+        try (ImageInputStream in = ImageIO.createImageInputStream(gif))
+        {
+            reader.setInput(in);
+            assertEquals(timeLapse.written(), reader.getNumImages(true));
+            for (int k = 0; k < timeLapse.written(); k++)
+            {
+                BufferedImage image = reader.read(k);
+                assertEquals(WIDTH, image.getWidth());
+                assertEquals(HEIGHT, image.getHeight());
+            }
+        }
+        finally
+        {
+            reader.dispose();
+        }
+    }
+
+    /*
+     * Captures frames of a different gray each as fast as possible, stops and waits for the encoder
+     */
+    private static TimeLapse record(File output, int format) throws InterruptedException
+    {
+        TimeLapse timeLapse = new TimeLapse(output, format, 1);
+        int[] pixels = new int[WIDTH * HEIGHT];
+        for (int k = 0; k < CAPTURES; k++)
+        {
+            assertTrue(timeLapse.due());
+            Arrays.fill(pixels, gray(k));
+            timeLapse.capture(pixels, WIDTH, HEIGHT);
+        }
+        timeLapse.stop();
+        assertTrue("the encoder didn't finish", timeLapse.join(30000));
+        assertEquals(CAPTURES, timeLapse.written() + timeLapse.dropped());
+        assertTrue(timeLapse.written() > 0);
+        return timeLapse;
+    }
+
+    private static int gray(int capture)
+    {
+        return 0xFF000000 | capture * 4 * 0x010101;
+    }
+
+    private static void remove(File file)
+    {
+        File[] children = file.listFiles();
+        if (children != null)
+        {
+            for (File child : children)
+            {
+                remove(child);
+            }
+        }
+        file.delete();
+    }
+}